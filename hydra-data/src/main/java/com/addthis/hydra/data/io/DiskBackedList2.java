@@ -13,13 +13,7 @@
  */
 package com.addthis.hydra.data.io;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 
 import java.util.ArrayList;
@@ -29,9 +23,7 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.PriorityQueue;
 
-import com.addthis.basis.util.Bytes;
 import com.addthis.basis.util.Files;
 import com.addthis.basis.util.MemoryCounter;
 import com.addthis.basis.util.Parameter;
@@ -44,7 +36,8 @@ import org.slf4j.LoggerFactory;
 /**
  * An implementation of disk-backed list tuned for good sorting performance.
  * Incoming values are split into a number of chunks. Each chunk is small enough
- * to fit entirely within memory.
+ * to fit entirely within memory and is stored in a {@link SpillFile} charged
+ * against the list's {@link SpillSpace}.
  *
  * @param <K> a codable object type
  */
@@ -64,20 +57,31 @@ public class DiskBackedList2<K> implements List<K> {
     private DBLChunk currentChunk;
     private int totalItems;
     private final long maxChunkSizeBytes;
-    private final long maxTotalSizeBytes = Parameter.longValue("max.total.query.size.bytes", 10 * 1000 * 1000 * 1000);
     private static final int defaultChunkSizeBytes = Parameter.intValue("default.chunk.size.bytes", 16 * 1000 * 1000);
     private final String filePrefix = "dbl2file-";
     private final String fileSuffix = ".dat";
     private final File directory;
+    private final SpillSpace spillSpace;
 
     public DiskBackedList2(ItemCodec<K> codec) throws IOException {
         this(codec, defaultChunkSizeBytes, Files.createTempDir());
     }
 
+    public DiskBackedList2(ItemCodec<K> codec, SpillSpace spillSpace) throws IOException {
+        this(codec, defaultChunkSizeBytes, Files.createTempDir(), spillSpace);
+    }
+
     public DiskBackedList2(ItemCodec<K> codec, long maxChunkSizeBytes, File directory) throws IOException {
+        this(codec, maxChunkSizeBytes, directory,
+                new SpillSpace(Parameter.longValue("max.total.query.size.bytes", 10L * 1000 * 1000 * 1000)));
+    }
+
+    public DiskBackedList2(ItemCodec<K> codec, long maxChunkSizeBytes, File directory, SpillSpace spillSpace)
+            throws IOException {
         this.codec = codec;
         this.maxChunkSizeBytes = maxChunkSizeBytes;
         this.directory = directory;
+        this.spillSpace = spillSpace;
         this.chunks = new ArrayList<DBLChunk>();
         this.currentChunk = addChunk();
         this.totalItems = 0;
@@ -402,51 +406,21 @@ public class DiskBackedList2<K> implements List<K> {
      * merge the chunks into a new list, then switch to the new list.
      */
     public void sort(final Comparator<K> comp) throws IOException {
-//        if (currentChunk != null)
-//        {
-//            currentChunk.saveToFile();
-////            loadChunkFully(currentChunk.index);
-//        }
         // Sort each chunk. Done if there is only one chunk.
         sortEachChunk(comp);
         if (chunks.size() <= 1) {
             return;
         }
-        Comparator<Pair<K, Integer>> pairComp = new Comparator<Pair<K, Integer>>() {
-            @Override
-            public int compare(Pair<K, Integer> e1, Pair<K, Integer> e2) {
-                return comp.compare(e1.getLeft(), e2.getLeft());
-            }
-        };
-        // This heap stores the lowest remaining value from each chunk
-        PriorityQueue<Pair<K, Integer>> heap = new PriorityQueue<Pair<K, Integer>>(chunks.size(), pairComp);
-        ArrayList<Iterator> iterators = new ArrayList<Iterator>(chunks.size());
-
-        // Initialize the heap with one value per chunk
+        // Move the sorted chunks aside so the merged list can reuse their file names
         close();
-        for (int i = 0; i < chunks.size(); i++) {
-            Iterator<K> it = chunks.get(i).getChunkIterator();
-            iterators.add(i, it);
-            if (it.hasNext()) {
-                K elt = it.next();
-                if (elt != null) {
-                    heap.add(Pair.of(elt, i));
-                }
-            }
+        List<SpillFile> runs = new ArrayList<SpillFile>(chunks.size());
+        for (DBLChunk chunk : chunks) {
+            runs.add(chunk.detachFile());
         }
-        // Make a new disk backed list to store sorted values.
-        // When the number of chunks is large, the size of the output buffer needs to shrink to make up for the extra mem usage
-        long storageMaxChunkSize = maxChunkSizeBytes / (1 + chunks.size() / 20);
-        DiskBackedList2<K> storage = new DiskBackedList2<K>(codec, storageMaxChunkSize, directory);
-
-        // Repeatedly pull the smallest element from the heap
-        while (!heap.isEmpty()) {
-            Pair<K, Integer> leastElt = heap.poll();
-            storage.add(leastElt.getLeft());
-            @SuppressWarnings({"unchecked"})
-            Iterator<K> polledIterator = iterators.get(leastElt.getRight());
-            if (polledIterator.hasNext()) {
-                heap.add(Pair.of(polledIterator.next(), leastElt.getRight()));
+        DiskBackedList2<K> storage = new DiskBackedList2<K>(codec, maxChunkSizeBytes, directory, spillSpace);
+        try (SpillMerger<K> merger = new SpillMerger<K>(runs, codec, comp, SpillMerger.DEFAULT_FAN_IN, directory)) {
+            while (merger.hasNext()) {
+                storage.add(merger.next());
             }
         }
 
@@ -505,15 +479,15 @@ public class DiskBackedList2<K> implements List<K> {
 
     private DBLChunk addChunk() throws IOException {
         if (currentChunk != null) {
-            currentChunk.saveToFile();
+            try {
+                currentChunk.saveToFile();
+            } catch (SpillSpaceExceededException ex) {
+                log.warn("[disk.backed.list] disk space limit exceeded: " + this.toString());
+                throw ex;
+            }
             currentChunk.clear();
         }
         int index = chunks.size();
-        if (maxTotalSizeBytes > 0 && index * maxChunkSizeBytes > maxTotalSizeBytes) {
-            log.warn("[disk.backed.list] disk space limit exceeded: " + this.toString());
-            throw new RuntimeException("Query exceeded the disk space limit on sort file storage. (Number of rows at time of failure: " +
-                                       totalItems + "). Try using query operations to reduce the size and number of rows being sorted, so as not to stress the QueryMaster.");
-        }
         DBLChunk chunk = new DBLChunk(index, directory);
         chunks.add(chunk);
         return chunk;
@@ -558,7 +532,7 @@ public class DiskBackedList2<K> implements List<K> {
         private final int index;
         private int numEntries;
         private long availableBytes;
-        private File file;
+        private SpillFile file;
 
         public String makeFileName() {
             return filePrefix + index;
@@ -568,7 +542,8 @@ public class DiskBackedList2<K> implements List<K> {
             this.index = index;
             this.numEntries = 0;
             this.availableBytes = maxChunkSizeBytes;
-            file = new File(directory, makeFileName() + fileSuffix);
+            file = new SpillFile(new File(directory, makeFileName() + fileSuffix), spillSpace,
+                    SpillFile.DEFAULT_COMPRESSION);
         }
 
         public int getIndex() {
@@ -596,17 +571,13 @@ public class DiskBackedList2<K> implements List<K> {
         }
 
         public void saveToFile() throws IOException {
-            FileOutputStream fos = new FileOutputStream(file);
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            DataOutputStream dos = new DataOutputStream(bos);
-            dos.writeInt(this.size());
-            for (K val : this) {
-                byte[] valBytes = codec.encode(val);
-                if (log.isDebugEnabled()) log.debug("stf: encoding " + val + " as " + valBytes.length + " to " + file);
-                dos.writeInt(valBytes.length);
-                dos.write(valBytes);
+            try (SpillFile.Writer writer = file.openWriter()) {
+                for (K val : this) {
+                    byte[] valBytes = codec.encode(val);
+                    if (log.isDebugEnabled()) log.debug("stf: encoding " + val + " as " + valBytes.length + " to " + file);
+                    writer.write(valBytes);
+                }
             }
-            dos.close();
         }
 
         public boolean deleteFile() {
@@ -614,99 +585,25 @@ public class DiskBackedList2<K> implements List<K> {
         }
 
         public void readFromFile() throws IOException {
-            FileInputStream fis = new FileInputStream(file);
-            BufferedInputStream bis = new BufferedInputStream(fis);
-            DataInputStream dis = new DataInputStream(bis);
-            int newNum = dis.readInt();
-            for (int i = 0; i < newNum; i++) {
-                int newLen = dis.readInt();
-                byte[] bytes = Bytes.readBytes(dis, newLen);
-                if (bytes == null || bytes.length == 0 || newLen == 0) {
-                    log.warn("read null/0 bytes @ i=" + i + " of " + newNum + " for index=" + index + " file=" + file);
-                } else {
+            try (SpillFile.Reader reader = file.openReader()) {
+                byte[] bytes;
+                while ((bytes = reader.next()) != null) {
                     if (log.isDebugEnabled()) log.debug("rff: decoding " + bytes.length + " bytes from " + file);
                     K tv = codec.decode(bytes);
                     this.store(tv);
                 }
             }
-            dis.close();
         }
 
         public void resetNumEntries() {
             numEntries = 0;
         }
 
-        public Iterator<K> getChunkIterator() throws IOException {
-            return new ListIterator<K>() {
-                final FileInputStream fis = new FileInputStream(file);
-                final BufferedInputStream bis = new BufferedInputStream(fis);
-                final DataInputStream dis = new DataInputStream(bis);
-                int itemsRemaining = dis.readInt();
-
-                {
-                    if (log.isDebugEnabled()) log.debug("iter: items=" + itemsRemaining + " file=" + file);
-                }
-
-                @Override
-                public boolean hasNext() {
-                    return itemsRemaining > 0;
-                }
-
-                @Override
-                public K next() {
-                    try {
-                        int eltLength = dis.readInt();
-                        byte[] bytes = Bytes.readBytes(dis, eltLength);
-                        itemsRemaining--;
-                        if (itemsRemaining == 0) {
-                            dis.close();
-                        }
-                        if (log.isDebugEnabled()) {
-                            log.debug("iter: decoding " + bytes.length + " bytes remain=" + itemsRemaining + " from " + file);
-                        }
-                        return codec.decode(bytes);
-                    } catch (IOException io) {
-                        log.warn("[disk.backed.list] io exception during chunk iteration", io);
-                        return null;
-                    }
-
-                }
-
-                @Override
-                public void remove() {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public void add(K e) {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public boolean hasPrevious() {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public int nextIndex() {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public K previous() {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public int previousIndex() {
-                    throw new UnsupportedOperationException();
-                }
-
-                @Override
-                public void set(K e) {
-                    throw new UnsupportedOperationException();
-                }
-            };
+        /**
+         * Rename the chunk's file out of the way and hand it over as a sorted run.
+         */
+        public SpillFile detachFile() throws IOException {
+            return file.renameTo(new File(directory, "dbl2sort-" + index + fileSuffix));
         }
     }
 
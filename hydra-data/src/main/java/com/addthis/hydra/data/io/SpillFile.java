@@ -0,0 +1,360 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.util.Arrays;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.addthis.basis.util.Parameter;
+
+import com.ning.compress.lzf.LZFDecoder;
+import com.ning.compress.lzf.LZFEncoder;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * A temporary file of binary records used to spill sorts and result tables
+ * to disk. Records are packed into blocks of at least {@code spill.block.size}
+ * bytes, each block is optionally compressed on its own and written with a
+ * single gathering write. Readers map the file into memory when possible and
+ * otherwise fetch one whole block per read.
+ * <p/>
+ * Block layout: [codec:1][stored length:4][raw length:4][payload]. The raw
+ * payload is a sequence of records, each prefixed by its varint length.
+ * <p/>
+ * Bytes written are charged to a {@link SpillSpace} until the file is deleted
+ * or rewritten.
+ */
+public class SpillFile {
+
+    public static final int COMPRESS_NONE = 0;
+    public static final int COMPRESS_LZF = 1;
+    public static final int COMPRESS_SNAPPY = 2;
+
+    public static final int DEFAULT_COMPRESSION = Parameter.intValue("spill.compression", COMPRESS_NONE);
+    private static final int BLOCK_SIZE = Parameter.intValue("spill.block.size", 64 * 1024);
+    private static final boolean MMAP = Parameter.boolValue("spill.mmap", true);
+
+    private static final int HEADER_SIZE = 9;
+
+    private final File file;
+    private final SpillSpace space;
+    private final int compression;
+
+    private long length;
+    private long records;
+
+    public SpillFile(File file, SpillSpace space, int compression) {
+        if (compression < COMPRESS_NONE || compression > COMPRESS_SNAPPY) {
+            throw new IllegalArgumentException("Unknown compression type: " + compression);
+        }
+        this.file = file;
+        this.space = space;
+        this.compression = compression;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    SpillSpace getSpace() {
+        return space;
+    }
+
+    int getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return bytes written to this file and charged to its space
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * Open a writer that replaces any previous contents of this file.
+     */
+    public Writer openWriter() throws IOException {
+        space.release(length);
+        length = 0;
+        records = 0;
+        return new Writer();
+    }
+
+    public Reader openReader() throws IOException {
+        return new Reader();
+    }
+
+    /**
+     * Move the file to a new name. This object no longer refers to
+     * any data and the returned file carries its space charge.
+     */
+    public SpillFile renameTo(File dest) throws IOException {
+        if (!file.renameTo(dest)) {
+            throw new IOException("unable to rename " + file + " to " + dest);
+        }
+        SpillFile moved = new SpillFile(dest, space, compression);
+        moved.length = length;
+        moved.records = records;
+        length = 0;
+        records = 0;
+        return moved;
+    }
+
+    public boolean delete() {
+        space.release(length);
+        length = 0;
+        records = 0;
+        return file.delete() || !file.exists();
+    }
+
+    @Override
+    public String toString() {
+        return "SpillFile[" + file + ",records=" + records + ",length=" + length + "]";
+    }
+
+    /**
+     * Appends records to the file. Records are buffered until a full
+     * block is available so that each write to disk is large and sequential.
+     */
+    public final class Writer implements Closeable {
+
+        private final RandomAccessFile access;
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private byte[] block = new byte[BLOCK_SIZE + 5];
+        private byte[] packed;
+        private int position;
+
+        private Writer() throws IOException {
+            access = new RandomAccessFile(file, "rw");
+            access.setLength(0);
+            channel = access.getChannel();
+        }
+
+        public void write(byte[] record) throws IOException {
+            write(record, 0, record.length);
+        }
+
+        public void write(byte[] record, int offset, int len) throws IOException {
+            if (position + len + 5 > block.length) {
+                block = Arrays.copyOf(block, Math.max(block.length * 2, position + len + 5));
+            }
+            int value = len;
+            while ((value & ~0x7f) != 0) {
+                block[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            block[position++] = (byte) value;
+            System.arraycopy(record, offset, block, position, len);
+            position += len;
+            records++;
+            if (position >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (position == 0) {
+                return;
+            }
+            byte codec = (byte) compression;
+            byte[] payload = block;
+            int stored = position;
+            switch (compression) {
+                case COMPRESS_LZF:
+                    payload = LZFEncoder.encode(block, 0, position);
+                    stored = payload.length;
+                    break;
+                case COMPRESS_SNAPPY:
+                    int max = Snappy.maxCompressedLength(position);
+                    if (packed == null || packed.length < max) {
+                        packed = new byte[max];
+                    }
+                    payload = packed;
+                    stored = Snappy.compress(block, 0, position, packed, 0);
+                    break;
+                default:
+                    break;
+            }
+            if (stored >= position) {
+                // incompressible block
+                codec = COMPRESS_NONE;
+                payload = block;
+                stored = position;
+            }
+            space.reserve(HEADER_SIZE + stored);
+            length += HEADER_SIZE + stored;
+            header.clear();
+            header.put(codec).putInt(stored).putInt(position).flip();
+            ByteBuffer[] buffers = new ByteBuffer[]{header, ByteBuffer.wrap(payload, 0, stored)};
+            while (buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+            position = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flushBlock();
+            } finally {
+                access.close();
+            }
+        }
+    }
+
+    /**
+     * Iterates over the records of the file in the order they were written.
+     */
+    public final class Reader implements Closeable {
+
+        private final RandomAccessFile access;
+        private final FileChannel channel;
+        private final long size;
+        private final ByteBuffer mapped;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private long offset;
+        private ByteBuffer current;
+        private byte[] raw;
+        private byte[] stored;
+
+        private Reader() throws IOException {
+            access = new RandomAccessFile(file, "r");
+            channel = access.getChannel();
+            size = channel.size();
+            if (MMAP && size > 0 && size <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                mapped = null;
+            }
+        }
+
+        /**
+         * @return the next record or null at the end of the file
+         */
+        public byte[] next() throws IOException {
+            if ((current == null || !current.hasRemaining()) && !nextBlock()) {
+                return null;
+            }
+            int len = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = current.get();
+                len |= (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+            byte[] record = new byte[len];
+            current.get(record);
+            return record;
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (offset >= size) {
+                return false;
+            }
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            int codec = header.get();
+            int storedLength = header.getInt();
+            int rawLength = header.getInt();
+            offset += HEADER_SIZE;
+            if (offset + storedLength > size) {
+                throw new EOFException("truncated block in " + file);
+            }
+            if (codec == COMPRESS_NONE && mapped != null) {
+                // serve records straight from the mapping
+                ByteBuffer slice = mapped.duplicate();
+                slice.limit((int) (offset + rawLength)).position((int) offset);
+                current = slice;
+            } else if (codec == COMPRESS_NONE) {
+                current = ByteBuffer.wrap(readPayload(rawLength, true), 0, rawLength);
+            } else {
+                byte[] packed = readPayload(storedLength, false);
+                raw = ensure(raw, rawLength);
+                switch (codec) {
+                    case COMPRESS_LZF:
+                        LZFDecoder.decode(packed, 0, storedLength, raw);
+                        break;
+                    case COMPRESS_SNAPPY:
+                        Snappy.uncompress(packed, 0, storedLength, raw, 0);
+                        break;
+                    default:
+                        throw new IOException("unknown block codec " + codec + " in " + file);
+                }
+                current = ByteBuffer.wrap(raw, 0, rawLength);
+            }
+            offset += storedLength;
+            return true;
+        }
+
+        private byte[] readPayload(int len, boolean intoRaw) throws IOException {
+            byte[] dest;
+            if (intoRaw) {
+                dest = raw = ensure(raw, len);
+            } else {
+                dest = stored = ensure(stored, len);
+            }
+            readFully(ByteBuffer.wrap(dest, 0, len), offset);
+            return dest;
+        }
+
+        private void readFully(ByteBuffer dest, long at) throws IOException {
+            if (at + dest.remaining() > size) {
+                throw new EOFException("truncated block in " + file);
+            }
+            if (mapped != null) {
+                ByteBuffer slice = mapped.duplicate();
+                slice.limit((int) (at + dest.remaining())).position((int) at);
+                dest.put(slice);
+                return;
+            }
+            while (dest.hasRemaining()) {
+                int read = channel.read(dest, at);
+                if (read < 0) {
+                    throw new EOFException("truncated block in " + file);
+                }
+                at += read;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            access.close();
+        }
+    }
+
+    private static byte[] ensure(byte[] buffer, int len) {
+        if (buffer == null || buffer.length < len) {
+            return new byte[len];
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.hydra.data.io.DiskBackedList2.ItemCodec;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges sorted spill files into a single sorted stream. When there are more
+ * runs than the fan-in allows, groups of adjacent runs are first merged into
+ * intermediate files until one final pass can read them all at once. Values
+ * that compare equal are returned in run order, so merging runs that were
+ * written in input order is stable.
+ * <p/>
+ * The merger takes ownership of the runs and deletes each one as soon as it
+ * has been consumed.
+ *
+ * @param <K> the type of the decoded records
+ */
+public class SpillMerger<K> implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(SpillMerger.class);
+
+    public static final int DEFAULT_FAN_IN = Parameter.intValue("spill.merge.fanin", 256);
+
+    private static final Meter mergePasses = Metrics.newMeter(SpillMerger.class, "mergePasses",
+            "mergePasses", TimeUnit.SECONDS);
+
+    private final ItemCodec<K> codec;
+    private final Comparator<? super K> comparator;
+    private final PriorityQueue<Source> heap;
+    private final List<Source> sources = new ArrayList<>();
+
+    /**
+     * @param runs      sorted spill files, in input order
+     * @param maxFanIn  the most runs read at once
+     * @param directory where intermediate runs are written
+     */
+    public SpillMerger(List<SpillFile> runs, ItemCodec<K> codec, Comparator<? super K> comparator,
+            int maxFanIn, File directory) throws IOException {
+        if (maxFanIn < 2) {
+            throw new IllegalArgumentException("merge fan-in must be at least 2: " + maxFanIn);
+        }
+        this.codec = codec;
+        this.comparator = comparator;
+        this.heap = new PriorityQueue<>(Math.max(1, Math.min(runs.size(), maxFanIn)), new Comparator<Source>() {
+            @Override
+            public int compare(Source o1, Source o2) {
+                int comp = SpillMerger.this.comparator.compare(o1.head, o2.head);
+                if (comp == 0) {
+                    return Integer.compare(o1.index, o2.index);
+                }
+                return comp;
+            }
+        });
+        int pass = 0;
+        while (runs.size() > maxFanIn) {
+            runs = mergePass(runs, maxFanIn, directory, pass++);
+        }
+        open(runs);
+    }
+
+    /**
+     * merge each group of maxFanIn adjacent runs into one intermediate run
+     */
+    private List<SpillFile> mergePass(List<SpillFile> runs, int maxFanIn, File directory, int pass)
+            throws IOException {
+        mergePasses.mark();
+        List<SpillFile> output = new ArrayList<>(runs.size() / maxFanIn + 1);
+        for (int start = 0; start < runs.size(); start += maxFanIn) {
+            List<SpillFile> group = runs.subList(start, Math.min(runs.size(), start + maxFanIn));
+            if (group.size() == 1) {
+                output.add(group.get(0));
+                continue;
+            }
+            SpillFile first = group.get(0);
+            SpillFile merged = new SpillFile(new File(directory, "merge-" + pass + "-" + output.size() + ".spill"),
+                    first.getSpace(), first.getCompression());
+            open(group);
+            try (SpillFile.Writer writer = merged.openWriter()) {
+                while (!heap.isEmpty()) {
+                    writer.write(codec.encode(next()));
+                }
+            } finally {
+                close();
+            }
+            output.add(merged);
+        }
+        log.debug("merge pass {} reduced {} runs to {}", pass, runs.size(), output.size());
+        return output;
+    }
+
+    private void open(List<SpillFile> runs) throws IOException {
+        sources.clear();
+        for (SpillFile run : runs) {
+            Source source = new Source(run, sources.size());
+            sources.add(source);
+            if (source.advance()) {
+                heap.add(source);
+            }
+        }
+    }
+
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    public K next() throws IOException {
+        Source source = heap.poll();
+        if (source == null) {
+            throw new NoSuchElementException();
+        }
+        K next = source.head;
+        if (source.advance()) {
+            heap.add(source);
+        }
+        return next;
+    }
+
+    /**
+     * release readers and delete any runs that were not fully consumed
+     */
+    @Override
+    public void close() throws IOException {
+        heap.clear();
+        for (Source source : sources) {
+            source.finish();
+        }
+        sources.clear();
+    }
+
+    private class Source {
+
+        private final SpillFile run;
+        private final int index;
+        private SpillFile.Reader reader;
+        private K head;
+
+        Source(SpillFile run, int index) throws IOException {
+            this.run = run;
+            this.index = index;
+            this.reader = run.openReader();
+        }
+
+        boolean advance() throws IOException {
+            byte[] next = reader != null ? reader.next() : null;
+            if (next == null) {
+                finish();
+                return false;
+            }
+            head = codec.decode(next);
+            return true;
+        }
+
+        void finish() throws IOException {
+            head = null;
+            if (reader != null) {
+                reader.close();
+                reader = null;
+                run.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.io;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+/**
+ * Temporary disk space budget shared by the spill files of a single query.
+ * Every block written to a {@link SpillFile} is charged here before it reaches
+ * the disk and is credited back when the file is deleted or rewritten, so a
+ * query that mixes disk sorts and disk-backed result tables is held to one limit.
+ */
+public class SpillSpace {
+
+    private static final Counter spillBytes = Metrics.newCounter(SpillSpace.class, "spillBytes");
+
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * @param maxBytes upper bound on spilled bytes, or zero for no limit
+     */
+    public SpillSpace(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @throws SpillSpaceExceededException if the reservation would exceed the limit
+     */
+    public void reserve(long bytes) {
+        long used = usedBytes.addAndGet(bytes);
+        if (maxBytes > 0 && used > maxBytes) {
+            usedBytes.addAndGet(-bytes);
+            throw new SpillSpaceExceededException(maxBytes);
+        }
+        spillBytes.inc(bytes);
+    }
+
+    public void release(long bytes) {
+        usedBytes.addAndGet(-bytes);
+        spillBytes.dec(bytes);
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SpillSpace[used=" + usedBytes.get() + ",max=" + maxBytes + "]";
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.io;
+
+/**
+ * Thrown when a query writes more temporary data than its {@link SpillSpace} allows.
+ */
+public class SpillSpaceExceededException extends RuntimeException {
+
+    public SpillSpaceExceededException(long maxBytes) {
+        super("Query exceeded the disk space limit on sort file storage (" + maxBytes + " bytes). " +
+              "Try using query operations to reduce the size and number of rows being sorted, " +
+              "so as not to stress the QueryMaster.");
+    }
+}
@@ -14,6 +14,8 @@
 package com.addthis.hydra.data.query;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
@@ -148,12 +150,25 @@ public class Query implements Codec.Codable {
     }
 
     public String hashKey(List<String> excludeProp) {
+        return hashKey(excludeProp, Collections.<String>emptyList());
+    }
+
+    /**
+     * @param excludeParams parameters that do not change the results of the query
+     */
+    public String hashKey(List<String> excludeProp, Collection<String> excludeParams) {
         try {
             JSONObject o = CodecJSON.encodeJSON(this);
             o.remove("uuid");
             for (String prop : excludeProp) {
                 o.remove(prop);
             }
+            JSONObject p = o.optJSONObject("params");
+            if (p != null) {
+                for (String param : excludeParams) {
+                    p.remove(param);
+                }
+            }
             return o.toString();
         } catch (Exception ex) {
             return toString();
@@ -220,7 +235,15 @@ public class Query implements Codec.Codable {
     }
 
     public QueryOpProcessor getProcessor(DataChannelOutput output, QueryStatusObserver queryStatusObserver) {
-        QueryOpProcessor rp = new QueryOpProcessor(output, ops, queryStatusObserver);
+        return getProcessor(output, queryStatusObserver, null);
+    }
+
+    public QueryOpProcessor getProcessor(DataChannelOutput output, QueryStatusObserver queryStatusObserver,
+            QueryMemTracker memTracker) {
+        QueryOpProcessor rp = new QueryOpProcessor.Builder(output, ops)
+                .queryStatusObserver(queryStatusObserver)
+                .memTracker(memTracker)
+                .build();
         for (QueryOp op : appendops) {
             rp.appendOp(op);
         }
@@ -251,10 +274,19 @@ public class Query implements Codec.Codable {
     public Query createPipelinedQuery() {
         Query newQuery = cloneTo(new Query());
         if (ops != null && ops.length > 0) {
-            String newops[] = new String[ops.length - 1];
-            System.arraycopy(ops, 1, newops, 0, newops.length);
-            newQuery.ops = newops;
             String pop = ops[0];
+            String pushdown = QueryOpProcessor.createTopSortPushdown(pop);
+            String newops[];
+            if (pushdown != null) {
+                // remote op strings are applied last to first
+                newops = new String[ops.length];
+                newops[0] = pushdown;
+                System.arraycopy(ops, 1, newops, 1, ops.length - 1);
+            } else {
+                newops = new String[ops.length - 1];
+                System.arraycopy(ops, 1, newops, 0, newops.length);
+            }
+            newQuery.ops = newops;
             ops = new String[]{pop};
         }
         return newQuery;
@@ -13,116 +13,407 @@
  */
 package com.addthis.hydra.data.query;
 
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
-
-import com.addthis.basis.util.MemoryCounter;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueMapEntry;
+import com.addthis.bundle.value.ValueObject;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Timer;
 
 /**
- * The memory manager attempts to bound all in-flight queries to a range
- * of memory usage.  It does this by handing out QueryMemTrackers upon
- * request.  These requests block until sufficient resources are available.
+ * The memory manager bounds all in-flight queries to a range of memory
+ * usage. Each query is admitted with an up-front reservation and grows
+ * that reservation in chunks as its op chain buffers rows.
  * <p/>
- * Hitting soft limits starts blocking allocations and tracks.  Hitting
- * hard limits causes runtime/query exceptions to be thrown forcing the
- * cleanup of resources.
+ * Requests that do not fit under the soft limit wait in a queue ordered
+ * by (growth before admission, priority, arrival) and are woken when
+ * memory is released rather than by polling. The oldest admitted query
+ * may always grow up to the hard limit so that the system makes progress
+ * even when every other query is waiting. Hitting the hard limit, a full
+ * queue or the admission timeout causes a query exception to be thrown
+ * forcing the cleanup of resources.
  */
 public class QueryMemManager {
 
-    private final AtomicLong usedMemory = new AtomicLong();
-    private final AtomicReference<QMTracker> winner = new AtomicReference<QMTracker>();
+    private static final Counter queuedQueries = Metrics.newCounter(QueryMemManager.class, "queuedQueries");
+    private static final Counter reservedBytes = Metrics.newCounter(QueryMemManager.class, "reservedBytes");
+    private static final Meter rejectedQueries = Metrics.newMeter(QueryMemManager.class, "rejectedQueries",
+            "rejectedQueries", TimeUnit.SECONDS);
+    private static final Timer admissionWaits = Metrics.newTimer(QueryMemManager.class, "admissionWaits",
+            TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+
+    /* rough per-object overheads used by the size estimate */
+    private static final int BUNDLE_OVERHEAD = 64;
+    private static final int VALUE_OVERHEAD = 24;
+    private static final int STRING_OVERHEAD = 56;
+    private static final int MAX_ESTIMATE_DEPTH = 4;
+
     private final long maxMemHard;
     private final long maxMemSoft;
+    private final long reservation;
+    private final int maxQueued;
+    private final long maxWaitMillis;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final PriorityQueue<Waiter> waiters = new PriorityQueue<>();
+    private final TreeMap<Long, QMTracker> active = new TreeMap<>();
+    private long reserved;
+    private long sequence;
 
     public QueryMemManager(long hardMaxMem, long softMaxMem) {
+        this(hardMaxMem, softMaxMem, Math.max(1, softMaxMem / 64), Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * @param hardMaxMem    queries that would push the reservation total past this value fail
+     * @param softMaxMem    requests that would push the reservation total past this value wait
+     * @param reservation   bytes reserved on admission and the unit in which trackers grow
+     * @param maxQueued     queries waiting beyond this count are rejected
+     * @param maxWaitMillis maximum time to wait for memory, or zero to wait indefinitely
+     */
+    public QueryMemManager(long hardMaxMem, long softMaxMem, long reservation, int maxQueued, long maxWaitMillis) {
+        if (softMaxMem > hardMaxMem) {
+            throw new IllegalArgumentException("soft limit " + softMaxMem + " exceeds hard limit " + hardMaxMem);
+        }
         this.maxMemHard = hardMaxMem;
         this.maxMemSoft = softMaxMem;
+        this.reservation = Math.max(1, Math.min(reservation, softMaxMem));
+        this.maxQueued = maxQueued;
+        this.maxWaitMillis = maxWaitMillis;
     }
 
     public QueryMemTracker allocateTracker() {
-        if (usedMemory.get() > maxMemHard) {
+        return allocateTracker(0);
+    }
+
+    /**
+     * Block until the initial reservation for a new query can be granted.
+     *
+     * @param priority queries with a higher priority are admitted first
+     * @return tracker that must be passed to {@link #release(QueryMemTracker)}
+     *         when the query completes
+     */
+    public QueryMemTracker allocateTracker(int priority) {
+        lock.lock();
+        try {
+            QMTracker tracker = new QMTracker(sequence++);
+            acquire(tracker, reservation, priority, false);
+            tracker.granted = reservation;
+            active.put(tracker.id, tracker);
+            return tracker;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Return all memory reserved by the tracker and wake any waiting queries.
+     * Releasing a tracker more than once is harmless.
+     */
+    public void release(QueryMemTracker memTracker) {
+        if (!(memTracker instanceof QMTracker)) {
+            return;
+        }
+        QMTracker tracker = (QMTracker) memTracker;
+        lock.lock();
+        try {
+            if (active.remove(tracker.id) != null) {
+                giveBack(tracker.granted);
+                tracker.granted = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getReservedMemory() {
+        lock.lock();
+        try {
+            return reserved;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return waiters.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getActiveQueries() {
+        lock.lock();
+        try {
+            return active.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cheap estimate of the heap consumed by a bundle. Walks the values
+     * directly rather than reflecting over the object graph.
+     */
+    public static long estimateSize(Bundle bundle) {
+        long size = BUNDLE_OVERHEAD;
+        for (BundleField field : bundle.getFormat()) {
+            ValueObject value = bundle.getValue(field);
+            if (value != null) {
+                size += estimateSize(value, 0);
+            }
+        }
+        return size;
+    }
+
+    private static long estimateSize(ValueObject value, int depth) {
+        ValueObject.TYPE type = value.getObjectType();
+        if (type == null) {
+            return VALUE_OVERHEAD;
+        }
+        switch (type) {
+            case STRING:
+                return STRING_OVERHEAD + 2L * value.asString().getString().length();
+            case BYTES:
+                return VALUE_OVERHEAD + value.asBytes().size();
+            case INT:
+            case FLOAT:
+                return VALUE_OVERHEAD;
+            case ARRAY:
+                ValueArray array = value.asArray();
+                long arraySize = VALUE_OVERHEAD + 8L * array.size();
+                if (depth < MAX_ESTIMATE_DEPTH) {
+                    for (ValueObject element : array) {
+                        if (element != null) {
+                            arraySize += estimateSize(element, depth + 1);
+                        }
+                    }
+                }
+                return arraySize;
+            case MAP:
+                ValueMap map = value.asMap();
+                long mapSize = VALUE_OVERHEAD + 32L * map.size();
+                if (depth < MAX_ESTIMATE_DEPTH) {
+                    for (ValueMapEntry entry : map) {
+                        mapSize += STRING_OVERHEAD + 2L * entry.getKey().length();
+                        if (entry.getValue() != null) {
+                            mapSize += estimateSize(entry.getValue(), depth + 1);
+                        }
+                    }
+                }
+                return mapSize;
+            default:
+                return VALUE_OVERHEAD * 4;
+        }
+    }
+
+    /**
+     * Wait until {@code bytes} can be added to the reservation total.
+     * Must be called with the lock held.
+     */
+    private void acquire(QMTracker tracker, long bytes, int priority, boolean growth) {
+        if (growth && reserved + bytes > maxMemHard && (tracker.granted + bytes > maxMemHard || isOldest(tracker))) {
+            rejectedQueries.mark();
             throw new QueryException("max query memory exceeded");
         }
-        while (usedMemory.get() > maxMemSoft) {
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                QueryException.promote(e);
+        if (waiters.isEmpty() && canGrant(tracker, bytes)) {
+            grant(bytes);
+            return;
+        }
+        if (waiters.size() >= maxQueued) {
+            rejectedQueries.mark();
+            throw new QueryException("query memory queue is full: " + waiters.size() + " queries waiting");
+        }
+        Waiter waiter = new Waiter(tracker, bytes, priority, growth);
+        waiters.add(waiter);
+        queuedQueries.inc();
+        // a growing query may sort ahead of everything already queued
+        dispatch();
+        long start = System.nanoTime();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        try {
+            while (!waiter.granted) {
+                if (waiter.rejected) {
+                    rejectedQueries.mark();
+                    throw new QueryException("max query memory exceeded");
+                } else if (maxWaitMillis <= 0) {
+                    waiter.wakeup.await();
+                } else if (remaining <= 0) {
+                    rejectedQueries.mark();
+                    throw new QueryException("timed out after " + maxWaitMillis + "ms waiting for query memory");
+                } else {
+                    remaining = waiter.wakeup.awaitNanos(remaining);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryException("interrupted while waiting for query memory", e);
+        } finally {
+            queuedQueries.dec();
+            admissionWaits.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            if (!waiter.granted) {
+                waiters.remove(waiter);
+                // our departure may unblock the next waiter in line
+                dispatch();
             }
         }
-        return new QMTracker();
     }
 
-    private final class QMTracker implements QueryMemTracker {
+    private boolean isOldest(QMTracker tracker) {
+        return !active.isEmpty() && active.firstKey() == tracker.id;
+    }
 
-        private long mem;
-        private int bundles;
+    /**
+     * Requests fit under the soft limit, except for the oldest active query
+     * which is allowed to continue up to the hard limit.
+     */
+    private boolean canGrant(QMTracker tracker, long bytes) {
+        if (reserved + bytes <= maxMemSoft) {
+            return true;
+        }
+        return reserved + bytes <= maxMemHard && isOldest(tracker);
+    }
 
-        @Override
-        protected void finalize() {
-            untrackAllBundles();
+    private void grant(long bytes) {
+        reserved += bytes;
+        reservedBytes.inc(bytes);
+    }
+
+    private void giveBack(long bytes) {
+        reserved -= bytes;
+        reservedBytes.dec(bytes);
+        dispatch();
+    }
+
+    /**
+     * Grant requests from the head of the queue while they fit. Requests
+     * are strictly served in queue order so that large reservations are
+     * not starved by small ones. Must be called with the lock held.
+     */
+    private void dispatch() {
+        Waiter head;
+        while ((head = waiters.peek()) != null) {
+            if (canGrant(head.tracker, head.bytes)) {
+                grant(head.bytes);
+                head.granted = true;
+            } else if (head.growth && isOldest(head.tracker)) {
+                // nothing ahead of the oldest query will release memory for it
+                head.rejected = true;
+            } else {
+                return;
+            }
+            waiters.poll();
+            head.wakeup.signal();
+        }
+    }
+
+    private final class Waiter implements Comparable<Waiter> {
+
+        private final QMTracker tracker;
+        private final long bytes;
+        private final int priority;
+        private final boolean growth;
+        private final long order;
+        private final Condition wakeup;
+        private boolean granted;
+        private boolean rejected;
+
+        Waiter(QMTracker tracker, long bytes, int priority, boolean growth) {
+            this.tracker = tracker;
+            this.bytes = bytes;
+            this.priority = priority;
+            this.growth = growth;
+            this.order = tracker.id;
+            this.wakeup = lock.newCondition();
         }
 
-        /**
-         * in theory this could block to prevent a race between
-         * queries to consume all memory.  however, 2+ fast consumers
-         * could bind up and prevent each other from completing, so
-         * the system would have to be clever enough to halt all but
-         * one query until the resource situation was mitigated.
-         * one strategy could be to anoint the first one to hit this
-         * situation as the "winner", and all subsequent ones "losers"
-         * until memory was back within bounds.
-         */
         @Override
-        public void trackBundle(Bundle bundle) {
-            bundles++;
-            long memest = MemoryCounter.estimateSize(bundle);
-            mem += memest;
-            long used = usedMemory.addAndGet(memest);
-            if (used > maxMemHard) {
-                if (winner.compareAndSet(this, null)) {
-                    // clean 'winner' on exception if applicable
-                }
-                throw new QueryException("max query memory exceeded");
+        public int compareTo(Waiter other) {
+            // admitted queries growing their reservation hold memory that
+            // can only be returned once they finish, so they go first
+            if (growth != other.growth) {
+                return growth ? -1 : 1;
+            }
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
             }
-            /**
-             * the first tracker to hit the soft limit becomes the winner
-             * and all other trackers then block until the mem falls below
-             * the soft limit.
-             */
-            while (used > maxMemSoft && !winner.compareAndSet(null, this)) {
-                try {
-                    Thread.sleep(50);
-                } catch (InterruptedException e) {
-                    if (winner.compareAndSet(this, null)) {
-                        // clean 'winner' on exception if applicable
+            return Long.compare(order, other.order);
+        }
+    }
+
+    private final class QMTracker implements QueryMemTracker {
+
+        private final long id;
+        /* guarded by the manager lock */
+        private long granted;
+        /* guarded by this tracker */
+        private long used;
+
+        QMTracker(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public synchronized void trackBundle(Bundle bundle) {
+            long estimate = estimateSize(bundle);
+            used += estimate;
+            lock.lock();
+            try {
+                if (used > granted) {
+                    if (!active.containsKey(id)) {
+                        throw new QueryException("query memory tracker has been released");
                     }
-                    QueryException.promote(e);
+                    long bytes = ((used - granted + reservation - 1) / reservation) * reservation;
+                    acquire(this, bytes, 0, true);
+                    granted += bytes;
                 }
-                used = usedMemory.addAndGet(memest);
+            } catch (QueryException e) {
+                used -= estimate;
+                throw e;
+            } finally {
+                lock.unlock();
             }
         }
 
         @Override
-        public void untrackBundle(Bundle bundle) {
-            bundles--;
-            long memest = MemoryCounter.estimateSize(bundle);
-            mem -= memest;
-            long used = usedMemory.addAndGet(-memest);
-            if (used < maxMemSoft && winner.get() == this) {
-                winner.set(null);
-            }
+        public synchronized void untrackBundle(Bundle bundle) {
+            used = Math.max(0, used - estimateSize(bundle));
+            shrink();
         }
 
         @Override
-        public void untrackAllBundles() {
-            long used = usedMemory.addAndGet(-mem);
-            mem = 0;
-            bundles = 0;
-            if (used < maxMemSoft) {
-                winner.set(null);
+        public synchronized void untrackAllBundles() {
+            used = 0;
+            shrink();
+        }
+
+        /**
+         * Hand back whole chunks that are no longer needed while
+         * keeping the initial reservation.
+         */
+        private void shrink() {
+            long keep = Math.max(reservation, ((used + reservation - 1) / reservation) * reservation);
+            lock.lock();
+            try {
+                if (granted > keep && active.containsKey(id)) {
+                    giveBack(granted - keep);
+                    granted = keep;
+                }
+            } finally {
+                lock.unlock();
             }
         }
     }
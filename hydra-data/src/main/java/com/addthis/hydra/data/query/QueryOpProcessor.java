@@ -30,6 +30,7 @@ import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.table.DataTable;
 import com.addthis.bundle.table.DataTableFactory;
+import com.addthis.hydra.data.io.SpillSpace;
 import com.addthis.hydra.data.query.op.OpChangePoints;
 import com.addthis.hydra.data.query.op.OpCompare;
 import com.addthis.hydra.data.query.op.OpContains;
@@ -61,10 +62,12 @@ import com.addthis.hydra.data.query.op.OpRemoveSingletons;
 import com.addthis.hydra.data.query.op.OpReverse;
 import com.addthis.hydra.data.query.op.OpRoll;
 import com.addthis.hydra.data.query.op.OpSeen;
+import com.addthis.hydra.data.query.op.OpSketch;
 import com.addthis.hydra.data.query.op.OpSkip;
 import com.addthis.hydra.data.query.op.OpSleep;
 import com.addthis.hydra.data.query.op.OpString;
 import com.addthis.hydra.data.query.op.OpTitle;
+import com.addthis.hydra.data.query.op.OpTopSort;
 import com.addthis.hydra.data.query.op.OpTranspose;
 
 import org.slf4j.Logger;
@@ -91,6 +94,10 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
     private static final int OP_MAXROWS = Parameter.intValue("query.max.rows", 0);
     private static final int OP_MAXCELLS = Parameter.intValue("query.max.cells", 0);
     private static final String TMP_SORT_DIR_STRING = Parameter.value("query.tmpdir", "query.tmpdir");
+    /* temporary disk space shared by all of the spilling ops of one query */
+    private static final long OP_MAXSPILL = Parameter.longValue("max.total.query.size.bytes", 10L * 1000 * 1000 * 1000);
+    /* replace a sort followed by a limit with a bounded top-k sort */
+    private static final boolean OP_TOPSORT = Parameter.boolValue("query.topsort", true);
 
     private static final Map<String, OPS> opmap = new HashMap<>();
 
@@ -137,6 +144,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
         RMSING("rmsing"),
         RND_FAIL("rndfail"),
         SEEN("seen"),
+        SKETCH("sketch"),
         SKIP("skip"),
         SLEEP("sleep"),
         SORT("sort"),
@@ -167,6 +175,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
     private final QueryStatusObserver queryStatusObserver;
     private final ResultChannelOutput output;
     private final QueryMemTracker memTracker;
+    private final SpillSpace spillSpace = new SpillSpace(OP_MAXSPILL);
 
     private QueryOpProcessor(Builder builder) {
         this(builder.output, builder.queryStatusObserver, builder.tempDir,
@@ -194,6 +203,10 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
         parseOps(ops);
     }
 
+    public SpillSpace getSpillSpace() {
+        return spillSpace;
+    }
+
     public QueryStatusObserver getQueryStatusObserver() {
         return this.queryStatusObserver;
     }
@@ -214,13 +227,22 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                 continue;
             }
 
-            for (String s : Strings.split(ops, ";")) {
-                KVPair kv = KVPair.parsePair(s);
+            String[] tokens = Strings.splitArray(ops, ";");
+            for (int j = 0; j < tokens.length; j++) {
+                KVPair kv = KVPair.parsePair(tokens[j]);
                 String args = kv.getValue();
                 OPS op = opmap.get(kv.getKey());
                 if (op == null) {
                     throw new RuntimeException("unknown op : " + kv);
                 }
+                if ((op == OPS.SORT || op == OPS.DSORT) && OP_TOPSORT && j + 1 < tokens.length) {
+                    int[] limit = parseSortLimit(tokens[j + 1]);
+                    if (limit != null) {
+                        appendOp(new OpTopSort(args, limit[0], limit[1], queryStatusObserver));
+                        j++;
+                        continue;
+                    }
+                }
                 switch (op) {
                     case AVG:
                         appendOp(new OpRoll.AvgOpRoll(args));
@@ -250,7 +272,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                         appendOp(new OpDisorder(this, args, queryStatusObserver));
                         break;
                     case DSORT:
-                        appendOp(new OpDiskSort(args, TMP_SORT_DIR_STRING, queryStatusObserver));
+                        appendOp(new OpDiskSort(args, TMP_SORT_DIR_STRING, spillSpace, queryStatusObserver));
                         break;
                     case FILL:
                         appendOp(new OpFill(args));
@@ -262,7 +284,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                         appendOp(new OpFrequencyTable(this, args, queryStatusObserver));
                         break;
                     case GATHER:
-                        appendOp(new OpGather(args, memTip, rowTip, tempDir.getPath(), queryStatusObserver));
+                        appendOp(new OpGather(args, memTip, rowTip, tempDir.getPath(), spillSpace, queryStatusObserver));
                         break; // TODO move OpTop code into OpGather and delete OpTop
                     case HISTOGRAM:
                         appendOp(new OpHistogram(args, queryStatusObserver));
@@ -327,6 +349,9 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                     case SEEN:
                         appendOp(new OpSeen(this, args, queryStatusObserver));
                         break;
+                    case SKETCH:
+                        appendOp(new OpSketch(args, queryStatusObserver));
+                        break;
                     case SKIP:
                         appendOp(new OpSkip(args));
                         break;
@@ -335,7 +360,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                         break;
                     case SORT:
                         // TODO: fix SORT or simplify this aliasing
-                        appendOp(new OpDiskSort(args, TMP_SORT_DIR_STRING, queryStatusObserver));
+                        appendOp(new OpDiskSort(args, TMP_SORT_DIR_STRING, spillSpace, queryStatusObserver));
                         break;
                     case STRING:
                         appendOp(new OpString(args));
@@ -347,7 +372,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
                         appendOp(new OpTitle(args));
                         break;
                     case TOP:
-                        appendOp(new OpGather(args, memTip, rowTip, tempDir.getPath(), queryStatusObserver));
+                        appendOp(new OpGather(args, memTip, rowTip, tempDir.getPath(), spillSpace, queryStatusObserver));
                         break;
                     case TRANSPOSE:
                         appendOp(new OpTranspose(this, queryStatusObserver));
@@ -358,6 +383,57 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
         }
     }
 
+    /**
+     * @param token an op that follows a sort
+     * @return {offset, limit} if the op is a limit that can be fused with the sort, otherwise null
+     */
+    private static int[] parseSortLimit(String token) {
+        KVPair kv = KVPair.parsePair(token);
+        if (opmap.get(kv.getKey()) != OPS.LIMIT || kv.getValue() == null) {
+            return null;
+        }
+        String v[] = Strings.splitArray(kv.getValue(), ":");
+        int offset = 0;
+        int limit;
+        if (v.length == 1) {
+            limit = Integer.parseInt(v[0]);
+        } else if (v.length > 1) {
+            offset = Integer.parseInt(v[0]);
+            limit = Integer.parseInt(v[1]);
+        } else {
+            return null;
+        }
+        return (limit > 0 && offset >= 0) ? new int[]{offset, limit} : null;
+    }
+
+    /**
+     * When the first ops run on the merged results are a sort followed by a limit,
+     * each source only needs to return its own first offset + limit rows in that
+     * order. The partial results are then merged by the same sort and limit.
+     *
+     * @param ops op string that will process the merged output of the sources
+     * @return an op string for each source to run last, or null if none applies
+     */
+    public static String createTopSortPushdown(String ops) {
+        if (!OP_TOPSORT || ops == null) {
+            return null;
+        }
+        String[] tokens = Strings.splitArray(ops, ";");
+        if (tokens.length < 2) {
+            return null;
+        }
+        KVPair kv = KVPair.parsePair(tokens[0]);
+        OPS op = opmap.get(kv.getKey());
+        if (op != OPS.SORT && op != OPS.DSORT) {
+            return null;
+        }
+        int[] limit = parseSortLimit(tokens[1]);
+        if (limit == null) {
+            return null;
+        }
+        return tokens[0] + ";limit=" + (limit[0] + limit[1]);
+    }
+
     @Override
     public String toString() {
         return "RP[memtip=" + memTip + ",rowtip=" + rowTip + ",rows=" + rowsin + ",cells=" + cellsin + "]";
@@ -432,7 +508,7 @@ public class QueryOpProcessor implements DataChannelOutput, DataTableFactory, Qu
     @Override
     public DataTable createTable(int sizeHint) {
         try {
-            ResultTableTuned result = new ResultTableTuned(tempDir, rowTip, memTip, this, sizeHint);
+            ResultTableTuned result = new ResultTableTuned(tempDir, spillSpace, rowTip, memTip, this, sizeHint);
             return result;
         } catch (IOException e) {
             throw new RuntimeException(e);
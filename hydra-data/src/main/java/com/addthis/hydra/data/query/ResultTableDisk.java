@@ -26,6 +26,7 @@ import com.addthis.bundle.table.DataTable;
 import com.addthis.bundle.table.DataTableFactory;
 import com.addthis.hydra.data.io.DiskBackedList2;
 import com.addthis.hydra.data.io.DiskBackedList2.ItemCodec;
+import com.addthis.hydra.data.io.SpillSpace;
 
 
 /**
@@ -48,6 +49,13 @@ public class ResultTableDisk extends ResultTable implements ItemCodec<Bundle> {
         this.diskFile = tmpFile;
     }
 
+    public ResultTableDisk(DataTableFactory factory, File tmpFile, SpillSpace spillSpace) throws IOException {
+        super(factory, new DiskBackedList2<Bundle>(null, spillSpace));
+        diskList = (DiskBackedList2<Bundle>) getBackingList();
+        diskList.setCodec(this);
+        this.diskFile = tmpFile;
+    }
+
     @Override
     public String toString() {
         return "(RDB:" + diskFile + ":" + diskList.size() + ")";
@@ -65,6 +73,8 @@ public class ResultTableDisk extends ResultTable implements ItemCodec<Bundle> {
         if (diskFile.exists()) {
             diskFile.delete();
         }
+        diskList.clear();
+        com.addthis.basis.util.Files.deleteDir(diskList.getDirectory());
     }
 
     public void close() {
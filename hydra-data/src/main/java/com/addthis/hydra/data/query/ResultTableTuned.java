@@ -20,14 +20,13 @@ import java.util.Comparator;
 import java.util.Iterator;
 import java.util.Random;
 
-import com.addthis.basis.util.MemoryCounter;
-
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.core.BundleFormat;
 import com.addthis.bundle.table.DataTable;
 import com.addthis.bundle.table.DataTableFactory;
 import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.io.SpillSpace;
 
 import org.slf4j.Logger;
 
@@ -46,7 +45,9 @@ public class ResultTableTuned implements DataTable, DataTableFactory {
 
     private DataTable result;
     private DataTableFactory factory;
+    private QueryMemTracker memTracker;
     private File tempDir;
+    private SpillSpace spillSpace;
     private boolean tipped;
     private boolean cantip;
     private long memTip;
@@ -55,10 +56,17 @@ public class ResultTableTuned implements DataTable, DataTableFactory {
     private long estMem;
 
     protected ResultTableTuned(File tempDir, int rowtip, long memtip, DataTableFactory factory, int sizeHint) throws IOException {
+        this(tempDir, null, rowtip, memtip, factory, sizeHint);
+    }
+
+    protected ResultTableTuned(File tempDir, SpillSpace spillSpace, int rowtip, long memtip, DataTableFactory factory,
+            int sizeHint) throws IOException {
         this.tempDir = tempDir;
+        this.spillSpace = spillSpace;
         this.memTip = memtip;
         this.rowTip = rowtip;
         this.factory = factory;
+        this.memTracker = factory instanceof QueryMemTracker ? (QueryMemTracker) factory : null;
         this.cantip = tempDir != null && tempDir.exists() && tempDir.isDirectory() && (rowtip > 0 || memtip > 0);
         this.tipped = !cantip;
         if (log.isDebugEnabled()) {
@@ -67,7 +75,7 @@ public class ResultTableTuned implements DataTable, DataTableFactory {
         if (cantip && sizeHint >= rowtip && rowtip > 0) {
             File tmp = createTempFile();
             tipped = true;
-            result = new ResultTableDisk(factory, tmp);
+            result = createDiskTable(tmp);
             if (log.isDebugEnabled()) {
                 log.debug(hashCode() + " creating result disk backed to " + tmp + " tip=" + rowtip + " sizeHint=" + sizeHint);
             }
@@ -84,6 +92,8 @@ public class ResultTableTuned implements DataTable, DataTableFactory {
     protected void cleanup() {
         if (result instanceof ResultTableDisk) {
             ((ResultTableDisk) result).delete();
+        } else {
+            untrackRows();
         }
     }
 
@@ -95,8 +105,30 @@ public class ResultTableTuned implements DataTable, DataTableFactory {
             }
         }
         if (memTip > 0) {
-            estMem += MemoryCounter.estimateSize(row);
+            estMem += QueryMemManager.estimateSize(row);
+        }
+        if (memTracker != null) {
+            memTracker.trackBundle(row);
+        }
+    }
+
+    /**
+     * rows held in memory are no longer charged against the query once they
+     * have been moved to disk or discarded.
+     */
+    private void untrackRows() {
+        if (memTracker != null && !(result instanceof ResultTableDisk)) {
+            for (Bundle row : result) {
+                memTracker.untrackBundle(row);
+            }
+        }
+    }
+
+    private ResultTableDisk createDiskTable(File tmp) throws IOException {
+        if (spillSpace != null) {
+            return new ResultTableDisk(factory, tmp, spillSpace);
         }
+        return new ResultTableDisk(factory, tmp);
     }
 
     private File createTempFile() {
@@ -110,8 +142,9 @@ public class ResultTableTuned implements DataTable, DataTableFactory {
                 if (log.isDebugEnabled()) {
                     log.debug(hashCode() + " tipping to " + tmp + " @ rows=" + result.size() + " cells=" + cells + " mem=" + estMem);
                 }
-                ResultTableDisk dbl = new ResultTableDisk(factory, tmp);
+                ResultTableDisk dbl = createDiskTable(tmp);
                 dbl.append(result);
+                untrackRows();
                 result = dbl;
             } catch (Exception ex) {
                 throw new RuntimeException(ex);
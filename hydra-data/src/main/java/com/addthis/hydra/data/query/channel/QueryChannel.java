@@ -24,6 +24,7 @@ import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.GZIPOutputStream;
 
 import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.Parameter;
 
 import com.addthis.codec.Codec;
 import com.addthis.codec.CodecBin2;
@@ -41,6 +42,11 @@ public class QueryChannel<SEND extends Codec.Codable, RECV extends Codec.Codable
     private static final int MAGIC = 0x01020304;
 
     public static final int FLAG_COMPRESS_V1 = 1;
+    /* result rows travel as {@link RowBatchCodec} frames when both ends set this */
+    public static final int FLAG_ROW_BATCH_V1 = 2;
+
+    /* flags both query channel endpoints offer unless told otherwise */
+    static final int DEFAULT_FLAGS = Parameter.boolValue("query.channel.batch", true) ? FLAG_ROW_BATCH_V1 : 0;
 
     private final Class<? extends RECV> recvClass;
     private final Codec codec;
@@ -49,6 +55,8 @@ public class QueryChannel<SEND extends Codec.Codable, RECV extends Codec.Codable
     private String label;
     private OutputStream send;
     private boolean compressed_v1 = false;
+    private int localFlags;
+    private int remoteFlags;
     private Lock recvLock = new ReentrantLock();
     private Lock sendLock = new ReentrantLock();
 
@@ -81,6 +89,7 @@ public class QueryChannel<SEND extends Codec.Codable, RECV extends Codec.Codable
     }
 
     private final void sendFlags(int flags) throws IOException {
+        localFlags = flags;
         Bytes.writeInt(MAGIC, send);
         Bytes.writeInt(flags, send);
     }
@@ -91,12 +100,20 @@ public class QueryChannel<SEND extends Codec.Codable, RECV extends Codec.Codable
         if (magic != MAGIC) {
             throw new RuntimeException("invalid magic " + magic);
         }
+        remoteFlags = flags;
         if ((flags & FLAG_COMPRESS_V1) == FLAG_COMPRESS_V1) {
             compressed_v1 = true;
             send = new GZIPOutputStream(send);
         }
     }
 
+    /**
+     * @return true if both ends of the channel set the flag
+     */
+    public boolean isNegotiated(int flag) {
+        return (localFlags & flag) == flag && (remoteFlags & flag) == flag;
+    }
+
     private void log(Object o1, String join, Object o2, Codec.Codable msg) {
         try {
             String s1 = o1.toString();
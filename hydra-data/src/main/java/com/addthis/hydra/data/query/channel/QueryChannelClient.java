@@ -83,7 +83,7 @@ public class QueryChannelClient implements QuerySource {
      * connect to a query channel server
      */
     public QueryChannelClient(QueryHost host) throws IOException {
-        this(host, 0);
+        this(host, QueryChannel.DEFAULT_FLAGS);
     }
 
     /**
@@ -251,6 +251,8 @@ public class QueryChannelClient implements QuerySource {
 
         private final ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
         private final FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
+        private final RowBatchCodec.Decoder batches =
+                channel.isNegotiated(QueryChannel.FLAG_ROW_BATCH_V1) ? new RowBatchCodec.Decoder() : null;
         private final DataChannelOutput consumer;
         private Integer queryID;
         private Query query;
@@ -286,6 +288,14 @@ public class QueryChannelClient implements QuerySource {
             }
             try {
                 int index = 0;
+                if (batches != null) {
+                    byte[] frame = response.getRow(index++);
+                    while (frame != null) {
+                        batches.decode(frame, consumer);
+                        frame = response.getRow(index++);
+                    }
+                    return;
+                }
                 Bundle bundle = response.getRow(consumer.createBundle(), fieldMap, classMap, index++);
                 while (bundle != null) {
                     consumer.send(bundle);
@@ -28,6 +28,7 @@ import com.addthis.hydra.data.query.QueryException;
  */
 public class QueryChannelResponse implements Codec.Codable {
 
+    /* encoded rows, or RowBatchCodec frames when the channel negotiated row batches */
     @Codec.Set(codable = true)
     private List<RowByteWrapper> rowList;
     @Codec.Set(codable = true)
@@ -59,6 +59,10 @@ public class QueryChannelServer extends Thread {
     private static final Logger log = LoggerFactory.getLogger(QueryChannelServer.class);
 
     private static final int maxQueryTime = Parameter.intValue("qmaster.maxQueryTime", 24 * 60 * 60); // one day upper bound on how long we'll let a query run
+    /* a row batch is sent once it reaches any of these limits */
+    private static final int batchRows = Parameter.intValue("query.channel.batch.rows", 1024);
+    private static final int batchBytes = Parameter.intValue("query.channel.batch.bytes", 256 * 1024);
+    private static final int batchMillis = Parameter.intValue("query.channel.batch.millis", 100);
     private static final Timer queryTimes = Metrics.newTimer(QueryChannelServer.class, "queryTime", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
     private final Meter errorRate = Metrics.newMeter(getClass(), "errorRate", "errorRate", TimeUnit.SECONDS);
 
@@ -118,7 +122,8 @@ public class QueryChannelServer extends Thread {
         ConnectionHandler(Socket socket) throws IOException {
             super("QCSocket to " + socket.getRemoteSocketAddress());
             setDaemon(true);
-            this.channel = new QueryChannel<QueryChannelResponse, QueryChannelRequest>(socket, QueryChannelRequest.class);
+            this.channel = new QueryChannel<QueryChannelResponse, QueryChannelRequest>(socket, QueryChannelRequest.class,
+                    QueryChannel.DEFAULT_FLAGS);
             if (log.isDebugEnabled()) {
                 log.debug("new connection " + socket);
             }
@@ -213,11 +218,15 @@ public class QueryChannelServer extends Thread {
             private final ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
             private final FieldIndexMap fieldMap = DataChannelCodec.createFieldIndexMap();
             private final ListBundleFormat format = new ListBundleFormat();
+            private final RowBatchCodec.Encoder batch;
+            private final Object batchLock = new Object();
+            private long batchStart;
 
             private QueryHandler(Integer queryID, Query query) {
                 super("QCHandler " + queryID + " " + query.uuid());
                 this.queryID = queryID;
                 this.query = query;
+                this.batch = channel.isNegotiated(QueryChannel.FLAG_ROW_BATCH_V1) ? new RowBatchCodec.Encoder() : null;
                 this.queryTimeout = Integer.parseInt(query.getParameter("timeout", Integer.toString(maxQueryTime)));
             }
 
@@ -235,7 +244,7 @@ public class QueryChannelServer extends Thread {
                     }
                     acquireLock("Timed out waiting to acquire query start lock after: " + maxQueryTime + " seconds, please retry your query");
                     handle = source.query(query, this);
-                    acquireLock("Timed out waiting for query handle after submitting query, waited: " + maxQueryTime + " seconds, please retry your query");
+                    awaitCompletion("Timed out waiting for query handle after submitting query, waited: " + maxQueryTime + " seconds, please retry your query");
                     if (query.isTraced()) {
                         Query.emitTrace("[handler] finish " + query.uuid() + " rows=" + rows + " in " + (System.currentTimeMillis() - start) + " ms");
                     }
@@ -264,10 +273,48 @@ public class QueryChannelServer extends Thread {
                 }
             }
 
+            /**
+             * Waits for the query to complete. While it waits, this thread sends
+             * a partial row batch once its first row is batchMillis old, so rows
+             * still stream from a query that produces them slowly. A client that
+             * is slow to read only holds up its own query.
+             */
+            private void awaitCompletion(String message) throws Exception {
+                if (batch == null) {
+                    acquireLock(message);
+                    return;
+                }
+                long deadline = queryTimeout <= 0 ? Long.MAX_VALUE : System.currentTimeMillis() + queryTimeout * 1000L;
+                while (true) {
+                    long wait = Math.min(batchMillis, deadline - System.currentTimeMillis());
+                    if (wait <= 0) {
+                        log.warn(message);
+                        throw new QueryException(message);
+                    }
+                    if (lock.tryAcquire(wait, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                    try {
+                        synchronized (batchLock) {
+                            if (batch.getRows() > 0 && System.currentTimeMillis() - batchStart >= batchMillis) {
+                                flushBatch();
+                            }
+                        }
+                    } catch (Exception e) {
+                        cancel(e.getMessage());
+                        throw e;
+                    }
+                }
+            }
+
             @Override
             public void send(Bundle row) {
                 try {
-                    channel.sendSync(new QueryChannelResponse().addRow(DataChannelCodec.encodeBundle(row, fieldMap, classMap)).setQueryID(queryID));
+                    if (batch != null) {
+                        addToBatch(row);
+                    } else {
+                        channel.sendSync(new QueryChannelResponse().addRow(DataChannelCodec.encodeBundle(row, fieldMap, classMap)).setQueryID(queryID));
+                    }
                     rows++;
                 } catch (Exception e) {
                     cancel(e.getMessage());
@@ -278,11 +325,17 @@ public class QueryChannelServer extends Thread {
             @Override
             public void send(List<Bundle> bundles) {
                 try {
-                    QueryChannelResponse queryChannelResponse = new QueryChannelResponse().setQueryID(queryID);
-                    for (Bundle bundle : bundles) {
-                        queryChannelResponse.addRow(DataChannelCodec.encodeBundle(bundle, fieldMap, classMap));
+                    if (batch != null) {
+                        for (Bundle bundle : bundles) {
+                            addToBatch(bundle);
+                        }
+                    } else {
+                        QueryChannelResponse queryChannelResponse = new QueryChannelResponse().setQueryID(queryID);
+                        for (Bundle bundle : bundles) {
+                            queryChannelResponse.addRow(DataChannelCodec.encodeBundle(bundle, fieldMap, classMap));
+                        }
+                        channel.sendSync(queryChannelResponse);
                     }
-                    channel.sendSync(queryChannelResponse);
                     rows++;
                 } catch (Exception e) {
                     cancel(e.getMessage());
@@ -290,9 +343,37 @@ public class QueryChannelServer extends Thread {
                 }
             }
 
+            /**
+             * A batch that does not fill up is sent by {@link #awaitCompletion}
+             * once its first row is batchMillis old.
+             */
+            private void addToBatch(Bundle row) throws Exception {
+                synchronized (batchLock) {
+                    if (batch.getRows() == 0) {
+                        batchStart = System.currentTimeMillis();
+                    }
+                    batch.add(row);
+                    if (batch.getRows() >= batchRows || batch.getBytes() >= batchBytes) {
+                        flushBatch();
+                    }
+                }
+            }
+
+            private void flushBatch() throws Exception {
+                if (batch == null) {
+                    return;
+                }
+                synchronized (batchLock) {
+                    if (batch.getRows() > 0) {
+                        channel.sendSync(new QueryChannelResponse().addRow(batch.encode()).setQueryID(queryID));
+                    }
+                }
+            }
+
             @Override
             public void sendComplete() {
                 try {
+                    flushBatch();
                     channel.sendSync(new QueryChannelResponse().setEnd(true).setQueryID(queryID));
                     queryTimes.update(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
                 } catch (Exception e) {
@@ -306,6 +387,7 @@ public class QueryChannelServer extends Thread {
             @Override
             public void sourceError(DataChannelError ex) {
                 try {
+                    flushBatch();
                     channel.sendSync(new QueryChannelResponse().setError(ex.getMessage()).setQueryID(queryID));
                     queryTimes.update(System.currentTimeMillis() - start, TimeUnit.MILLISECONDS);
                     errorRate.mark();
@@ -0,0 +1,533 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.channel;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import java.nio.charset.StandardCharsets;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Columnar encoding for batches of result rows sent over a query channel
+ * that negotiated {@link QueryChannel#FLAG_ROW_BATCH_V1}.
+ * <p/>
+ * A frame is [version:1][codec:1][raw length:varint][payload]. The payload
+ * holds the row count, a dictionary of the field names used by the batch and
+ * then one column per field: a type byte for every row followed by the values
+ * of that column. Numbers are stored as varints or raw doubles, strings that
+ * repeat within a column are sent once and referenced by index afterwards,
+ * and anything else falls back to {@link DataChannelCodec#encodeValue}.
+ */
+public final class RowBatchCodec {
+
+    public static final int COMPRESS_NONE = 0;
+    public static final int COMPRESS_SNAPPY = 1;
+
+    private static final int VERSION = 1;
+
+    /* compress frames at least this large when enabled */
+    private static final boolean COMPRESS = Parameter.boolValue("query.channel.batch.compress", true);
+    private static final int COMPRESS_MIN = Parameter.intValue("query.channel.batch.compress.min", 4096);
+    /* distinct strings remembered per column before new strings are sent literally */
+    private static final int MAX_STRINGS = Parameter.intValue("query.channel.batch.strings", 4096);
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte STRING = 3;
+    private static final byte STRING_DEF = 4;
+    private static final byte STRING_REF = 5;
+    private static final byte BYTES = 6;
+    private static final byte VALUE = 7;
+
+    private RowBatchCodec() {
+    }
+
+    /**
+     * Accumulates rows column by column. Values are copied into the
+     * batch when a row is added, so callers may reuse their bundles.
+     */
+    public static final class Encoder {
+
+        private final List<String> names = new ArrayList<>();
+        private final List<Column> columns = new ArrayList<>();
+        private final HashMap<String, Column> byName = new HashMap<>();
+        private final boolean compress;
+
+        /* cached column order for the last format seen */
+        private BundleFormat lastFormat;
+        private int lastFieldCount;
+        private Column[] lastColumns;
+
+        private int rows;
+        private ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
+
+        public Encoder() {
+            this(COMPRESS);
+        }
+
+        public Encoder(boolean compress) {
+            this.compress = compress;
+        }
+
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * @return approximate size of the encoded batch before compression
+         */
+        public int getBytes() {
+            int bytes = 0;
+            for (Column column : columns) {
+                bytes += column.kinds.length + column.values.length;
+            }
+            return bytes;
+        }
+
+        public void add(Bundle row) throws IOException {
+            BundleFormat format = row.getFormat();
+            if (format != lastFormat || format.getFieldCount() != lastFieldCount) {
+                bind(format);
+            }
+            for (Column column : columns) {
+                column.touched = false;
+            }
+            int i = 0;
+            for (BundleField field : format) {
+                Column column = lastColumns[i++];
+                column.touched = true;
+                column.write(row.getValue(field), classMap);
+            }
+            for (Column column : columns) {
+                if (!column.touched) {
+                    column.kinds.put(NULL);
+                }
+            }
+            rows++;
+        }
+
+        private void bind(BundleFormat format) {
+            lastFormat = format;
+            lastFieldCount = format.getFieldCount();
+            lastColumns = new Column[lastFieldCount];
+            int i = 0;
+            for (BundleField field : format) {
+                Column column = byName.get(field.getName());
+                if (column == null) {
+                    column = new Column();
+                    // fields first seen part way through the batch are null for earlier rows
+                    for (int r = 0; r < rows; r++) {
+                        column.kinds.put(NULL);
+                    }
+                    byName.put(field.getName(), column);
+                    names.add(field.getName());
+                    columns.add(column);
+                }
+                lastColumns[i++] = column;
+            }
+        }
+
+        /**
+         * Encode the rows added since the last call and reset the batch.
+         */
+        public byte[] encode() throws IOException {
+            Buffer payload = new Buffer(getBytes() + 16 * names.size() + 16);
+            payload.putVarLong(rows);
+            payload.putVarLong(names.size());
+            for (String name : names) {
+                payload.putString(name);
+            }
+            for (Column column : columns) {
+                payload.put(column.kinds);
+                payload.putVarLong(column.values.length);
+                payload.put(column.values);
+            }
+            byte[] frame = frame(payload);
+            reset();
+            return frame;
+        }
+
+        private byte[] frame(Buffer payload) throws IOException {
+            int rawLength = payload.length;
+            if (compress && rawLength >= COMPRESS_MIN) {
+                byte[] packed = new byte[Snappy.maxCompressedLength(rawLength)];
+                int stored = Snappy.compress(payload.data, 0, rawLength, packed, 0);
+                if (stored < rawLength) {
+                    return header(COMPRESS_SNAPPY, rawLength, packed, stored);
+                }
+            }
+            return header(COMPRESS_NONE, rawLength, payload.data, rawLength);
+        }
+
+        private byte[] header(int codec, int rawLength, byte[] data, int length) {
+            Buffer frame = new Buffer(length + 7);
+            frame.put((byte) VERSION);
+            frame.put((byte) codec);
+            frame.putVarLong(rawLength);
+            frame.put(data, 0, length);
+            return frame.length == frame.data.length ? frame.data : Arrays.copyOf(frame.data, frame.length);
+        }
+
+        private void reset() {
+            names.clear();
+            columns.clear();
+            byName.clear();
+            lastFormat = null;
+            lastColumns = null;
+            rows = 0;
+            classMap = DataChannelCodec.createClassIndexMap();
+        }
+    }
+
+    /**
+     * Decodes frames into bundles created by the consumer. Field lookups are
+     * resolved once per batch and repeated strings share one value object.
+     */
+    public static final class Decoder {
+
+        private byte[] raw;
+
+        /**
+         * @return number of rows delivered to the consumer
+         */
+        public int decode(byte[] frame, DataChannelOutput consumer) throws IOException {
+            Cursor in = new Cursor(frame, 0, frame.length);
+            int version = in.get();
+            if (version != VERSION) {
+                throw new IOException("unsupported row batch version " + version);
+            }
+            int codec = in.get();
+            int rawLength = (int) in.getVarLong();
+            Cursor payload;
+            switch (codec) {
+                case COMPRESS_NONE:
+                    payload = new Cursor(frame, in.position, in.position + rawLength);
+                    break;
+                case COMPRESS_SNAPPY:
+                    if (raw == null || raw.length < rawLength) {
+                        raw = new byte[rawLength];
+                    }
+                    Snappy.uncompress(frame, in.position, frame.length - in.position, raw, 0);
+                    payload = new Cursor(raw, 0, rawLength);
+                    break;
+                default:
+                    throw new IOException("unknown row batch codec " + codec);
+            }
+            int rows = (int) payload.getVarLong();
+            int fieldCount = (int) payload.getVarLong();
+            String[] names = new String[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                names[i] = payload.getString();
+            }
+            Cursor[] kinds = new Cursor[fieldCount];
+            Cursor[] values = new Cursor[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                kinds[i] = payload.slice(rows);
+                values[i] = payload.slice((int) payload.getVarLong());
+            }
+            @SuppressWarnings("unchecked")
+            List<ValueObject>[] strings = new List[fieldCount];
+            ClassIndexMap classMap = DataChannelCodec.createClassIndexMap();
+            BundleFormat format = null;
+            BundleField[] fields = new BundleField[fieldCount];
+            for (int r = 0; r < rows; r++) {
+                Bundle bundle = consumer.createBundle();
+                if (bundle.getFormat() != format) {
+                    format = bundle.getFormat();
+                    for (int i = 0; i < fieldCount; i++) {
+                        fields[i] = format.getField(names[i]);
+                    }
+                }
+                for (int i = 0; i < fieldCount; i++) {
+                    ValueObject value;
+                    byte kind = kinds[i].get();
+                    switch (kind) {
+                        case NULL:
+                            continue;
+                        case LONG:
+                            value = ValueFactory.create(unzigzag(values[i].getVarLong()));
+                            break;
+                        case DOUBLE:
+                            value = ValueFactory.create(Double.longBitsToDouble(values[i].getLong()));
+                            break;
+                        case STRING:
+                            value = ValueFactory.create(values[i].getString());
+                            break;
+                        case STRING_DEF:
+                            value = ValueFactory.create(values[i].getString());
+                            if (strings[i] == null) {
+                                strings[i] = new ArrayList<>();
+                            }
+                            strings[i].add(value);
+                            break;
+                        case STRING_REF:
+                            value = strings[i].get((int) values[i].getVarLong());
+                            break;
+                        case BYTES:
+                            value = ValueFactory.create(values[i].getBytes());
+                            break;
+                        case VALUE:
+                            value = values[i].getValue(classMap);
+                            break;
+                        default:
+                            throw new IOException("unknown row batch value type " + kind);
+                    }
+                    bundle.setValue(fields[i], value);
+                }
+                consumer.send(bundle);
+            }
+            return rows;
+        }
+    }
+
+    /**
+     * type and value vectors for one field of a batch
+     */
+    private static final class Column {
+
+        private final Buffer kinds = new Buffer(64);
+        private final Buffer values = new Buffer(256);
+        private HashMap<String, Integer> strings;
+        private boolean touched;
+
+        void write(ValueObject value, ClassIndexMap classMap) throws IOException {
+            if (value == null) {
+                kinds.put(NULL);
+                return;
+            }
+            switch (value.getObjectType()) {
+                case INT:
+                    kinds.put(LONG);
+                    values.putVarLong(zigzag(value.asLong().getLong()));
+                    break;
+                case FLOAT:
+                    kinds.put(DOUBLE);
+                    values.putLong(Double.doubleToRawLongBits(value.asDouble().getDouble()));
+                    break;
+                case STRING:
+                    writeString(value.asString().getString());
+                    break;
+                case BYTES:
+                    kinds.put(BYTES);
+                    values.putBytes(value.asBytes().getBytes());
+                    break;
+                default:
+                    kinds.put(VALUE);
+                    DataChannelCodec.encodeValue(value, values, classMap);
+                    break;
+            }
+        }
+
+        private void writeString(String string) {
+            if (strings == null) {
+                strings = new HashMap<>();
+            }
+            Integer ref = strings.get(string);
+            if (ref != null) {
+                kinds.put(STRING_REF);
+                values.putVarLong(ref);
+                return;
+            }
+            if (strings.size() < MAX_STRINGS) {
+                strings.put(string, strings.size());
+                kinds.put(STRING_DEF);
+            } else {
+                kinds.put(STRING);
+            }
+            values.putString(string);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * growable byte array with varint helpers
+     */
+    private static final class Buffer extends OutputStream {
+
+        private byte[] data;
+        private int length;
+
+        Buffer(int size) {
+            data = new byte[Math.max(size, 16)];
+        }
+
+        private void ensure(int more) {
+            if (length + more > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + more));
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            put(b, off, len);
+        }
+
+        void put(byte b) {
+            ensure(1);
+            data[length++] = b;
+        }
+
+        void put(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, data, length, len);
+            length += len;
+        }
+
+        void put(Buffer other) {
+            put(other.data, 0, other.length);
+        }
+
+        void putVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                data[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                data[length++] = (byte) (value >>> shift);
+            }
+        }
+
+        void putBytes(byte[] bytes) {
+            putVarLong(bytes.length);
+            put(bytes, 0, bytes.length);
+        }
+
+        void putString(String string) {
+            putBytes(string.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * read position within a region of a byte array
+     */
+    private static final class Cursor {
+
+        private final byte[] data;
+        private final int limit;
+        private int position;
+
+        Cursor(byte[] data, int position, int limit) {
+            if (limit > data.length) {
+                throw new IllegalArgumentException("truncated row batch");
+            }
+            this.data = data;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        private void check(int len) throws IOException {
+            if (len < 0 || position + len > limit) {
+                throw new IOException("truncated row batch");
+            }
+        }
+
+        byte get() throws IOException {
+            check(1);
+            return data[position++];
+        }
+
+        long getVarLong() throws IOException {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = get();
+                value |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            }
+            while ((b & 0x80) != 0);
+            return value;
+        }
+
+        long getLong() throws IOException {
+            check(8);
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (data[position++] & 0xff);
+            }
+            return value;
+        }
+
+        byte[] getBytes() throws IOException {
+            int len = (int) getVarLong();
+            check(len);
+            byte[] bytes = Arrays.copyOfRange(data, position, position + len);
+            position += len;
+            return bytes;
+        }
+
+        String getString() throws IOException {
+            int len = (int) getVarLong();
+            check(len);
+            String string = new String(data, position, len, StandardCharsets.UTF_8);
+            position += len;
+            return string;
+        }
+
+        ValueObject getValue(ClassIndexMap classMap) throws IOException {
+            ByteArrayInputStream in = new ByteArrayInputStream(data, position, limit - position);
+            ValueObject value = DataChannelCodec.decodeValue(in, classMap);
+            position = limit - in.available();
+            return value;
+        }
+
+        /**
+         * @return a cursor over the next len bytes, which this cursor skips
+         */
+        Cursor slice(int len) throws IOException {
+            check(len);
+            Cursor slice = new Cursor(data, position, position + len);
+            position += len;
+            return slice;
+        }
+    }
+}
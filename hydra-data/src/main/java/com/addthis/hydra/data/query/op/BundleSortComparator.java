@@ -0,0 +1,146 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.Comparator;
+import java.util.StringTokenizer;
+
+import com.addthis.basis.util.Strings;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.util.BundleColumnBinder;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueObject;
+
+/**
+ * Row comparator for the sort operations. Parses the
+ * [cols]:[type]:[direction] argument syntax shared by
+ * sort, dsort and their fused top-k variant.
+ */
+class BundleSortComparator implements Comparator<Bundle> {
+
+    private final String[] cols;
+    private final char[] type;
+    private final char[] dir;
+
+    private BundleField columns[];
+
+    BundleSortComparator(String args) {
+        StringTokenizer st = new StringTokenizer(args, ":");
+        cols = Strings.splitArray(st.hasMoreElements() ? st.nextToken() : "0", ",");
+
+        String ts = st.hasMoreElements() ? st.nextToken() : "s";
+        while (ts.length() < cols.length) {
+            ts = ts.concat(ts.substring(0, 1));
+        }
+        type = ts.toCharArray();
+
+        String ds = st.hasMoreElements() ? st.nextToken() : "a";
+        while (ds.length() < cols.length) {
+            ds = ds.concat(ds.substring(0, 1));
+        }
+        dir = ds.toCharArray();
+    }
+
+    /**
+     * @return a new comparator with the same ordering and its own column bindings
+     */
+    BundleSortComparator copy() {
+        return new BundleSortComparator(this);
+    }
+
+    private BundleSortComparator(BundleSortComparator other) {
+        this.cols = other.cols;
+        this.type = other.type;
+        this.dir = other.dir;
+    }
+
+    @Override
+    public int compare(Bundle o1, Bundle o2) {
+        if (columns == null) {
+            columns = new BundleColumnBinder(o1, cols).getFields();
+        }
+        int delta = 0;
+        for (int i = 0; i < columns.length && delta == 0; i++) {
+            BundleField col = columns[i];
+            switch (type[i]) {
+                case 'i': // int
+                case 'l': // long
+                case 'n': // legacy "number"
+                    delta = longCompare(o1.getValue(col), o2.getValue(col));
+                    break;
+                case 'd': // double
+                case 'f': // float
+                    delta = doubleCompare(o1.getValue(col), o2.getValue(col));
+                    break;
+                case 's': // string
+                default:
+                    delta = stringCompare(o1.getValue(col), o2.getValue(col));
+                    break;
+            }
+            if (dir[i] == 'd') {
+                delta = -delta;
+            }
+        }
+        return delta;
+    }
+
+    private static int longCompare(ValueObject s1, ValueObject s2) {
+        if (s1 == s2) {
+            return 0;
+        }
+        if (s1 == null) {
+            return 1;
+        }
+        if (s2 == null) {
+            return -1;
+        }
+        return Long.compare(ValueUtil.asNumberOrParseLong(s1, 10).asLong().getLong(),
+                ValueUtil.asNumberOrParseLong(s2, 10).asLong().getLong());
+    }
+
+    private static int doubleCompare(ValueObject s1, ValueObject s2) {
+        if (s1 == s2) {
+            return 0;
+        }
+        if (s1 == null) {
+            return 1;
+        }
+        if (s2 == null) {
+            return -1;
+        }
+        return Double.compare(ValueUtil.asNumberOrParseDouble(s1).asDouble().getDouble(),
+                ValueUtil.asNumberOrParseDouble(s2).asDouble().getDouble());
+    }
+
+    private static int stringCompare(ValueObject s1, ValueObject s2) {
+        if (s1 == OpPivot.MIN || s2 == OpPivot.MAX) {
+            return -1;
+        }
+        if (s1 == OpPivot.MAX || s2 == OpPivot.MIN) {
+            return 1;
+        }
+        if (s1 == s2) {
+            return 0;
+        }
+        if (s1 == null) {
+            return 1;
+        }
+        if (s2 == null) {
+            return -1;
+        }
+        return s1.toString().compareTo(s2.toString());
+    }
+}
@@ -0,0 +1,639 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.Arrays;
+
+import com.addthis.basis.util.Bytes;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueNumber;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.op.OpGather.MergeOp;
+
+/**
+ * Open addressing hash table of the groups built by {@link OpGather}.
+ * <p/>
+ * Groups are keyed by the serialized values of the key columns and stored
+ * column by column. Numeric merges accumulate into primitive long or double
+ * arrays with the same arithmetic as {@link ValueNumber}; a value that is
+ * neither a long nor a double is kept as an object and merged with the
+ * value operations. Only key, last, join and pack columns hold objects.
+ * <p/>
+ * Rows are read positionally: the i-th value of a row is merged with the
+ * i-th operation.
+ */
+final class GatherTable {
+
+    /* state of a numeric column within a group */
+    private static final byte UNSET = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte OBJECT = 3;
+
+    /* estimated bytes per group outside of its key and values: key array, hash, count and slot */
+    private static final int GROUP_OVERHEAD = 48;
+
+    private final MergeOp[] ops;
+    private final boolean[] numeric;
+    private final int numericColumns;
+
+    private int[] slots;
+    private int mask;
+
+    private byte[][] keys;
+    private int[] hashes;
+    private int[] counts;
+    private final long[][] numbers;
+    private final byte[][] kinds;
+    private final ValueObject[][] objects;
+
+    private int groups;
+    private int size;
+    private int[] free = new int[16];
+    private int freeCount;
+    private long memory;
+
+    private byte[] keyBuffer = new byte[64];
+    private int keyLength;
+    private int keyHash;
+
+    /**
+     * @param ops merge operation of each column, null for columns that are not kept
+     */
+    GatherTable(MergeOp[] ops) {
+        this.ops = ops;
+        this.numeric = new boolean[ops.length];
+        this.numbers = new long[ops.length][];
+        this.kinds = new byte[ops.length][];
+        this.objects = new ValueObject[ops.length][];
+        int numericCount = 0;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == null) {
+                continue;
+            }
+            switch (ops[i]) {
+                case SUM:
+                case AVG:
+                case MIN:
+                case MAX:
+                case DIFF:
+                    numeric[i] = true;
+                    numericCount++;
+                    break;
+                default:
+                    break;
+            }
+        }
+        this.numericColumns = numericCount;
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        keys = new byte[capacity][];
+        hashes = new int[capacity];
+        counts = new int[capacity];
+        for (int i = 0; i < ops.length; i++) {
+            if (numeric[i]) {
+                numbers[i] = new long[capacity];
+                kinds[i] = new byte[capacity];
+                objects[i] = null;
+            } else if (ops[i] != null) {
+                objects[i] = new ValueObject[capacity];
+            }
+        }
+        groups = 0;
+        size = 0;
+        freeCount = 0;
+        memory = slots.length * 4L;
+    }
+
+    /**
+     * Drop every group and shrink the table.
+     */
+    void clear() {
+        allocate(16);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return estimated bytes held by the table
+     */
+    long getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return one past the highest group id in use, for iteration with {@link #isLive(int)}
+     */
+    int getGroupLimit() {
+        return groups;
+    }
+
+    boolean isLive(int group) {
+        return keys[group] != null;
+    }
+
+    int getHash(int group) {
+        return hashes[group];
+    }
+
+    byte[] getKey(int group) {
+        return keys[group];
+    }
+
+    int getCount(int group) {
+        return counts[group];
+    }
+
+    /**
+     * Serialize the key columns of the row into the key buffer.
+     *
+     * @return the hash of the key, which is also used by {@link #find()} and {@link #insert()}
+     */
+    int hashKey(Bundle row) {
+        keyLength = 0;
+        int i = 0;
+        for (BundleField field : row.getFormat()) {
+            if (i >= ops.length) {
+                break;
+            }
+            if (ops[i++] == MergeOp.KEY) {
+                ValueObject value = row.getValue(field);
+                appendKey(value == null ? "" : value.toString());
+            }
+        }
+        // missing key columns match null ones
+        for (; i < ops.length; i++) {
+            if (ops[i] == MergeOp.KEY) {
+                appendKey("");
+            }
+        }
+        keyHash = hash(keyBuffer, keyLength);
+        return keyHash;
+    }
+
+    /**
+     * @return a copy of the key in the key buffer
+     */
+    byte[] copyKey() {
+        return Arrays.copyOf(keyBuffer, keyLength);
+    }
+
+    /**
+     * Load a previously serialized key into the key buffer.
+     */
+    int hashKey(byte[] key) {
+        keyBuffer = ensure(keyBuffer, key.length);
+        System.arraycopy(key, 0, keyBuffer, 0, key.length);
+        keyLength = key.length;
+        keyHash = hash(keyBuffer, keyLength);
+        return keyHash;
+    }
+
+    private void appendKey(String value) {
+        int len = value.length();
+        keyBuffer = ensure(keyBuffer, keyLength + 5 + len * 2);
+        int prefix = len;
+        while ((prefix & ~0x7f) != 0) {
+            keyBuffer[keyLength++] = (byte) ((prefix & 0x7f) | 0x80);
+            prefix >>>= 7;
+        }
+        keyBuffer[keyLength++] = (byte) prefix;
+        for (int i = 0; i < len; i++) {
+            char ch = value.charAt(i);
+            keyBuffer[keyLength++] = (byte) (ch >>> 8);
+            keyBuffer[keyLength++] = (byte) ch;
+        }
+    }
+
+    private static int hash(byte[] key, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + key[i];
+        }
+        // murmur3 finalizer so that both the low (slot) and high (partition) bits are mixed
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the group of the key in the key buffer or -1
+     */
+    int find() {
+        int index = keyHash & mask;
+        while (true) {
+            int slot = slots[index];
+            if (slot == 0) {
+                return -1;
+            }
+            int group = slot - 1;
+            if (hashes[group] == keyHash && keyEquals(keys[group])) {
+                return group;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private boolean keyEquals(byte[] key) {
+        if (key.length != keyLength) {
+            return false;
+        }
+        for (int i = 0; i < keyLength; i++) {
+            if (key[i] != keyBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create an empty group for the key in the key buffer, which must not be present.
+     */
+    int insert() {
+        if (freeCount == 0 && groups == keys.length) {
+            grow();
+        }
+        int group = freeCount > 0 ? free[--freeCount] : groups++;
+        keys[group] = Arrays.copyOf(keyBuffer, keyLength);
+        hashes[group] = keyHash;
+        counts[group] = 0;
+        int index = keyHash & mask;
+        while (slots[index] != 0) {
+            index = (index + 1) & mask;
+        }
+        slots[index] = group + 1;
+        size++;
+        memory += GROUP_OVERHEAD + keyLength + numericColumns * 9;
+        return group;
+    }
+
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        for (int i = 0; i < ops.length; i++) {
+            if (numbers[i] != null) {
+                numbers[i] = Arrays.copyOf(numbers[i], capacity);
+                kinds[i] = Arrays.copyOf(kinds[i], capacity);
+            }
+            if (objects[i] != null) {
+                objects[i] = Arrays.copyOf(objects[i], capacity);
+            }
+        }
+        memory -= slots.length * 4L;
+        slots = new int[capacity * 2];
+        mask = slots.length - 1;
+        memory += slots.length * 4L;
+        for (int group = 0; group < groups; group++) {
+            if (keys[group] != null) {
+                int index = hashes[group] & mask;
+                while (slots[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                slots[index] = group + 1;
+            }
+        }
+    }
+
+    /**
+     * Remove a group, shifting back the entries that follow it in its probe sequence.
+     */
+    void remove(int group) {
+        int index = hashes[group] & mask;
+        while (slots[index] != group + 1) {
+            index = (index + 1) & mask;
+        }
+        slots[index] = 0;
+        int next = (index + 1) & mask;
+        while (slots[next] != 0) {
+            int ideal = hashes[slots[next] - 1] & mask;
+            boolean movable = next > index ? (ideal <= index || ideal > next) : (ideal <= index && ideal > next);
+            if (movable) {
+                slots[index] = slots[next];
+                slots[next] = 0;
+                index = next;
+            }
+            next = (next + 1) & mask;
+        }
+        memory -= GROUP_OVERHEAD + keys[group].length + numericColumns * 9;
+        for (int i = 0; i < ops.length; i++) {
+            if (kinds[i] != null) {
+                kinds[i][group] = UNSET;
+            }
+            if (objects[i] != null) {
+                setObject(group, i, null);
+            }
+        }
+        keys[group] = null;
+        size--;
+        if (freeCount == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+        }
+        free[freeCount++] = group;
+    }
+
+    void merge(int group, Bundle row) {
+        int i = 0;
+        for (BundleField field : row.getFormat()) {
+            if (i >= ops.length) {
+                break;
+            }
+            mergeValue(group, i++, row.getValue(field));
+        }
+        counts[group]++;
+    }
+
+    private void mergeValue(int group, int column, ValueObject value) {
+        MergeOp op = ops[column];
+        if (op == null) {
+            return;
+        }
+        if (numeric[column]) {
+            mergeNumber(group, column, op, value);
+            return;
+        }
+        ValueObject current = objects[column][group];
+        switch (op) {
+            case KEY:
+            case LAST:
+                if (value != null) {
+                    setObject(group, column, value);
+                }
+                break;
+            case JOIN:
+                if (current == null) {
+                    setObject(group, column, value);
+                } else if (value != null) {
+                    setObject(group, column, ValueFactory.create(current.toString().concat(",").concat(value.toString())));
+                }
+                break;
+            default:
+                // keep the first value
+                if (current == null) {
+                    setObject(group, column, value);
+                }
+                break;
+        }
+    }
+
+    private void mergeNumber(int group, int column, MergeOp op, ValueObject value) {
+        byte kind = kinds[column][group];
+        if (kind == UNSET) {
+            if (value != null) {
+                setNumber(group, column, value);
+            }
+            return;
+        }
+        if (value == null) {
+            return;
+        }
+        long[] acc = numbers[column];
+        switch (kind) {
+            case LONG: {
+                long current = acc[group];
+                long next = OpGather.num(value).asLong().getLong();
+                switch (op) {
+                    case MAX:
+                        acc[group] = Math.max(current, next);
+                        break;
+                    case MIN:
+                        acc[group] = Math.min(current, next);
+                        break;
+                    case DIFF:
+                        acc[group] = current - next;
+                        break;
+                    default:
+                        acc[group] = current + next;
+                        break;
+                }
+                break;
+            }
+            case DOUBLE: {
+                double current = Double.longBitsToDouble(acc[group]);
+                double next = OpGather.num(value).asDouble().getDouble();
+                double result;
+                switch (op) {
+                    case MAX:
+                        result = Math.max(current, next);
+                        break;
+                    case MIN:
+                        result = Math.min(current, next);
+                        break;
+                    case DIFF:
+                        result = current - next;
+                        break;
+                    default:
+                        result = current + next;
+                        break;
+                }
+                acc[group] = Double.doubleToRawLongBits(result);
+                break;
+            }
+            default: {
+                ValueNumber current = OpGather.num(objects[column][group]);
+                ValueNumber next = OpGather.num(value);
+                switch (op) {
+                    case MAX:
+                        setNumber(group, column, current.max(next));
+                        break;
+                    case MIN:
+                        setNumber(group, column, current.min(next));
+                        break;
+                    case DIFF:
+                        setNumber(group, column, current.diff(next));
+                        break;
+                    default:
+                        setNumber(group, column, current.sum(next));
+                        break;
+                }
+                break;
+            }
+        }
+    }
+
+    private void setNumber(int group, int column, ValueObject value) {
+        switch (value.getObjectType()) {
+            case INT:
+                kinds[column][group] = LONG;
+                numbers[column][group] = value.asLong().getLong();
+                clearObject(group, column);
+                break;
+            case FLOAT:
+                kinds[column][group] = DOUBLE;
+                numbers[column][group] = Double.doubleToRawLongBits(value.asDouble().getDouble());
+                clearObject(group, column);
+                break;
+            default:
+                kinds[column][group] = OBJECT;
+                if (objects[column] == null) {
+                    objects[column] = new ValueObject[keys.length];
+                }
+                setObject(group, column, value);
+                break;
+        }
+    }
+
+    private void clearObject(int group, int column) {
+        if (objects[column] != null) {
+            setObject(group, column, null);
+        }
+    }
+
+    private void setObject(int group, int column, ValueObject value) {
+        ValueObject[] values = objects[column];
+        memory += estimate(value) - estimate(values[group]);
+        values[group] = value;
+    }
+
+    private static long estimate(ValueObject value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value.getObjectType() == ValueObject.TYPE.STRING) {
+            return 40 + 2 * value.toString().length();
+        }
+        return 24;
+    }
+
+    /**
+     * @return the merged value of a column
+     */
+    ValueObject getValue(int group, int column) {
+        if (!numeric[column]) {
+            return objects[column] != null ? objects[column][group] : null;
+        }
+        switch (kinds[column][group]) {
+            case LONG:
+                return ValueFactory.create(numbers[column][group]);
+            case DOUBLE:
+                return ValueFactory.create(Double.longBitsToDouble(numbers[column][group]));
+            case OBJECT:
+                return objects[column][group];
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the merged value of a column divided by the number of merged rows
+     */
+    ValueObject getAverage(int group, int column) {
+        int count = Math.max(counts[group], 1);
+        switch (kinds[column][group]) {
+            case LONG:
+                return ValueFactory.create(numbers[column][group] / count);
+            case DOUBLE:
+                return ValueFactory.create(Double.longBitsToDouble(numbers[column][group]) / count);
+            case OBJECT:
+                return OpGather.num(objects[column][group]).avg(counts[group]);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Write the key and merge state of a group.
+     *
+     * @param format positional format with one field per column
+     */
+    void writeGroup(int group, OutputStream out, ListBundleFormat format, FieldIndexMap fim,
+            ClassIndexMap cim) throws IOException {
+        Bytes.writeBytes(keys[group], out);
+        Bytes.writeLength(counts[group], out);
+        ListBundle values = new ListBundle(format);
+        for (int i = 0; i < ops.length; i++) {
+            if (numeric[i]) {
+                byte kind = kinds[i][group];
+                out.write(kind);
+                if (kind == LONG || kind == DOUBLE) {
+                    Bytes.writeLong(numbers[i][group], out);
+                }
+            }
+            if (objects[i] != null && objects[i][group] != null) {
+                values.setValue(format.getField(Integer.toString(i)), objects[i][group]);
+            }
+        }
+        Bytes.writeBytes(DataChannelCodec.encodeBundle(values, fim, cim), out);
+    }
+
+    /**
+     * Recreate a group written by {@link #writeGroup} once its key has been read.
+     * The group must not already be present.
+     */
+    int readGroup(byte[] key, InputStream in, ListBundleFormat format, FieldIndexMap fim, ClassIndexMap cim)
+            throws IOException {
+        hashKey(key);
+        if (find() >= 0) {
+            throw new IllegalStateException("gather group restored twice");
+        }
+        int group = insert();
+        counts[group] = (int) Bytes.readLength(in);
+        byte[] rowKinds = new byte[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            if (numeric[i]) {
+                rowKinds[i] = (byte) in.read();
+                if (rowKinds[i] == LONG || rowKinds[i] == DOUBLE) {
+                    kinds[i][group] = rowKinds[i];
+                    numbers[i][group] = Bytes.readLong(in);
+                }
+            }
+        }
+        ListBundle values = new ListBundle(format);
+        DataChannelCodec.decodeBundle(values, Bytes.readBytes(in), fim, cim);
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == null || (numeric[i] && rowKinds[i] != OBJECT)) {
+                continue;
+            }
+            ValueObject value = values.getValue(format.getField(Integer.toString(i)));
+            if (value == null) {
+                continue;
+            }
+            if (numeric[i]) {
+                setNumber(group, i, value);
+            } else {
+                setObject(group, i, value);
+            }
+        }
+        return group;
+    }
+
+    private static byte[] ensure(byte[] buffer, int len) {
+        if (buffer.length < len) {
+            return Arrays.copyOf(buffer, Math.max(len, buffer.length * 2));
+        }
+        return buffer;
+    }
+}
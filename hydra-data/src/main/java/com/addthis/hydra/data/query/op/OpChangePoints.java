@@ -76,7 +76,7 @@ public class OpChangePoints extends AbstractTableOp {
         if (result == null || result.size() == 0) {
             return result;
         }
-        Long[] data = new Long[result.size()];
+        long[] data = new long[result.size()];
         BundleField[] fields = new BundleColumnBinder(result.get(0)).getFields();
         BundleField timeField = fields[timeColumn];
         BundleField valField = fields[valColumn];
@@ -13,17 +13,20 @@
  */
 package com.addthis.hydra.data.query.op;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import java.nio.charset.StandardCharsets;
+
 import com.addthis.basis.util.Bytes;
-import com.addthis.basis.util.MemoryCounter;
+import com.addthis.basis.util.Files;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.channel.DataChannelError;
@@ -32,10 +35,14 @@ import com.addthis.bundle.core.BundleField;
 import com.addthis.bundle.core.list.ListBundle;
 import com.addthis.bundle.core.list.ListBundleFormat;
 import com.addthis.bundle.io.DataChannelCodec;
+import com.addthis.bundle.io.DataChannelCodec.ClassIndexMap;
+import com.addthis.bundle.io.DataChannelCodec.FieldIndexMap;
 import com.addthis.bundle.util.ValueUtil;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueNumber;
 import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.io.SpillFile;
+import com.addthis.hydra.data.io.SpillSpace;
 import com.addthis.hydra.data.query.AbstractQueryOp;
 import com.addthis.hydra.data.query.DiskBackedMap;
 import com.addthis.hydra.data.query.QueryOp;
@@ -45,7 +52,8 @@ import com.addthis.hydra.data.util.KeyTopper;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Meter;
 
-import org.apache.commons.lang3.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>This query operation <span class="hydra-summary">merges arbitrary rows</span>.
@@ -53,7 +61,9 @@ import org.apache.commons.lang3.ArrayUtils;
  * <p>Gather collects all rows that match the criteria of the key columns.
  * It is an in-memory operation that spill over to disk when necessary. If the key
  * columns are already sorted then the {@link OpMerge merge} operation is
- * a much cheaper alternative.</p>
+ * a much cheaper alternative. Rows are emitted in the order their keys were
+ * first seen unless the operation has spilled. A ranked gather that spills
+ * emits its rows in key order.</p>
  * <p>The syntax for this operation is "gather=[column parameters] where
  * column parameters is a sequence of one or more of the following letters:
  * <ul>
@@ -95,7 +105,9 @@ import org.apache.commons.lang3.ArrayUtils;
  */
 public class OpGather extends AbstractQueryOp {
 
-    private enum MergeOp {
+    private static final Logger log = LoggerFactory.getLogger(OpGather.class);
+
+    enum MergeOp {
         KEY, SUM, AVG, MIN, MAX, PACK, LAST, DIFF, JOIN
     }
 
@@ -104,13 +116,22 @@ public class OpGather extends AbstractQueryOp {
         return num != null ? num : ZERO;
     }
 
-    private Map<String, MergedRow> resultTable = new HashMap<>();
+    /* a spilling pass splits its groups into 2^PARTITION_BITS partitions using the next bits of the key hash */
+    private static final int PARTITION_BITS = 4;
+    private static final int PARTITIONS = 1 << PARTITION_BITS;
+    private static final int MAX_LEVEL = 32 / PARTITION_BITS - 1;
+
+    private static final int ROW_RECORD = 0;
+    private static final int GROUP_RECORD = 1;
+
+    private static final long MAX_SPILL = Parameter.longValue("max.total.query.size.bytes", 10L * 1000 * 1000 * 1000);
+
     private final ListBundleFormat format = new ListBundleFormat();
     private final BundleMapConf<MergeOp> conf[];
+    private final MergeOp[] ops;
 
     private final long tipMem;
     private final long tipRow;
-    private long totalMem;
 
     private BundleField mergeField;
     private boolean mergeCount;
@@ -118,21 +139,40 @@ public class OpGather extends AbstractQueryOp {
     private int topSize;
     private int topColumn = -1;
 
-    private boolean tippedToDisk = false;
     private boolean tipToDisk = Parameter.boolValue("opgather.tiptodisk", false);
 
     private String tmpDir = "opgather.tmp";
+    private File spillDir;
+    private int spillFiles;
+    private final SpillSpace spillSpace;
+    /* groups of a ranked gather that tipped, keyed by their serialized key */
+    private DiskBackedMap<SpilledGroup> rankedGroups;
+
+    /* spilled rows and groups are written positionally with shared field and class indexes */
+    private final ListBundleFormat spillFormat = new ListBundleFormat();
+    private final FieldIndexMap fim = DataChannelCodec.createFieldIndexMap();
+    private final ClassIndexMap cim = DataChannelCodec.createClassIndexMap();
+
+    private final Pass pass;
 
     private static final Meter diskTips = Metrics.newMeter(OpGather.class, "diskTips", "diskTips", TimeUnit.SECONDS);
 
     final QueryStatusObserver queryStatusObserver;
 
     public OpGather(String args, long tipMem, long tipRow, String tmpDir, QueryStatusObserver queryStatusObserver) {
+        this(args, tipMem, tipRow, tmpDir, new SpillSpace(MAX_SPILL), queryStatusObserver);
+    }
+
+    public OpGather(String args, long tipMem, long tipRow, String tmpDir, SpillSpace spillSpace,
+            QueryStatusObserver queryStatusObserver) {
         this.queryStatusObserver = queryStatusObserver;
         this.tmpDir = tmpDir;
         this.tipMem = tipMem;
         this.tipRow = tipRow;
-        totalMem = 0;
+        this.spillSpace = spillSpace;
+        // keep the encoder from emitting index resets, which would drop
+        // indexes when spilled records are decoded out of write order
+        cim.createObjectIndex(ValueObject.class);
 
         ArrayList<BundleMapConf<MergeOp>> conf = new ArrayList<>(args.length());
 
@@ -152,7 +192,7 @@ public class OpGather extends AbstractQueryOp {
                     // next col is top
                 case 't':
                     topColumn = conf.size();
-                    topper = new KeyTopper().init();
+                    topper = KeyTopper.create();
                     continue;
                     // average
                 case 'a':
@@ -209,6 +249,17 @@ public class OpGather extends AbstractQueryOp {
             }
         }
         this.conf = conf.toArray(new BundleMapConf[conf.size()]);
+        this.ops = new MergeOp[this.conf.length];
+        for (int i = 0; i < ops.length; i++) {
+            if (this.conf[i] != null) {
+                ops[i] = this.conf[i].getOp();
+            } else if (i == topColumn) {
+                // an ignored top column still needs its value to rank keys
+                ops[i] = MergeOp.PACK;
+            }
+            spillFormat.getField(Integer.toString(i));
+        }
+        this.pass = new Pass(0);
     }
 
     @Override
@@ -216,9 +267,8 @@ public class OpGather extends AbstractQueryOp {
         if (queryStatusObserver.queryCompleted) {
             return;
         }
-        String key = "";
         int i = 0;
-        /* compute key for new line and fill from/to if not set */
+        /* fill from/to if not set */
         BundleField topField = null;
         for (BundleField field : row.getFormat()) {
             if (i >= conf.length) {
@@ -236,232 +286,387 @@ public class OpGather extends AbstractQueryOp {
                 // TODO only clone field name for non-int names, otherwise create 'next' column # as name
                 mc.setTo(format.getField(field.getName()));
             }
-            if (mc != null && mc.getOp() == MergeOp.KEY) {
-                ValueObject lval = row.getValue(field);
-                key = key.concat(lval == null ? "" : lval.toString());
-            }
         }
         if (mergeCount && mergeField == null) {
             mergeField = format.createNewField("merge_");
         }
-        MergedRow merge = resultTable.get(key);
-        if (merge == null) {
-            merge = new MergedRow();
-            resultTable.put(key, merge);
-
-            if (!tippedToDisk) {
-                totalMem += MemoryCounter.estimateSize(merge);
-            }
+        try {
+            pass.add(row, topField != null);
+        } catch (IOException ex) {
+            throw new DataChannelError(ex);
         }
-        if (!tippedToDisk) {
-            totalMem -= MemoryCounter.estimateSize(merge);
+    }
+
+    @Override
+    public void sendComplete() {
+        QueryOp next = getNext();
+        try {
+            pass.finish();
+        } catch (IOException ex) {
+            throw new DataChannelError(ex);
+        } finally {
+            deleteSpill();
         }
-        merge.merge(row);
-        if (tippedToDisk) {
-            // Update the result on the disk, we need to put again
-            resultTable.put(key, merge);
+        next.sendComplete();
+    }
+
+    @Override
+    public void close() throws IOException {
+        deleteSpill();
+        super.close();
+    }
+
+    private void deleteSpill() {
+        if (rankedGroups != null) {
+            try {
+                rankedGroups.close();
+            } catch (IOException ex) {
+                log.warn("ERROR while closing ranked groups for gather", ex);
+            }
+            rankedGroups = null;
         }
-        if (!tippedToDisk) {
-            totalMem += MemoryCounter.estimateSize(merge);
+        if (spillDir != null && spillDir.exists()) {
+            if (!Files.deleteDir(spillDir)) {
+                log.warn("ERROR while deleting {} for gather", spillDir);
+            }
         }
+    }
 
-        if (topField != null) {
-            ValueNumber num = num(merge.mergedRow[topColumn]);
-            if (num == null) {
-                return;
+    private SpillFile createSpillFile() throws IOException {
+        if (spillDir == null) {
+            spillDir = new File(tmpDir, String.valueOf(UUID.randomUUID()));
+            if (!spillDir.mkdirs()) {
+                throw new IOException("unable to create gather spill directory " + spillDir);
             }
-            String drop = topper.update(key, num.asLong().getLong(), topSize);
-            if (drop != null) {
-                if (!tippedToDisk) {
-                    totalMem -= MemoryCounter.estimateSize(resultTable.get(drop));
-                }
+        }
+        return new SpillFile(new File(spillDir, "gather-" + (spillFiles++) + ".spill"), spillSpace,
+                SpillFile.DEFAULT_COMPRESSION);
+    }
 
-                resultTable.remove(drop);
+    private Bundle emit(GatherTable table, int group) {
+        Bundle nl = new ListBundle(format);
+        for (int i = 0; i < conf.length; i++) {
+            BundleMapConf<MergeOp> mc = conf[i];
+            if (mc == null) {
+                continue;
+            }
+            switch (mc.getOp()) {
+                case LAST:
+                case KEY:
+                case SUM:
+                case DIFF:
+                case MAX:
+                case MIN:
+                case JOIN:
+                    nl.setValue(mc.getTo(), table.getValue(group, i));
+                    break;
+                case AVG:
+                    nl.setValue(mc.getTo(), table.getAverage(group, i));
+                    break;
             }
         }
+        if (mergeCount) {
+            nl.setValue(mergeField, ValueFactory.create(table.getCount(group)));
+        }
+        return nl;
+    }
 
-        if (!tipToDisk) {
-            // If we're not tipping to disk, and the tips are set, then we will issue errors if we pass them
-            if (tipMem > 0 && totalMem > tipMem) {
-                throw new DataChannelError("Memory usage of gathered objects exceeds allowed " + tipMem);
-            }
+    /**
+     * a group of a tipped ranked gather as written by {@link GatherTable#writeGroup}
+     */
+    private static class SpilledGroup implements DiskBackedMap.DiskObject {
 
-            if (tipRow > 0 && resultTable.size() > tipRow) {
-                throw new DataChannelError("Number of gathered rows exceeds allowed " + tipRow);
+        static final DiskBackedMap.DiskObjectFactory FACTORY = new DiskBackedMap.DiskObjectFactory() {
+            @Override
+            public DiskBackedMap.DiskObject fromBytes(byte[] bytes) {
+                return new SpilledGroup(bytes);
             }
-        } else {
-            // If we're tipping to disk, and the tips are non zero, then spill to disk once we pass them
-            if (!tippedToDisk && ((tipMem > 0 && totalMem > tipMem) || (tipRow > 0 && resultTable.size() > tipRow))) {
-                tippedToDisk = true;
-                diskTips.mark();
+        };
 
-                // Use the smaller amount of memory for the JE cache environment
-                long memToUse = totalMem;
-                if (memToUse > tipMem) {
-                    memToUse = tipMem;
-                }
+        final byte[] bytes;
 
-                Map<String, MergedRow> diskMap = new DiskBackedMap<>(tmpDir + "/" + UUID.randomUUID(),
-                        new MergedRowFactory(), memToUse);
+        SpilledGroup(byte[] bytes) {
+            this.bytes = bytes;
+        }
 
-                diskMap.putAll(resultTable);
-                resultTable = diskMap;
-            }
+        @Override
+        public byte[] toBytes() {
+            return bytes;
         }
     }
 
-    @Override
-    public void sendComplete() {
-        QueryOp next = getNext();
-        for (MergedRow mergedRow : resultTable.values()) {
-            if (!queryStatusObserver.queryCompleted) {
-                next.send(mergedRow.emit());
-            } else {
-                break;
-            }
+    /**
+     * One level of a grace hash aggregation. Rows are merged into an in-memory
+     * table until it exceeds the tip limits. The largest partition of keys is
+     * then written out as partial groups and every later row of that partition
+     * is appended to the same file. Each spilled partition is aggregated by a
+     * pass of the next level after the resident groups have been emitted, so a
+     * group is restored before any of its spilled rows are merged.
+     */
+    private class Pass {
+
+        private final int level;
+        private final GatherTable table = new GatherTable(ops);
+        private final SpillFile[] files = new SpillFile[PARTITIONS];
+        private final SpillFile.Writer[] writers = new SpillFile.Writer[PARTITIONS];
+
+        Pass(int level) {
+            this.level = level;
         }
-        next.sendComplete();
-    }
 
-    @Override
-    public void close() throws IOException {
-        if (resultTable instanceof DiskBackedMap) {
-            ((DiskBackedMap<MergedRow>) resultTable).close();
+        private int partition(int hash) {
+            return (hash >>> (32 - PARTITION_BITS * (level + 1))) & (PARTITIONS - 1);
         }
 
-        super.close();
-    }
+        void add(Bundle row, boolean ranked) throws IOException {
+            int partition = partition(table.hashKey(row));
+            if (rankedGroups != null) {
+                addRanked(row, ranked);
+                return;
+            }
+            if (writers[partition] != null) {
+                writers[partition].write(encodeRow(row));
+                return;
+            }
+            int group = table.find();
+            if (group < 0) {
+                group = table.insert();
+            }
+            table.merge(group, row);
+            if (ranked) {
+                rank(group);
+            }
+            checkLimits();
+        }
+
+        private void rank(int group) {
+            String drop = rankedDrop(group);
+            if (drop != null) {
+                table.hashKey(drop.getBytes(StandardCharsets.ISO_8859_1));
+                int dropped = table.find();
+                if (dropped >= 0) {
+                    table.remove(dropped);
+                }
+            }
+        }
 
-    private class MergedRow implements DiskBackedMap.DiskObject {
+        /**
+         * @return the key the topper dropped to make room for the group, which may be its own
+         */
+        private String rankedDrop(int group) {
+            ValueNumber num = num(table.getValue(group, topColumn));
+            return topper.update(new String(table.getKey(group), StandardCharsets.ISO_8859_1),
+                    num.asLong().getLong(), topSize);
+        }
 
-        MergedRow() {
-            mergedRow = new ValueObject[conf.length];
+        /**
+         * merge a row of a tipped ranked gather into its group on disk
+         */
+        private void addRanked(Bundle row, boolean ranked) throws IOException {
+            byte[] key = table.copyKey();
+            String name = new String(key, StandardCharsets.ISO_8859_1);
+            SpilledGroup stored = rankedGroups.get(name);
+            int group;
+            if (stored != null) {
+                ByteArrayInputStream in = new ByteArrayInputStream(stored.bytes);
+                Bytes.readBytes(in);
+                group = table.readGroup(key, in, spillFormat, fim, cim);
+            } else {
+                group = table.insert();
+            }
+            table.merge(group, row);
+            String drop = ranked ? rankedDrop(group) : null;
+            if (name.equals(drop)) {
+                if (stored != null) {
+                    rankedGroups.remove(name);
+                }
+            } else {
+                rankedGroups.put(name, writeGroup(group));
+                if (drop != null) {
+                    rankedGroups.remove(drop);
+                }
+            }
+            table.remove(group);
         }
 
-        ValueObject mergedRow[];
-        int merged;
+        private SpilledGroup writeGroup(int group) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            table.writeGroup(group, out, spillFormat, fim, cim);
+            return new SpilledGroup(out.toByteArray());
+        }
 
-        void merge(Bundle row) {
-            int i = -1;
-            for (BundleField field : row.getFormat()) {
-                ValueObject lval = row.getValue(field);
-                i++;
-                if (i >= mergedRow.length) {
-                    break;
+        private void checkLimits() throws IOException {
+            boolean overMem = tipMem > 0 && table.getMemory() > tipMem;
+            boolean overRows = tipRow > 0 && table.size() > tipRow;
+            if (!overMem && !overRows) {
+                return;
+            }
+            if (!tipToDisk) {
+                // If we're not tipping to disk, and the tips are set, then we will issue errors if we pass them
+                if (overMem) {
+                    throw new DataChannelError("Memory usage of gathered objects exceeds allowed " + tipMem);
                 }
-                if (mergedRow[i] == null) {
-                    mergedRow[i] = lval;
-                    continue;
+                throw new DataChannelError("Number of gathered rows exceeds allowed " + tipRow);
+            }
+            // ranked gathers are not partitioned since the topper decides which groups survive
+            if (topper != null) {
+                spillRanked();
+                return;
+            }
+            if (level > MAX_LEVEL) {
+                // every key left in this partition has the same hash
+                return;
+            }
+            // a single group is always kept in memory, however large
+            while (table.size() > 1 &&
+                   ((tipMem > 0 && table.getMemory() > tipMem) || (tipRow > 0 && table.size() > tipRow))) {
+                spill(largestPartition());
+            }
+        }
+
+        private int largestPartition() {
+            int[] sizes = new int[PARTITIONS];
+            for (int group = 0; group < table.getGroupLimit(); group++) {
+                if (table.isLive(group)) {
+                    sizes[partition(table.getHash(group))]++;
                 }
-                if (lval == null) {
-                    continue;
+            }
+            int largest = -1;
+            for (int i = 0; i < PARTITIONS; i++) {
+                if (writers[i] == null && (largest < 0 || sizes[i] > sizes[largest])) {
+                    largest = i;
                 }
-                BundleMapConf<MergeOp> mc = conf[i];
-                if (mc == null) {
-                    continue;
+            }
+            return largest;
+        }
+
+        /**
+         * move the groups of a partition to disk and send its future rows there
+         */
+        private void spill(int partition) throws IOException {
+            if (level == 0 && spillFiles == 0) {
+                diskTips.mark();
+            }
+            files[partition] = createSpillFile();
+            writers[partition] = files[partition].openWriter();
+            int spilled = 0;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int group = 0; group < table.getGroupLimit(); group++) {
+                if (table.isLive(group) && partition(table.getHash(group)) == partition) {
+                    out.reset();
+                    out.write(GROUP_RECORD);
+                    table.writeGroup(group, out, spillFormat, fim, cim);
+                    writers[partition].write(out.toByteArray());
+                    table.remove(group);
+                    spilled++;
                 }
-                switch (mc.getOp()) {
-                    case LAST:
-                    case KEY:
-                        mergedRow[i] = lval;
-                        break;
-                    case SUM:
-                    case AVG:
-                        mergedRow[i] = num(mergedRow[i]).sum(num(lval));
-                        break;
-                    case MAX:
-                        mergedRow[i] = num(mergedRow[i]).max(num(lval));
-                        break;
-                    case MIN:
-                        mergedRow[i] = num(mergedRow[i]).min(num(lval));
-                        break;
-                    case DIFF:
-                        mergedRow[i] = num(mergedRow[i]).diff(num(lval));
-                        break;
-                    case JOIN:
-                        mergedRow[i] = ValueFactory.create(mergedRow[i].toString().concat(",").concat(lval.toString()));
-                        break;
+            }
+            log.debug("gather level={} spilled partition={} groups={} remaining={} mem={}",
+                    level, partition, spilled, table.size(), table.getMemory());
+        }
+
+        /**
+         * move every group of a ranked gather to a disk backed map that later rows are merged into
+         */
+        private void spillRanked() throws IOException {
+            diskTips.mark();
+            // Use the smaller amount of memory for the JE cache environment
+            rankedGroups = new DiskBackedMap<>(tmpDir + "/" + UUID.randomUUID(), SpilledGroup.FACTORY,
+                    Math.min(table.getMemory(), tipMem));
+            for (int group = 0; group < table.getGroupLimit(); group++) {
+                if (table.isLive(group)) {
+                    rankedGroups.put(new String(table.getKey(group), StandardCharsets.ISO_8859_1),
+                            writeGroup(group));
                 }
             }
-            merged++;
+            log.debug("gather spilled ranked groups={} mem={}", table.size(), table.getMemory());
+            table.clear();
         }
 
-        private Bundle emit() {
-            Bundle nl = new ListBundle(format);
+        private byte[] encodeRow(Bundle row) throws IOException {
+            ListBundle values = new ListBundle(spillFormat);
             int i = 0;
-            for (ValueObject lval : mergedRow) {
-                if (i >= conf.length) {
+            for (BundleField field : row.getFormat()) {
+                if (i >= ops.length) {
                     break;
                 }
-                BundleMapConf<MergeOp> mc = conf[i++];
-                if (mc == null) {
-                    continue;
+                ValueObject value = row.getValue(field);
+                if (value != null) {
+                    values.setValue(spillFormat.getField(Integer.toString(i)), value);
                 }
-                switch (mc.getOp()) {
-                    case LAST:
-                    case KEY:
-                    case SUM:
-                    case DIFF:
-                    case MAX:
-                    case MIN:
-                        nl.setValue(mc.getTo(), lval);
-                        break;
-                    case AVG:
-                        nl.setValue(mc.getTo(), lval != null ? num(lval).avg(merged) : null);
-                        break;
-                    case JOIN:
-                        nl.setValue(mc.getTo(), lval);
+                i++;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(ROW_RECORD);
+            out.write(DataChannelCodec.encodeBundle(values, fim, cim));
+            return out.toByteArray();
+        }
+
+        /**
+         * emit the resident groups then aggregate each spilled partition in turn
+         */
+        void finish() throws IOException {
+            QueryOp next = getNext();
+            if (rankedGroups != null) {
+                // the disk map returns groups in key order
+                for (SpilledGroup stored : rankedGroups.values()) {
+                    if (queryStatusObserver.queryCompleted) {
                         break;
+                    }
+                    ByteArrayInputStream in = new ByteArrayInputStream(stored.bytes);
+                    int group = table.readGroup(Bytes.readBytes(in), in, spillFormat, fim, cim);
+                    next.send(emit(table, group));
+                    table.remove(group);
                 }
+                return;
             }
-            if (mergeCount) {
-                nl.setValue(mergeField, ValueFactory.create(merged));
+            for (int group = 0; group < table.getGroupLimit(); group++) {
+                if (queryStatusObserver.queryCompleted) {
+                    break;
+                }
+                if (table.isLive(group)) {
+                    next.send(emit(table, group));
+                }
             }
-            mergedRow = new ValueObject[conf.length];
-            return nl;
-        }
-
-        @Override
-        public byte[] toBytes() {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            byte[] result;
-            try {
-                bos.write(Bytes.toBytes(merged));
-                ListBundleFormat format = new ListBundleFormat();
-                ListBundle listBundle = new ListBundle(format);
-                for (int i = 0; i != conf.length; i++) {
-                    listBundle.setValue(format.getField("" + i), mergedRow[i]);
+            table.clear();
+            for (int i = 0; i < PARTITIONS; i++) {
+                if (files[i] == null) {
+                    continue;
                 }
-                bos.write(DataChannelCodec.encodeBundle(listBundle));
-                result = bos.toByteArray();
-                bos.close();
-
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                writers[i].close();
+                writers[i] = null;
+                if (!queryStatusObserver.queryCompleted) {
+                    Pass sub = new Pass(level + 1);
+                    try (SpillFile.Reader reader = files[i].openReader()) {
+                        byte[] record;
+                        while ((record = reader.next()) != null) {
+                            sub.load(record);
+                        }
+                    }
+                    sub.finish();
+                }
+                files[i].delete();
+                files[i] = null;
             }
-
-            return result;
         }
-    }
-
-    private class MergedRowFactory implements DiskBackedMap.DiskObjectFactory {
 
-        @Override
-        public DiskBackedMap.DiskObject fromBytes(byte[] bytes) {
-            MergedRow mergedRow = new MergedRow();
-            mergedRow.merged = Bytes.toInt(ArrayUtils.subarray(bytes, 0, Integer.SIZE / 8));
-            ListBundleFormat format = new ListBundleFormat();
-            ListBundle listBundle = new ListBundle(format);
-            try {
-                DataChannelCodec.decodeBundle(listBundle, ArrayUtils.subarray(bytes, Integer.SIZE / 8, bytes.length));
-                for (int i = 0; i != conf.length; i++) {
-                    mergedRow.mergedRow[i] = listBundle.getValue(format.getField("" + i));
+        private void load(byte[] record) throws IOException {
+            if (record[0] == GROUP_RECORD) {
+                ByteArrayInputStream in = new ByteArrayInputStream(record, 1, record.length - 1);
+                byte[] key = Bytes.readBytes(in);
+                int partition = partition(table.hashKey(key));
+                if (writers[partition] != null) {
+                    // keep the group ahead of its rows in the spilled partition
+                    writers[partition].write(record);
+                    return;
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                table.readGroup(key, in, spillFormat, fim, cim);
+                checkLimits();
+            } else {
+                ListBundle row = new ListBundle(spillFormat);
+                DataChannelCodec.decodeBundle(row, Arrays.copyOfRange(record, 1, record.length), fim, cim);
+                add(row, false);
             }
-
-            return mergedRow;
         }
     }
 }
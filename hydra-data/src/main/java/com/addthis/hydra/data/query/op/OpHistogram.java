@@ -59,7 +59,7 @@ public class OpHistogram extends AbstractRowOp {
         column = v[0];
         scale = v.length > 1 ? v[1] : 10;
 
-        histo = new KeyHistogram().setScale(scale).init();
+        histo = KeyHistogram.create().setScale(scale);
     }
 
     KeyHistogram histo;
@@ -0,0 +1,182 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.util.BundleColumnBinder;
+import com.addthis.bundle.util.ValueUtil;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.query.AbstractRowOp;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.tree.prop.SketchValue;
+
+
+/**
+ * <p>This query operation <span class="hydra-summary">merges sketches across rows</span>.
+ * <p/>
+ * <p>Attachments such as count, tdigest, count.min.sketch and seen return their whole
+ * sketch as the value of a query. Adding up the estimates from several nodes or tasks
+ * is wrong for most sketches: the unique counts of 256 tasks can not be summed. This
+ * operation merges the sketches of all rows with the same key and then takes the
+ * estimate, so the result is the estimate for the union of the inputs.</p>
+ * <p/>
+ * <p>The syntax for this operation is "sketch=[column parameters]" where column
+ * parameters is a sequence of one or more of the following letters:
+ * <ul>
+ * <li>k - this column is a key column.</li>
+ * <li>i - this column is ignored and dropped from the output.</li>
+ * <li>m - merge the sketches in this column and output the merged sketch.</li>
+ * <li>e - merge the sketches in this column and output the estimate.</li>
+ * </ul>
+ * <p/>
+ * <p>Rows with the same key are merged wherever they appear, so the input does not need
+ * to be sorted. Columns after the last parameter are dropped. Use "m" in the remote
+ * operations (rops) that run on each task so the sketches reach the query master intact,
+ * and "e" in the master operations (ops) to merge across tasks and extract the estimates.</p>
+ * <p/>
+ * <p>Example:</p>
+ * <pre>
+ * path=/shard-counter/+$+ips  ops=sketch=ke  rops=sketch=km
+ * </pre>
+ *
+ * @user-reference
+ * @hydra-name sketch
+ */
+public class OpSketch extends AbstractRowOp {
+
+    private enum SketchOp {
+        KEY, IGNORE, MERGE, ESTIMATE
+    }
+
+    private final SketchOp[] ops;
+    private final ListBundleFormat format = new ListBundleFormat();
+    private final BundleField[] outputFields;
+    private final LinkedHashMap<String, ValueObject[]> merged = new LinkedHashMap<>();
+    private final QueryStatusObserver queryStatusObserver;
+    private BundleColumnBinder binder;
+
+    public OpSketch(String args, QueryStatusObserver queryStatusObserver) {
+        this.queryStatusObserver = queryStatusObserver;
+        ops = new SketchOp[args.length()];
+        for (int i = 0; i < args.length(); i++) {
+            switch (args.charAt(i)) {
+                case 'k':
+                    ops[i] = SketchOp.KEY;
+                    break;
+                case 'i':
+                    ops[i] = SketchOp.IGNORE;
+                    break;
+                case 'm':
+                    ops[i] = SketchOp.MERGE;
+                    break;
+                case 'e':
+                    ops[i] = SketchOp.ESTIMATE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown sketch column parameter '" + args.charAt(i) + "' in " + args);
+            }
+        }
+        outputFields = new BundleField[ops.length];
+        int column = 0;
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] != SketchOp.IGNORE) {
+                outputFields[i] = format.getField(Integer.toString(column++));
+            }
+        }
+    }
+
+    @Override
+    public Bundle rowOp(Bundle row) {
+        if (binder == null) {
+            binder = getSourceColumnBinder(row);
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == SketchOp.KEY) {
+                String value = ValueUtil.asNativeString(binder.getColumn(row, i));
+                // length prefixed so that keys of several columns can not run together
+                if (value != null) {
+                    key.append(value.length()).append(':').append(value);
+                }
+                key.append(',');
+            }
+        }
+        ValueObject[] values = merged.get(key.toString());
+        if (values == null) {
+            values = new ValueObject[ops.length];
+            for (int i = 0; i < ops.length; i++) {
+                if (ops[i] != SketchOp.IGNORE) {
+                    values[i] = binder.getColumn(row, i);
+                }
+            }
+            merged.put(key.toString(), values);
+            return null;
+        }
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == SketchOp.MERGE || ops[i] == SketchOp.ESTIMATE) {
+                values[i] = merge(values[i], binder.getColumn(row, i));
+            }
+        }
+        return null;
+    }
+
+    private static ValueObject merge(ValueObject sketch, ValueObject other) {
+        if (sketch == null) {
+            return other;
+        }
+        if (other == null) {
+            return sketch;
+        }
+        if (!(sketch instanceof SketchValue) || !(other instanceof SketchValue)) {
+            throw new IllegalArgumentException("expected sketches but found " + sketch.getClass().getSimpleName() +
+                                               " and " + other.getClass().getSimpleName());
+        }
+        return ((SketchValue) sketch).merge((SketchValue) other);
+    }
+
+    @Override
+    public void sendComplete() {
+        for (Map.Entry<String, ValueObject[]> entry : merged.entrySet()) {
+            if (queryStatusObserver.queryCompleted || queryStatusObserver.queryCancelled) {
+                break;
+            }
+            ValueObject[] values = entry.getValue();
+            Bundle row = new ListBundle(format);
+            for (int i = 0; i < ops.length; i++) {
+                ValueObject value = values[i];
+                switch (ops[i]) {
+                    case IGNORE:
+                        continue;
+                    case ESTIMATE:
+                        if (value instanceof SketchValue) {
+                            value = ((SketchValue) value).asSimple();
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                row.setValue(outputFields[i], value);
+            }
+            getNext().send(row);
+        }
+        merged.clear();
+        super.sendComplete();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.op;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.hydra.data.query.AbstractRowOp;
+import com.addthis.hydra.data.query.QueryMemTracker;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+
+/**
+ * <p>This query operation <span class="hydra-summary">emits the first N rows of a sort</span>
+ * using memory proportional to N instead of to the input.
+ * <p/>
+ * <p>The query processor substitutes this operation for a sort or dsort that is
+ * immediately followed by a limit. The output is identical to the sort followed
+ * by the limit: rows that compare equal retain their input order. Each row costs
+ * O(log N) and at most offset + limit rows are held at any time.</p>
+ *
+ * @hydra-name topsort
+ */
+public class OpTopSort extends AbstractRowOp {
+
+    private final BundleSortComparator comparator;
+    private final PriorityQueue<Entry> heap;
+    private final int offset;
+    private final int limit;
+    private final int capacity;
+    private final QueryStatusObserver queryStatusObserver;
+
+    private long sequence;
+
+    /**
+     * @param sortArgs [cols]:[type]:[direction] as accepted by sort
+     * @param offset   rows of the sorted output to skip
+     * @param limit    rows of the sorted output to emit
+     */
+    public OpTopSort(String sortArgs, int offset, int limit, QueryStatusObserver queryStatusObserver) {
+        if (limit <= 0 || offset < 0) {
+            throw new IllegalArgumentException("invalid top sort offset " + offset + " and limit " + limit);
+        }
+        this.comparator = new BundleSortComparator(sortArgs);
+        this.offset = offset;
+        this.limit = limit;
+        this.capacity = offset + limit;
+        this.queryStatusObserver = queryStatusObserver;
+        // the head of the heap is the row that would be emitted last
+        this.heap = new PriorityQueue<>(Math.min(capacity, 1024) + 1, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return -compareEntries(o1, o2);
+            }
+        });
+    }
+
+    private int compareEntries(Entry o1, Entry o2) {
+        int comp = comparator.compare(o1.bundle, o2.bundle);
+        if (comp == 0) {
+            return Long.compare(o1.sequence, o2.sequence);
+        }
+        return comp;
+    }
+
+    @Override
+    public Bundle rowOp(Bundle row) {
+        Entry entry = new Entry(row, sequence++);
+        if (heap.size() < capacity) {
+            add(entry);
+        } else if (compareEntries(entry, heap.peek()) < 0) {
+            remove(heap.poll());
+            add(entry);
+        }
+        return null;
+    }
+
+    private void add(Entry entry) {
+        heap.add(entry);
+        QueryMemTracker memTracker = getMemTracker();
+        if (memTracker != null) {
+            memTracker.trackBundle(entry.bundle);
+        }
+    }
+
+    private void remove(Entry entry) {
+        QueryMemTracker memTracker = getMemTracker();
+        if (memTracker != null) {
+            memTracker.untrackBundle(entry.bundle);
+        }
+    }
+
+    @Override
+    public void sendComplete() {
+        Entry[] sorted = heap.toArray(new Entry[heap.size()]);
+        heap.clear();
+        Arrays.sort(sorted, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return compareEntries(o1, o2);
+            }
+        });
+        int emitted = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            remove(sorted[i]);
+            if (i >= offset && !queryStatusObserver.queryCompleted) {
+                getNext().send(sorted[i].bundle);
+                emitted++;
+            }
+        }
+        super.sendComplete();
+        if (emitted == limit) {
+            // mirror the limit op, which marks the query completed once it is reached
+            queryStatusObserver.queryCompleted = true;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Bundle bundle;
+        private final long sequence;
+
+        Entry(Bundle bundle, long sequence) {
+            this.bundle = bundle;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -51,7 +51,7 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
     private static final int outputBufferSize = Parameter.intValue("meshQuerySource.outputBufferSize", 64000);
 
     private final ListBundleFormat format = new ListBundleFormat();
-    private final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(outputQueueSize);
+    private final LinkedBlockingQueue<byte[]> queue;
     private final DataChannelWriter writer;
     private final ByteArrayOutputStream out;
     /**
@@ -69,6 +69,19 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
      * Stores true if close() has been called.
      */
     private volatile boolean closed = false;
+    /**
+     * The shared search feeding this stream, if any.
+     */
+    volatile SearchFlight flight;
+    /**
+     * Set when the search feeding this stream also feeds other streams. Output that does not fit in the
+     * queue then fails this stream rather than making the search wait for it.
+     */
+    private volatile boolean shared;
+    /**
+     * The error to send once the queued output has been read, after this stream fell behind a shared search.
+     */
+    private volatile DataChannelError overflow;
 
     /**
      * A non-public constructor. This class can only be instantiated from it outer class MeshQueryMaster. The objects
@@ -77,6 +90,11 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
      * @throws Exception
      */
     DataChannelToInputStream() throws Exception {
+        this(outputQueueSize);
+    }
+
+    DataChannelToInputStream(int queueSize) throws Exception {
+        queue = new LinkedBlockingQueue<>(queueSize);
         out = new ByteArrayOutputStream();
         writer = new DataChannelWriter(out);
     }
@@ -102,13 +120,24 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
             eof = true;
             return null;
         }
-        if (data == null && out.size() > 0) {
+        if (data == null && overflow != null) {
+            data = errorFrame(overflow);
+            eof = true;
+            overflow = null;
+        } else if (data == null && out.size() > 0) {
             emitChunks();
             data = queue.poll();
         }
         return data;
     }
 
+    /**
+     * Stop the search from waiting for this stream when its output queue is full.
+     */
+    void share() {
+        shared = true;
+    }
+
     private void emitChunks() {
         synchronized (out) {
             byte[] bytes = out.toByteArray();
@@ -118,6 +147,10 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
                 if (length > 0) {
                     byte[] chunk = new byte[length];
                     System.arraycopy(bytes, 0, chunk, 0, length);
+                    if (shared) {
+                        offerShared(chunk);
+                        return;
+                    }
                     for (int i = 0; i < 100; i++) //Try adding to queue 100 times
                     {
                         if (queue.offer(chunk, 1000L, TimeUnit.MILLISECONDS)) {
@@ -140,13 +173,42 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
         }
     }
 
+    /**
+     * Queue a chunk without waiting. A stream that has fallen this far behind is detached from its
+     * search so that the other streams keep going, and is sent an error once its queue has been read.
+     * Must be called while holding the lock on {@link #out}.
+     */
+    private void offerShared(byte[] chunk) {
+        if (overflow != null || queue.offer(chunk)) {
+            return;
+        }
+        log.warn("Query output queue is full, detaching from shared search after {} rows", rows);
+        overflow = new DataChannelError("query output was not read fast enough to keep up with a shared search");
+        SearchFlight shared = flight;
+        if (shared != null) {
+            shared.detach(this);
+        }
+    }
+
+    private static byte[] errorFrame(DataChannelError er) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try {
+            frame.write(FramedDataChannelReader.FRAME_ERROR);
+            Bytes.writeString(er.getClass().getCanonicalName(), frame);
+            Bytes.writeString(er.getMessage(), frame);
+        } catch (IOException ex) {
+            throw new DataChannelError(ex);
+        }
+        return frame.toByteArray();
+    }
+
     /**
      * Checks whether or not {@link #closed} was set to true. If {@link #closed} has been set to true then
      * it means there has either been a failure up stream or the query has been canceled.
      * In either case we want to stop the running of this stream and at that point this function will throw
      * a DataChannelError exception.
      */
-    private boolean isClosed() {
+    boolean isClosed() {
         return closed;
     }
 
@@ -158,7 +220,7 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
     @Override
     public boolean isEOF() {
         synchronized (out) {
-            return eof && queue.isEmpty() && out.size() == 0;
+            return eof && queue.isEmpty() && out.size() == 0 && overflow == null;
         }
     }
 
@@ -169,6 +231,10 @@ class DataChannelToInputStream implements DataChannelOutput, VirtualFileInput, B
     public void close() {
         closed = true;
         queryStatusObserver.queryCancelled = true;
+        SearchFlight shared = flight;
+        if (shared != null) {
+            shared.detach(this);
+        }
     }
 
     /**
@@ -22,6 +22,7 @@ import java.util.concurrent.TimeUnit;
 import com.addthis.basis.util.Files;
 import com.addthis.basis.util.Parameter;
 
+import com.addthis.hydra.data.query.QueryMemManager;
 import com.addthis.hydra.data.query.engine.QueryEngineCache;
 import com.addthis.meshy.LocalFileHandler;
 import com.addthis.meshy.VirtualFileFilter;
@@ -82,9 +83,23 @@ public class MeshQuerySource implements LocalFileHandler {
     static final Timer queueTimes = Metrics.newTimer(MeshQuerySource.class, "queueTimes", TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
     //Queries we have recieved but not finished processing (includes those waiting to run aka our queue)
     static final Counter queryCount = Metrics.newCounter(MeshQuerySource.class, "queryCount");
+    //Queries answered by joining an identical search instead of running their own
+    static final Counter coalescedQueries = Metrics.newCounter(MeshQuerySource.class, "coalescedQueries");
 
     static final QueryEngineCache queryEngineCache = new QueryEngineCache();
 
+    //Bytes of buffered query rows above which queries fail. Zero disables memory admission control.
+    private static final long queryMemHard = Parameter.longValue("meshQuerySource.memHard", 0);
+    //Bytes of buffered query rows above which new and growing queries wait for memory to be released
+    private static final long queryMemSoft = Parameter.longValue("meshQuerySource.memSoft", queryMemHard * 3 / 4);
+    //Bytes reserved by each query on admission and the increment in which reservations grow
+    private static final long queryMemReserve = Parameter.longValue("meshQuerySource.memReserve", 4 * 1024 * 1024);
+    private static final int queryMemMaxQueued = Parameter.intValue("meshQuerySource.memMaxQueued", 100);
+    private static final long queryMemMaxWait = Parameter.longValue("meshQuerySource.memMaxWait", 60000);
+
+    static final QueryMemManager queryMemManager = queryMemHard > 0 ?
+            new QueryMemManager(queryMemHard, queryMemSoft, queryMemReserve, queryMemMaxQueued, queryMemMaxWait) : null;
+
     //Temp directory to use for sorting and caching
     private static final String tmpDirPath = Parameter.value("query.tmpdir", "query.tmpdir");
 
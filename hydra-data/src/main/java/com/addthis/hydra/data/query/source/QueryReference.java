@@ -114,7 +114,16 @@ class QueryReference implements VirtualFileReference {
                     Runtime.getRuntime().halt(1);
                 }
             }
-            SearchRunner.querySearchPool.execute(new SearchRunner(options, dirString, bridge));
+            SearchFlight flight = null;
+            String key = SearchFlight.key(dirString, options);
+            if (key != null) {
+                flight = SearchFlight.join(key, bridge);
+                if (flight == null) {
+                    // an identical search is waiting to run and will feed this bridge
+                    return bridge;
+                }
+            }
+            SearchRunner.querySearchPool.execute(new SearchRunner(options, dirString, bridge, flight));
             return bridge;
         } catch (Exception ex) {
             throw new RuntimeException(ex);
@@ -0,0 +1,223 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.source;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.addthis.basis.util.Parameter;
+import com.addthis.basis.util.Strings;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.bundle.core.BundleFormatted;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A search shared by identical queries against the same data directory.
+ * <p/>
+ * The first query for a key starts a search whose output is copied to the
+ * bridge of every query that joined it. Queries can join until the search
+ * emits its first row, which covers queries waiting together for a search
+ * thread or for the engine to open. Each bridge keeps its own bounded output
+ * queue. When the search is shared, a bridge whose queue is full is dropped
+ * and sent an error instead of making the search wait, so one slow client
+ * does not hold up the others. The search is canceled once every bridge is
+ * gone.
+ */
+class SearchFlight implements DataChannelOutput, BundleFormatted {
+
+    private static final Logger log = LoggerFactory.getLogger(SearchFlight.class);
+
+    static final boolean enabled = Parameter.boolValue("meshQuerySource.coalesce", true);
+
+    //Query parameters that do not change the rows a worker returns
+    private static final List<String> ignoreParams = Arrays.asList(Strings.splitArray(
+            Parameter.value("meshQuerySource.coalesce.ignoreParams",
+                    "remoteip,sender,timeout,originalrequest,track.alias,gate,parallel,cache,priority"), ","));
+
+    private static final List<String> ignoreProps = Arrays.asList("trace");
+
+    private static final ConcurrentHashMap<String, SearchFlight> flights = new ConcurrentHashMap<>();
+
+    private final String key;
+    private final CopyOnWriteArrayList<DataChannelToInputStream> bridges = new CopyOnWriteArrayList<>();
+    private final ListBundleFormat format = new ListBundleFormat();
+    private final QueryStatusObserver queryStatusObserver = new QueryStatusObserver();
+    private volatile boolean sealed;
+
+    private SearchFlight(String key, DataChannelToInputStream bridge) {
+        this.key = key;
+        bridges.add(bridge);
+        bridge.flight = this;
+    }
+
+    /**
+     * @return the key identifying identical searches or null if the search should not be shared
+     */
+    static String key(String dirString, Map<String, String> options) {
+        if (!enabled) {
+            return null;
+        }
+        String encoded = options.get("query");
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            Query query = CodecJSON.decodeString(new Query(), encoded);
+            return dirString + "\n" + query.hashKey(ignoreProps, ignoreParams);
+        } catch (Exception ex) {
+            log.warn("Unable to decode query for coalescing: {}", ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Attach a bridge to a running search with the same key or register a new one.
+     *
+     * @return the new search the caller must run, or null if the bridge joined a running search
+     */
+    static SearchFlight join(String key, DataChannelToInputStream bridge) {
+        while (true) {
+            SearchFlight running = flights.get(key);
+            if (running != null && running.add(bridge)) {
+                MeshQuerySource.coalescedQueries.inc();
+                return null;
+            }
+            SearchFlight flight = new SearchFlight(key, bridge);
+            if (running == null ? flights.putIfAbsent(key, flight) == null : flights.replace(key, running, flight)) {
+                return flight;
+            }
+        }
+    }
+
+    private synchronized boolean add(DataChannelToInputStream bridge) {
+        if (sealed) {
+            return false;
+        }
+        bridges.add(bridge);
+        bridge.flight = this;
+        return true;
+    }
+
+    /**
+     * No more bridges may join once output has started. A search feeding
+     * more than one bridge never waits for any of them from then on.
+     */
+    private void seal() {
+        if (!sealed) {
+            synchronized (this) {
+                if (!sealed && bridges.size() > 1) {
+                    for (DataChannelToInputStream bridge : bridges) {
+                        bridge.share();
+                    }
+                }
+                sealed = true;
+            }
+            flights.remove(key, this);
+        }
+    }
+
+    /**
+     * Called when a bridge is closed by meshy or falls behind a shared search.
+     */
+    void detach(DataChannelToInputStream bridge) {
+        boolean empty;
+        synchronized (this) {
+            bridges.remove(bridge);
+            empty = bridges.isEmpty();
+            if (empty) {
+                sealed = true;
+                queryStatusObserver.queryCancelled = true;
+            }
+        }
+        if (empty) {
+            flights.remove(key, this);
+        }
+    }
+
+    int getSubscribers() {
+        return bridges.size();
+    }
+
+    QueryStatusObserver getQueryStatusObserver() {
+        return queryStatusObserver;
+    }
+
+    @Override
+    public void send(Bundle row) throws DataChannelError {
+        seal();
+        for (DataChannelToInputStream bridge : bridges) {
+            if (bridge.isClosed()) {
+                detach(bridge);
+                continue;
+            }
+            try {
+                bridge.send(row);
+            } catch (DataChannelError ex) {
+                log.warn("Dropping query output that is not being consumed: {}", ex.getMessage());
+                bridge.close();
+            }
+        }
+    }
+
+    @Override
+    public void send(List<Bundle> bundles) {
+        for (Bundle bundle : bundles) {
+            send(bundle);
+        }
+    }
+
+    @Override
+    public void sendComplete() {
+        seal();
+        for (DataChannelToInputStream bridge : bridges) {
+            bridge.sendComplete();
+        }
+    }
+
+    @Override
+    public void sourceError(DataChannelError er) {
+        seal();
+        for (DataChannelToInputStream bridge : bridges) {
+            try {
+                bridge.sourceError(er);
+            } catch (DataChannelError ex) {
+                log.warn("Unable to send source error: {}", ex.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public Bundle createBundle() {
+        return new ListBundle(format);
+    }
+
+    @Override
+    public BundleFormat getFormat() {
+        return format;
+    }
+}
@@ -23,8 +23,12 @@ import java.util.concurrent.TimeUnit;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.codec.CodecJSON;
 import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.QueryMemTracker;
+import com.addthis.hydra.data.query.QueryStatusObserver;
 import com.addthis.hydra.data.query.engine.QueryEngine;
 import com.addthis.hydra.data.query.QueryOpProcessor;
 
@@ -53,21 +57,30 @@ class SearchRunner implements Runnable {
     private final Map<String, String> options;
     private final String goldDirString;
     /**
-     * A reference to {@link com.addthis.hydra.data.query.source.DataChannelToInputStream}. Meshy has a reference to this object using
+     * A reference to {@link com.addthis.hydra.data.query.source.DataChannelToInputStream}, or to a {@link SearchFlight}
+     * that copies the rows to the bridges of identical queries. Meshy has a reference to each bridge using
      * the {@link com.addthis.bundle.channel.DataChannelOutput} interface and uses it to call {@link com.addthis.hydra.data.query.source.DataChannelToInputStream#nextBytes(long)}.
      */
-    private final DataChannelToInputStream bridge;
+    private final DataChannelOutput output;
+    private final QueryStatusObserver queryStatusObserver;
     private final long creationTime;
     private Query query;
     private QueryOpProcessor queryOpProcessor = null;
+    private QueryMemTracker memTracker = null;
     private QueryEngine finalEng = null;
 
     public SearchRunner(final Map<String, String> options, final String dirString,
             final DataChannelToInputStream bridge) throws Exception {
+        this(options, dirString, bridge, null);
+    }
+
+    public SearchRunner(final Map<String, String> options, final String dirString,
+            final DataChannelToInputStream bridge, final SearchFlight flight) throws Exception {
         // Get the canonical path and store it in the canonicalDirString. Typically, we will receive a gold path
         // here, which is a symlink.
         this.goldDirString = dirString;
-        this.bridge = bridge;
+        this.output = flight != null ? flight : bridge;
+        this.queryStatusObserver = flight != null ? flight.getQueryStatusObserver() : bridge.getQueryStatusObserver();
         this.options = options;
         this.creationTime = System.currentTimeMillis();
     }
@@ -90,11 +103,14 @@ class SearchRunner implements Runnable {
             reportError(ex);
         }
 
-        // Cleanup -- decrease query count, release our engine (if we had one)
+        // Cleanup -- decrease query count, release our memory reservation and engine (if we had them)
         //
         // Note that releasing our engine only decreases its open lease count.
         finally {
             MeshQuerySource.queryCount.dec();
+            if (memTracker != null) {
+                MeshQuerySource.queryMemManager.release(memTracker);
+            }
             if (finalEng != null) {
                 log.debug("Releasing engine: {}", finalEng);
                 finalEng.release();
@@ -116,20 +132,32 @@ class SearchRunner implements Runnable {
             queryOpProcessor.sourceError(error);
             queryOpProcessor.sendComplete();
         } else {
-            bridge.sourceError(error);
+            output.sourceError(error);
         }
     }
 
     /**
      * Part 1 - SETUP
-     * Initialize query run -- parse options, create Query object
+     * Initialize query run -- parse options, create Query object, wait for admission by the memory manager
      */
     protected void setup() throws Exception {
         long startTime = System.currentTimeMillis();
         MeshQuerySource.queueTimes.update(creationTime - startTime, TimeUnit.MILLISECONDS);
         query = CodecJSON.decodeString(new Query(), options.get("query"));
+        if (MeshQuerySource.queryMemManager != null) {
+            memTracker = MeshQuerySource.queryMemManager.allocateTracker(parsePriority(query));
+        }
         // Parse the query and return a reference to the last QueryOpProcessor.
-        queryOpProcessor = query.getProcessor(bridge, bridge.queryStatusObserver);
+        queryOpProcessor = query.getProcessor(output, queryStatusObserver, memTracker);
+    }
+
+    private static int parsePriority(Query query) {
+        String priority = query.getParameter("priority", "0");
+        try {
+            return Integer.parseInt(priority.trim());
+        } catch (NumberFormatException ex) {
+            throw new QueryException("query priority must be an integer: " + priority);
+        }
     }
 
     /**
@@ -169,7 +197,7 @@ class SearchRunner implements Runnable {
      */
     protected void search() {
         final long searchStartTime = System.currentTimeMillis();
-        finalEng.search(query, queryOpProcessor, bridge.getQueryStatusObserver());
+        finalEng.search(query, queryOpProcessor, queryStatusObserver);
         queryOpProcessor.sendComplete();
         final long searchDuration = System.currentTimeMillis() - searchStartTime;
         if (log.isDebugEnabled() || query.isTraced()) {
@@ -23,6 +23,7 @@ import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -455,7 +456,13 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
     public void updateParentData(DataTreeNodeUpdater state, DataTreeNode child, boolean isnew) {
         requireEditable();
         List<TreeNodeDataDeferredOperation> deferredOps = null;
-        lock.writeLock().lock();
+        Lock dataLock = lock.readLock();
+        dataLock.lock();
+        if (!concurrentParentUpdates()) {
+            dataLock.unlock();
+            dataLock = lock.writeLock();
+            dataLock.lock();
+        }
         try {
             if (child != null && data != null) {
                 deferredOps = new ArrayList<>(1);
@@ -469,7 +476,7 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
                 }
             }
         } finally {
-            lock.writeLock().unlock();
+            dataLock.unlock();
         }
         if (deferredOps != null) {
             for (TreeNodeDataDeferredOperation currentOp : deferredOps) {
@@ -478,6 +485,22 @@ public class ConcurrentTreeNode implements DataTreeNode, Codec.SuperCodable, Cod
         }
     }
 
+    /**
+     * @return true if every attachment of this node handles concurrent parent updates itself.
+     *         the caller must hold a lock since attachments are added under the write lock.
+     */
+    private boolean concurrentParentUpdates() {
+        if (data == null) {
+            return false;
+        }
+        for (TreeNodeData<?> tnd : data.values()) {
+            if (!tnd.concurrentParentUpdates()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // TODO concurrent broken -- data classes should be responsible for their
     // own get/update sync
     public DataTreeNodeActor getData(String key) {
@@ -69,6 +69,15 @@ public abstract class TreeNodeData<C extends TreeDataParameters<?>> implements C
         return false;
     }
 
+    /**
+     * override to return true if updateParentNewChild() and updateParentData() are safe to
+     * call from several threads at once, and encoding waits for them. when every attachment
+     * of a node says so the node runs parent updates under its read lock instead of its write lock.
+     */
+    public boolean concurrentParentUpdates() {
+        return false;
+    }
+
     /**
      * called from PathValue.processNodeUpdates() -> TreeNode.updateParentData() -> this.
      * override to muck with the parent node after a child is processed (processChild()).
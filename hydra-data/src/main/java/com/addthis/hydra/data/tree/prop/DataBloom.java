@@ -13,6 +13,11 @@
  */
 package com.addthis.hydra.data.tree.prop;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
 import java.util.List;
 
 import com.addthis.basis.util.Strings;
@@ -33,11 +38,13 @@ import com.addthis.bundle.value.ValueSimple;
 import com.addthis.bundle.value.ValueString;
 import com.addthis.bundle.value.ValueTranslationException;
 import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
 import com.addthis.hydra.data.tree.DataTreeNode;
 import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
 import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeNodeData;
 import com.addthis.hydra.data.tree.TreeNodeList;
+import com.addthis.hydra.store.util.SeenFilterBasic;
 
 import com.clearspring.analytics.stream.membership.BloomFilter;
 
@@ -102,27 +109,53 @@ public class DataBloom extends TreeNodeData<DataBloom.Config> implements Codec.S
         @Codec.Set(codable = true)
         private double error = 0.1D;
 
+        /**
+         * If true then use a blocked bloom filter that keeps the bits for
+         * each value in one cache line. Much faster for large filters at
+         * the cost of slightly more false positives. Default is false.
+         */
+        @Codec.Set(codable = true)
+        private boolean blocked;
+
         @Override
         public DataBloom newInstance() {
             DataBloom db = new DataBloom();
-            db.filter = new BloomFilter(max, error);
+            if (blocked) {
+                double ln2 = Math.log(2);
+                int bits = (int) Math.ceil(-max * Math.log(error) / (ln2 * ln2));
+                int bitsper = Math.max(1, (int) Math.round(ln2 * bits / max));
+                db.seen = new SeenFilterBasic<>(bits, bitsper, SeenFilterBasic.HASH_BLOCKED);
+            } else {
+                db.filter = new BloomFilter(max, error);
+            }
             return db;
         }
     }
 
+    /**
+     * blocked filters are stored behind this marker, which can not begin
+     * a serialized BloomFilter since that starts with its hash count.
+     */
+    private static final int BLOCKED_MARKER = -1;
+
     @Codec.Set(codable = true)
     private byte[] raw;
 
     private BloomFilter filter;
+    private SeenFilterBasic<String> seen;
     private BundleField keyAccess;
 
+    private boolean isPresent(String key) {
+        return seen != null ? seen.getSeen(key) : filter.isPresent(key);
+    }
+
     @Override
     public ValueObject getValue(String key) {
         if (key != null) {
 
             String keys[] = Strings.splitArray(key, "~");
             for (String k : keys) {
-                if (filter.isPresent(k)) {
+                if (isPresent(k)) {
                     return present;
                 }
             }
@@ -136,7 +169,7 @@ public class DataBloom extends TreeNodeData<DataBloom.Config> implements Codec.S
         String keys[] = Strings.splitArray(key, ",");
         TreeNodeList list = new TreeNodeList(keys.length);
         for (String k : keys) {
-            if (filter.isPresent(k)) {
+            if (isPresent(k)) {
                 DataTreeNode find = parent.getNode(k);
                 if (find != null) {
                     list.add(find);
@@ -154,20 +187,49 @@ public class DataBloom extends TreeNodeData<DataBloom.Config> implements Codec.S
         }
         String o = ValueUtil.asNativeString(p.getValue(keyAccess));
         if (o != null) {
-            filter.add(o);
+            if (seen != null) {
+                seen.setSeen(o);
+            } else {
+                filter.add(o);
+            }
             return true;
         }
         return false;
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void postDecode() {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+            if (raw.length >= 4 && in.readInt() == BLOCKED_MARKER) {
+                byte[] encoded = new byte[raw.length - 4];
+                in.readFully(encoded);
+                seen = (SeenFilterBasic<String>) CodecBin2.decodeBytes(new SeenFilterBasic<String>(), encoded);
+                return;
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
         filter = BloomFilter.deserialize(raw);
     }
 
     @Override
     public void preEncode() {
-        raw = BloomFilter.serialize(filter);
+        if (seen == null) {
+            raw = BloomFilter.serialize(filter);
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(BLOCKED_MARKER);
+            out.write(CodecBin2.encodeBytes(seen));
+            out.flush();
+            raw = bytes.toByteArray();
+        } catch (Exception ex) {
+            throw new RuntimeException(ex);
+        }
     }
 
 
@@ -217,7 +217,7 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
         raw = CountMinSketch.serialize(sketch);
     }
 
-    public static final class CMSValue implements ValueCustom, ValueNumber {
+    public static final class CMSValue implements SketchValue, ValueNumber {
 
         @Nonnull private CountMinSketch sketch;
 
@@ -317,16 +317,22 @@ public class DataCountMinSketch extends TreeNodeData<DataCountMinSketch.Config>
         }
 
         @Override
-        public ValueNumber sum(ValueNumber val) {
+        public SketchValue merge(SketchValue other) {
+            if (!(other instanceof CMSValue)) {
+                throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName() + " into a count-min sketch");
+            }
             try {
-                if (val instanceof CMSValue) {
-                    CountMinSketch other = ((CMSValue) val).sketch;
-                    return new CMSValue(sketch.merge(other));
-                }
+                return new CMSValue(CountMinSketch.merge(sketch, ((CMSValue) other).sketch), item);
             } catch (Exception e) {
-                throw new RuntimeException(e);
+                throw new IllegalArgumentException(e);
             }
+        }
 
+        @Override
+        public ValueNumber sum(ValueNumber val) {
+            if (val instanceof CMSValue) {
+                return (CMSValue) merge((CMSValue) val);
+            }
             return null;
         }
 
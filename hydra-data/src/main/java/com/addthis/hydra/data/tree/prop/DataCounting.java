@@ -359,7 +359,7 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
     }
 
 
-    public static final class LCValue implements ValueCustom, ValueNumber {
+    public static final class LCValue implements SketchValue, ValueNumber {
 
         public LCValue() {
         }
@@ -395,13 +395,21 @@ public class DataCounting extends TreeNodeData<DataCounting.Config> implements C
         }
 
         @Override
-        public ValueNumber sum(ValueNumber val) {
+        public SketchValue merge(SketchValue other) {
+            if (other.getClass() != LCValue.class) {
+                throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName() + " into a count");
+            }
             try {
-                if (val.getClass() == LCValue.class) {
-                    return new LCValue(lc.merge(((LCValue) val).lc));
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+                return new LCValue(lc.merge(((LCValue) other).lc));
+            } catch (CardinalityMergeException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public ValueNumber sum(ValueNumber val) {
+            if (val.getClass() == LCValue.class) {
+                return (LCValue) merge((LCValue) val);
             }
             return asLong().sum(val.asLong());
         }
@@ -32,7 +32,7 @@ import com.addthis.hydra.data.util.KeyHistogram;
 /**
  * keep a histogram of the counts of nodes with bucketed # of hits
  */
-public class DataHistogram extends TreeNodeData<DataHistogram.Config> implements Codec.Codable {
+public class DataHistogram extends TreeNodeData<DataHistogram.Config> implements Codec.SuperCodable {
 
     /**
      * This data attachment <span class="hydra-summary">keeps a histogram of the counts of child nodes</span>.
@@ -80,7 +80,7 @@ public class DataHistogram extends TreeNodeData<DataHistogram.Config> implements
         @Override
         public DataHistogram newInstance() {
             DataHistogram dt = new DataHistogram();
-            dt.histo = new KeyHistogram().setScale(scale).init();
+            dt.histo = KeyHistogram.create().setScale(scale);
             return dt;
         }
     }
@@ -88,6 +88,20 @@ public class DataHistogram extends TreeNodeData<DataHistogram.Config> implements
     @Codec.Set(codable = true)
     private KeyHistogram histo;
 
+    /**
+     * histograms read in the old boxed form are written back packed
+     */
+    @Override
+    public void postDecode() {
+        if (histo != null) {
+            histo = histo.packed();
+        }
+    }
+
+    @Override
+    public void preEncode() {
+    }
+
     @Override
     public boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode childNode, Config conf) {
         return false;
@@ -15,6 +15,7 @@ package com.addthis.hydra.data.tree.prop;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import com.addthis.bundle.value.ValueFactory;
@@ -27,11 +28,12 @@ import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeNodeData;
 import com.addthis.hydra.data.tree.TreeNodeDataDeferredOperation;
 import com.addthis.hydra.data.util.KeyTopper;
+import com.addthis.hydra.data.util.StripedUpdateBuffer;
 
 /**
  * TODO complete
  */
-public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> {
+public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> implements Codec.ConcurrentCodable {
 
     /**
      * This data attachment <span class="hydra-summary">limits child nodes to hot values</span>.
@@ -51,7 +53,7 @@ public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> {
         public DataLimitHot newInstance() {
             DataLimitHot dc = new DataLimitHot();
             dc.size = size;
-            dc.top = new KeyTopper().init();
+            dc.top = KeyTopper.create();
             dc.top.setLossy(true);
             dc.size = size;
             return dc;
@@ -65,6 +67,51 @@ public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> {
     @Codec.Set(codable = true)
     private KeyTopper top;
 
+    /* child counts from threads that found the top busy */
+    private final StripedUpdateBuffer<Long> updates = new StripedUpdateBuffer<>(StripedUpdateBuffer.MAX);
+    /* children pushed out by a drain outside of an update, removed by the next update */
+    private final List<String> dropped = new ArrayList<>();
+
+    @Override
+    public boolean concurrentParentUpdates() {
+        return true;
+    }
+
+    /**
+     * apply buffered counts. the caller must hold the update lock.
+     */
+    private void drainUpdates() {
+        Map<String, Long> drained = updates.drain();
+        if (drained != null) {
+            for (Map.Entry<String, Long> entry : drained.entrySet()) {
+                String drop = top.update(entry.getKey(), entry.getValue(), size);
+                if (drop != null) {
+                    dropped.add(drop);
+                }
+            }
+        }
+    }
+
+    /**
+     * hand children pushed out of the top to the tree for removal. the caller must hold the update lock.
+     */
+    private void deferDrops(DataTreeNode parentNode, List<TreeNodeDataDeferredOperation> deferredOps) {
+        for (String drop : dropped) {
+            deferredOps.add(new DataLimitHotDeferredOperation(parentNode, drop));
+        }
+        dropped.clear();
+    }
+
+    private Entry<String, Long>[] getSortedEntries() {
+        updates.lock();
+        try {
+            drainUpdates();
+            return top.getSortedEntries();
+        } finally {
+            updates.unlock();
+        }
+    }
+
     @Override
     public boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode tn, Config conf) {
         return false;
@@ -96,12 +143,25 @@ public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> {
             List<TreeNodeDataDeferredOperation> deferredOps) {
         try {
             String key = childNode.getName();
-            String dropped;
-            synchronized (top) {
-                dropped = top.update(key, childNode.getCounter(), size);
-            }
-            if (dropped != null) {
-                deferredOps.add(new DataLimitHotDeferredOperation(parentNode, dropped));
+            if (updates.tryLock()) {
+                try {
+                    drainUpdates();
+                    String drop = top.update(key, childNode.getCounter(), size);
+                    if (drop != null) {
+                        dropped.add(drop);
+                    }
+                    deferDrops(parentNode, deferredOps);
+                } finally {
+                    updates.unlock();
+                }
+            } else if (updates.add(key, childNode.getCounter())) {
+                updates.lock();
+                try {
+                    drainUpdates();
+                    deferDrops(parentNode, deferredOps);
+                } finally {
+                    updates.unlock();
+                }
             }
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -115,8 +175,7 @@ public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> {
             return null;
         }
         if (key.equals("hit") || key.equals("node")) {
-            KeyTopper map = top;
-            Entry<String, Long>[] top = map.getSortedEntries();
+            Entry<String, Long>[] top = getSortedEntries();
             ArrayList<DataTreeNode> ret = new ArrayList<>(top.length);
             for (Entry<String, Long> e : top) {
                 DataTreeNode node = parent.getNode(e.getKey());
@@ -126,14 +185,14 @@ public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> {
             }
             return ret;
         } else if (key.equals("vhit")) {
-            Entry<String, Long>[] list = top.getSortedEntries();
+            Entry<String, Long>[] list = getSortedEntries();
             ArrayList<DataTreeNode> ret = new ArrayList<>(list.length);
             for (Entry<String, Long> e : list) {
                 ret.add(new VirtualTreeNode(e.getKey(), e.getValue()));
             }
             return ret;
         } else if (key.equals("phit")) {
-            Entry<String, Long>[] list = top.getSortedEntries();
+            Entry<String, Long>[] list = getSortedEntries();
             ArrayList<DataTreeNode> ret = new ArrayList<>(list.length);
             for (Entry<String, Long> e : list) {
                 DataTreeNode node = parent.getNode(e.getKey());
@@ -151,4 +210,16 @@ public class DataLimitHot extends TreeNodeData<DataLimitHot.Config> {
     public ValueObject getValue(String key) {
         return ValueFactory.create(deleted);
     }
+
+    @Override
+    public boolean encodeLock() {
+        updates.lock();
+        drainUpdates();
+        return true;
+    }
+
+    @Override
+    public void encodeUnlock() {
+        updates.unlock();
+    }
 }
@@ -15,6 +15,7 @@ package com.addthis.hydra.data.tree.prop;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import com.addthis.bundle.value.ValueFactory;
@@ -27,12 +28,13 @@ import com.addthis.hydra.data.tree.TreeDataParameters;
 import com.addthis.hydra.data.tree.TreeNodeData;
 import com.addthis.hydra.data.tree.TreeNodeDataDeferredOperation;
 import com.addthis.hydra.data.util.KeyTopper;
+import com.addthis.hydra.data.util.StripedUpdateBuffer;
 
 import org.slf4j.Logger;
 
 
 import org.slf4j.LoggerFactory;
-public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements Codec.SuperCodable {
+public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements Codec.SuperCodable, Codec.ConcurrentCodable {
 
     private static final Logger log = LoggerFactory.getLogger(DataLimitTop.class);
 
@@ -68,7 +70,7 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
             DataLimitTop dc = new DataLimitTop();
             dc.size = size;
             dc.test = test;
-            dc.top = new KeyTopper().init().setLossy(true);
+            dc.top = KeyTopper.create().setLossy(true);
             return dc;
         }
     }
@@ -80,6 +82,36 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
     @Codec.Set(codable = true)
     private boolean test;
 
+    /* hits on existing children from threads that found the top busy */
+    private final StripedUpdateBuffer<Long> updates = new StripedUpdateBuffer<>(StripedUpdateBuffer.SUM);
+
+    @Override
+    public boolean concurrentParentUpdates() {
+        return true;
+    }
+
+    /**
+     * apply buffered hits. the caller must hold the update lock.
+     */
+    private void drainUpdates() {
+        Map<String, Long> drained = updates.drain();
+        if (drained != null) {
+            for (Map.Entry<String, Long> entry : drained.entrySet()) {
+                top.incrementExisting(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private Entry<String, Long>[] getSortedEntries() {
+        updates.lock();
+        try {
+            drainUpdates();
+            return top.getSortedEntries();
+        } finally {
+            updates.unlock();
+        }
+    }
+
     @Override
     public boolean updateChildData(DataTreeNodeUpdater state, DataTreeNode tn, Config conf) {
         return false;
@@ -96,9 +128,22 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
             }
             return false;
         }
-        synchronized (top) {
-            // will be a nullop if the offered key does not already exist in the top
-            top.incrementExisting(offer);
+        // will be a nullop if the offered key does not already exist in the top.
+        // a hit cannot evict anything so it can wait in the buffer if the top is busy
+        if (updates.tryLock()) {
+            try {
+                drainUpdates();
+                top.incrementExisting(offer);
+            } finally {
+                updates.unlock();
+            }
+        } else if (updates.add(offer, 1L)) {
+            updates.lock();
+            try {
+                drainUpdates();
+            } finally {
+                updates.unlock();
+            }
         }
         return true;
 
@@ -148,16 +193,22 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
             return false;
         }
         String dropped;
-        synchronized (top) {
+        int topSize;
+        updates.lock();
+        try {
+            drainUpdates();
             // this increment will create the node in the top if it doesn't
             // already exist with a starting count
             // equal to the minValue in the top + 1. If this put forces
             // something out of the top that value
             // will be returned so we can remove it from the tree
             dropped = top.increment(offer, size);
+            topSize = top.size();
+        } finally {
+            updates.unlock();
         }
         if (test && log.isDebugEnabled()) {
-            log.debug("UPD " + parentNode + " offer=" + offer + " drop=" + dropped + " size=" + top.size());
+            log.debug("UPD " + parentNode + " offer=" + offer + " drop=" + dropped + " size=" + topSize);
         }
         if (dropped != null) {
             if (offer.equals(dropped)) {
@@ -172,19 +223,20 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
     @Override
     public ValueObject getValue(String key) {
         if (key != null && key.length() > 0) {
+            Entry<String, Long>[] entries = getSortedEntries();
             if (key.equals("size")) {
-                return ValueFactory.create(top.size());
+                return ValueFactory.create(entries.length);
             }
             try {
                 if (key.charAt(0) == 'v') {
                     int pos = Integer.parseInt(key.substring(1));
-                    return pos <= top.size() ? ValueFactory.create(top.getSortedEntries()[pos - 1].getValue()) : null;
+                    return pos <= entries.length ? ValueFactory.create(entries[pos - 1].getValue()) : null;
                 }
                 if (key.charAt(0) == 'k') {
                     key = key.substring(1);
                 }
                 int pos = Integer.parseInt(key);
-                return pos <= top.size() ? ValueFactory.create(top.getSortedEntries()[pos - 1].getKey()) : null;
+                return pos <= entries.length ? ValueFactory.create(entries[pos - 1].getKey()) : null;
             } catch (Exception e) {
                 return ValueFactory.create(e.toString());
             }
@@ -198,8 +250,7 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
             return null;
         }
         if (key.equals("hit") || key.equals("node")) {
-            KeyTopper map = top;
-            Entry<String, Long>[] top = map.getSortedEntries();
+            Entry<String, Long>[] top = getSortedEntries();
             ArrayList<DataTreeNode> ret = new ArrayList<DataTreeNode>(top.length);
             for (Entry<String, Long> e : top) {
                 DataTreeNode node = parent.getNode(e.getKey());
@@ -209,14 +260,14 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
             }
             return ret;
         } else if (key.equals("vhit")) {
-            Entry<String, Long>[] list = top.getSortedEntries();
+            Entry<String, Long>[] list = getSortedEntries();
             ArrayList<DataTreeNode> ret = new ArrayList<DataTreeNode>(list.length);
             for (Entry<String, Long> e : list) {
                 ret.add(new VirtualTreeNode(e.getKey(), e.getValue()));
             }
             return ret;
         } else if (key.equals("phit")) {
-            Entry<String, Long>[] list = top.getSortedEntries();
+            Entry<String, Long>[] list = getSortedEntries();
             ArrayList<DataTreeNode> ret = new ArrayList<DataTreeNode>(list.length);
             for (Entry<String, Long> e : list) {
                 DataTreeNode node = parent.getNode(e.getKey());
@@ -230,6 +281,18 @@ public class DataLimitTop extends TreeNodeData<DataLimitTop.Config> implements C
         return null;
     }
 
+    @Override
+    public boolean encodeLock() {
+        updates.lock();
+        drainUpdates();
+        return true;
+    }
+
+    @Override
+    public void encodeUnlock() {
+        updates.unlock();
+    }
+
     @Override
     public void postDecode() {
         // log.warn("deserialized "+this+" with "+top.size()+" elements --> "+top);
@@ -100,6 +100,7 @@ public class DataSeen extends TreeNodeData<DataSeen.Config> implements Codec.Sup
          * <p>2 - HASH_HASHCODE_LONG_REV : mostly bad
          * <p>3 - HASH_MD5 :  marginally better accuracy, much slower
          * <p>4 - HASH_PLUGGABLE_SHIFT : best blend of speed and accuracy
+         * <p>5 - HASH_BLOCKED : fastest for large filters, slightly less accurate
          * <p>Default value is 4.
          */
         @Codec.Set(codable = true)
@@ -162,7 +163,7 @@ public class DataSeen extends TreeNodeData<DataSeen.Config> implements Codec.Sup
     /**
      * for working with bloom filters
      */
-    public static final class ValueBloom implements ValueCustom, ValueNumber {
+    public static final class ValueBloom implements SketchValue, ValueNumber {
 
         private SeenFilterBasic<?> bloom;
 
@@ -214,11 +215,18 @@ public class DataSeen extends TreeNodeData<DataSeen.Config> implements Codec.Sup
             return this;
         }
 
+        @Override
+        public SketchValue merge(SketchValue other) {
+            if (other.getClass() != getClass()) {
+                throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName() + " into a bloom");
+            }
+            return new ValueBloom(((ValueBloom) other).bloom.mergeSeen(bloom));
+        }
+
         @Override
         public ValueNumber sum(ValueNumber val) {
             if (val.getClass() == getClass()) {
-                ValueBloom b = (ValueBloom) val;
-                return new ValueBloom(b.bloom.mergeSeen(bloom));
+                return (ValueBloom) merge((ValueBloom) val);
             }
             return this;
         }
@@ -177,9 +177,9 @@ public class DataTDigest extends TreeNodeData<DataTDigest.Config> implements Cod
         }
     }
 
-    public static final class TDigestValue implements ValueCustom, ValueNumber {
+    public static final class TDigestValue implements SketchValue, ValueNumber {
 
-        enum OP {CDF, QUANTILE}
+        public enum OP {CDF, QUANTILE}
 
         ;
         private TDigest tdigest;
@@ -273,10 +273,18 @@ public class DataTDigest extends TreeNodeData<DataTDigest.Config> implements Cod
             return asDouble();
         }
 
+        @Override
+        public SketchValue merge(SketchValue other) {
+            if (TDigestValue.class != other.getClass()) {
+                throw new IllegalArgumentException("cannot merge " + other.getClass().getSimpleName() + " into a tdigest");
+            }
+            return new TDigestValue(TDigest.merge(tdigest.compression(), Arrays.asList(tdigest, ((TDigestValue) other).tdigest)), op, quantile);
+        }
+
         @Override
         public ValueNumber sum(ValueNumber valueNumber) {
             if (TDigestValue.class == valueNumber.getClass()) {
-                return new TDigestValue(TDigest.merge(tdigest.compression(), Arrays.asList(((TDigestValue) valueNumber).tdigest)), op, quantile);
+                return (TDigestValue) merge((TDigestValue) valueNumber);
             }
             return asLong().sum(valueNumber.asLong());
         }
@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.prop;
+
+import com.addthis.bundle.value.ValueCustom;
+
+/**
+ * A custom value that carries a whole sketch from a data attachment, such as
+ * a cardinality estimator or a t-digest, so that results from many nodes or
+ * tasks can be combined before an estimate is taken. Summing the estimates
+ * instead is wrong for most sketches. {@link #asSimple()} returns the estimate
+ * that was asked for when the value was read from the attachment.
+ */
+public interface SketchValue extends ValueCustom {
+
+    /**
+     * @param other a sketch of the same class with compatible parameters
+     * @return a new value for the union of both sketches, leaving both unchanged
+     * @throws IllegalArgumentException if the sketches can not be merged
+     */
+    public SketchValue merge(SketchValue other);
+}
@@ -34,7 +34,7 @@ public class FindChangePoints implements Codec.Codable {
      * @param min_height The minimum height to consider
      * @return A list of pairs of integers of the form (index, size)
      */
-    public static List<ChangePoint> findHighPoints(Long[] data, int max_width, int min_height) {
+    public static List<ChangePoint> findHighPoints(long[] data, int max_width, int min_height) {
         List<ChangePoint> rv = new ArrayList<ChangePoint>();
         int currIndex = 0;
         long currHt = data[0];
@@ -72,19 +72,18 @@ public class FindChangePoints implements Codec.Codable {
      * @param data The array of integers in which to search
      * @return A list of pairs of integers of the form (index, size)
      */
-    public static List<ChangePoint> findSignificantPoints(Long[] data, int minChange, double minRatio, double minZScore, int inactiveThreshold, int windowSize) {
+    public static List<ChangePoint> findSignificantPoints(long[] data, int minChange, double minRatio, double minZScore, int inactiveThreshold, int windowSize) {
         List<ChangePoint> rv = new ArrayList<ChangePoint>();
         rv.addAll(findAndSmoothOverPeaks(data, minChange, minZScore, windowSize));
         rv.addAll(findChangePoints(data, minChange, minRatio, minZScore, inactiveThreshold, windowSize));
         return rv;
     }
 
-    private static List<ChangePoint> findChangePoints(Long[] data, int minChange, double minRatio, double minZScore, int inactiveThreshold, int windowSize) {
-        List<Long> dataList = Arrays.asList(data);
+    private static List<ChangePoint> findChangePoints(long[] data, int minChange, double minRatio, double minZScore, int inactiveThreshold, int windowSize) {
         ArrayList<ChangePoint> rvList = new ArrayList<ChangePoint>();
         for (int i = 2; i < data.length; i++) {
             int startIndex = Math.max(i - windowSize + 1, 0);
-            Long[] currSlice = dataList.subList(startIndex, i).toArray(new Long[]{});
+            long[] currSlice = Arrays.copyOfRange(data, startIndex, i);
             long nextValue = data[i];
             double predicted = linearPredictNext(currSlice);
             double diff = nextValue - predicted;
@@ -106,13 +105,13 @@ public class FindChangePoints implements Codec.Codable {
         }
     }
 
-    private static List<ChangePoint> findAndSmoothOverPeaks(Long[] data, int minChange, double minZscore, int width) {
+    private static List<ChangePoint> findAndSmoothOverPeaks(long[] data, int minChange, double minZscore, int width) {
         ArrayList<ChangePoint> rvList = new ArrayList<ChangePoint>();
         for (int i = 0; i < data.length; i++) {
             int leftEndpoint = Math.max(0, i - width);
             int rightEndpoint = Math.min(i + width, data.length);
-            Long[] neighborhood = Arrays.copyOfRange(data, leftEndpoint, rightEndpoint);
-            Long[] neighborhoodWithout = (Long[]) ArrayUtils.addAll(Arrays.copyOfRange(data, leftEndpoint, i), Arrays.copyOfRange(data, i + 1, rightEndpoint));
+            long[] neighborhood = Arrays.copyOfRange(data, leftEndpoint, rightEndpoint);
+            long[] neighborhoodWithout = ArrayUtils.addAll(Arrays.copyOfRange(data, leftEndpoint, i), Arrays.copyOfRange(data, i + 1, rightEndpoint));
             if (sd(neighborhood) > minZscore * sd(neighborhoodWithout)) {
                 double change = data[i] - mean(neighborhoodWithout);
                 if (Math.abs(change) > minChange) {
@@ -124,19 +123,19 @@ public class FindChangePoints implements Codec.Codable {
         return rvList;
     }
 
-    private static int sum(Long[] longs) {
-        int rv = 0;
-        for (Long z : longs) {
+    private static long sum(long[] longs) {
+        long rv = 0;
+        for (long z : longs) {
             rv += z;
         }
         return rv;
     }
 
-    public static double mean(Long[] longs) {
+    public static double mean(long[] longs) {
         return (double) (sum(longs)) / longs.length;
     }
 
-    private static double sd(Long[] longs) {
+    private static double sd(long[] longs) {
         double mean = mean(longs);
         double sumSquareResiduals = 0;
         for (long z : longs) {
@@ -145,12 +144,12 @@ public class FindChangePoints implements Codec.Codable {
         return Math.max(Math.sqrt(sumSquareResiduals), .0001);
     }
 
-    private static double linearPredictNext(Long[] ints) {
+    private static double linearPredictNext(long[] ints) {
         double slope;
         double intercept;
         int len = ints.length;
-        Long[] xx = new Long[len];
-        Long[] xy = new Long[len];
+        long[] xx = new long[len];
+        long[] xy = new long[len];
         for (int i = 0; i < len; i++) {
             xx[i] = (long) (i * i);
             xy[i] = i * ints[i];
@@ -26,17 +26,46 @@ import com.addthis.codec.Codec;
  * value bucket.  buckets are configurable as
  * powers of N (from the scale setting).
  * <p/>
+ * the buckets are kept in a primitive map. this class
+ * encodes them as a boxed map, the form histograms had
+ * before they were primitive, and {@link PackedKeyHistogram}
+ * encodes them as varints under its own class tag. new
+ * histograms should come from {@link #create()}.
+ * <p/>
  * TODO store # of things in each bucket as well as total of key values in each bucket
  */
-public class KeyHistogram implements Codec.SuperCodable {
+@Codec.Set(classMapFactory = KeyHistogram.CMAP.class)
+public class KeyHistogram implements Codec.SuperCodable, Codec.ConcurrentCodable {
+
+    private static final Codec.ClassMap cmap = new Codec.ClassMap();
+
+    public static class CMAP implements Codec.ClassMapFactory {
+
+        public Codec.ClassMap getClassMap() {
+            return cmap;
+        }
+    }
+
+    static {
+        cmap.add("packed", PackedKeyHistogram.class);
+    }
+
+    /**
+     * @return an initialized histogram that is encoded in the packed form
+     */
+    public static KeyHistogram create() {
+        return new PackedKeyHistogram().init();
+    }
 
     @Codec.Set(codable = true)
     private HashMap<Long, Long> map;
     @Codec.Set(codable = true)
     private int scale = 10;
 
+    LongLongHashMap buckets;
+
     public KeyHistogram init() {
-        map = new HashMap<Long, Long>();
+        buckets = new LongLongHashMap();
         return this;
     }
 
@@ -48,16 +77,36 @@ public class KeyHistogram implements Codec.SuperCodable {
         return this;
     }
 
+    /**
+     * @return a copy of the histogram
+     */
     public Map<Long, Long> getHistogram() {
-        return map;
+        return copyInto(new HashMap<Long, Long>());
     }
 
     public Map<Long, Long> getSortedHistogram() {
-        TreeMap<Long, Long> sort = new TreeMap<Long, Long>();
-        for (Entry<Long, Long> e : map.entrySet()) {
-            sort.put(e.getKey(), e.getValue());
+        return copyInto(new TreeMap<Long, Long>());
+    }
+
+    /**
+     * @return this histogram if it is encoded in the packed form,
+     *         otherwise a packed histogram sharing its buckets
+     */
+    public KeyHistogram packed() {
+        if (this instanceof PackedKeyHistogram) {
+            return this;
+        }
+        KeyHistogram packed = new PackedKeyHistogram();
+        packed.scale = scale;
+        packed.buckets = buckets;
+        return packed;
+    }
+
+    private <M extends Map<Long, Long>> M copyInto(M copy) {
+        for (long bucket : buckets.keys()) {
+            copy.put(bucket, buckets.get(bucket, 0));
         }
-        return sort;
+        return copy;
     }
 
     public boolean incrementFrom(long from) {
@@ -94,23 +143,12 @@ public class KeyHistogram implements Codec.SuperCodable {
     }
 
     private void decFrom(long bucketFrom) {
-        Long val = Long.valueOf(bucketFrom);
-        Long dec = map.get(val);
-        if (dec == null || dec == 0) {
-            map.put(val, 0L);
-        } else {
-            map.put(val, dec - 1);
-        }
+        long dec = buckets.get(bucketFrom, 0);
+        buckets.put(bucketFrom, dec == 0 ? 0 : dec - 1);
     }
 
     private void incTo(long bucketTo) {
-        Long val = Long.valueOf(bucketTo);
-        Long inc = map.get(val);
-        if (inc == null) {
-            map.put(val, 1L);
-        } else {
-            map.put(val, inc + 1);
-        }
+        buckets.addTo(bucketTo, 1);
     }
 
     private long getBucket(long val) {
@@ -125,12 +163,30 @@ public class KeyHistogram implements Codec.SuperCodable {
 
     @Override
     public void postDecode() {
-        if (map == null) {
-            init();
+        init();
+        if (map != null) {
+            for (Entry<Long, Long> e : map.entrySet()) {
+                buckets.put(e.getKey(), e.getValue());
+            }
+            map = null;
         }
     }
 
     @Override
     public void preEncode() {
+        map = copyInto(new HashMap<Long, Long>(buckets.size() * 2));
+    }
+
+    @Override
+    public boolean encodeLock() {
+        return true;
+    }
+
+    /**
+     * encoding is done so the boxed copy is no longer needed
+     */
+    @Override
+    public void encodeUnlock() {
+        map = null;
     }
 }
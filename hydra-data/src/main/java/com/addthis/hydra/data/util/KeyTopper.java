@@ -18,19 +18,51 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 
+import com.addthis.basis.util.Parameter;
+
 import com.addthis.codec.Codec;
 
 
 /**
  * Class that helps maintain a top N list for any String Map TODO should move
  * into basis libraries
+ * <p/>
+ * This implementation rescans its map for the new minimum whenever the
+ * minimum is evicted or updated. {@link StreamSummary} keeps the same
+ * counts in a bucket list instead and is encoded with its own class tag,
+ * so toppers of either kind can be read back from existing trees.
  */
-public final class KeyTopper implements Codec.Codable {
+@Codec.Set(classMapFactory = KeyTopper.CMAP.class)
+public class KeyTopper implements Codec.SuperCodable {
+
+    /* 0 creates map backed toppers, 1 creates stream summaries */
+    private static final int version = Parameter.intValue("hydra.keytopper.version", 1);
+
+    private static final Codec.ClassMap cmap = new Codec.ClassMap();
+
+    public static class CMAP implements Codec.ClassMapFactory {
+
+        public Codec.ClassMap getClassMap() {
+            return cmap;
+        }
+    }
+
+    static {
+        cmap.add("summary", StreamSummary.class);
+    }
 
     public KeyTopper() {
     }
 
-    @Codec.Set(codable = true, required = true)
+    /**
+     * @return an initialized topper of the configured version
+     */
+    public static KeyTopper create() {
+        return version >= 1 ? new StreamSummary().init() : new KeyTopper().init();
+    }
+
+    /* not required since a stream summary leaves it empty */
+    @Codec.Set(codable = true)
     private HashMap<String, Long> map;
     @Codec.Set(codable = true)
     private long minVal;
@@ -66,6 +98,14 @@ public final class KeyTopper implements Codec.Codable {
         return map.get(key);
     }
 
+    /**
+     * @return how much of the count of key may belong to keys it displaced,
+     *         which this implementation does not track
+     */
+    public long getError(String key) {
+        return 0;
+    }
+
     /**
      * returns the list sorted by greatest to least count.
      */
@@ -155,6 +195,19 @@ public final class KeyTopper implements Codec.Codable {
         return false;
     }
 
+    /**
+     * Adds weight to the count for 'ID' if it already exists in the map.
+     *
+     * @return whether the element was in the map
+     */
+    public boolean incrementExisting(String id, long weight) {
+        if (map.containsKey(id)) {
+            map.put(id, get(id) + weight);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Adds 'ID' the top N if: 1) there are more empty slots or 2) count >
      * smallest top count in the list
@@ -204,4 +257,12 @@ public final class KeyTopper implements Codec.Codable {
         }
         return removed;
     }
+
+    @Override
+    public void postDecode() {
+    }
+
+    @Override
+    public void preEncode() {
+    }
 }
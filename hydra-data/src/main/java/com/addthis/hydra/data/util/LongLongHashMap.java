@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from long keys to long values kept in two primitive arrays.
+ * Open addressing with linear probing, so lookups and updates neither box
+ * nor allocate. There is no remove, which none of the users need.
+ * <p/>
+ * A zero in the key array marks an empty slot, so the value of the
+ * zero key is kept in a field of its own.
+ */
+public class LongLongHashMap {
+
+    private static final long PHI = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    private long[] values;
+    private int shift;
+    private int used;
+    private boolean hasZero;
+    private long zeroValue;
+
+    public LongLongHashMap() {
+        this(8);
+    }
+
+    public LongLongHashMap(int expected) {
+        int capacity = 4;
+        while (capacity * 3 / 4 < expected) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) ((key * PHI) >>> shift);
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int size() {
+        return hasZero ? used + 1 : used;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZero;
+        }
+        return keys[slot(key)] != 0;
+    }
+
+    /**
+     * @return the value for key or missing if there is none
+     */
+    public long get(long key, long missing) {
+        if (key == 0) {
+            return hasZero ? zeroValue : missing;
+        }
+        int slot = slot(key);
+        return keys[slot] != 0 ? values[slot] : missing;
+    }
+
+    public void put(long key, long value) {
+        if (key == 0) {
+            hasZero = true;
+            zeroValue = value;
+            return;
+        }
+        int slot = slot(key);
+        values[slot] = value;
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            if (++used > keys.length * 3 / 4) {
+                rehash(keys.length << 1);
+            }
+        }
+    }
+
+    /**
+     * Add delta to the value for key, which is zero if there is none.
+     *
+     * @return the new value
+     */
+    public long addTo(long key, long delta) {
+        long value = get(key, 0) + delta;
+        put(key, value);
+        return value;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @return the keys in no particular order
+     */
+    public long[] keys() {
+        long[] result = new long[size()];
+        int pos = 0;
+        if (hasZero) {
+            result[pos++] = 0;
+        }
+        for (long key : keys) {
+            if (key != 0) {
+                result[pos++] = key;
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, 0);
+        used = 0;
+        hasZero = false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (long key : keys()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(key).append('=').append(get(key, 0));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A map from long keys to long values kept in key order in two primitive
+ * arrays. Lookups are a binary search and entries can be read by their
+ * position in key order.
+ * <p/>
+ * The free space of the arrays is a gap that stays where the last insert
+ * happened, so a run of inserts at the same place only moves the entries
+ * between the old and the new position of the gap. Keys that arrive in
+ * order, such as time buckets, are appended without moving anything.
+ */
+public class LongLongSortedMap {
+
+    private long[] keys;
+    private long[] values;
+    private int gapStart;
+    private int gapEnd;
+
+    public LongLongSortedMap() {
+        this(8);
+    }
+
+    public LongLongSortedMap(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        gapEnd = capacity;
+    }
+
+    public int size() {
+        return keys.length - (gapEnd - gapStart);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    private int physical(int index) {
+        return index < gapStart ? index : index + (gapEnd - gapStart);
+    }
+
+    /**
+     * @return the position of key in key order, or (-(insertion point) - 1) if it is missing
+     */
+    public int indexOf(long key) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = keys[physical(mid)];
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public long keyAt(int index) {
+        checkIndex(index);
+        return keys[physical(index)];
+    }
+
+    public long valueAt(int index) {
+        checkIndex(index);
+        return values[physical(index)];
+    }
+
+    public void setValueAt(int index, long value) {
+        checkIndex(index);
+        values[physical(index)] = value;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + size());
+        }
+    }
+
+    public long firstKey() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return keyAt(0);
+    }
+
+    public long lastKey() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return keyAt(size() - 1);
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the value for key or missing if there is none
+     */
+    public long get(long key, long missing) {
+        int index = indexOf(key);
+        return index >= 0 ? values[physical(index)] : missing;
+    }
+
+    public void put(long key, long value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            values[physical(index)] = value;
+        } else {
+            insert(-index - 1, key, value);
+        }
+    }
+
+    /**
+     * Add delta to the value for key, which is zero if there is none.
+     *
+     * @return the new value
+     */
+    public long addTo(long key, long delta) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            return values[physical(index)] += delta;
+        }
+        insert(-index - 1, key, delta);
+        return delta;
+    }
+
+    private void insert(int index, long key, long value) {
+        if (gapStart == gapEnd) {
+            grow();
+        }
+        moveGap(index);
+        keys[gapStart] = key;
+        values[gapStart] = value;
+        gapStart++;
+    }
+
+    private void moveGap(int index) {
+        if (index < gapStart) {
+            int count = gapStart - index;
+            System.arraycopy(keys, index, keys, gapEnd - count, count);
+            System.arraycopy(values, index, values, gapEnd - count, count);
+            gapStart -= count;
+            gapEnd -= count;
+        } else if (index > gapStart) {
+            int count = index - gapStart;
+            System.arraycopy(keys, gapEnd, keys, gapStart, count);
+            System.arraycopy(values, gapEnd, values, gapStart, count);
+            gapStart += count;
+            gapEnd += count;
+        }
+    }
+
+    private void grow() {
+        int capacity = Math.max(8, keys.length * 2);
+        int tail = keys.length - gapEnd;
+        long[] newKeys = new long[capacity];
+        long[] newValues = new long[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, gapStart);
+        System.arraycopy(values, 0, newValues, 0, gapStart);
+        System.arraycopy(keys, gapEnd, newKeys, capacity - tail, tail);
+        System.arraycopy(values, gapEnd, newValues, capacity - tail, tail);
+        keys = newKeys;
+        values = newValues;
+        gapEnd = capacity - tail;
+    }
+
+    /**
+     * @return a copy of the keys in key order
+     */
+    public long[] keys() {
+        return copy(keys);
+    }
+
+    /**
+     * @return a copy of the values in key order
+     */
+    public long[] values() {
+        return copy(values);
+    }
+
+    private long[] copy(long[] array) {
+        long[] result = new long[size()];
+        System.arraycopy(array, 0, result, 0, gapStart);
+        System.arraycopy(array, gapEnd, result, gapStart, array.length - gapEnd);
+        return result;
+    }
+
+    public void clear() {
+        gapStart = 0;
+        gapEnd = keys.length;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(keyAt(i)).append('=').append(valueAt(i));
+        }
+        return sb.append('}').toString();
+    }
+}
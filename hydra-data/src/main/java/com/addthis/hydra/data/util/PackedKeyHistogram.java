@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.Arrays;
+
+import com.addthis.codec.Codec;
+
+/**
+ * A {@link KeyHistogram} that encodes its buckets as varints in a byte
+ * array rather than as a map of boxed longs.
+ */
+public final class PackedKeyHistogram extends KeyHistogram {
+
+    @Codec.Set(codable = true)
+    private byte[] raw;
+
+    @Override
+    public PackedKeyHistogram init() {
+        super.init();
+        return this;
+    }
+
+    @Override
+    public void postDecode() {
+        super.postDecode();
+        if (raw != null) {
+            long[][] pairs = PackedLongPairs.decode(raw);
+            for (int i = 0; i < pairs[0].length; i++) {
+                buckets.put(pairs[0][i], pairs[1][i]);
+            }
+            raw = null;
+        }
+    }
+
+    @Override
+    public void preEncode() {
+        long[] keys = buckets.keys();
+        Arrays.sort(keys);
+        long[] counts = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            counts[i] = buckets.get(keys[i], 0);
+        }
+        raw = PackedLongPairs.encode(keys, counts);
+    }
+
+    @Override
+    public void encodeUnlock() {
+        raw = null;
+    }
+}
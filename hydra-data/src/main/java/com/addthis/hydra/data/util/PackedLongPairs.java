@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.addthis.basis.util.Bytes;
+
+/**
+ * Encodes pairs of longs sorted by key as varints. Each key after the
+ * first is written as its distance from the one before, and the first
+ * key and every value are zigzag encoded so negative numbers stay small.
+ */
+final class PackedLongPairs {
+
+    private PackedLongPairs() {
+    }
+
+    /**
+     * @param keys   in ascending order
+     * @param values the value of each key
+     */
+    static byte[] encode(long[] keys, long[] values) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(keys.length * 3 + 4);
+            Bytes.writeLength(keys.length, out);
+            for (int i = 0; i < keys.length; i++) {
+                Bytes.writeLength(i == 0 ? zigzag(keys[0]) : keys[i] - keys[i - 1], out);
+                Bytes.writeLength(zigzag(values[i]), out);
+            }
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * @return the keys followed by their values
+     */
+    static long[][] decode(byte[] raw) {
+        try {
+            ByteArrayInputStream in = new ByteArrayInputStream(raw);
+            int size = (int) Bytes.readLength(in);
+            long[] keys = new long[size];
+            long[] values = new long[size];
+            for (int i = 0; i < size; i++) {
+                long key = Bytes.readLength(in);
+                keys[i] = i == 0 ? unzigzag(key) : keys[i - 1] + key;
+                values[i] = unzigzag(Bytes.readLength(in));
+            }
+            return new long[][]{keys, values};
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
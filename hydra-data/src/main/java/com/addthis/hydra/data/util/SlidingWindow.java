@@ -13,16 +13,20 @@
  */
 package com.addthis.hydra.data.util;
 
-import java.util.LinkedList;
-
-@SuppressWarnings("serial")
-public class SlidingWindow extends LinkedList<Long> {
+/**
+ * The sum, minimum and maximum of the most recently appended values,
+ * kept in a ring buffer of primitive longs. The window holds the last
+ * {@code size - 1} values.
+ */
+public class SlidingWindow {
 
     public SlidingWindow(int size) {
-        max = size;
+        window = new long[Math.max(size - 1, 0)];
     }
 
-    private final int max;
+    private final long[] window;
+    private int head;
+    private int count;
     private long sum;
 
     public synchronized long syncAppend(long value) {
@@ -30,22 +34,46 @@ public class SlidingWindow extends LinkedList<Long> {
     }
 
     public long append(long value) {
-        addLast(value);
-        sum += value;
-        if (size() >= max) {
-            sum -= removeFirst();
+        if (window.length == 0) {
+            return sum;
         }
+        if (count == window.length) {
+            sum -= window[head];
+            window[head] = value;
+            head = (head + 1) % window.length;
+        } else {
+            window[(head + count) % window.length] = value;
+            count++;
+        }
+        sum += value;
         return sum;
     }
 
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the value at index, where zero is the oldest value in the window
+     */
+    public long get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + " size " + count);
+        }
+        return window[(head + index) % window.length];
+    }
+
     public synchronized long syncMin() {
         return min();
     }
 
     public long min() {
-        long min = peek();
-        for (long v : this) {
-            min = Math.min(min, v);
+        if (count == 0) {
+            return 0;
+        }
+        long min = window[head];
+        for (int i = 1; i < count; i++) {
+            min = Math.min(min, get(i));
         }
         return min;
     }
@@ -55,12 +83,12 @@ public class SlidingWindow extends LinkedList<Long> {
     }
 
     public long max() {
-        Long max = peek();
-        if (max == null) {
+        if (count == 0) {
             return 0;
         }
-        for (long v : this) {
-            max = Math.max(max, v);
+        long max = window[head];
+        for (int i = 1; i < count; i++) {
+            max = Math.max(max, get(i));
         }
         return max;
     }
@@ -70,6 +98,6 @@ public class SlidingWindow extends LinkedList<Long> {
     }
 
     public long average() {
-        return size() > 0 ? sum / size() : 0;
+        return count > 0 ? sum / count : 0;
     }
 }
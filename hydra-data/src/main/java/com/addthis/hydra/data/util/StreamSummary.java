@@ -0,0 +1,402 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.addthis.basis.util.Bytes;
+
+import com.addthis.codec.Codec;
+
+/**
+ * A top N list kept as a Space-Saving stream summary. Keys are grouped
+ * into buckets of equal count and the buckets are linked in count order,
+ * so the minimum is always the first bucket and a unit increment moves
+ * a key at most one bucket. Increments and evictions are constant time
+ * rather than a scan of every key.
+ * <p/>
+ * Counts follow the same rules as {@link KeyTopper}. A key that enters
+ * a full lossy topper inherits the count of the key it displaces, and
+ * that inherited amount is kept as the error of the new key.
+ */
+public final class StreamSummary extends KeyTopper {
+
+    private static final class Bucket {
+
+        final long count;
+        Bucket prev;
+        Bucket next;
+        Counter head;
+        Counter tail;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+    }
+
+    private static final class Counter {
+
+        final String key;
+        final long error;
+        Bucket bucket;
+        Counter prev;
+        Counter next;
+
+        Counter(String key, long error) {
+            this.key = key;
+            this.error = error;
+        }
+    }
+
+    @Codec.Set(codable = true)
+    private byte[] raw;
+
+    private HashMap<String, Counter> index = new HashMap<>();
+    private Bucket min;
+    private Bucket max;
+
+    public StreamSummary() {
+    }
+
+    @Override
+    public StreamSummary init() {
+        index = new HashMap<>();
+        min = null;
+        max = null;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("summary(");
+        for (Bucket bucket = max; bucket != null; bucket = bucket.prev) {
+            for (Counter counter = bucket.head; counter != null; counter = counter.next) {
+                if (sb.length() > 8) {
+                    sb.append(',');
+                }
+                sb.append(counter.key).append('=').append(bucket.count);
+            }
+        }
+        return sb.append(",lossy:").append(isLossy()).append(')').toString();
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Long get(String key) {
+        Counter counter = index.get(key);
+        return counter != null ? counter.bucket.count : null;
+    }
+
+    @Override
+    public long getError(String key) {
+        Counter counter = index.get(key);
+        return counter != null ? counter.error : 0;
+    }
+
+    /**
+     * returns the list sorted by greatest to least count.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map.Entry<String, Long>[] getSortedEntries() {
+        Map.Entry<String, Long>[] entries = new Map.Entry[index.size()];
+        int pos = 0;
+        for (Bucket bucket = max; bucket != null; bucket = bucket.prev) {
+            for (Counter counter = bucket.head; counter != null; counter = counter.next) {
+                entries[pos++] = new AbstractMap.SimpleImmutableEntry<>(counter.key, bucket.count);
+            }
+        }
+        return entries;
+    }
+
+    private long minCount() {
+        return min != null ? min.count : 0;
+    }
+
+    @Override
+    public String increment(String id, int maxsize) {
+        return increment(id, 1, maxsize);
+    }
+
+    @Override
+    public String increment(String id, int weight, int maxsize) {
+        Counter counter = index.get(id);
+        if (counter != null) {
+            move(counter, counter.bucket.count + weight);
+            return null;
+        }
+        long base = Math.max(isLossy() && index.size() >= maxsize ? minCount() - 1 : 0L, 0L);
+        return offer(id, base + weight, base, maxsize);
+    }
+
+    @Override
+    public String decrement(String id, int maxsize) {
+        Counter counter = index.get(id);
+        if (counter != null) {
+            return update(counter, counter.bucket.count - 1, maxsize);
+        }
+        long base = Math.max(isLossy() && index.size() >= maxsize ? minCount() + 1 : 0L, 0L);
+        return offer(id, base - 1, base, maxsize);
+    }
+
+    @Override
+    public boolean incrementExisting(String id) {
+        return incrementExisting(id, 1);
+    }
+
+    @Override
+    public boolean incrementExisting(String id, long weight) {
+        Counter counter = index.get(id);
+        if (counter != null) {
+            move(counter, counter.bucket.count + weight);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String update(String id, long count, int maxsize) {
+        Counter counter = index.get(id);
+        if (counter != null) {
+            return update(counter, count, maxsize);
+        }
+        return offer(id, count, 0, maxsize);
+    }
+
+    /**
+     * Like KeyTopper, a full topper rejects an update that would take an existing key below the minimum.
+     */
+    private String update(Counter counter, long count, int maxsize) {
+        if (count < minCount() && index.size() >= maxsize) {
+            return counter.key;
+        }
+        move(counter, count);
+        return null;
+    }
+
+    /**
+     * Add a new key, evicting the oldest key with the lowest count if full.
+     *
+     * @return the evicted key, the offered key if it was rejected, or null
+     */
+    private String offer(String id, long count, long error, int maxsize) {
+        String removed = null;
+        if (index.size() >= maxsize) {
+            if (count < minCount()) {
+                return id;
+            }
+            Counter evicted = min.head;
+            detach(evicted);
+            index.remove(evicted.key);
+            removed = evicted.key;
+        }
+        Counter counter = new Counter(id, error);
+        index.put(id, counter);
+        attach(counter, count, nearest(count));
+        return removed;
+    }
+
+    /**
+     * @return the end of the bucket list closest to count, or null if empty
+     */
+    private Bucket nearest(long count) {
+        if (min == null || count - min.count <= max.count - count) {
+            return min;
+        }
+        return max;
+    }
+
+    private void move(Counter counter, long count) {
+        Bucket from = counter.bucket;
+        if (from.count == count) {
+            return;
+        }
+        Bucket start = count > from.count ? from.next : from.prev;
+        detach(counter);
+        attach(counter, count, start != null ? start : nearest(count));
+    }
+
+    /**
+     * Add a counter to the bucket for count, searching from start which
+     * should be close to where the bucket is or belongs.
+     */
+    private void attach(Counter counter, long count, Bucket start) {
+        Bucket bucket = start;
+        if (bucket == null) {
+            bucket = new Bucket(count);
+            min = bucket;
+            max = bucket;
+        } else if (bucket.count < count) {
+            while (bucket.next != null && bucket.next.count <= count) {
+                bucket = bucket.next;
+            }
+            if (bucket.count != count) {
+                bucket = insertAfter(bucket, new Bucket(count));
+            }
+        } else if (bucket.count > count) {
+            while (bucket.prev != null && bucket.prev.count >= count) {
+                bucket = bucket.prev;
+            }
+            if (bucket.count != count) {
+                bucket = insertBefore(bucket, new Bucket(count));
+            }
+        }
+        counter.bucket = bucket;
+        counter.prev = bucket.tail;
+        counter.next = null;
+        if (bucket.tail != null) {
+            bucket.tail.next = counter;
+        } else {
+            bucket.head = counter;
+        }
+        bucket.tail = counter;
+    }
+
+    private Bucket insertAfter(Bucket bucket, Bucket added) {
+        added.prev = bucket;
+        added.next = bucket.next;
+        if (bucket.next != null) {
+            bucket.next.prev = added;
+        } else {
+            max = added;
+        }
+        bucket.next = added;
+        return added;
+    }
+
+    private Bucket insertBefore(Bucket bucket, Bucket added) {
+        added.next = bucket;
+        added.prev = bucket.prev;
+        if (bucket.prev != null) {
+            bucket.prev.next = added;
+        } else {
+            min = added;
+        }
+        bucket.prev = added;
+        return added;
+    }
+
+    /**
+     * Remove a counter from its bucket, and the bucket from the list if it is left empty.
+     */
+    private void detach(Counter counter) {
+        Bucket bucket = counter.bucket;
+        if (counter.prev != null) {
+            counter.prev.next = counter.next;
+        } else {
+            bucket.head = counter.next;
+        }
+        if (counter.next != null) {
+            counter.next.prev = counter.prev;
+        } else {
+            bucket.tail = counter.prev;
+        }
+        counter.prev = null;
+        counter.next = null;
+        counter.bucket = null;
+        if (bucket.head == null) {
+            if (bucket.prev != null) {
+                bucket.prev.next = bucket.next;
+            } else {
+                min = bucket.next;
+            }
+            if (bucket.next != null) {
+                bucket.next.prev = bucket.prev;
+            } else {
+                max = bucket.prev;
+            }
+        }
+    }
+
+    /**
+     * Buckets are encoded from least to greatest count. Each has the
+     * difference from the previous count (the first count is zigzag
+     * encoded since counts can go negative), the number of keys and each
+     * key with its error.
+     */
+    @Override
+    public void preEncode() {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(index.size() * 16 + 8);
+            int buckets = 0;
+            for (Bucket bucket = min; bucket != null; bucket = bucket.next) {
+                buckets++;
+            }
+            Bytes.writeLength(buckets, out);
+            long last = 0;
+            for (Bucket bucket = min; bucket != null; bucket = bucket.next) {
+                if (bucket == min) {
+                    Bytes.writeLength((bucket.count << 1) ^ (bucket.count >> 63), out);
+                } else {
+                    Bytes.writeLength(bucket.count - last, out);
+                }
+                last = bucket.count;
+                int keys = 0;
+                for (Counter counter = bucket.head; counter != null; counter = counter.next) {
+                    keys++;
+                }
+                Bytes.writeLength(keys, out);
+                for (Counter counter = bucket.head; counter != null; counter = counter.next) {
+                    Bytes.writeString(counter.key, out);
+                    Bytes.writeLength(counter.error, out);
+                }
+            }
+            raw = out.toByteArray();
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @Override
+    public void postDecode() {
+        init();
+        if (raw == null) {
+            return;
+        }
+        try {
+            ByteArrayInputStream in = new ByteArrayInputStream(raw);
+            long buckets = Bytes.readLength(in);
+            long count = 0;
+            for (long i = 0; i < buckets; i++) {
+                long delta = Bytes.readLength(in);
+                count = i == 0 ? (delta >>> 1) ^ -(delta & 1) : count + delta;
+                Bucket bucket = new Bucket(count);
+                if (max == null) {
+                    min = bucket;
+                    max = bucket;
+                } else {
+                    insertAfter(max, bucket);
+                }
+                for (long keys = Bytes.readLength(in); keys > 0; keys--) {
+                    Counter counter = new Counter(Bytes.readString(in), Bytes.readLength(in));
+                    index.put(counter.key, counter);
+                    attach(counter, count, bucket);
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        raw = null;
+    }
+}
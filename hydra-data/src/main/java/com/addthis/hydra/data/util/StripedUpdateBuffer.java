@@ -0,0 +1,156 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.addthis.basis.util.Parameter;
+
+/**
+ * Guards a structure that many threads update, such as the top of a popular
+ * tree node. A thread that finds the lock free applies its update directly.
+ * A thread that finds it held leaves its update in a buffer striped by thread
+ * and moves on, and whoever holds the lock next drains the buffer into the
+ * structure. Updates to the same key in the buffer are combined. Readers take
+ * the lock and drain first, so they see every update made before they asked.
+ * <p/>
+ * Stripes are only allocated once there is contention, so structures that are
+ * rarely updated concurrently pay for a lock and nothing else.
+ */
+public final class StripedUpdateBuffer<V> {
+
+    public interface Combiner<V> {
+
+        /**
+         * @return the update equivalent to applying pending and then update
+         */
+        V combine(V pending, V update);
+    }
+
+    /**
+     * Adds deltas.
+     */
+    public static final Combiner<Long> SUM = new Combiner<Long>() {
+        @Override
+        public Long combine(Long pending, Long update) {
+            return pending + update;
+        }
+    };
+
+    /**
+     * Keeps the greatest of absolute values, such as counters that only grow.
+     */
+    public static final Combiner<Long> MAX = new Combiner<Long>() {
+        @Override
+        public Long combine(Long pending, Long update) {
+            return Math.max(pending, update);
+        }
+    };
+
+    private static final int stripeCount = Integer.highestOneBit(
+            Math.max(1, Parameter.intValue("hydra.update.buffer.stripes", 16)));
+    /* buffered updates beyond which a thread waits to drain rather than add more */
+    private static final int maxPending = Parameter.intValue("hydra.update.buffer.max", 4096);
+
+    private static final AtomicIntegerFieldUpdater<StripedUpdateBuffer> pendingUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(StripedUpdateBuffer.class, "pending");
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Combiner<? super V> combiner;
+    private volatile LinkedHashMap<String, V>[] stripes;
+    private volatile int pending;
+
+    public StripedUpdateBuffer(Combiner<? super V> combiner) {
+        this.combiner = combiner;
+    }
+
+    public boolean tryLock() {
+        return lock.tryLock();
+    }
+
+    public void lock() {
+        lock.lock();
+    }
+
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Buffer an update for a caller that could not take the lock.
+     *
+     * @return true if so much is buffered that the caller should take the lock and drain
+     */
+    @SuppressWarnings("unchecked")
+    public boolean add(String key, V value) {
+        LinkedHashMap<String, V>[] current = stripes;
+        if (current == null) {
+            synchronized (this) {
+                current = stripes;
+                if (current == null) {
+                    current = new LinkedHashMap[stripeCount];
+                    for (int i = 0; i < current.length; i++) {
+                        current[i] = new LinkedHashMap<>();
+                    }
+                    stripes = current;
+                }
+            }
+        }
+        LinkedHashMap<String, V> stripe = current[(int) Thread.currentThread().getId() & (stripeCount - 1)];
+        synchronized (stripe) {
+            boolean buffered = stripe.containsKey(key);
+            V previous = stripe.remove(key);
+            if (buffered) {
+                value = (V) ((Combiner<Object>) combiner).combine(previous, value);
+            } else {
+                pendingUpdater.incrementAndGet(this);
+            }
+            // re-inserted so that the latest update to a key is drained last
+            stripe.put(key, value);
+        }
+        return pending > maxPending;
+    }
+
+    /**
+     * Remove the buffered updates. The caller must hold the lock.
+     *
+     * @return the updates in the order they were buffered within each stripe, or null if there are none
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, V> drain() {
+        if (pending == 0) {
+            return null;
+        }
+        LinkedHashMap<String, V> drained = new LinkedHashMap<>();
+        for (LinkedHashMap<String, V> stripe : stripes) {
+            synchronized (stripe) {
+                for (Map.Entry<String, V> entry : stripe.entrySet()) {
+                    boolean drainedAlready = drained.containsKey(entry.getKey());
+                    V previous = drained.remove(entry.getKey());
+                    V value = entry.getValue();
+                    if (drainedAlready) {
+                        value = (V) ((Combiner<Object>) combiner).combine(previous, value);
+                    }
+                    drained.put(entry.getKey(), value);
+                }
+                pendingUpdater.addAndGet(this, -stripe.size());
+                stripe.clear();
+            }
+        }
+        return drained;
+    }
+}
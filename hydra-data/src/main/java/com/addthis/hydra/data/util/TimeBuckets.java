@@ -24,26 +24,55 @@ import java.text.SimpleDateFormat;
 
 import com.addthis.codec.Codec;
 
+import org.apache.commons.lang3.ArrayUtils;
+
 
 /**
  *         A class to store time values in buckets of variable size.
+ *         <p/>
+ *         The buckets are kept in a primitive sorted map. This class encodes
+ *         them as a boxed map, the form buckets had before they were
+ *         primitive, and {@link PackedTimeBuckets} encodes them as varints
+ *         under its own class tag. New buckets should come from
+ *         {@link #create(long)}.
  */
-public class TimeBuckets implements Codec.Codable {
+@Codec.Set(classMapFactory = TimeBuckets.CMAP.class)
+public class TimeBuckets implements Codec.SuperCodable, Codec.ConcurrentCodable {
+
+    private static final Codec.ClassMap cmap = new Codec.ClassMap();
+
+    public static class CMAP implements Codec.ClassMapFactory {
+
+        public Codec.ClassMap getClassMap() {
+            return cmap;
+        }
+    }
+
+    static {
+        cmap.add("packed", PackedTimeBuckets.class);
+    }
 
     /**
-     * @param args
+     * @return initialized buckets that are encoded in the packed form
      */
-    @Codec.Set(codable = true, required = true)
+    public static TimeBuckets create(long size) {
+        return new PackedTimeBuckets().init(size);
+    }
+
+    /* not required since packed buckets leave it empty */
+    @Codec.Set(codable = true)
     private TreeMap<Long, Long> map;
     @Codec.Set(codable = true)
     private long blockSize;
 
+    LongLongSortedMap buckets;
+
     public TimeBuckets() {
     }
 
     public TimeBuckets init(long size) {
         blockSize = size;
-        map = new TreeMap<Long, Long>();
+        buckets = new LongLongSortedMap();
         return this;
     }
 
@@ -53,7 +82,7 @@ public class TimeBuckets implements Codec.Codable {
             try {
                 Date jobDate = sdf.parse(date + "2359");
                 sdf.setTimeZone(TimeZone.getTimeZone("US/Eastern"));
-                Long l = jobDate.getTime();
+                long l = jobDate.getTime();
                 this.acceptEmpty(l);
             } catch (Exception e) {
             }
@@ -61,65 +90,83 @@ public class TimeBuckets implements Codec.Codable {
         }
     }
 
-    public void accept(Long time) {
-        Long keyval = toKey(time);
-        Long count = map.get(keyval);
-        if (count == null) {
-            if (map.size() > 0) {
+    public void accept(long time) {
+        long keyval = toKey(time);
+        int index = buckets.indexOf(keyval);
+        if (index < 0) {
+            if (buckets.size() > 0) {
                 // Add empty buckets as necessary
-                if (map.firstKey() - keyval > blockSize) {
-                    Long firstKey = map.firstKey();
-                    for (Long l = keyval + blockSize; l < firstKey; l += blockSize) {
-                        map.put(l, 0L);
+                long firstKey = buckets.firstKey();
+                if (firstKey - keyval > blockSize) {
+                    for (long l = keyval + blockSize; l < firstKey; l += blockSize) {
+                        buckets.put(l, 0);
                     }
                 }
-                if (keyval - map.lastKey() > blockSize) {
-                    for (Long l = map.lastKey() + blockSize; l < keyval; l += blockSize) {
-                        map.put(l, 0L);
+                long lastKey = buckets.lastKey();
+                if (keyval - lastKey > blockSize) {
+                    for (long l = lastKey + blockSize; l < keyval; l += blockSize) {
+                        buckets.put(l, 0);
                     }
                 }
             }
-            map.put(keyval, 1L);
+            buckets.put(keyval, 1);
         } else {
-            map.put(keyval, count + 1);
+            buckets.setValueAt(index, buckets.valueAt(index) + 1);
+        }
+    }
+
+    /**
+     * @return these buckets if they are encoded in the packed form,
+     *         otherwise packed buckets sharing their contents
+     */
+    public TimeBuckets packed() {
+        if (this instanceof PackedTimeBuckets) {
+            return this;
         }
+        TimeBuckets packed = new PackedTimeBuckets();
+        packed.blockSize = blockSize;
+        packed.buckets = buckets;
+        return packed;
     }
 
-    public void acceptEmpty(Long time) {
-        Long keyval = toKey(time);
-        map.put(keyval, 0L);
+    public void acceptEmpty(long time) {
+        buckets.put(toKey(time), 0);
     }
 
+    /**
+     * @return a copy of the buckets
+     */
     public TreeMap<Long, Long> getMap() {
-        return map;
+        TreeMap<Long, Long> copy = new TreeMap<Long, Long>();
+        for (int i = 0; i < buckets.size(); i++) {
+            copy.put(buckets.keyAt(i), buckets.valueAt(i));
+        }
+        return copy;
     }
 
     public Long[] getCounts() {
-        Long[] rv = new Long[1];
-        rv = map.values().toArray(rv);
-        return rv;
+        return ArrayUtils.toObject(buckets.values());
     }
 
     public int size() {
-        return map.size();
+        return buckets.size();
     }
 
     @SuppressWarnings("unchecked")
     public Map.Entry<String, Long>[] getEntries() {
-        Map.Entry e[] = new Map.Entry[map.size()];
-        e = map.entrySet().toArray(e);
+        Map.Entry e[] = new Map.Entry[buckets.size()];
+        e = getMap().entrySet().toArray(e);
         return e;
     }
 
     public TreeMap<String, Long> getChangeTimes(double minRatio, int minSize, double minZScore, int inactiveThreshold, int windowSize) {
         TreeMap<String, Long> rv = new TreeMap<String, Long>();
-        Long[] counts = this.getCounts();
+        long[] counts = buckets.values();
         double mean = FindChangePoints.mean(counts);
         if (mean > 10) {
             List<ChangePoint> cps = FindChangePoints.findSignificantPoints(counts, minSize, minRatio, minZScore, inactiveThreshold, windowSize);
             for (ChangePoint cp : cps) {
-                Integer index = cp.getIndex();
-                String key = cp.getType().name() + "," + map.keySet().toArray()[index];
+                String key = cp.getType().name() + "," + buckets.keyAt(cp.getIndex());
                 rv.put(key, cp.getSize());
             }
         }
@@ -127,18 +174,45 @@ public class TimeBuckets implements Codec.Codable {
     }
 
     public Map<Long, Long> getPeaks(int maxWidth, int minHt) {
-        Long[] counts = this.getCounts();
+        long[] counts = buckets.values();
         List<ChangePoint> peaks = FindChangePoints.findHighPoints(counts, maxWidth, minHt);
         Map<Long, Long> rv = new HashMap<Long, Long>();
         for (ChangePoint peak : peaks) {
-            int index = peak.getIndex();
-            Long peakTime = (Long) map.keySet().toArray()[index];
-            rv.put(peakTime, peak.getSize());
+            rv.put(buckets.keyAt(peak.getIndex()), peak.getSize());
         }
         return rv;
     }
 
-    private Long toKey(Long time) {
+    private long toKey(long time) {
         return (time / blockSize) * blockSize;
     }
+
+    @Override
+    public void postDecode() {
+        buckets = new LongLongSortedMap(map != null ? map.size() : 8);
+        if (map != null) {
+            for (Map.Entry<Long, Long> e : map.entrySet()) {
+                buckets.put(e.getKey(), e.getValue());
+            }
+            map = null;
+        }
+    }
+
+    @Override
+    public void preEncode() {
+        map = getMap();
+    }
+
+    @Override
+    public boolean encodeLock() {
+        return true;
+    }
+
+    /**
+     * Encoding is done so the boxed copy is no longer needed.
+     */
+    @Override
+    public void encodeUnlock() {
+        map = null;
+    }
 }
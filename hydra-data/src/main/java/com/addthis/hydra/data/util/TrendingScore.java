@@ -17,15 +17,15 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.TreeMap;
 
 import com.addthis.codec.Codec;
 
+import org.apache.commons.lang3.mutable.MutableDouble;
+
 /**
  * A trending algorithm that recognises rising edge based on cumulative percentage change in hits
  */
@@ -66,28 +66,15 @@ public class TrendingScore implements Codec.Codable {
 
         if (trends != null && trends.size() > 0) {
             int results = 0;
-            // create a list of unique urls
-            Set<String> urls = new HashSet<String>();
-            // create a map of time --> (url, hits)
-            Map<String, Map<String, Long>> trendingMap = buildTrendingMap(trends, urls);
-
-            for (String url : urls) {
-                double score = 0;
-
-                // these time stamps will be in order (TreeMap impl)
-                for (String timeStamp : trendingMap.keySet()) {
-                    Long count = trendingMap.get(timeStamp).get(url);
-
-                    if (count != null) {
-                        score = ema(score, count);
-                    }
-                }
+            // url --> score, updated one time stamp at a time
+            Map<String, MutableDouble> urlScores = calculateScores(trends);
 
+            for (Map.Entry<String, MutableDouble> urlScore : urlScores.entrySet()) {
                 // List<String> urlPath = branched(url);
                 // remove protocol
-                url = url.replaceAll("^http://", "");
+                String url = urlScore.getKey().replaceAll("^http://", "");
 
-                scores.addURLPath(url, score * timeNormalizingFactor);
+                scores.addURLPath(url, urlScore.getValue().doubleValue() * timeNormalizingFactor);
                 results++;
             }
 
@@ -122,20 +109,26 @@ public class TrendingScore implements Codec.Codable {
         }
     }
 
-    private Map<String, Map<String, Long>> buildTrendingMap(Map<String, KeyTopper> timeSeriesMap, Set<String> urls) {
-        Map trendingMap = new TreeMap<String, Map<String, Long>>();
-
-        for (String ts : timeSeriesMap.keySet()) {
-            Map<String, Long> urlCount = new HashMap<String, Long>();
-            trendingMap.put(ts, urlCount);
-
-            for (Map.Entry<String, Long> url : timeSeriesMap.get(ts).getSortedEntries()) {
-                urls.add(url.getKey());
-                urlCount.put(url.getKey(), url.getValue());
+    /**
+     * The time stamps are in order (TreeMap impl) so the average of each
+     * url can be updated as its counts are read, without collecting the
+     * counts of every time stamp first.
+     */
+    private Map<String, MutableDouble> calculateScores(Map<String, KeyTopper> timeSeriesMap) {
+        Map<String, MutableDouble> urlScores = new HashMap<String, MutableDouble>();
+
+        for (KeyTopper topper : timeSeriesMap.values()) {
+            for (Map.Entry<String, Long> url : topper.getSortedEntries()) {
+                MutableDouble score = urlScores.get(url.getKey());
+                if (score == null) {
+                    score = new MutableDouble();
+                    urlScores.put(url.getKey(), score);
+                }
+                score.setValue(ema(score.doubleValue(), url.getValue()));
             }
         }
 
-        return trendingMap;
+        return urlScores;
     }
 
     public static List<URLTree.TreeObject.TreeValue> sortByValue(URLTree tree) {
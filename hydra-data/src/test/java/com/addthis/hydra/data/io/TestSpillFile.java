@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import com.addthis.basis.util.Bytes;
+import com.addthis.basis.util.Files;
+
+import com.addthis.hydra.data.io.DiskBackedList2.ItemCodec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestSpillFile {
+
+    /**
+     * orders by the first four bytes and ignores the rest
+     */
+    private static final Comparator<byte[]> PREFIX = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] o1, byte[] o2) {
+            return Integer.compare(Bytes.toInt(o1), Bytes.toInt(o2));
+        }
+    };
+
+    private static final ItemCodec<byte[]> IDENTITY = new ItemCodec<byte[]>() {
+        @Override
+        public byte[] decode(byte[] row) {
+            return row;
+        }
+
+        @Override
+        public byte[] encode(byte[] row) {
+            return row;
+        }
+    };
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws IOException {
+        directory = Files.createTempDir();
+    }
+
+    @After
+    public void deleteDirectory() {
+        Files.deleteDir(directory);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Random random = new Random(3);
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // mix small records with ones larger than a block
+            byte[] record = new byte[i % 1000 == 0 ? 200000 : random.nextInt(300)];
+            for (int j = 0; j < record.length; j++) {
+                record[j] = (byte) (j % 7 == 0 ? random.nextInt() : j);
+            }
+            records.add(record);
+        }
+        for (int compression : new int[]{SpillFile.COMPRESS_NONE, SpillFile.COMPRESS_LZF, SpillFile.COMPRESS_SNAPPY}) {
+            SpillSpace space = new SpillSpace(0);
+            SpillFile file = new SpillFile(new File(directory, "rt-" + compression), space, compression);
+            try (SpillFile.Writer writer = file.openWriter()) {
+                for (byte[] record : records) {
+                    writer.write(record);
+                }
+            }
+            assertEquals(records.size(), file.getRecords());
+            assertEquals(file.getFile().length(), file.getLength());
+            assertEquals(file.getLength(), space.getUsedBytes());
+            try (SpillFile.Reader reader = file.openReader()) {
+                for (byte[] record : records) {
+                    assertArrayEquals(record, reader.next());
+                }
+                assertNull(reader.next());
+            }
+            assertTrue(file.delete());
+            assertEquals(0, space.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void rewriteReleasesSpace() throws IOException {
+        SpillSpace space = new SpillSpace(0);
+        SpillFile file = new SpillFile(new File(directory, "rewrite"), space, SpillFile.COMPRESS_NONE);
+        try (SpillFile.Writer writer = file.openWriter()) {
+            writer.write(new byte[1000]);
+        }
+        try (SpillFile.Writer writer = file.openWriter()) {
+            writer.write(new byte[10]);
+        }
+        assertEquals(file.getFile().length(), space.getUsedBytes());
+        try (SpillFile.Reader reader = file.openReader()) {
+            assertEquals(10, reader.next().length);
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void spaceLimit() throws IOException {
+        SpillSpace space = new SpillSpace(1000);
+        SpillFile file = new SpillFile(new File(directory, "limit"), space, SpillFile.COMPRESS_NONE);
+        try {
+            // the block is charged when it is flushed on close
+            try (SpillFile.Writer writer = file.openWriter()) {
+                writer.write(new byte[2000]);
+            }
+            fail("expected the space limit to be enforced");
+        } catch (SpillSpaceExceededException expected) {
+            assertEquals(0, space.getUsedBytes());
+        }
+    }
+
+    @Test
+    public void multiPassMergeIsStable() throws IOException {
+        Random random = new Random(5);
+        SpillSpace space = new SpillSpace(0);
+        List<SpillFile> runs = new ArrayList<>();
+        List<long[]> expected = new ArrayList<>();
+        int sequence = 0;
+        for (int r = 0; r < 25; r++) {
+            int[] keys = new int[random.nextInt(200)];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(50);
+            }
+            Arrays.sort(keys);
+            SpillFile run = new SpillFile(new File(directory, "run-" + r), space, SpillFile.COMPRESS_LZF);
+            try (SpillFile.Writer writer = run.openWriter()) {
+                for (int key : keys) {
+                    writer.write(Bytes.cat(Bytes.toBytes(key), Bytes.toBytes(sequence)));
+                    expected.add(new long[]{key, sequence++});
+                }
+            }
+            runs.add(run);
+        }
+        // a stable sort of the input order is the expected merge output
+        Collections.sort(expected, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] o1, long[] o2) {
+                return Long.compare(o1[0], o2[0]);
+            }
+        });
+        int count = 0;
+        try (SpillMerger<byte[]> merger = new SpillMerger<>(runs, IDENTITY, PREFIX, 3, directory)) {
+            while (merger.hasNext()) {
+                byte[] next = merger.next();
+                long[] want = expected.get(count++);
+                assertEquals(want[0], Bytes.toInt(next));
+                assertEquals(want[1], Bytes.toInt(Arrays.copyOfRange(next, 4, 8)));
+            }
+        }
+        assertEquals(expected.size(), count);
+        assertEquals(0, space.getUsedBytes());
+        for (SpillFile run : runs) {
+            assertFalse(run.getFile().exists());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import com.addthis.hydra.data.tree.prop.DataCountMinSketch;
+import com.addthis.hydra.data.tree.prop.DataCounting;
+import com.addthis.hydra.data.tree.prop.DataTDigest;
+
+import com.clearspring.analytics.stream.cardinality.HyperLogLogPlus;
+import com.clearspring.analytics.stream.frequency.CountMinSketch;
+import com.clearspring.analytics.stream.quantile.TDigest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestOpSketch extends TestOp {
+
+    private static DataCounting.LCValue count(String... values) {
+        HyperLogLogPlus hll = new HyperLogLogPlus(14, 25);
+        for (String value : values) {
+            hll.offer(value);
+        }
+        return new DataCounting.LCValue(hll);
+    }
+
+    @Test
+    public void testUniqueCounts() throws Exception {
+        // summing these would count b and c twice
+        DataTableHelper t1 = new DataTableHelper().
+                tr().td("cat").td(count("a", "b", "c")).td("x").
+                tr().td("dog").td(count("a")).td("y").
+                tr().td("cat").td(count("b", "c", "d")).td("z");
+        doOpTest(t1, "sketch=ke",
+                new DataTableHelper().
+                        tr().td("cat").td(4L).
+                        tr().td("dog").td(1L), 2);
+    }
+
+    @Test
+    public void testMergeThenEstimate() throws Exception {
+        // as if each task merged its own rows before the master merged the tasks
+        DataTableHelper t1 = new DataTableHelper().
+                tr().td("0").td("cat").td(count("a", "b")).
+                tr().td("1").td("cat").td(count("b", "c"));
+        doOpTest(t1, "sketch=ikm;sketch=ke",
+                new DataTableHelper().
+                        tr().td("cat").td(3L), 2);
+    }
+
+    @Test
+    public void testCountMinSketch() throws Exception {
+        CountMinSketch s1 = new CountMinSketch(5, 1000, 0);
+        CountMinSketch s2 = new CountMinSketch(5, 1000, 0);
+        s1.add("foo", 3);
+        s2.add("foo", 4);
+        s2.add("bar", 10);
+        DataTableHelper t1 = new DataTableHelper().
+                tr().td("cat").td(new DataCountMinSketch.CMSValue(s1, "foo")).
+                tr().td("cat").td(new DataCountMinSketch.CMSValue(s2, "foo"));
+        doOpTest(t1, "sketch=ke",
+                new DataTableHelper().
+                        tr().td("cat").td(7L), 2);
+    }
+
+    @Test
+    public void testTDigestMerge() throws Exception {
+        TDigest low = new TDigest(100);
+        TDigest high = new TDigest(100);
+        for (int i = 0; i < 1000; i++) {
+            low.add(i);
+            high.add(1000 + i);
+        }
+        DataTDigest.TDigestValue median = (DataTDigest.TDigestValue) new DataTDigest.TDigestValue(
+                low, DataTDigest.TDigestValue.OP.QUANTILE, 0.5).merge(
+                new DataTDigest.TDigestValue(high, DataTDigest.TDigestValue.OP.QUANTILE, 0.5));
+        // both halves of the data are in the merged digest
+        assertEquals(1000, median.asDouble().getDouble(), 20);
+    }
+}
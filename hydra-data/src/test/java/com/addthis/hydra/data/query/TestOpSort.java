@@ -13,6 +13,9 @@
  */
 package com.addthis.hydra.data.query;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Test;
 
 public class TestOpSort extends TestOp {
@@ -38,4 +41,25 @@ public class TestOpSort extends TestOp {
         doOpTest(dataTable2, "sort", parse("1 X|2 B|3 A|4 C"));
         doOpTest(dataTableDecimals, "sort=1:d:a", parse("D .102392|B .8282|A .9|C .95"));
     }
+
+    @Test
+    public void testDiskSortSpills() throws Exception {
+        // more rows than fit in one in-memory chunk so that runs are merged from disk
+        Random random = new Random(11);
+        int rows = 12000;
+        long[] keys = new long[rows];
+        DataTableHelper input = new DataTableHelper();
+        for (int i = 0; i < rows; i++) {
+            int value = random.nextInt(500);
+            keys[i] = ((long) value << 32) | i;
+            input.tr().td(Integer.toString(value), Integer.toString(i));
+        }
+        Arrays.sort(keys);
+        DataTableHelper expected = new DataTableHelper();
+        for (long key : keys) {
+            expected.tr().td(Long.toString(key >>> 32), Long.toString(key & 0xffffffffL));
+        }
+        // equal values keep their input order
+        doOpTest(input, "dsort=0:n:a", expected);
+    }
 }
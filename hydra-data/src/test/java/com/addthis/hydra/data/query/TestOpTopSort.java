@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.util.Random;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestOpTopSort extends TestOp {
+
+    @Test
+    public void testSortLimit() throws Exception {
+        DataTableHelper basicTable = parse("A 1 art|B 2 bot|C 3 cog|D 4 din");
+        DataTableHelper dataTable = parse("0 A 3|0 A 5|1 A 1|1 B 2");
+        doOpTest(parse(""), "sort=1:n:d;limit=2", parse(""));
+        doOpTest(basicTable, "sort=1:n:d;limit=2", parse("D 4 din|C 3 cog"));
+        doOpTest(basicTable, "dsort=1:n:d;limit=1:2", parse("C 3 cog|B 2 bot"));
+        doOpTest(basicTable, "sort=1:n:a;limit=10", parse("A 1 art|B 2 bot|C 3 cog|D 4 din"));
+        doOpTest(basicTable, "sort=1:n:a;limit=3:10", parse("D 4 din"));
+        doOpTest(dataTable, "sort=0,1,2:nsn:add;limit=3", parse("0 A 5|0 A 3|1 B 2"));
+        // equal keys keep their input order
+        doOpTest(dataTable, "sort=0:n:a;limit=3", parse("0 A 3|0 A 5|1 A 1"));
+        doOpTest(dataTable, "sort=1:s:a;limit=3", parse("0 A 3|0 A 5|1 A 1"));
+    }
+
+    @Test
+    public void matchesFullSort() throws Exception {
+        Random random = new Random(7);
+        DataTableHelper input = new DataTableHelper();
+        for (int i = 0; i < 2000; i++) {
+            input.tr().td(Integer.toString(random.nextInt(100)), Integer.toString(i));
+        }
+        BlockingBufferedConsumer buffer = new BlockingBufferedConsumer();
+        QueryOpProcessor sort = new QueryOpProcessor.Builder(buffer, "dsort=0:n:d").build();
+        for (Bundle row : input) {
+            sort.send(row);
+        }
+        sort.sendComplete();
+        DataTable sorted = buffer.getTable();
+        DataTableHelper expected = new DataTableHelper();
+        for (int i = 5; i < 30; i++) {
+            Bundle row = sorted.get(i);
+            expected.tr();
+            for (BundleField field : row.getFormat()) {
+                expected.td(row.getValue(field));
+            }
+        }
+        sort.close();
+        doOpTest(input, "sort=0:n:d;limit=5:25", expected);
+    }
+
+    @Test
+    public void pushdown() {
+        assertEquals("sort=0:n:d;limit=100", QueryOpProcessor.createTopSortPushdown("sort=0:n:d;limit=100"));
+        assertEquals("dsort=0;limit=15", QueryOpProcessor.createTopSortPushdown("dsort=0;limit=5:10;title=a"));
+        assertNull(QueryOpProcessor.createTopSortPushdown("sort=0:n:d"));
+        assertNull(QueryOpProcessor.createTopSortPushdown("gather=ks;sort=0:n:d;limit=100"));
+        assertNull(QueryOpProcessor.createTopSortPushdown(null));
+
+        Query query = new Query("job", new String[]{"+:+hits"}, new String[]{"sort=1:n:d;limit=10", "gather=ks"});
+        Query remote = query.createPipelinedQuery();
+        assertEquals(1, query.getOps().length);
+        assertEquals("sort=1:n:d;limit=10", query.getOps()[0]);
+        assertEquals(2, remote.getOps().length);
+        assertEquals("sort=1:n:d;limit=10", remote.getOps()[0]);
+        assertEquals("gather=ks", remote.getOps()[1]);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueFactory;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestQueryMemManager {
+
+    private static Bundle bundle(int chars) {
+        Bundle bundle = new ListBundle();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < chars; i++) {
+            sb.append('x');
+        }
+        bundle.setValue(bundle.getFormat().getField("a"), ValueFactory.create(sb.toString()));
+        return bundle;
+    }
+
+    @Test
+    public void estimateSize() {
+        long small = QueryMemManager.estimateSize(bundle(10));
+        long large = QueryMemManager.estimateSize(bundle(1000));
+        assertTrue(small > 0);
+        assertEquals(2 * 990, large - small);
+    }
+
+    @Test
+    public void admissionWaitsForRelease() throws Exception {
+        final QueryMemManager manager = new QueryMemManager(2000, 1000, 600, 10, 0);
+        QueryMemTracker first = manager.allocateTracker();
+        assertEquals(600, manager.getReservedMemory());
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                manager.allocateTracker();
+                admitted.countDown();
+            }
+        };
+        waiter.start();
+        assertTrue(!admitted.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, manager.getQueueLength());
+        manager.release(first);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, manager.getQueueLength());
+        assertEquals(600, manager.getReservedMemory());
+        waiter.join();
+    }
+
+    @Test
+    public void higherPriorityAdmittedFirst() throws Exception {
+        final QueryMemManager manager = new QueryMemManager(2000, 1000, 600, 10, 0);
+        QueryMemTracker first = manager.allocateTracker();
+        final AtomicReference<String> winner = new AtomicReference<>();
+        Thread low = admit(manager, 0, "low", winner);
+        waitForQueue(manager, 1);
+        Thread high = admit(manager, 5, "high", winner);
+        waitForQueue(manager, 2);
+        manager.release(first);
+        high.join(5000);
+        assertEquals("high", winner.get());
+        assertEquals(1, manager.getQueueLength());
+        low.interrupt();
+        low.join(5000);
+    }
+
+    @Test
+    public void oldestQueryGrowsToHardLimit() {
+        QueryMemManager manager = new QueryMemManager(2000, 1000, 100, 10, 0);
+        QueryMemTracker oldest = manager.allocateTracker();
+        for (int i = 0; i < 5; i++) {
+            oldest.trackBundle(bundle(100));
+        }
+        assertTrue(manager.getReservedMemory() > 1000);
+        try {
+            for (int i = 0; i < 10; i++) {
+                oldest.trackBundle(bundle(100));
+            }
+            fail("expected hard limit to be enforced");
+        } catch (QueryException expected) {
+            assertNotNull(expected.getMessage());
+        }
+        oldest.untrackAllBundles();
+        assertEquals(100, manager.getReservedMemory());
+        manager.release(oldest);
+        assertEquals(0, manager.getReservedMemory());
+    }
+
+    @Test
+    public void oldestQueryGrowsPastQueuedQuery() throws Exception {
+        final QueryMemManager manager = new QueryMemManager(2000, 1000, 600, 10, 2000);
+        QueryMemTracker oldest = manager.allocateTracker();
+        final CountDownLatch admitted = new CountDownLatch(1);
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                manager.allocateTracker();
+                admitted.countDown();
+            }
+        };
+        waiter.start();
+        waitForQueue(manager, 1);
+        // needs a second chunk, which only fits under the hard limit
+        oldest.trackBundle(bundle(400));
+        assertEquals(1200, manager.getReservedMemory());
+        assertEquals(1, manager.getQueueLength());
+        manager.release(oldest);
+        assertTrue(admitted.await(5, TimeUnit.SECONDS));
+        assertEquals(600, manager.getReservedMemory());
+        waiter.join();
+    }
+
+    @Test
+    public void rejectWhenQueueFull() {
+        QueryMemManager manager = new QueryMemManager(1000, 1000, 1000, 0, 0);
+        QueryMemTracker first = manager.allocateTracker();
+        try {
+            manager.allocateTracker();
+            fail("expected queue full rejection");
+        } catch (QueryException expected) {
+            assertEquals(0, manager.getQueueLength());
+        }
+        manager.release(first);
+        manager.release(first);
+        assertEquals(0, manager.getReservedMemory());
+    }
+
+    @Test
+    public void rejectAfterTimeout() {
+        QueryMemManager manager = new QueryMemManager(1000, 1000, 1000, 10, 50);
+        manager.allocateTracker();
+        try {
+            manager.allocateTracker();
+            fail("expected timeout rejection");
+        } catch (QueryException expected) {
+            assertEquals(0, manager.getQueueLength());
+        }
+    }
+
+    private static Thread admit(final QueryMemManager manager, final int priority, final String name,
+            final AtomicReference<String> winner) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    manager.allocateTracker(priority);
+                    winner.compareAndSet(null, name);
+                } catch (QueryException ignored) {
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void waitForQueue(QueryMemManager manager, int length) throws InterruptedException {
+        for (int i = 0; i < 500 && manager.getQueueLength() < length; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(length, manager.getQueueLength());
+    }
+}
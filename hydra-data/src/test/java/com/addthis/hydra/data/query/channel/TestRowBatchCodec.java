@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.channel;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QuerySource;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestRowBatchCodec {
+
+    private static List<Bundle> rows(int count) {
+        ListBundleFormat format = new ListBundleFormat();
+        List<Bundle> rows = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Bundle row = new ListBundle(format);
+            row.setValue(format.getField("key"), ValueFactory.create("k" + (i % 10)));
+            row.setValue(format.getField("count"), ValueFactory.create(i - count / 2));
+            if (i % 3 != 0) {
+                row.setValue(format.getField("ratio"), ValueFactory.create(i / 7.0));
+            }
+            if (i % 5 == 0) {
+                row.setValue(format.getField("raw"), ValueFactory.create(new byte[]{(byte) i, 1, 2}));
+            }
+            if (i == count - 1) {
+                ValueArray array = ValueFactory.createArray(2);
+                array.add(ValueFactory.create("x"));
+                array.add(ValueFactory.create(7));
+                row.setValue(format.getField("late"), array);
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private static void assertRows(List<Bundle> expected, List<Bundle> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Bundle want = expected.get(i);
+            Bundle got = actual.get(i);
+            for (BundleField field : want.getFormat()) {
+                ValueObject value = want.getValue(field);
+                ValueObject other = got.getValue(got.getFormat().getField(field.getName()));
+                if (value == null) {
+                    assertNull(other);
+                } else if (value.getObjectType() == ValueObject.TYPE.BYTES) {
+                    assertEquals(ValueFactory.create(value.asBytes().getBytes()).toString(), other.toString());
+                } else {
+                    assertEquals(value.toString(), other.toString());
+                    assertEquals(value.getObjectType(), other.getObjectType());
+                }
+            }
+        }
+    }
+
+    private static List<Bundle> decode(byte[]... frames) throws Exception {
+        final List<Bundle> rows = new ArrayList<>();
+        final ListBundleFormat format = new ListBundleFormat();
+        DataChannelOutput collector = new DataChannelOutput() {
+            @Override
+            public void send(Bundle row) throws DataChannelError {
+                rows.add(row);
+            }
+
+            @Override
+            public void send(List<Bundle> bundles) {
+                rows.addAll(bundles);
+            }
+
+            @Override
+            public void sendComplete() {
+            }
+
+            @Override
+            public void sourceError(DataChannelError er) {
+            }
+
+            @Override
+            public Bundle createBundle() {
+                return new ListBundle(format);
+            }
+        };
+        RowBatchCodec.Decoder decoder = new RowBatchCodec.Decoder();
+        for (byte[] frame : frames) {
+            decoder.decode(frame, collector);
+        }
+        return rows;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (boolean compress : new boolean[]{false, true}) {
+            List<Bundle> rows = rows(5000);
+            RowBatchCodec.Encoder encoder = new RowBatchCodec.Encoder(compress);
+            List<byte[]> frames = new ArrayList<>();
+            for (Bundle row : rows) {
+                encoder.add(row);
+                if (encoder.getRows() == 700) {
+                    frames.add(encoder.encode());
+                }
+            }
+            frames.add(encoder.encode());
+            assertRows(rows, decode(frames.toArray(new byte[frames.size()][])));
+        }
+    }
+
+    @Test
+    public void compressedFrameIsSmaller() throws Exception {
+        RowBatchCodec.Encoder plain = new RowBatchCodec.Encoder(false);
+        RowBatchCodec.Encoder packed = new RowBatchCodec.Encoder(true);
+        for (Bundle row : rows(2000)) {
+            plain.add(row);
+            packed.add(row);
+        }
+        assertEquals(true, packed.encode().length < plain.encode().length);
+    }
+
+    @Test
+    public void serverToClient() throws Exception {
+        final List<Bundle> rows = rows(3000);
+        QuerySource source = new QuerySource() {
+            @Override
+            public QueryHandle query(Query query, DataChannelOutput consumer) throws QueryException {
+                for (Bundle row : rows) {
+                    consumer.send(row);
+                }
+                consumer.sendComplete();
+                return new QueryHandle() {
+                    @Override
+                    public void cancel(String message) {
+                    }
+                };
+            }
+
+            @Override
+            public void noop() {
+            }
+
+            @Override
+            public boolean isClosed() {
+                return false;
+            }
+        };
+        QueryChannelServer server = new QueryChannelServer(0, source);
+        server.start();
+        try {
+            for (int flags : new int[]{0, QueryChannel.FLAG_ROW_BATCH_V1}) {
+                QueryChannelClient client = new QueryChannelClient(new QueryHost("localhost", server.getPort()), flags);
+                try {
+                    BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+                    client.query(new Query("job", new String[]{"+"}, null), consumer);
+                    List<Bundle> received = new ArrayList<>();
+                    for (Bundle row : consumer.getTable()) {
+                        received.add(row);
+                    }
+                    assertRows(rows, received);
+                } finally {
+                    client.close();
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+}
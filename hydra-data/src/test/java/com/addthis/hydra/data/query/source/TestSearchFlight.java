@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.query.source;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.query.FramedDataChannelReader;
+import com.addthis.hydra.data.query.Query;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestSearchFlight {
+
+    private static Map<String, String> options(String path, String ops, String sender) throws Exception {
+        Query query = new Query("job", new String[]{path}, new String[]{ops});
+        query.setParameter("sender", sender);
+        Map<String, String> options = new HashMap<>();
+        options.put("query", CodecJSON.encodeString(query));
+        return options;
+    }
+
+    @Test
+    public void key() throws Exception {
+        String key = SearchFlight.key("a/0", options("+:+hits", "sort", "one"));
+        assertNotNull(key);
+        assertEquals(key, SearchFlight.key("a/0", options("+:+hits", "sort", "two")));
+        assertFalse(key.equals(SearchFlight.key("a/1", options("+:+hits", "sort", "one"))));
+        assertFalse(key.equals(SearchFlight.key("a/0", options("+", "sort", "one"))));
+        assertFalse(key.equals(SearchFlight.key("a/0", options("+:+hits", "limit=1", "one"))));
+        assertNull(SearchFlight.key("a/0", new HashMap<String, String>()));
+    }
+
+    @Test
+    public void multicast() throws Exception {
+        DataChannelToInputStream first = new DataChannelToInputStream();
+        DataChannelToInputStream second = new DataChannelToInputStream();
+        DataChannelToInputStream third = new DataChannelToInputStream();
+        SearchFlight flight = SearchFlight.join("multicast", first);
+        assertNotNull(flight);
+        assertNull(SearchFlight.join("multicast", second));
+        assertNull(SearchFlight.join("multicast", third));
+        assertEquals(3, flight.getSubscribers());
+
+        third.close();
+        assertEquals(2, flight.getSubscribers());
+
+        Bundle row = flight.createBundle();
+        row.setValue(flight.getFormat().getField("a"), ValueFactory.create(1));
+        flight.send(row);
+        // output has started so a new query runs on its own
+        DataChannelToInputStream late = new DataChannelToInputStream();
+        SearchFlight other = SearchFlight.join("multicast", late);
+        assertNotNull(other);
+        assertTrue(other != flight);
+        other.sendComplete();
+
+        flight.sendComplete();
+        assertNotNull(first.nextBytes(10));
+        assertNotNull(second.nextBytes(10));
+        assertNull(third.nextBytes(10));
+        assertFalse(flight.getQueryStatusObserver().queryCancelled);
+    }
+
+    @Test
+    public void slowSubscriberDoesNotBlock() throws Exception {
+        DataChannelToInputStream fast = new DataChannelToInputStream();
+        DataChannelToInputStream slow = new DataChannelToInputStream(2);
+        SearchFlight flight = SearchFlight.join("slow", fast);
+        assertNull(SearchFlight.join("slow", slow));
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            value.append('x');
+        }
+        // every row fills a chunk, which would block on the slow queue for seconds
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 5; i++) {
+            Bundle row = flight.createBundle();
+            row.setValue(flight.getFormat().getField("a"), ValueFactory.create(value.toString()));
+            flight.send(row);
+        }
+        flight.sendComplete();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, flight.getSubscribers());
+        assertFalse(flight.getQueryStatusObserver().queryCancelled);
+
+        int chunks = 0;
+        byte[] data;
+        while ((data = fast.nextBytes(10)) != null) {
+            chunks++;
+        }
+        assertEquals(6, chunks);
+        assertTrue(fast.isEOF());
+        assertNotNull(slow.nextBytes(10));
+        assertNotNull(slow.nextBytes(10));
+        data = slow.nextBytes(10);
+        assertEquals(FramedDataChannelReader.FRAME_ERROR, data[0]);
+        assertNull(slow.nextBytes(10));
+        assertTrue(slow.isEOF());
+    }
+
+    @Test
+    public void cancelWhenAllClosed() throws Exception {
+        DataChannelToInputStream first = new DataChannelToInputStream();
+        DataChannelToInputStream second = new DataChannelToInputStream();
+        SearchFlight flight = SearchFlight.join("cancel", first);
+        assertNull(SearchFlight.join("cancel", second));
+        first.close();
+        assertFalse(flight.getQueryStatusObserver().queryCancelled);
+        second.close();
+        assertTrue(flight.getQueryStatusObserver().queryCancelled);
+        // a canceled search is not joined
+        SearchFlight next = SearchFlight.join("cancel", new DataChannelToInputStream());
+        assertNotNull(next);
+        next.sendComplete();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.tree.prop;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+
+import java.lang.reflect.Field;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.CodecBin2;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.data.tree.DataTreeNodeUpdater;
+
+import com.clearspring.analytics.stream.membership.BloomFilter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class TestDataBloom {
+
+    private static final String[] values = {"foo", "bar", "baz"};
+
+    private static DataBloom fill(String config) throws Exception {
+        DataBloom.Config conf = CodecJSON.decodeString(new DataBloom.Config(), config);
+        DataBloom bloom = conf.newInstance();
+        ListBundleFormat format = new ListBundleFormat();
+        for (String value : values) {
+            final Bundle bundle = new ListBundle(format);
+            bundle.setValue(bundle.getFormat().getField("key"), ValueFactory.create(value));
+            bloom.updateChildData(new DataTreeNodeUpdater() {
+                @Override
+                public Bundle getBundle() {
+                    return bundle;
+                }
+
+                @Override
+                public int getCountValue() {
+                    return 1;
+                }
+            }, null, conf);
+        }
+        return bloom;
+    }
+
+    private static void checkValues(DataBloom bloom) {
+        for (String value : values) {
+            assertNotNull(bloom.getValue(value));
+        }
+        assertNotNull(bloom.getValue("missing~bar"));
+        assertNull(bloom.getValue("missing"));
+    }
+
+    private static Field rawField() throws Exception {
+        Field raw = DataBloom.class.getDeclaredField("raw");
+        raw.setAccessible(true);
+        return raw;
+    }
+
+    @Test
+    public void blockedRoundTrip() throws Exception {
+        DataBloom bloom = fill("{key:\"key\",max:1000,error:0.001,blocked:true}");
+        checkValues(bloom);
+        byte[] encoded = CodecBin2.encodeBytes(bloom);
+        byte[] raw = (byte[]) rawField().get(bloom);
+        assertEquals(-1, new DataInputStream(new ByteArrayInputStream(raw)).readInt());
+        DataBloom decoded = (DataBloom) CodecBin2.decodeBytes(new DataBloom(), encoded);
+        checkValues(decoded);
+    }
+
+    @Test
+    public void bloomFilterRoundTrip() throws Exception {
+        DataBloom bloom = fill("{key:\"key\",max:1000,error:0.001}");
+        checkValues(bloom);
+        byte[] encoded = CodecBin2.encodeBytes(bloom);
+        checkValues((DataBloom) CodecBin2.decodeBytes(new DataBloom(), encoded));
+    }
+
+    @Test
+    public void legacyRaw() throws Exception {
+        // the raw field as written before blocked filters existed
+        BloomFilter filter = new BloomFilter(1000, 0.001);
+        for (String value : values) {
+            filter.add(value);
+        }
+        DataBloom bloom = new DataBloom();
+        rawField().set(bloom, BloomFilter.serialize(filter));
+        bloom.postDecode();
+        checkValues(bloom);
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestLongLongHashMap {
+
+    @Test
+    public void testZeroKey() {
+        LongLongHashMap map = new LongLongHashMap();
+        assertFalse(map.containsKey(0));
+        assertEquals(-1, map.get(0, -1));
+        map.put(0, 5);
+        map.put(1, 6);
+        assertTrue(map.containsKey(0));
+        assertEquals(5, map.get(0, -1));
+        assertEquals(2, map.size());
+        assertEquals(2, map.keys().length);
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(-1, map.get(1, -1));
+    }
+
+    @Test
+    public void testRandomUpdates() {
+        Random random = new Random(11);
+        LongLongHashMap map = new LongLongHashMap(2);
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextBoolean() ? random.nextInt(5000) : random.nextLong();
+            long delta = random.nextInt(10);
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+            map.addTo(key, delta);
+            Long old = expected.get(key);
+            expected.put(key, old == null ? delta : old + delta);
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key : map.keys()) {
+            assertEquals(expected.get(key).longValue(), map.get(key, -1));
+        }
+    }
+}
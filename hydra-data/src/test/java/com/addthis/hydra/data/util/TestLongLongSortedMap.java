@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestLongLongSortedMap {
+
+    @Test
+    public void testAppendAndInsert() {
+        LongLongSortedMap map = new LongLongSortedMap(2);
+        assertTrue(map.isEmpty());
+        for (long i = 10; i <= 50; i += 10) {
+            map.put(i, i);
+        }
+        map.put(5, 5);
+        map.put(25, 25);
+        map.put(55, 55);
+        assertEquals(8, map.size());
+        assertEquals(5, map.firstKey());
+        assertEquals(55, map.lastKey());
+        long[] keys = map.keys();
+        long[] values = map.values();
+        long[] expected = {5, 10, 20, 25, 30, 40, 50, 55};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], keys[i]);
+            assertEquals(expected[i], values[i]);
+            assertEquals(expected[i], map.keyAt(i));
+        }
+        assertEquals(3, map.indexOf(25));
+        assertEquals(-4, map.indexOf(22));
+        assertEquals(-1, map.get(22, -1));
+        assertFalse(map.containsKey(22));
+        assertEquals(26, map.addTo(25, 1));
+        assertEquals(1, map.addTo(22, 1));
+        assertEquals("{5=5, 10=10, 20=20, 22=1, 25=26, 30=30, 40=40, 50=50, 55=55}", map.toString());
+    }
+
+    @Test
+    public void testRandomUpdates() {
+        Random random = new Random(7);
+        LongLongSortedMap map = new LongLongSortedMap();
+        TreeMap<Long, Long> expected = new TreeMap<>();
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextInt(2000) - 1000;
+            long delta = random.nextInt(10);
+            map.addTo(key, delta);
+            Long old = expected.get(key);
+            expected.put(key, old == null ? delta : old + delta);
+        }
+        assertEquals(expected.size(), map.size());
+        int index = 0;
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getKey().longValue(), map.keyAt(index));
+            assertEquals(entry.getValue().longValue(), map.valueAt(index));
+            index++;
+        }
+    }
+}
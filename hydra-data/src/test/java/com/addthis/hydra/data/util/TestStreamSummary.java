@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestStreamSummary {
+
+    public static class Holder implements Codec.Codable {
+
+        @Codec.Set(codable = true)
+        public KeyTopper top;
+        @Codec.Set(codable = true)
+        public int after;
+    }
+
+    @Test
+    public void testSameCountsAsKeyTopper() {
+        for (boolean lossy : new boolean[]{false, true}) {
+            KeyTopper topper = new KeyTopper().init().setLossy(lossy);
+            KeyTopper summary = new StreamSummary().init().setLossy(lossy);
+            // keys with distinct frequencies so ties never decide what is evicted
+            for (int key = 0; key < 30; key++) {
+                for (int i = 0; i < 300 - key * 7; i++) {
+                    topper.increment(Integer.toString(key), 10);
+                    summary.increment(Integer.toString(key), 10);
+                }
+            }
+            Map.Entry<String, Long>[] expected = topper.getSortedEntries();
+            Map.Entry<String, Long>[] actual = summary.getSortedEntries();
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i].getKey(), actual[i].getKey());
+                assertEquals(expected[i].getValue(), actual[i].getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        KeyTopper summary = new StreamSummary().init();
+        assertNull(summary.increment("a", 2));
+        assertNull(summary.increment("a", 2));
+        assertNull(summary.increment("b", 2));
+        // b is the minimum with 1 so c displaces it
+        assertEquals("b", summary.increment("c", 2));
+        assertEquals(Long.valueOf(1), summary.get("c"));
+        assertNull(summary.update("c", 5, 2));
+        // d would start below a, the new minimum
+        assertEquals("d", summary.update("d", 1, 2));
+        Map.Entry<String, Long>[] entries = summary.getSortedEntries();
+        assertEquals("c", entries[0].getKey());
+        assertEquals("a", entries[1].getKey());
+        assertEquals(2, summary.size());
+    }
+
+    @Test
+    public void testLossyError() {
+        KeyTopper summary = new StreamSummary().init().setLossy(true);
+        for (int i = 0; i < 5; i++) {
+            summary.increment("a", 2);
+        }
+        for (int i = 0; i < 3; i++) {
+            summary.increment("b", 2);
+        }
+        assertEquals("b", summary.increment("c", 2));
+        // c takes over the count of b, which is all error except its own hit
+        assertEquals(Long.valueOf(3), summary.get("c"));
+        assertEquals(2, summary.getError("c"));
+        assertEquals(0, summary.getError("a"));
+        assertTrue(summary.incrementExisting("c"));
+        assertEquals(Long.valueOf(4), summary.get("c"));
+        assertEquals(2, summary.getError("c"));
+    }
+
+    @Test
+    public void testWeightsAndDecrement() {
+        KeyTopper summary = new StreamSummary().init();
+        summary.increment("a", 100, 3);
+        summary.increment("b", 1, 3);
+        summary.increment("c", 50, 3);
+        summary.increment("b", 60, 3);
+        summary.decrement("a", 3);
+        summary.decrement("d", 3);
+        Map.Entry<String, Long>[] entries = summary.getSortedEntries();
+        assertEquals("a", entries[0].getKey());
+        assertEquals(Long.valueOf(99), entries[0].getValue());
+        assertEquals("b", entries[1].getKey());
+        assertEquals(Long.valueOf(61), entries[1].getValue());
+        assertEquals(Long.valueOf(50), summary.get("c"));
+        assertNull(summary.get("d"));
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        Map<String, Long> counts = new HashMap<>();
+        Holder holder = new Holder();
+        holder.top = new StreamSummary().init().setLossy(true);
+        holder.after = 42;
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            String key = "k" + random.nextInt(50);
+            holder.top.increment(key, 100);
+        }
+        holder.top.update("negative", -5, 100);
+        for (Map.Entry<String, Long> entry : holder.top.getSortedEntries()) {
+            counts.put(entry.getKey(), entry.getValue());
+        }
+        Holder decoded = (Holder) CodecBin2.decodeBytes(new Holder(), CodecBin2.encodeBytes(holder));
+        assertEquals(StreamSummary.class, decoded.top.getClass());
+        assertTrue(decoded.top.isLossy());
+        assertEquals(42, decoded.after);
+        assertEquals(counts.size(), decoded.top.size());
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            assertEquals(entry.getValue(), decoded.top.get(entry.getKey()));
+        }
+
+    }
+
+    /**
+     * A lossy topper holding a=2, b=1 and c=1 with after=42,
+     * as encoded by KeyTopper before it had a class map.
+     */
+    private static final byte[] LEGACY_TOPPER = {
+            0, 0, 0, 2, 1, 0, 1, 0, 0, 0, 42, 1, 1, 0, 1, 1, 1, 3,
+            1, 97, 0, 0, 0, 0, 0, 0, 0, 2,
+            1, 98, 0, 0, 0, 0, 0, 0, 0, 1,
+            1, 99, 0, 0, 0, 0, 0, 0, 0, 1,
+            1, 1, 99, 1, 0, 0, 0, 0, 0, 0, 0, 1};
+
+    @Test
+    public void testLegacyEncoding() throws Exception {
+        Holder decoded = (Holder) CodecBin2.decodeBytes(new Holder(), LEGACY_TOPPER);
+        assertEquals(KeyTopper.class, decoded.top.getClass());
+        assertTrue(decoded.top.isLossy());
+        assertEquals(3, decoded.top.size());
+        assertEquals(Long.valueOf(2), decoded.top.get("a"));
+        assertEquals(Long.valueOf(1), decoded.top.get("b"));
+        assertEquals(Long.valueOf(1), decoded.top.get("c"));
+        assertEquals(42, decoded.after);
+        // the minimum is restored so the next new key evicts b or c
+        String dropped = decoded.top.increment("d", 3);
+        assertTrue("b".equals(dropped) || "c".equals(dropped));
+        assertEquals(Long.valueOf(2), decoded.top.get("a"));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TestStripedUpdateBuffer {
+
+    @Test
+    public void testCombine() {
+        StripedUpdateBuffer<Long> buffer = new StripedUpdateBuffer<>(StripedUpdateBuffer.SUM);
+        buffer.lock();
+        try {
+            assertNull(buffer.drain());
+        } finally {
+            buffer.unlock();
+        }
+        assertFalse(buffer.add("a", 1L));
+        assertFalse(buffer.add("b", 2L));
+        assertFalse(buffer.add("a", 3L));
+        buffer.lock();
+        try {
+            Map<String, Long> drained = buffer.drain();
+            assertEquals(2, drained.size());
+            assertEquals(Long.valueOf(4), drained.get("a"));
+            assertEquals(Long.valueOf(2), drained.get("b"));
+            assertNull(buffer.drain());
+        } finally {
+            buffer.unlock();
+        }
+
+        StripedUpdateBuffer<Long> max = new StripedUpdateBuffer<>(StripedUpdateBuffer.MAX);
+        max.add("a", 5L);
+        max.add("a", 3L);
+        max.lock();
+        try {
+            assertEquals(Long.valueOf(5), max.drain().get("a"));
+        } finally {
+            max.unlock();
+        }
+    }
+
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        final int threads = 8;
+        final int updates = 20000;
+        final StripedUpdateBuffer<Long> buffer = new StripedUpdateBuffer<>(StripedUpdateBuffer.SUM);
+        final KeyTopper top = new StreamSummary().init();
+        for (int i = 0; i < 10; i++) {
+            top.increment(Integer.toString(i), 10);
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int j = 0; j < updates; j++) {
+                        String key = Integer.toString(j % 10);
+                        if (buffer.tryLock()) {
+                            try {
+                                drain(buffer, top);
+                                top.incrementExisting(key);
+                            } finally {
+                                buffer.unlock();
+                            }
+                        } else if (buffer.add(key, 1L)) {
+                            buffer.lock();
+                            try {
+                                drain(buffer, top);
+                            } finally {
+                                buffer.unlock();
+                            }
+                        }
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        buffer.lock();
+        try {
+            drain(buffer, top);
+        } finally {
+            buffer.unlock();
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Long.valueOf(1 + threads * updates / 10), top.get(Integer.toString(i)));
+        }
+    }
+
+    private static void drain(StripedUpdateBuffer<Long> buffer, KeyTopper top) {
+        Map<String, Long> drained = buffer.drain();
+        if (drained != null) {
+            for (Map.Entry<String, Long> entry : drained.entrySet()) {
+                top.incrementExisting(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
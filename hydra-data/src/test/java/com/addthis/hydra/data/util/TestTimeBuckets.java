@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecBin2;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestTimeBuckets {
+
+    /**
+     * the fields of TimeBuckets as they were when the buckets were boxed
+     */
+    public static class BoxedTimeBuckets implements Codec.Codable {
+
+        @Codec.Set(codable = true, required = true)
+        public TreeMap<Long, Long> map = new TreeMap<>();
+        @Codec.Set(codable = true)
+        public long blockSize;
+    }
+
+    /**
+     * the fields of KeyHistogram as they were when the buckets were boxed
+     */
+    public static class BoxedKeyHistogram implements Codec.Codable {
+
+        @Codec.Set(codable = true)
+        public HashMap<Long, Long> map = new HashMap<>();
+        @Codec.Set(codable = true)
+        public int scale = 10;
+    }
+
+    public static class Holder implements Codec.Codable {
+
+        @Codec.Set(codable = true)
+        public TimeBuckets buckets;
+        @Codec.Set(codable = true)
+        public KeyHistogram histogram;
+    }
+
+    /**
+     * a holder as it was encoded before the packed forms existed
+     */
+    public static class BoxedHolder implements Codec.Codable {
+
+        @Codec.Set(codable = true)
+        public BoxedTimeBuckets buckets = new BoxedTimeBuckets();
+        @Codec.Set(codable = true)
+        public BoxedKeyHistogram histogram = new BoxedKeyHistogram();
+    }
+
+    @Test
+    public void testAccept() {
+        TimeBuckets buckets = new TimeBuckets().init(10);
+        buckets.accept(45);
+        buckets.accept(41);
+        buckets.accept(75);
+        buckets.accept(12);
+        assertEquals(7, buckets.size());
+        assertArrayEquals(new Long[]{1L, 0L, 0L, 2L, 0L, 0L, 1L}, buckets.getCounts());
+        assertEquals(Long.valueOf(2), buckets.getMap().get(40L));
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        BoxedTimeBuckets boxed = new BoxedTimeBuckets();
+        boxed.blockSize = 10;
+        boxed.map.put(10L, 3L);
+        boxed.map.put(20L, 0L);
+        boxed.map.put(30L, 5L);
+        TimeBuckets buckets = (TimeBuckets) CodecBin2.decodeBytes(new TimeBuckets(), CodecBin2.encodeBytes(boxed));
+        buckets.accept(35);
+        assertEquals(boxed.map.keySet(), buckets.getMap().keySet());
+        assertEquals(Long.valueOf(6), buckets.getMap().get(30L));
+
+        BoxedTimeBuckets decoded = (BoxedTimeBuckets) CodecBin2.decodeBytes(new BoxedTimeBuckets(), CodecBin2.encodeBytes(buckets));
+        assertEquals(10, decoded.blockSize);
+        assertEquals(buckets.getMap(), decoded.map);
+    }
+
+    @Test
+    public void testPackedEncoding() throws Exception {
+        BoxedHolder boxed = new BoxedHolder();
+        boxed.buckets.blockSize = 10;
+        boxed.buckets.map.put(10L, 3L);
+        boxed.buckets.map.put(20L, 0L);
+        boxed.histogram.scale = 2;
+        boxed.histogram.map.put(1L, 4L);
+        Holder holder = (Holder) CodecBin2.decodeBytes(new Holder(), CodecBin2.encodeBytes(boxed));
+        assertEquals(TimeBuckets.class, holder.buckets.getClass());
+        assertEquals(KeyHistogram.class, holder.histogram.getClass());
+
+        holder.buckets = holder.buckets.packed();
+        holder.histogram = holder.histogram.packed();
+        holder.buckets.accept(35);
+        holder.histogram.incrementTo(3);
+        byte[] packed = CodecBin2.encodeBytes(holder);
+        Holder decoded = (Holder) CodecBin2.decodeBytes(new Holder(), packed);
+        assertEquals(PackedTimeBuckets.class, decoded.buckets.getClass());
+        assertEquals(PackedKeyHistogram.class, decoded.histogram.getClass());
+        assertEquals(holder.buckets.getMap(), decoded.buckets.getMap());
+        assertEquals(holder.histogram.getSortedHistogram(), decoded.histogram.getSortedHistogram());
+        // block size and scale survive
+        decoded.buckets.accept(55);
+        assertEquals(Long.valueOf(1), decoded.buckets.getMap().get(50L));
+        assertFalse(decoded.histogram.update(9, 10));
+
+        Holder created = new Holder();
+        created.buckets = TimeBuckets.create(10);
+        created.histogram = KeyHistogram.create();
+        for (int i = 0; i < 100; i++) {
+            created.buckets.accept(i * 10);
+            created.histogram.incrementTo(i + 1);
+        }
+        BoxedHolder same = new BoxedHolder();
+        same.buckets.blockSize = 10;
+        same.buckets.map = created.buckets.getMap();
+        same.histogram.map.putAll(created.histogram.getHistogram());
+        assertTrue(CodecBin2.encodeBytes(created).length < CodecBin2.encodeBytes(same).length);
+    }
+
+    @Test
+    public void testHistogramEncoding() throws Exception {
+        BoxedKeyHistogram boxed = new BoxedKeyHistogram();
+        boxed.scale = 2;
+        boxed.map.put(1L, 4L);
+        boxed.map.put(8L, 1L);
+        KeyHistogram histogram = (KeyHistogram) CodecBin2.decodeBytes(new KeyHistogram(), CodecBin2.encodeBytes(boxed));
+        // a key going from 2 to 3 moves from the 1 bucket to the 2 bucket
+        histogram.incrementTo(3);
+        // and from 4 to 5 moves it on to the 4 bucket
+        histogram.incrementTo(5);
+        Map<Long, Long> expected = new TreeMap<>();
+        expected.put(1L, 3L);
+        expected.put(2L, 0L);
+        expected.put(4L, 1L);
+        expected.put(8L, 1L);
+        assertEquals(expected, histogram.getSortedHistogram());
+
+        BoxedKeyHistogram decoded = (BoxedKeyHistogram) CodecBin2.decodeBytes(new BoxedKeyHistogram(), CodecBin2.encodeBytes(histogram));
+        assertEquals(2, decoded.scale);
+        assertEquals(expected, decoded.map);
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.common.hash;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes of strings and byte arrays that reuse per thread digests and
+ * buffers. Strings are encoded into a per thread buffer rather than
+ * into a new array, so hashing a value only allocates the result.
+ * <p/>
+ * Every method gives the same hash as the code it replaces: the digest
+ * hashes of the UTF-8 bytes match {@code MessageDigest} over
+ * {@code String.getBytes("UTF-8")}, {@link #md5Hex(CharSequence)} matches
+ * Guava's {@code Hashing.md5().hashUnencodedChars()} and the murmur hashes
+ * match {@code Hashing.murmur3_128()} over the UTF-8 bytes.
+ */
+public final class Hashes {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final class State {
+
+        final MessageDigest md5;
+        final MessageDigest sha1;
+        final byte[] digest = new byte[20];
+        final long[] murmur = new long[2];
+        byte[] buffer = new byte[256];
+
+        State() {
+            try {
+                md5 = MessageDigest.getInstance("MD5");
+                sha1 = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        byte[] buffer(int length) {
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            return buffer;
+        }
+    }
+
+    private static final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    private Hashes() {
+    }
+
+    /**
+     * @return this thread's MD5 digest, reset
+     */
+    public static MessageDigest md5() {
+        MessageDigest md5 = state.get().md5;
+        md5.reset();
+        return md5;
+    }
+
+    /**
+     * @return this thread's SHA-1 digest, reset
+     */
+    public static MessageDigest sha1() {
+        MessageDigest sha1 = state.get().sha1;
+        sha1.reset();
+        return sha1;
+    }
+
+    /**
+     * @return the first 8 bytes of the SHA-1 of the UTF-8 bytes of value, big endian
+     */
+    public static long sha1Long(CharSequence value) {
+        State current = state.get();
+        byte[] digest = digest(current, current.sha1, value);
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the SHA-1 of the UTF-8 bytes of value in lower case hex
+     */
+    public static String sha1Hex(CharSequence value) {
+        State current = state.get();
+        return hex(digest(current, current.sha1, value), 20);
+    }
+
+    /**
+     * @return the MD5 of the chars of value, two little endian bytes each, in lower case hex
+     */
+    public static String md5Hex(CharSequence value) {
+        State current = state.get();
+        int length = value.length();
+        byte[] buffer = current.buffer(length * 2);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            buffer[2 * i] = (byte) c;
+            buffer[2 * i + 1] = (byte) (c >>> 8);
+        }
+        return hex(digest(current, current.md5, buffer, length * 2), 16);
+    }
+
+    /**
+     * @return the MD5 of bytes in lower case hex
+     */
+    public static String md5Hex(byte[] bytes) {
+        State current = state.get();
+        return hex(digest(current, current.md5, bytes, bytes.length), 16);
+    }
+
+    /**
+     * @return the 64 bit murmur3 hash of the UTF-8 bytes of value
+     */
+    public static long murmur64(CharSequence value) {
+        State current = state.get();
+        int length = utf8(current, value);
+        return Murmur3.hash64(current.buffer, 0, length);
+    }
+
+    /**
+     * @return the 128 bit murmur3 hash of the UTF-8 bytes of value in lower case hex
+     */
+    public static String murmur128Hex(CharSequence value) {
+        State current = state.get();
+        int length = utf8(current, value);
+        Murmur3.hash128(current.buffer, 0, length, current.murmur);
+        char[] hex = new char[32];
+        for (int i = 0; i < 16; i++) {
+            int b = (int) (current.murmur[i >>> 3] >>> ((i & 7) * 8)) & 0xff;
+            hex[2 * i] = HEX[b >>> 4];
+            hex[2 * i + 1] = HEX[b & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static byte[] digest(State current, MessageDigest digest, CharSequence value) {
+        int length = utf8(current, value);
+        return digest(current, digest, current.buffer, length);
+    }
+
+    private static byte[] digest(State current, MessageDigest digest, byte[] bytes, int length) {
+        digest.reset();
+        digest.update(bytes, 0, length);
+        try {
+            digest.digest(current.digest, 0, digest.getDigestLength());
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        return current.digest;
+    }
+
+    private static String hex(byte[] bytes, int length) {
+        char[] hex = new char[length * 2];
+        for (int i = 0; i < length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >>> 4) & 0xf];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Encode value as UTF-8 into the buffer of current, replacing unpaired
+     * surrogates with '?' as {@code String.getBytes} does.
+     *
+     * @return the number of bytes written
+     */
+    private static int utf8(State current, CharSequence value) {
+        int length = value.length();
+        byte[] buffer = current.buffer(length * 3);
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[pos++] = (byte) (0xc0 | (c >>> 6));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[pos++] = (byte) (0xf0 | (cp >>> 18));
+                    buffer[pos++] = (byte) (0x80 | ((cp >>> 12) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | ((cp >>> 6) & 0x3f));
+                    buffer[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    buffer[pos++] = '?';
+                }
+            } else {
+                buffer[pos++] = (byte) (0xe0 | (c >>> 12));
+                buffer[pos++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+                buffer[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+}
@@ -13,18 +13,13 @@
  */
 package com.addthis.hydra.common.hash;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.Hashing;
-
 public class MD5HashFunction {
 
     public static String hash(byte[] bytes) {
-        HashCode hc = Hashing.md5().hashBytes(bytes);
-        return hc.toString();
+        return Hashes.md5Hex(bytes);
     }
 
     public static String hash(String key) {
-        HashCode hc = Hashing.md5().hashUnencodedChars(key);
-        return hc.toString();
+        return Hashes.md5Hex(key);
     }
 }
@@ -0,0 +1,122 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.common.hash;
+
+/**
+ * MurmurHash3 x64 128 with a seed of zero over a slice of an array.
+ * Gives the same hash as Guava's {@code Hashing.murmur3_128()} without
+ * allocating anything. The 64 bit hash is the first half of the 128 bit
+ * hash, as {@code HashCode.asLong()} returns it.
+ */
+public final class Murmur3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Murmur3() {
+    }
+
+    public static long hash64(byte[] data, int offset, int length) {
+        return hash128(data, offset, length, null);
+    }
+
+    /**
+     * @param result if not null, receives the first half of the hash in
+     *               element 0 and the second half in element 1
+     * @return the first half of the hash
+     */
+    public static long hash128(byte[] data, int offset, int length, long[] result) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length >>> 4;
+        int pos = offset;
+        for (int i = 0; i < blocks; i++, pos += 16) {
+            long k1 = getLong(data, pos);
+            long k2 = getLong(data, pos + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        int tail = length & 15;
+        if (tail > 0) {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = tail - 1; i >= 8; i--) {
+                k2 = (k2 << 8) | (data[pos + i] & 0xffL);
+            }
+            for (int i = Math.min(tail, 8) - 1; i >= 0; i--) {
+                k1 = (k1 << 8) | (data[pos + i] & 0xffL);
+            }
+            if (tail > 8) {
+                h2 ^= mixK2(k2);
+            }
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        if (result != null) {
+            result[0] = h1;
+            result[1] = h2;
+        }
+        return h1;
+    }
+
+    private static long getLong(byte[] data, int pos) {
+        return (data[pos] & 0xffL)
+               | (data[pos + 1] & 0xffL) << 8
+               | (data[pos + 2] & 0xffL) << 16
+               | (data[pos + 3] & 0xffL) << 24
+               | (data[pos + 4] & 0xffL) << 32
+               | (data[pos + 5] & 0xffL) << 40
+               | (data[pos + 6] & 0xffL) << 48
+               | (data[pos + 7] & 0xffL) << 56;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.compiler;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+import java.security.CodeSource;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compiled classes for generated source, shared by every filter in the
+ * process and by every process of the same user on the host. A class is named after a
+ * hash of its source and of the build of the classes it is compiled
+ * against, so the same source always gives the same class name and a
+ * class that is on disk can be loaded instead of compiled again.
+ * <p/>
+ * Classes are compiled into a private directory and then moved into the
+ * cache directory, the top level class last, so other processes only
+ * see complete classes. Two processes that compile the same source at
+ * the same time both produce the same class and either one can win.
+ * Nothing is ever removed from the cache directory.
+ * <p/>
+ * Class names are predictable, so the cache directory is only used if it
+ * belongs to the current user and nobody else can write to it. Otherwise
+ * classes are compiled into a private temporary directory and not shared.
+ */
+public final class JavaClassCache {
+
+    private static final Logger log = LoggerFactory.getLogger(JavaClassCache.class);
+
+    private static final File directory = new File(Parameter.value("hydra.compiler.cache.dir",
+            System.getProperty("java.io.tmpdir") + "/hydra-compiled-" + System.getProperty("user.name")));
+
+    private static final ConcurrentMap<String, Class<?>> classes = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<File, File> directories = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    private JavaClassCache() {
+    }
+
+    /**
+     * @param prefix      start of the class name
+     * @param source      the source of the class, with any class name
+     * @param parentClass a class that the generated class is compiled against
+     * @return a class name that is the same for the same source and build
+     */
+    public static String className(String prefix, String source, Class<?> parentClass) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(source, StandardCharsets.UTF_8);
+        hasher.putString(System.getProperty("java.version"), StandardCharsets.UTF_8);
+        CodeSource codeSource = parentClass.getProtectionDomain().getCodeSource();
+        if (codeSource != null && codeSource.getLocation() != null) {
+            URL location = codeSource.getLocation();
+            hasher.putString(location.toString(), StandardCharsets.UTF_8);
+            try {
+                hasher.putLong(new File(location.toURI()).lastModified());
+            } catch (URISyntaxException | IllegalArgumentException ignored) {
+                // not a file, so the location has to do
+            }
+        }
+        return prefix + hasher.hash().toString();
+    }
+
+    /**
+     * Find the class in this process or in the cache directory, or compile it.
+     *
+     * @param compiler  used if the class has to be compiled
+     * @param className a name from {@link #className(String, String, Class)}
+     * @param source    the source of the class
+     * @return the class, or null if it did not compile in which case the
+     *         errors are in the diagnostics of the compiler
+     */
+    public static Class<?> load(JavaSimpleCompiler compiler, String className, String source, Class<?> parentClass)
+            throws IOException, ClassNotFoundException {
+        return load(directory, compiler, className, source, parentClass);
+    }
+
+    static Class<?> load(File directory, JavaSimpleCompiler compiler, String className, String source,
+            Class<?> parentClass) throws IOException, ClassNotFoundException {
+        Class<?> loaded = classes.get(className);
+        if (loaded != null) {
+            return loaded;
+        }
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(className, lock);
+        synchronized (existing != null ? existing : lock) {
+            loaded = classes.get(className);
+            if (loaded != null) {
+                return loaded;
+            }
+            File cacheDirectory = cacheDirectory(directory);
+            if (!new File(cacheDirectory, className + ".class").exists()) {
+                if (!compileInto(compiler, className, source, cacheDirectory)) {
+                    return null;
+                }
+            } else {
+                log.debug("loading cached class " + className);
+            }
+            URLClassLoader loader = new URLClassLoader(new URL[]{cacheDirectory.toURI().toURL()},
+                    parentClass.getClassLoader());
+            loaded = loader.loadClass(className);
+            classes.put(className, loaded);
+            return loaded;
+        }
+    }
+
+    /**
+     * @return directory if it is safe to load classes from, creating it if
+     *         it is missing, or else a private temporary directory
+     */
+    private static File cacheDirectory(File directory) throws IOException {
+        File usable = directories.get(directory);
+        if (usable != null) {
+            return usable;
+        }
+        synchronized (directories) {
+            usable = directories.get(directory);
+            if (usable == null) {
+                String problem = prepare(directory.toPath());
+                if (problem == null) {
+                    usable = directory;
+                } else {
+                    log.warn("not using compiled class cache " + directory + ", " + problem +
+                             ", classes will not be shared");
+                    usable = Files.createTempDirectory("hydra-compiled").toFile();
+                }
+                directories.put(directory, usable);
+            }
+            return usable;
+        }
+    }
+
+    /**
+     * Create the directory readable only by the current user if it is
+     * missing, then check that no one else controls it.
+     *
+     * @return why the directory can not be used, or null if it can
+     */
+    private static String prepare(Path path) throws IOException {
+        boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                if (posix) {
+                    Files.createDirectory(path, PosixFilePermissions.asFileAttribute(
+                            PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    Files.createDirectory(path);
+                }
+            } catch (FileAlreadyExistsException ignored) {
+                // created by someone else, which the checks below catch
+            } catch (IOException ex) {
+                return "unable to create it: " + ex;
+            }
+        }
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            return "it is not a directory";
+        }
+        Path probe = Files.createTempFile("hydra-compiled", ".owner");
+        UserPrincipal user;
+        try {
+            user = Files.getOwner(probe);
+        } finally {
+            Files.delete(probe);
+        }
+        UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+        if (!owner.equals(user)) {
+            return "it is owned by " + owner.getName() + " rather than " + user.getName();
+        }
+        if (posix) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE) ||
+                permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                return "it is writable by group or others (" + PosixFilePermissions.toString(permissions) + ")";
+            }
+        }
+        return null;
+    }
+
+    private static boolean compileInto(JavaSimpleCompiler compiler, String className, String source,
+            File cacheDirectory) throws IOException {
+        Path work = Files.createTempDirectory(cacheDirectory.toPath(), className);
+        try {
+            if (!compiler.compile(className, source, work.toFile())) {
+                return false;
+            }
+            File[] compiled = work.toFile().listFiles();
+            if (compiled != null) {
+                for (File file : compiled) {
+                    if (file.getName().endsWith(".class") && !file.getName().equals(className + ".class")) {
+                        move(file, cacheDirectory);
+                    }
+                }
+            }
+            move(new File(work.toFile(), className + ".class"), cacheDirectory);
+            return true;
+        } finally {
+            File[] remaining = work.toFile().listFiles();
+            if (remaining != null) {
+                for (File file : remaining) {
+                    file.delete();
+                }
+            }
+            work.toFile().delete();
+        }
+    }
+
+    private static void move(File file, File cacheDirectory) throws IOException {
+        Path target = new File(cacheDirectory, file.getName()).toPath();
+        try {
+            Files.move(file.toPath(), target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(file.toPath(), target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
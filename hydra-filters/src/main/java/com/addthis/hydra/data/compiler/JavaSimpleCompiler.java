@@ -39,18 +39,35 @@ import org.slf4j.LoggerFactory;
 public class JavaSimpleCompiler {
 
     private static Logger log = LoggerFactory.getLogger(JavaSimpleCompiler.class);
-    private final StandardJavaFileManager fileManager;
-    private final JavaCompiler compiler;
+    private StandardJavaFileManager fileManager;
+    private JavaCompiler compiler;
     DiagnosticCollector<JavaFileObject> diagnostics;
 
+    /**
+     * The system compiler is only looked up when something is compiled,
+     * so creating an instance for a class that is found in the
+     * {@link JavaClassCache} costs nothing.
+     */
     public JavaSimpleCompiler() {
-        compiler = ToolProvider.getSystemJavaCompiler();
-        fileManager = compiler.getStandardFileManager(null, null, null);
         diagnostics = new DiagnosticCollector<>();
     }
 
     public boolean compile(String className, String body) throws IOException {
-        File sourceFile = new File("/tmp/" + className + ".java");
+        return compile(className, body, new File("/tmp"));
+    }
+
+    /**
+     * Write the source of className to directory and compile it into the same directory.
+     */
+    public boolean compile(String className, String body, File directory) throws IOException {
+        if (compiler == null) {
+            compiler = ToolProvider.getSystemJavaCompiler();
+            if (compiler == null) {
+                throw new IOException("no system java compiler is available");
+            }
+            fileManager = compiler.getStandardFileManager(null, null, null);
+        }
+        File sourceFile = new File(directory, className + ".java");
 
         BufferedWriter out = new BufferedWriter(new FileWriter(sourceFile));
         out.write(body);
@@ -58,8 +75,8 @@ public class JavaSimpleCompiler {
         List<String> optionList = new ArrayList<>();
         String classpath = System.getProperty("java.class.path");
         log.info("Classpath is " + classpath);
-        optionList.addAll(Arrays.asList("-cp", classpath));
-        JavaCompiler javaCompiler = ToolProvider.getSystemJavaCompiler();
+        optionList.addAll(Arrays.asList("-cp", classpath, "-d", directory.getPath()));
+        JavaCompiler javaCompiler = compiler;
         Iterable<? extends JavaFileObject> compilationUnits =
                 fileManager.getJavaFileObjects(sourceFile);
         boolean success = javaCompiler.getTask(null, fileManager, diagnostics,
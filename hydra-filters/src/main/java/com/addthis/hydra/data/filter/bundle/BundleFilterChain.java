@@ -37,25 +37,25 @@ public class BundleFilterChain extends BundleFilter {
      * The chain of bundle filters to execute.
      */
     @Codec.Set(codable = true, required = true)
-    private BundleFilter filter[];
+    BundleFilter filter[];
 
     /**
      * If true then stop execution on the failure of a filter. Default is true.
      */
     @Codec.Set(codable = true)
-    private boolean failStop = true;
+    boolean failStop = true;
 
     /**
      * The value to return on failure if {@link #failStop failStop} is true. Default is false.
      */
     @Codec.Set(codable = true)
-    private boolean failReturn = false;
+    boolean failReturn = false;
 
     /**
      * If true then print out debugging information. Default is false.
      */
     @Codec.Set(codable = true)
-    private boolean debug;
+    boolean debug;
 
     /**
      * Maximum number of bundles to print when
@@ -64,17 +64,53 @@ public class BundleFilterChain extends BundleFilter {
     @Codec.Set(codable = true)
     private long debugMaxBundles = 100;
 
+    /**
+     * If true then generate and compile a class that runs this chain
+     * and the chains, conditions and field filters nested in it
+     * without walking the filters for each bundle. The result is the
+     * same as running the chain. Only set this on the outermost chain.
+     * Ignored when {@link #debug} is true. If the class can not be
+     * compiled then the chain is run as usual.
+     * Default is false.
+     */
+    @Codec.Set(codable = true)
+    private boolean compile;
+
     private final AtomicLong bundleCounter = new AtomicLong();
 
+    private BundleFilter compiled;
+
+    public BundleFilterChain setCompile(boolean compile) {
+        this.compile = compile;
+        return this;
+    }
+
+    /**
+     * @return true if this chain runs as a compiled class
+     */
+    boolean isCompiled() {
+        return compiled != null;
+    }
+
     @Override
     public void initialize() {
         for (BundleFilter f : filter) {
             f.initOnceOnly();
         }
+        if (compile && !debug) {
+            try {
+                compiled = BundleFilterCompiler.compile(this);
+            } catch (Exception ex) {
+                log.warn("unable to compile filter chain, running it uncompiled", ex);
+            }
+        }
     }
 
     @Override
     public boolean filterExec(Bundle row) {
+        if (compiled != null) {
+            return compiled.filterExec(row);
+        }
         for (BundleFilter f : filter) {
             if (!f.filterExec(row) && failStop) {
                 if (debug && bundleCounter.getAndIncrement() < debugMaxBundles) {
@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.filter.bundle;
+
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.addthis.hydra.data.compiler.JavaClassCache;
+import com.addthis.hydra.data.compiler.JavaSimpleCompiler;
+import com.addthis.hydra.data.filter.value.ValueFilter;
+import com.addthis.hydra.data.filter.value.ValueFilterChain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Turns a {@link BundleFilterChain} into a generated class. Chains, conditions
+ * and field filters in the tree, and value filter chains in the field filters,
+ * become straight line code in the generated class, with the bundle fields of
+ * field filters bound once per format. Every other filter is called from the
+ * generated code exactly as the chain would call it.
+ * <p/>
+ * Chains with debug enabled and filters that are subclasses of the filters
+ * above are also called as they are, so the generated filter always does
+ * what the chain does.
+ */
+class BundleFilterCompiler {
+
+    private static final Logger log = LoggerFactory.getLogger(BundleFilterCompiler.class);
+
+    private final List<BundleFilter> bundleFilters = new ArrayList<>();
+    private final List<ValueFilter> valueFilters = new ArrayList<>();
+    private final List<String> fieldNames = new ArrayList<>();
+    private final StringBuilder methods = new StringBuilder();
+    private int methodCount;
+
+    private BundleFilterCompiler() {
+    }
+
+    /**
+     * @throws IllegalStateException if the generated class can not be compiled or loaded
+     */
+    static CompiledBundleFilter compile(BundleFilterChain chain) {
+        BundleFilterCompiler generator = new BundleFilterCompiler();
+        String root = generator.chainMethod(chain) + "(__bundle)";
+        // filters are passed in at setup, so chains of the same shape share a class
+        String className = JavaClassCache.className("BundleFilterCompiled",
+                generator.classDecl("BundleFilterCompiled", root), CompiledBundleFilter.class);
+        String classDecl = generator.classDecl(className, root);
+        JavaSimpleCompiler compiler = new JavaSimpleCompiler();
+        try {
+            Class<?> clazz = JavaClassCache.load(compiler, className, classDecl, CompiledBundleFilter.class);
+            if (clazz == null) {
+                StringBuilder builder = new StringBuilder("Error(s) occurred while attempting to compile filter chain.\n");
+                for (Diagnostic<? extends JavaFileObject> diagnostic : compiler.getDiagnostics().getDiagnostics()) {
+                    if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                        builder.append(diagnostic.getMessage(null));
+                        builder.append(" at line ");
+                        builder.append(diagnostic.getLineNumber());
+                        builder.append("\n");
+                    }
+                }
+                log.warn("Attempting to compile the following class.");
+                log.warn("\n" + classDecl);
+                throw new IllegalStateException(builder.toString());
+            }
+            CompiledBundleFilter filter = (CompiledBundleFilter) clazz.newInstance();
+            filter.setup(generator.bundleFilters.toArray(new BundleFilter[generator.bundleFilters.size()]),
+                         generator.valueFilters.toArray(new ValueFilter[generator.valueFilters.size()]),
+                         generator.fieldNames.toArray(new String[generator.fieldNames.size()]));
+            return filter;
+        } catch (IOException | ReflectiveOperationException ex) {
+            throw new IllegalStateException("Exception occurred while attempting to compile filter chain.", ex);
+        }
+    }
+
+    private String classDecl(String className, String root) {
+        StringBuilder classDecl = new StringBuilder();
+        classDecl.append("import com.addthis.bundle.core.Bundle;\n");
+        classDecl.append("import com.addthis.bundle.core.BundleField;\n");
+        classDecl.append("import com.addthis.bundle.value.ValueObject;\n");
+        classDecl.append("import com.addthis.hydra.data.filter.bundle.CompiledBundleFilter;\n");
+        classDecl.append("public class ").append(className).append(" extends CompiledBundleFilter {\n");
+        classDecl.append("public boolean filterExec(Bundle __bundle) {\n");
+        classDecl.append("return ").append(root).append(";\n");
+        classDecl.append("}\n");
+        classDecl.append(methods);
+        classDecl.append("}\n");
+        return classDecl.toString();
+    }
+
+    /**
+     * @return an expression that runs filter on __bundle
+     */
+    private String bundleCall(BundleFilter filter) {
+        String method;
+        if (filter.getClass() == BundleFilterChain.class && !((BundleFilterChain) filter).debug) {
+            method = chainMethod((BundleFilterChain) filter);
+        } else if (filter.getClass() == BundleFilterCondition.class) {
+            method = conditionMethod((BundleFilterCondition) filter);
+        } else if (filter.getClass() == BundleFilterField.class) {
+            method = fieldMethod((BundleFilterField) filter);
+        } else {
+            bundleFilters.add(filter);
+            return "bundleFilters[" + (bundleFilters.size() - 1) + "].filterExec(__bundle)";
+        }
+        return method + "(__bundle)";
+    }
+
+    /**
+     * @return an expression that runs filter on the value in variable
+     */
+    private String valueCall(ValueFilter filter, String variable) {
+        if (filter.getClass() == ValueFilterChain.class) {
+            return valueChainMethod((ValueFilterChain) filter) + "(" + variable + ")";
+        }
+        valueFilters.add(filter);
+        return "valueFilters[" + (valueFilters.size() - 1) + "].filter(" + variable + ")";
+    }
+
+    private String chainMethod(BundleFilterChain chain) {
+        StringBuilder body = new StringBuilder();
+        for (BundleFilter filter : chain.filter) {
+            if (chain.failStop) {
+                body.append("if (!").append(bundleCall(filter)).append(") {\n");
+                body.append("return ").append(chain.failReturn).append(";\n");
+                body.append("}\n");
+            } else {
+                body.append(bundleCall(filter)).append(";\n");
+            }
+        }
+        body.append("return true;\n");
+        return addBundleMethod(body);
+    }
+
+    private String conditionMethod(BundleFilterCondition condition) {
+        StringBuilder body = new StringBuilder();
+        body.append("if (__bundle != null) {\n");
+        body.append("if (").append(condition.ifCondition != null ? bundleCall(condition.ifCondition) : "false").append(") {\n");
+        if (condition.ifDo != null) {
+            body.append(bundleCall(condition.ifDo)).append(";\n");
+        }
+        body.append("} else {\n");
+        if (condition.elseDo != null) {
+            body.append(bundleCall(condition.elseDo)).append(";\n");
+        }
+        body.append("}\n");
+        body.append("}\n");
+        body.append("return true;\n");
+        return addBundleMethod(body);
+    }
+
+    private String fieldMethod(BundleFilterField field) {
+        StringBuilder body = new StringBuilder();
+        // both fields are bound before filtering, as BundleFilterField does
+        body.append("BundleField __from = field(__bundle, ").append(fieldIndex(field.from)).append(");\n");
+        if (field.to != null) {
+            body.append("BundleField __to = field(__bundle, ").append(fieldIndex(field.to)).append(");\n");
+        }
+        body.append("ValueObject __value = __bundle.getValue(__from);\n");
+        if (field.filter != null) {
+            body.append("__value = ").append(valueCall(field.filter, "__value")).append(";\n");
+        }
+        if (field.nullFail) {
+            body.append("if (__value == null) {\n");
+            body.append("return ").append(field.not).append(";\n");
+            body.append("}\n");
+        }
+        body.append("__bundle.setValue(").append(field.to == null ? "__from" : "__to").append(", __value);\n");
+        body.append("return ").append(!field.not).append(";\n");
+        return addBundleMethod(body);
+    }
+
+    private String valueChainMethod(ValueFilterChain chain) {
+        StringBuilder body = new StringBuilder();
+        if (!chain.getOnce()) {
+            // arrays are filtered element by element by the chain itself
+            valueFilters.add(chain);
+            body.append("if (__value != null && __value.getObjectType() == ValueObject.TYPE.ARRAY) {\n");
+            body.append("return valueFilters[").append(valueFilters.size() - 1).append("].filter(__value);\n");
+            body.append("}\n");
+        }
+        for (ValueFilter filter : chain.getFilter()) {
+            if (chain.getNullStop() && !filter.nullAccept()) {
+                body.append("if (__value == null) {\n");
+                body.append("return null;\n");
+                body.append("}\n");
+            }
+            body.append("__value = ").append(valueCall(filter, "__value")).append(";\n");
+        }
+        body.append("return __value;\n");
+        String name = "__value" + methodCount++;
+        methods.append("private ValueObject ").append(name).append("(ValueObject __value) {\n");
+        methods.append(body);
+        methods.append("}\n");
+        return name;
+    }
+
+    private String addBundleMethod(StringBuilder body) {
+        String name = "__filter" + methodCount++;
+        methods.append("private boolean ").append(name).append("(Bundle __bundle) {\n");
+        methods.append(body);
+        methods.append("}\n");
+        return name;
+    }
+
+    private int fieldIndex(String name) {
+        int index = fieldNames.indexOf(name);
+        if (index < 0) {
+            fieldNames.add(name);
+            index = fieldNames.size() - 1;
+        }
+        return index;
+    }
+}
@@ -63,31 +63,31 @@ public class BundleFilterField extends BundleFilter {
      * The input to the value filter. If the to field is null, then store the output in this field.
      */
     @Codec.Set(codable = true, required = true)
-    private String from;
+    String from;
 
     /**
      * The destination field for the output of the value filter. Optional field.
      */
     @Codec.Set(codable = true)
-    private String to;
+    String to;
 
     /**
      * The filter to perform. Optional field.
      */
     @Codec.Set(codable = true)
-    private ValueFilter filter;
+    ValueFilter filter;
 
     /**
      * If true then do not assign the value filter when the output is null and return the value of the {@link #not not} field. Default is true.
      */
     @Codec.Set(codable = true)
-    private boolean nullFail = true;
+    boolean nullFail = true;
 
     /**
      * The value to return when nullFail is true and the value filter output is null. Default is false.
      */
     @Codec.Set(codable = true)
-    private boolean not;
+    boolean not;
 
     private String fields[];
 
@@ -16,20 +16,14 @@ package com.addthis.hydra.data.filter.bundle;
 import java.io.File;
 import java.io.IOException;
 
-import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
-import com.addthis.basis.collect.HotMap;
 import com.addthis.basis.util.Bytes;
-import com.addthis.basis.util.Files;
 
 import com.addthis.bundle.core.Bundle;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.codec.Codec;
-import com.addthis.codec.CodecJSON;
-import com.addthis.hydra.common.hash.MD5HashFunction;
+import com.addthis.hydra.data.filter.util.LookupCache;
 import com.addthis.hydra.data.filter.value.ValueFilterHttpGet;
 
 import org.slf4j.Logger;
@@ -56,7 +50,6 @@ public class BundleFilterHttp extends BundleFilter {
     }
 
     private static final Logger log = LoggerFactory.getLogger(BundleFilterHttp.class);
-    private static final Codec codec = new CodecJSON();
 
     @Codec.Set(codable = true)
     private CacheConfig cache;
@@ -71,16 +64,61 @@ public class BundleFilterHttp extends BundleFilter {
     @Codec.Set(codable = true)
     private String set;
 
-    private File persistTo;
     private String fields[];
-    private HotMap<String, CacheObject> ocache;
+    private LookupCache ocache;
+
+    private final LookupCache.Loader loader = new LookupCache.Loader() {
+        @Override
+        public String load(String urlValue) {
+            int retries = http.retries;
+            while (retries-- > 0) {
+                try {
+                    byte val[] = httpGet(urlValue, null, null, http.timeout, trace);
+                    if (val != null && val.length >= 0) {
+                        return Bytes.toString(val);
+                    } else if (trace) {
+                        System.err.println(urlValue + " returned " + (val != null ? val.length : -1) + " retries left = " + retries);
+                    }
+                } catch (IllegalArgumentException e)  {
+                    log.error("error creating url {} : {} ", urlValue, e);
+                    break;
+                } catch (IOException e)  {
+                    log.error("error accessing url {} : {}", urlValue, e);
+                }
+                try {
+                    Thread.sleep(http.retryTimeout);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return defaultValue;
+        }
+    };
 
     public static class CacheConfig {
 
         @Codec.Set(codable = true)
         private int size = 1000;
+        /**
+         * If positive, limit the cache to about this many bytes instead of size entries.
+         */
+        @Codec.Set(codable = true)
+        private long bytes;
         @Codec.Set(codable = true)
         private long age;
+        /**
+         * Milliseconds to remember that an url could not be fetched before
+         * fetching it again. Zero fetches it again on every use.
+         */
+        @Codec.Set(codable = true)
+        private long missAge;
+        /**
+         * Never wait for a fetch. Bundles whose url is not in the cache yet
+         * are left as they are and expired values are used while they are
+         * fetched again.
+         */
+        @Codec.Set(codable = true)
+        private boolean async;
         @Codec.Set(codable = true)
         private String dir;
     }
@@ -95,23 +133,6 @@ public class BundleFilterHttp extends BundleFilter {
         private long retryTimeout = 1000;
     }
 
-    public static class CacheObject implements Codec.Codable, Comparable<CacheObject> {
-
-        @Codec.Set(codable = true)
-        private long time;
-        @Codec.Set(codable = true)
-        private String key;
-        @Codec.Set(codable = true)
-        private String data;
-
-        private String hash;
-
-        @Override
-        public int compareTo(CacheObject o) {
-            return (int) (time - o.time);
-        }
-    }
-
     @Override
     public void initialize() {
         fields = new String[]{set};
@@ -121,69 +142,18 @@ public class BundleFilterHttp extends BundleFilter {
         if (http == null) {
             http = new HttpConfig();
         }
-        ocache = new HotMap<>(new ConcurrentHashMap());
-        if (cache.dir != null) {
-            persistTo = Files.initDirectory(cache.dir);
-            LinkedList<CacheObject> list = new LinkedList<>();
-            for (File file : persistTo.listFiles()) {
-                if (file.isFile()) {
-                    try {
-                        CacheObject cached = codec.decode(CacheObject.class, Files.read(file));
-                        cached.hash = file.getName();
-                        list.add(cached);
-                        if (log.isDebugEnabled()) {
-                            log.debug("restored " + cached.hash + " as " + cached.key);
-                        }
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-            // sort so that hot map has the most recent inserted last
-            CacheObject sort[] = new CacheObject[list.size()];
-            list.toArray(sort);
-            Arrays.sort(sort);
-            for (CacheObject cached : sort) {
-                if (log.isDebugEnabled()) {
-                    log.debug("insert into hot " + cached.hash + " as " + cached.key);
-                }
-                ocache.put(cached.key, cached);
-            }
-        }
-    }
-
-    private synchronized CacheObject cacheGet(String key) {
-        return ocache.get(key);
-    }
-
-    private synchronized CacheObject cachePut(String key, String value) {
-        CacheObject cached = new CacheObject();
-        cached.time = System.currentTimeMillis();
-        cached.key = key;
-        cached.data = value;
-        cached.hash = MD5HashFunction.hash(key);
-        ocache.put(cached.key, cached);
-        CacheObject old;
-        if (cache.dir != null) {
-            try {
-                Files.write(new File(persistTo, cached.hash), codec.encode(cached), false);
-                if (log.isDebugEnabled()) {
-                    log.debug("creating " + cached.hash + " for " + cached.key);
-                }
-            } catch (Exception ex)  {
-                log.warn("", ex);
-            }
+        try {
+            ocache = new LookupCache.Builder()
+                    .maxSize(cache.size)
+                    .maxBytes(cache.bytes)
+                    .age(cache.age)
+                    .missAge(cache.missAge)
+                    .async(cache.async)
+                    .directory(cache.dir != null ? new File(cache.dir) : null)
+                    .build();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
         }
-        while (ocache.size() > cache.size) {
-            old = ocache.removeEldest();
-            if (cache.dir != null) {
-                new File(persistTo, old.hash).delete();
-                if (log.isDebugEnabled()) {
-                    log.debug("deleted " + old.hash + " containing " + old.key);
-                }
-            }
-        }
-        return cached;
     }
 
     public static byte[] httpGet(String url, Map<String, String> requestHeaders,
@@ -194,40 +164,9 @@ public class BundleFilterHttp extends BundleFilter {
 
     @Override
     public boolean filterExec(Bundle bundle) {
-        String urlValue = url.template(bundle);
-        CacheObject cached = cacheGet(urlValue);
-        if (cached == null || (cache.age > 0 && System.currentTimeMillis() - cached.time > cache.age)) {
-            if (log.isDebugEnabled() && cached != null && cache.age > 0 && System.currentTimeMillis() - cached.time > cache.age) {
-                log.warn("aging out, replacing " + cached.hash + " or " + cached.key);
-            }
-            int retries = http.retries;
-            while (retries-- > 0) {
-                try {
-                    byte val[] = httpGet(urlValue, null, null, http.timeout, trace);
-                    if (val != null && val.length >= 0) {
-                        cached = cachePut(urlValue, Bytes.toString(val));
-                        break;
-                    } else if (trace) {
-                        System.err.println(urlValue + " returned " + (val != null ? val.length : -1) + " retries left = " + retries);
-                    }
-                } catch (IllegalArgumentException e)  {
-                    log.error("error creating url {} : {} ", urlValue, e);
-                    break;
-                } catch (IOException e)  {
-                    log.error("error accessing url {} : {}", urlValue, e);
-                }
-                try {
-                    Thread.sleep(http.retryTimeout);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            if (cached == null && defaultValue != null) {
-                cachePut(urlValue, defaultValue);
-            }
-        }
-        if (cached != null) {
-            bundle.setValue(getBindings(bundle, fields)[0], ValueFactory.create(cached.data));
+        String data = ocache.get(url.template(bundle), loader);
+        if (data != null) {
+            bundle.setValue(getBindings(bundle, fields)[0], ValueFactory.create(data));
         }
         return true;
     }
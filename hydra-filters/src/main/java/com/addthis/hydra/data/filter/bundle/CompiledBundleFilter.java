@@ -0,0 +1,74 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.filter.bundle;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
+import com.addthis.hydra.data.filter.value.ValueFilter;
+
+/**
+ * Base class of the filters generated by {@link BundleFilterCompiler}.
+ * Holds the filters that the generated code calls and binds bundle fields
+ * once per bundle format rather than once per bundle.
+ */
+public abstract class CompiledBundleFilter extends BundleFilter {
+
+    private static final class Bindings {
+
+        final BundleFormat format;
+        final BundleField[] fields;
+
+        Bindings(BundleFormat format, int size) {
+            this.format = format;
+            this.fields = new BundleField[size];
+        }
+    }
+
+    protected BundleFilter[] bundleFilters;
+    protected ValueFilter[] valueFilters;
+    private String[] fieldNames;
+    private volatile Bindings bindings;
+
+    void setup(BundleFilter[] bundleFilters, ValueFilter[] valueFilters, String[] fieldNames) {
+        this.bundleFilters = bundleFilters;
+        this.valueFilters = valueFilters;
+        this.fieldNames = fieldNames;
+        this.bindings = new Bindings(null, fieldNames.length);
+    }
+
+    /**
+     * Fields are looked up the first time they are used with a format, as
+     * uncompiled filters would, so no field is added to a format that the
+     * filters would not have added.
+     */
+    protected final BundleField field(Bundle bundle, int index) {
+        BundleFormat format = bundle.getFormat();
+        Bindings current = bindings;
+        if (current.format != format) {
+            current = new Bindings(format, fieldNames.length);
+            bindings = current;
+        }
+        BundleField field = current.fields[index];
+        if (field == null) {
+            field = format.getField(fieldNames[index]);
+            current.fields[index] = field;
+        }
+        return field;
+    }
+
+    @Override
+    public void initialize() {
+    }
+}
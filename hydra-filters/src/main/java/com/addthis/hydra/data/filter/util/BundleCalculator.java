@@ -17,15 +17,16 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import com.addthis.basis.util.Strings;
 
 import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.BundleFormat;
 import com.addthis.bundle.core.BundleFormatted;
 import com.addthis.bundle.util.BundleColumnBinder;
-import com.addthis.bundle.util.ValueUtil;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueNumber;
 import com.addthis.bundle.value.ValueObject;
@@ -72,13 +73,14 @@ public class BundleCalculator {
         OP_COLNAMEVAL
     }
 
-    private List<MathOp> ops;
+    private final MathOp[] ops;
+    private final ThreadLocal<Stack> stacks;
     private boolean diverr;
     private BundleColumnBinder sourceBinder;
 
     public BundleCalculator(String args) {
         String op[] = Strings.splitArray(args, ",");
-        ops = new ArrayList<>(op.length);
+        List<MathOp> ops = new ArrayList<>(op.length);
         for (String o : op) {
             if (o.equals("+") || o.equals("add")) {
                 ops.add(new MathOp(Operation.OP_ADD, null));
@@ -171,245 +173,573 @@ public class BundleCalculator {
                 }
             }
         }
+        this.ops = fold(ops).toArray(new MathOp[0]);
+        // only constants, columns and dup add to the stack, one value each
+        final int capacity = this.ops.length;
+        stacks = new ThreadLocal<Stack>() {
+            @Override
+            protected Stack initialValue() {
+                return new Stack(capacity);
+            }
+        };
     }
 
     public Bundle calculate(Bundle line) {
-        LinkedList<ValueNumber> stack = new LinkedList<ValueNumber>();
+        Stack stack = stacks.get();
+        stack.size = 0;
         long maxcol = line.getCount() - 1;
         for (MathOp op : ops) {
-            switch (op.type) {
-                case OP_ADD:
-                    stack.push(stack.pop().sum(stack.pop()));
-                    break;
-                case OP_SUB:
-                    ValueNumber v1 = stack.pop();
-                    ValueNumber v2 = stack.pop();
-                    stack.push(v2.diff(v1));
-                    break;
-                case OP_MULT:
-                    stack.push(ValueFactory.create(stack.pop().asLong().getLong() * stack.pop().asLong().getLong()));
-                    break;
-                case OP_DMULT:
-                    stack.push(ValueFactory.create(stack.pop().asDouble().getDouble() * stack.pop().asDouble().getDouble()));
-                    break;
-                case OP_DIV:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!diverr && v1.asLong().getLong() == 0) {
-                        stack.push(ValueFactory.create(0));
-                    } else {
-                        stack.push(ValueFactory.create(v2.asLong().getLong() / v1.asLong().getLong()));
-                    }
-                    break;
-                case OP_DDIV:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!diverr && v1.asDouble().getDouble() == 0d) {
-                        stack.push(ValueFactory.create(0));
-                    } else {
-                        stack.push(ValueFactory.create(v2.asDouble().getDouble() / v1.asDouble().getDouble()));
-                    }
-                    break;
-                case OP_REM:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!diverr && v1.asLong().getLong() == 0) {
-                        stack.push(ValueFactory.create(0));
-                    } else {
-                        stack.push(ValueFactory.create(v2.asLong().getLong() % v1.asLong().getLong()));
-                    }
-                    break;
-                case OP_LOG:
-                    stack.push(ValueFactory.create(Math.log10(stack.pop().asDouble().getDouble())));
-                    break;
-                case OP_SQRT:
-                    stack.push(ValueFactory.create(Math.sqrt(stack.pop().asDouble().getDouble())));
-                    break;
-                case OP_VAL:
+            if (!execute(op, stack, line, maxcol)) {
+                return null;
+            }
+        }
+        return line;
+    }
+
+    /**
+     * Run one operation. Values keep the type that the {@link ValueNumber}
+     * methods the calculator used to call would have given them, so for
+     * example adding a float to an int gives an int. Operations that used
+     * those methods still call them when either operand is a number of
+     * another type, such as a sketch from a tree attachment.
+     *
+     * @return false if a comparison failed and the line should be dropped
+     */
+    private boolean execute(MathOp op, Stack stack, Bundle line, long maxcol) {
+        int v1;
+        int v2;
+        switch (op.type) {
+            case OP_ADD:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.isBoxed(v1, v2)) {
+                    stack.push(stack.getValue(v1).sum(stack.getValue(v2)));
+                } else if (stack.isDouble[v1]) {
+                    stack.pushDouble(stack.doubles[v1] + stack.getDouble(v2));
+                } else {
+                    stack.pushLong(stack.longs[v1] + stack.getLong(v2));
+                }
+                break;
+            case OP_SUB:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.isBoxed(v1, v2)) {
+                    stack.push(stack.getValue(v2).diff(stack.getValue(v1)));
+                } else if (stack.isDouble[v2]) {
+                    stack.pushDouble(stack.doubles[v2] - stack.getDouble(v1));
+                } else {
+                    stack.pushLong(stack.longs[v2] - stack.getLong(v1));
+                }
+                break;
+            case OP_MULT:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                stack.pushLong(stack.getLong(v1) * stack.getLong(v2));
+                break;
+            case OP_DMULT:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                stack.pushDouble(stack.getDouble(v1) * stack.getDouble(v2));
+                break;
+            case OP_DIV:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!diverr && stack.getLong(v1) == 0) {
+                    stack.pushLong(0);
+                } else {
+                    stack.pushLong(stack.getLong(v2) / stack.getLong(v1));
+                }
+                break;
+            case OP_DDIV:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!diverr && stack.getDouble(v1) == 0d) {
+                    stack.pushLong(0);
+                } else {
+                    stack.pushDouble(stack.getDouble(v2) / stack.getDouble(v1));
+                }
+                break;
+            case OP_REM:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!diverr && stack.getLong(v1) == 0) {
+                    stack.pushLong(0);
+                } else {
+                    stack.pushLong(stack.getLong(v2) % stack.getLong(v1));
+                }
+                break;
+            case OP_LOG:
+                stack.pushDouble(Math.log10(stack.getDouble(stack.pop())));
+                break;
+            case OP_SQRT:
+                stack.pushDouble(Math.sqrt(stack.getDouble(stack.pop())));
+                break;
+            case OP_VAL:
+                if (op.val != null) {
                     stack.push(op.val.asNumber());
-                    break;
-                case OP_COLVAL:
-                    stack.push(getSourceColumnBinder(line).getColumn(line, (int) op.val.asLong().getLong()).asNumber());
-                    break;
-                case OP_COLNAMEVAL:
-                    stack.push(line.getValue(line.getFormat().getField(op.val.toString())).asNumber());
-                    break;
-                case OP_DUP:
-                    stack.push(stack.peek());
-                    break;
-                case OP_TOINT:
-                    stack.push(ValueUtil.asNumberOrParseLong(stack.pop(), 10).asLong());
-                    break;
-                case OP_TOFLOAT:
-                    stack.push(ValueUtil.asNumberOrParseDouble(stack.pop()));
-                    break;
-                case OP_DGT:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asDouble().getDouble() > v1.asDouble().getDouble())) {
-                        return null;
-                    }
-                    break;
-                case OP_DGT_EQ:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asDouble().getDouble() >= v1.asDouble().getDouble())) {
-                        return null;
-                    }
-                    break;
-                case OP_DLT:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asDouble().getDouble() < v1.asDouble().getDouble())) {
-                        return null;
-                    }
-                    break;
-                case OP_DLT_EQ:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asDouble().getDouble() <= v1.asDouble().getDouble())) {
-                        return null;
-                    }
-                    break;
-                case OP_DEQ:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (v2.asDouble().getDouble() != v1.asDouble().getDouble()) {
-                        return null;
-                    }
-                    break;
-                case OP_GT:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asLong().getLong() > v1.asLong().getLong())) {
-                        return null;
-                    }
-                    break;
-                case OP_GT_EQ:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asLong().getLong() >= v1.asLong().getLong())) {
-                        return null;
-                    }
-                    break;
-                case OP_LT:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asLong().getLong() < v1.asLong().getLong())) {
-                        return null;
-                    }
-                    break;
-                case OP_LT_EQ:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (!(v2.asLong().getLong() <= v1.asLong().getLong())) {
-                        return null;
-                    }
-                    break;
-                case OP_EQ:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    if (v2.asLong().getLong() != v1.asLong().getLong()) {
-                        return null;
-                    }
-                    break;
-                case OP_SWAP:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    stack.push(v1);
-                    stack.push(v2);
-                    break;
-                case OP_SHIFTOUT:
-                    getSourceColumnBinder(line).appendColumn(line, stack.pop());
-                    break;
-                case OP_SET:
-                    int col = (int) stack.pop().asLong().getLong();
-                    ValueNumber val = stack.pop();
-                    if (col < 0 || col > maxcol) {
-                        getSourceColumnBinder(line).appendColumn(line, val);
-                    } else {
-                        getSourceColumnBinder(line).setColumn(line, col, val);
-                    }
-                    break;
-                case OP_MIN:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    stack.push(v1.min(v2));
-                    break;
-                case OP_MAX:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    stack.push(v1.max(v2));
-                    break;
-                case OP_MINIF:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    stack.push(v1.max(v2).equals(v1) ? v1 : v2);
-                    break;
-                case OP_MAXIF:
-                    v1 = stack.pop();
-                    v2 = stack.pop();
-                    stack.push(v1.min(v2).equals(v1) ? v1 : v2);
-                    break;
-                case OP_MEAN: {
-                    long count = 0;
-                    double mean = 0.0;
-
-                    while (!stack.isEmpty()) {
-                        count++;
-                        double num = stack.pop().asDouble().getDouble();
-                        double delta = num - mean;
-                        mean += delta / count;
-                    }
+                } else if (op.isDouble) {
+                    stack.pushDouble(op.doubleValue);
+                } else {
+                    stack.pushLong(op.longValue);
+                }
+                break;
+            case OP_COLVAL:
+                int column = op.val != null ? (int) op.val.asLong().getLong() : op.column;
+                stack.push(getSourceColumnBinder(line).getColumn(line, column).asNumber());
+                break;
+            case OP_COLNAMEVAL:
+                stack.push(line.getValue(op.field(line.getFormat())).asNumber());
+                break;
+            case OP_DUP:
+                stack.push(stack.peek());
+                break;
+            case OP_TOINT:
+                stack.pushLong(stack.getLong(stack.pop()));
+                break;
+            case OP_TOFLOAT:
+                // numbers are returned as they are by ValueUtil.asNumberOrParseDouble
+                stack.peek();
+                break;
+            case OP_DGT:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getDouble(v2) > stack.getDouble(v1))) {
+                    return false;
+                }
+                break;
+            case OP_DGT_EQ:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getDouble(v2) >= stack.getDouble(v1))) {
+                    return false;
+                }
+                break;
+            case OP_DLT:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getDouble(v2) < stack.getDouble(v1))) {
+                    return false;
+                }
+                break;
+            case OP_DLT_EQ:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getDouble(v2) <= stack.getDouble(v1))) {
+                    return false;
+                }
+                break;
+            case OP_DEQ:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.getDouble(v2) != stack.getDouble(v1)) {
+                    return false;
+                }
+                break;
+            case OP_GT:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getLong(v2) > stack.getLong(v1))) {
+                    return false;
+                }
+                break;
+            case OP_GT_EQ:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getLong(v2) >= stack.getLong(v1))) {
+                    return false;
+                }
+                break;
+            case OP_LT:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getLong(v2) < stack.getLong(v1))) {
+                    return false;
+                }
+                break;
+            case OP_LT_EQ:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (!(stack.getLong(v2) <= stack.getLong(v1))) {
+                    return false;
+                }
+                break;
+            case OP_EQ:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.getLong(v2) != stack.getLong(v1)) {
+                    return false;
+                }
+                break;
+            case OP_SWAP:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                stack.swap(v1, v2);
+                stack.size += 2;
+                break;
+            case OP_SHIFTOUT:
+                getSourceColumnBinder(line).appendColumn(line, stack.getValue(stack.pop()));
+                break;
+            case OP_SET:
+                int col = (int) stack.getLong(stack.pop());
+                ValueNumber val = stack.getValue(stack.pop());
+                if (col < 0 || col > maxcol) {
+                    getSourceColumnBinder(line).appendColumn(line, val);
+                } else {
+                    getSourceColumnBinder(line).setColumn(line, col, val);
+                }
+                break;
+            case OP_MIN:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.isBoxed(v1, v2)) {
+                    stack.push(stack.getValue(v1).min(stack.getValue(v2)));
+                } else if (stack.isDouble[v1]) {
+                    stack.pushDouble(min(stack.doubles[v1], stack.getDouble(v2)));
+                } else {
+                    stack.pushLong(Math.min(stack.longs[v1], stack.getLong(v2)));
+                }
+                break;
+            case OP_MAX:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.isBoxed(v1, v2)) {
+                    stack.push(stack.getValue(v1).max(stack.getValue(v2)));
+                } else if (stack.isDouble[v1]) {
+                    stack.pushDouble(Math.max(stack.doubles[v1], stack.getDouble(v2)));
+                } else {
+                    stack.pushLong(Math.max(stack.longs[v1], stack.getLong(v2)));
+                }
+                break;
+            case OP_MINIF:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.isBoxed(v1, v2) ? stack.getValue(v1).max(stack.getValue(v2)).equals(stack.getValue(v1))
+                    : stack.isDouble[v1] ? Math.max(stack.doubles[v1], stack.getDouble(v2)) == stack.doubles[v1]
+                                         : Math.max(stack.longs[v1], stack.getLong(v2)) == stack.longs[v1]) {
+                    stack.swap(v1, v2);
+                }
+                stack.size++;
+                break;
+            case OP_MAXIF:
+                v1 = stack.pop();
+                v2 = stack.pop();
+                if (stack.isBoxed(v1, v2) ? stack.getValue(v1).min(stack.getValue(v2)).equals(stack.getValue(v1))
+                    : stack.isDouble[v1] ? min(stack.doubles[v1], stack.getDouble(v2)) == stack.doubles[v1]
+                                         : Math.min(stack.longs[v1], stack.getLong(v2)) == stack.longs[v1]) {
+                    stack.swap(v1, v2);
+                }
+                stack.size++;
+                break;
+            case OP_MEAN: {
+                long count = 0;
+                double mean = 0.0;
 
-                    stack.push(ValueFactory.create(mean));
-                    break;
+                while (stack.size > 0) {
+                    count++;
+                    double num = stack.getDouble(stack.pop());
+                    double delta = num - mean;
+                    mean += delta / count;
                 }
-                case OP_VARIANCE: {
-                    long count = 0;
-                    double mean = 0.0;
-                    double m2 = 0.0;
-
-                    while (!stack.isEmpty()) {
-                        count++;
-                        double num = stack.pop().asDouble().getDouble();
-                        double delta = num - mean;
-                        mean += delta / count;
-                        m2 += delta * (num - mean);
-                    }
 
-                    if (count < 2) {
-                        stack.push(ValueFactory.create(0.0));
-                    } else {
-                        double variance = m2 / count;
-                        stack.push(ValueFactory.create(variance));
-                    }
+                stack.pushDouble(mean);
+                break;
+            }
+            case OP_VARIANCE: {
+                long count = 0;
+                double mean = 0.0;
+                double m2 = 0.0;
+
+                while (stack.size > 0) {
+                    count++;
+                    double num = stack.getDouble(stack.pop());
+                    double delta = num - mean;
+                    mean += delta / count;
+                    m2 += delta * (num - mean);
+                }
 
-                    break;
+                if (count < 2) {
+                    stack.pushDouble(0.0);
+                } else {
+                    double variance = m2 / count;
+                    stack.pushDouble(variance);
                 }
-                case OP_ABS:
-                    v1 = stack.pop();
-                    stack.push(ValueFactory.create(Math.abs(v1.asDouble().getDouble())));
-                default:
-                    break;
+
+                break;
             }
+            case OP_ABS:
+                stack.pushDouble(Math.abs(stack.getDouble(stack.pop())));
+                break;
+            default:
+                break;
         }
-        return line;
+        return true;
     }
 
-    /** */
-    private class MathOp {
+    /**
+     * The minimum as {@link ValueNumber#min} computes it for floats, which
+     * is the other value whenever the first one is not positive.
+     */
+    private static double min(double value, double other) {
+        return value > 0 ? Math.min(value, other) : other;
+    }
 
-        private
+    /**
+     * Evaluate operations whose arguments are all constants once, here,
+     * rather than for every line.
+     */
+    private List<MathOp> fold(List<MathOp> program) {
+        List<MathOp> folded = new ArrayList<>(program.size());
+        for (MathOp op : program) {
+            int arguments = constantArguments(op.type);
+            int first = folded.size() - arguments;
+            boolean constant = arguments > 0 && first >= 0;
+            for (int i = first; constant && i < folded.size(); i++) {
+                constant = folded.get(i).isConstant();
+            }
+            if (!constant) {
+                folded.add(op);
+                continue;
+            }
+            Stack stack = new Stack(arguments + 1);
+            for (int i = first; i < folded.size(); i++) {
+                execute(folded.get(i), stack, null, 0);
+            }
+            try {
+                execute(op, stack, null, 0);
+            } catch (ArithmeticException ex) {
+                // division by zero with diverr set fails every line, as it should
+                folded.add(op);
+                continue;
+            }
+            folded.subList(first, folded.size()).clear();
+            for (int i = 0; i < stack.size; i++) {
+                folded.add(stack.isDouble[i] ? new MathOp(stack.doubles[i]) : new MathOp(stack.longs[i]));
+            }
+        }
+        return folded;
+    }
+
+    /**
+     * @return how many values an operation that only depends on its
+     *         arguments takes from the stack, or zero for other operations
+     */
+    private static int constantArguments(Operation type) {
+        switch (type) {
+            case OP_ADD:
+            case OP_SUB:
+            case OP_MULT:
+            case OP_DMULT:
+            case OP_DIV:
+            case OP_DDIV:
+            case OP_REM:
+            case OP_SWAP:
+            case OP_MIN:
+            case OP_MAX:
+            case OP_MINIF:
+            case OP_MAXIF:
+                return 2;
+            case OP_LOG:
+            case OP_SQRT:
+            case OP_DUP:
+            case OP_TOINT:
+            case OP_TOFLOAT:
+            case OP_ABS:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The operand stack, with each int or float value kept as a long or a
+     * double. Numbers of any other type, such as sketches, are kept as they
+     * are so that their own arithmetic and conversions are used. One is
+     * kept per thread and reused for every line, so evaluating a line of
+     * ints and floats allocates nothing but the values that are written
+     * to it.
+     */
+    private static final class Stack {
+
+        final long[] longs;
+        final double[] doubles;
+        final boolean[] isDouble;
+        final ValueNumber[] boxed;
+        int size;
+
+        Stack(int capacity) {
+            longs = new long[capacity];
+            doubles = new double[capacity];
+            isDouble = new boolean[capacity];
+            boxed = new ValueNumber[capacity];
+        }
+
+        void pushLong(long value) {
+            longs[size] = value;
+            boxed[size] = null;
+            isDouble[size++] = false;
+        }
+
+        void pushDouble(double value) {
+            doubles[size] = value;
+            boxed[size] = null;
+            isDouble[size++] = true;
+        }
+
+        void push(ValueNumber value) {
+            ValueObject.TYPE type = value.getObjectType();
+            if (type == ValueObject.TYPE.FLOAT) {
+                pushDouble(value.asDouble().getDouble());
+            } else if (type == ValueObject.TYPE.INT) {
+                pushLong(value.asLong().getLong());
+            } else {
+                boxed[size] = value;
+                isDouble[size++] = false;
+            }
+        }
+
+        /**
+         * push a copy of the value at index
+         */
+        void push(int index) {
+            longs[size] = longs[index];
+            doubles[size] = doubles[index];
+            boxed[size] = boxed[index];
+            isDouble[size++] = isDouble[index];
+        }
+
+        /**
+         * @return true if either value is neither an int nor a float
+         */
+        boolean isBoxed(int a, int b) {
+            return boxed[a] != null || boxed[b] != null;
+        }
+
+        /**
+         * @return the index of the value that was removed, which stays
+         *         readable until the next push
+         */
+        int pop() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            return --size;
+        }
+
+        int peek() {
+            if (size == 0) {
+                throw new NoSuchElementException();
+            }
+            return size - 1;
+        }
+
+        void swap(int a, int b) {
+            long l = longs[a];
+            double d = doubles[a];
+            ValueNumber v = boxed[a];
+            boolean type = isDouble[a];
+            longs[a] = longs[b];
+            doubles[a] = doubles[b];
+            boxed[a] = boxed[b];
+            isDouble[a] = isDouble[b];
+            longs[b] = l;
+            doubles[b] = d;
+            boxed[b] = v;
+            isDouble[b] = type;
+        }
+
+        long getLong(int index) {
+            if (boxed[index] != null) {
+                return boxed[index].asLong().getLong();
+            }
+            return isDouble[index] ? (long) doubles[index] : longs[index];
+        }
+
+        double getDouble(int index) {
+            if (boxed[index] != null) {
+                return boxed[index].asDouble().getDouble();
+            }
+            return isDouble[index] ? doubles[index] : (double) longs[index];
+        }
+
+        ValueNumber getValue(int index) {
+            if (boxed[index] != null) {
+                return boxed[index];
+            }
+            return isDouble[index] ? ValueFactory.create(doubles[index]) : ValueFactory.create(longs[index]);
+        }
+    }
+
+    /**
+     * Constants and column numbers are parsed once. If one can not be
+     * parsed the value is kept and parsed for every line, which fails
+     * the same way the calculator always has.
+     */
+    private static class MathOp {
+
+        private final
         @Nonnull
         Operation type;
         private
         @Nullable
         ValueObject val;
+        private boolean isDouble;
+        private long longValue;
+        private double doubleValue;
+        private int column;
+        private String name;
+        private FieldBinding binding;
 
         MathOp(Operation type, ValueObject val) {
             this.type = type;
             this.val = val;
+            try {
+                if (type == Operation.OP_VAL) {
+                    ValueNumber number = val.asNumber();
+                    isDouble = number.getObjectType() == ValueObject.TYPE.FLOAT;
+                    longValue = number.asLong().getLong();
+                    doubleValue = number.asDouble().getDouble();
+                    this.val = null;
+                } else if (type == Operation.OP_COLVAL) {
+                    column = (int) val.asLong().getLong();
+                    this.val = null;
+                } else if (type == Operation.OP_COLNAMEVAL) {
+                    name = val.toString();
+                }
+            } catch (RuntimeException ex) {
+                // left to fail on every line
+            }
+        }
+
+        MathOp(long value) {
+            this(Operation.OP_VAL, ValueFactory.create(value));
+        }
+
+        MathOp(double value) {
+            this(Operation.OP_VAL, ValueFactory.create(value));
+        }
+
+        boolean isConstant() {
+            return type == Operation.OP_VAL && val == null;
+        }
+
+        BundleField field(BundleFormat format) {
+            FieldBinding current = binding;
+            if (current == null || current.format != format) {
+                current = new FieldBinding(format, format.getField(name));
+                binding = current;
+            }
+            return current.field;
+        }
+    }
+
+    private static final class FieldBinding {
+
+        final BundleFormat format;
+        final BundleField field;
+
+        FieldBinding(BundleFormat format, BundleField field) {
+            this.format = format;
+            this.field = field;
         }
     }
 
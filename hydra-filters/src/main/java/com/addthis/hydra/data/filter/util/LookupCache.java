@@ -0,0 +1,331 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.filter.util;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of looked up values for filters that enrich data from a remote
+ * service, such as {@link com.addthis.hydra.data.filter.value.ValueFilterHttpGet}.
+ * <p/>
+ * Lookups of a key that is already being loaded wait for that load rather
+ * than starting another one. In async mode a lookup never waits: a missing
+ * key returns null and an expired key returns its old value while the new
+ * one is loaded by a shared pool of threads.
+ * <p/>
+ * Failed loads can be remembered for a while so that a key that keeps
+ * failing is not loaded again for every row. Values can be persisted to a
+ * single file in a directory. Filters that persist to the same directory
+ * share that file but each keeps its own values in memory with its own
+ * limits, so they must use keys that identify the value on their own, such
+ * as the full url.
+ */
+public class LookupCache {
+
+    private static final Logger log = LoggerFactory.getLogger(LookupCache.class);
+
+    private static final int loadThreads = Parameter.intValue("hydra.lookup.cache.threads", 4);
+
+    private static final ConcurrentMap<File, LookupStore> persistent = new ConcurrentHashMap<>();
+
+    private static ExecutorService loadExecutor;
+
+    /**
+     * Loads the value for a key. Returns null if there is no value.
+     */
+    public static interface Loader {
+
+        @Nullable
+        String load(String key);
+    }
+
+    static final class Entry {
+
+        final long time;
+        @Nullable
+        final String data;
+        /**
+         * the last load failed, data is the value from before if there was one
+         */
+        final boolean miss;
+
+        Entry(long time, @Nullable String data, boolean miss) {
+            this.time = time;
+            this.data = data;
+            this.miss = miss;
+        }
+    }
+
+    public static class Builder {
+
+        protected int maxSize = 1000;
+        protected long maxBytes;
+        protected long age;
+        protected long missAge;
+        protected boolean async;
+        protected File directory;
+        protected Function<String, String> legacyKeys;
+
+        /**
+         * most entries kept in memory, unless maxBytes is set
+         */
+        public Builder maxSize(int val) {
+            maxSize = val;
+            return this;
+        }
+
+        /**
+         * approximate most bytes of keys and values kept in memory
+         */
+        public Builder maxBytes(long val) {
+            maxBytes = val;
+            return this;
+        }
+
+        /**
+         * milliseconds before a value is loaded again, or zero to keep values until evicted
+         */
+        public Builder age(long val) {
+            age = val;
+            return this;
+        }
+
+        /**
+         * milliseconds before a key that failed to load is loaded again, or zero to retry every time
+         */
+        public Builder missAge(long val) {
+            missAge = val;
+            return this;
+        }
+
+        public Builder async(boolean val) {
+            async = val;
+            return this;
+        }
+
+        /**
+         * directory that values are persisted to, or null to keep them in memory only
+         */
+        public Builder directory(File val) {
+            directory = val;
+            return this;
+        }
+
+        /**
+         * maps the keys of values read from old one file per value
+         * directories to the keys they have in this cache
+         */
+        public Builder legacyKeys(Function<String, String> val) {
+            legacyKeys = val;
+            return this;
+        }
+
+        public LookupCache build() throws IOException {
+            if (directory == null) {
+                return new LookupCache(this, null);
+            }
+            File key = directory.getCanonicalFile();
+            LookupStore store = persistent.get(key);
+            if (store == null) {
+                LookupStore created = new LookupStore(key);
+                store = persistent.putIfAbsent(key, created);
+                if (store == null) {
+                    store = created;
+                }
+            }
+            return new LookupCache(this, store);
+        }
+    }
+
+    private final Cache<String, Entry> cache;
+    private final ConcurrentMap<String, FutureTask<Entry>> loading = new ConcurrentHashMap<>();
+    private final long age;
+    private final long missAge;
+    private final boolean async;
+    @Nullable
+    private final LookupStore store;
+
+    private LookupCache(Builder builder, @Nullable LookupStore store) {
+        CacheBuilder<Object, Object> cacheBuilder = CacheBuilder.newBuilder();
+        if (builder.maxBytes > 0) {
+            cacheBuilder.maximumWeight(builder.maxBytes).weigher(new EntryWeigher());
+        } else {
+            cacheBuilder.maximumSize(builder.maxSize);
+        }
+        this.cache = cacheBuilder.build();
+        this.age = builder.age;
+        this.missAge = builder.missAge;
+        this.async = builder.async;
+        this.store = store;
+        if (store != null) {
+            // oldest first, so the most recent values are the last to be evicted
+            for (Map.Entry<String, Entry> stored : store.load(builder.legacyKeys)) {
+                cache.put(stored.getKey(), stored.getValue());
+            }
+            store.attach(cache.asMap());
+            store.compact();
+        }
+    }
+
+    private static final class EntryWeigher implements Weigher<String, Entry> {
+
+        @Override
+        public int weigh(String key, Entry entry) {
+            return 64 + 2 * (key.length() + (entry.data != null ? entry.data.length() : 0));
+        }
+    }
+
+    private static synchronized ExecutorService loadExecutor() {
+        if (loadExecutor == null) {
+            loadExecutor = MoreExecutors.getExitingExecutorService(
+                    new ThreadPoolExecutor(loadThreads, loadThreads, 0L, TimeUnit.MILLISECONDS,
+                            new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactoryBuilder().setNameFormat("LookupCacheLoader-%d").build()));
+        }
+        return loadExecutor;
+    }
+
+    private boolean expired(Entry entry, long now) {
+        if (entry.miss) {
+            return now - entry.time > missAge;
+        }
+        return age > 0 && now - entry.time > age;
+    }
+
+    /**
+     * @return the value of key, loading it with loader if it is missing or
+     *         expired, or null if there is none. If loading fails the expired
+     *         value is returned.
+     */
+    @Nullable
+    public String get(String key, Loader loader) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry != null && !expired(entry, System.currentTimeMillis())) {
+            return entry.data;
+        }
+        FutureTask<Entry> task = loading.get(key);
+        boolean owner = false;
+        if (task == null) {
+            FutureTask<Entry> created = new FutureTask<>(new Load(key, loader));
+            task = loading.putIfAbsent(key, created);
+            if (task == null) {
+                task = created;
+                owner = true;
+            }
+        }
+        if (async) {
+            if (owner) {
+                loadExecutor().execute(task);
+            }
+            return entry != null ? entry.data : null;
+        }
+        if (owner) {
+            task.run();
+        }
+        Entry loaded;
+        try {
+            loaded = task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return entry != null ? entry.data : null;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+        return loaded.data;
+    }
+
+    /**
+     * Set the value of key, as if it had been loaded.
+     */
+    public void put(String key, String value) {
+        store(key, new Entry(System.currentTimeMillis(), value, false));
+    }
+
+    private void store(String key, Entry entry) {
+        cache.put(key, entry);
+        if (store != null) {
+            store.append(key, entry);
+        }
+    }
+
+    public long size() {
+        return cache.size();
+    }
+
+    private class Load implements Callable<Entry> {
+
+        private final String key;
+        private final Loader loader;
+
+        Load(String key, Loader loader) {
+            this.key = key;
+            this.loader = loader;
+        }
+
+        @Override
+        public Entry call() {
+            try {
+                long now = System.currentTimeMillis();
+                String data = loader.load(key);
+                if (data != null) {
+                    Entry entry = new Entry(now, data, false);
+                    store(key, entry);
+                    return entry;
+                }
+                Entry current = cache.getIfPresent(key);
+                Entry entry = new Entry(now, current != null ? current.data : null, true);
+                if (missAge > 0) {
+                    cache.put(key, entry);
+                }
+                return entry;
+            } catch (RuntimeException ex) {
+                if (async) {
+                    log.warn("error loading " + key, ex);
+                }
+                throw ex;
+            } finally {
+                loading.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.filter.util;
+
+import javax.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.common.hash.MD5HashFunction;
+
+import com.google.common.base.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The values of the {@link LookupCache}s persisting to a directory in one
+ * file that records are appended to. Each cache keeps its own values in
+ * memory, and replaced records are dropped by rewriting the file with the
+ * values of every cache once it holds more than twice as many records as
+ * the caches.
+ * <p/>
+ * Directories written by filters that stored every value in a file of its
+ * own are read as well, and those files are removed once their values are
+ * in the store. Only files named after the md5 of the key they hold are
+ * taken to be such values.
+ */
+class LookupStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LookupStore.class);
+    private static final Codec codec = new CodecJSON();
+
+    static final String FILE_NAME = "lookup.cache";
+
+    /**
+     * a value in the format of the filters' old one file per value directories
+     */
+    public static class LegacyEntry implements Codec.Codable {
+
+        @Codec.Set(codable = true)
+        private long time;
+        @Codec.Set(codable = true)
+        private String key;
+        @Codec.Set(codable = true)
+        private String data;
+    }
+
+    private final File directory;
+    private final File file;
+    private final List<File> legacy = new ArrayList<>();
+    private final List<Map<String, LookupCache.Entry>> caches = new ArrayList<>();
+    private DataOutputStream out;
+    private long records;
+
+    LookupStore(File directory) {
+        this.directory = directory;
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * @param legacyKeys maps the keys of old one file per value entries, or null to keep them
+     * @return the stored values, oldest first
+     */
+    synchronized List<Map.Entry<String, LookupCache.Entry>> load(@Nullable Function<String, String> legacyKeys) {
+        Map<String, LookupCache.Entry> entries = new LinkedHashMap<>();
+        records = 0;
+        legacy.clear();
+        Files.initDirectory(directory);
+        if (file.exists()) {
+            long valid = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                while (true) {
+                    long time = in.readLong();
+                    String key = readString(in, file.length());
+                    String data = readString(in, file.length());
+                    entries.put(key, new LookupCache.Entry(time, data, false));
+                    records++;
+                    valid += 16 + utf8Length(key) + utf8Length(data);
+                }
+            } catch (EOFException ignored) {
+                // end of the file, or of the last record written before a crash
+            } catch (IOException ex) {
+                log.warn("unable to read " + file, ex);
+            }
+            if (valid < file.length()) {
+                log.warn("truncating " + file + " from " + file.length() + " to " + valid + " bytes");
+                try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                    truncate.setLength(valid);
+                } catch (IOException ex) {
+                    log.warn("unable to truncate " + file, ex);
+                }
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File legacyFile : files) {
+                LegacyEntry legacyEntry = readLegacy(legacyFile);
+                if (legacyEntry == null) {
+                    continue;
+                }
+                String key = legacyKeys != null ? legacyKeys.apply(legacyEntry.key) : legacyEntry.key;
+                LookupCache.Entry current = entries.get(key);
+                if (current == null || current.time < legacyEntry.time) {
+                    entries.put(key, new LookupCache.Entry(legacyEntry.time, legacyEntry.data, false));
+                }
+                legacy.add(legacyFile);
+            }
+        }
+        List<Map.Entry<String, LookupCache.Entry>> sorted = new ArrayList<>(entries.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, LookupCache.Entry>>() {
+            @Override
+            public int compare(Map.Entry<String, LookupCache.Entry> a, Map.Entry<String, LookupCache.Entry> b) {
+                return Long.compare(a.getValue().time, b.getValue().time);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * The old filters named each file after the md5 of its key. Anything
+     * else in the directory is not ours and is left alone.
+     *
+     * @return the entry in file, or null if it is not an old cache entry
+     */
+    @Nullable
+    private static LegacyEntry readLegacy(File legacyFile) {
+        if (!legacyFile.isFile() || legacyFile.getName().length() != 32) {
+            return null;
+        }
+        LegacyEntry legacyEntry;
+        try {
+            legacyEntry = codec.decode(LegacyEntry.class, Files.read(legacyFile));
+        } catch (Exception ex) {
+            return null;
+        }
+        if (legacyEntry.key == null || legacyEntry.data == null ||
+            !legacyFile.getName().equals(MD5HashFunction.hash(legacyEntry.key))) {
+            return null;
+        }
+        return legacyEntry;
+    }
+
+    /**
+     * @param live the values of a cache, written whenever the file is compacted
+     */
+    synchronized void attach(Map<String, LookupCache.Entry> live) {
+        caches.add(live);
+    }
+
+    synchronized void append(String key, LookupCache.Entry entry) {
+        if (entry.miss || entry.data == null) {
+            return;
+        }
+        try {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            }
+            write(out, key, entry);
+            out.flush();
+            records++;
+        } catch (IOException ex) {
+            log.warn("unable to write to " + file, ex);
+        }
+        compact();
+    }
+
+    /**
+     * Rewrite the file with only the values of the attached caches if it
+     * has grown to more than twice their number or there are old files to
+     * remove.
+     */
+    synchronized void compact() {
+        long size = 0;
+        for (Map<String, LookupCache.Entry> cache : caches) {
+            size += cache.size();
+        }
+        if (records <= 2 * size + 1024 && legacy.isEmpty()) {
+            return;
+        }
+        Map<String, LookupCache.Entry> live = new LinkedHashMap<>();
+        for (Map<String, LookupCache.Entry> cache : caches) {
+            for (Map.Entry<String, LookupCache.Entry> entry : cache.entrySet()) {
+                LookupCache.Entry current = live.get(entry.getKey());
+                if (current == null || current.time < entry.getValue().time) {
+                    live.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        long written = 0;
+        try {
+            try (DataOutputStream tempOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                for (Map.Entry<String, LookupCache.Entry> entry : live.entrySet()) {
+                    if (!entry.getValue().miss && entry.getValue().data != null) {
+                        write(tempOut, entry.getKey(), entry.getValue());
+                        written++;
+                    }
+                }
+            }
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+            try {
+                java.nio.file.Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException ex) {
+                java.nio.file.Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            records = written;
+            for (File legacyFile : legacy) {
+                legacyFile.delete();
+            }
+            legacy.clear();
+            if (log.isDebugEnabled()) {
+                log.debug("compacted " + file + " to " + written + " values");
+            }
+        } catch (IOException ex) {
+            log.warn("unable to compact " + file, ex);
+        }
+    }
+
+    private static void write(DataOutputStream out, String key, LookupCache.Entry entry) throws IOException {
+        out.writeLong(entry.time);
+        writeString(out, key);
+        writeString(out, entry.data);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > limit) {
+            throw new EOFException();
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int utf8Length(String value) {
+        return value.getBytes(StandardCharsets.UTF_8).length;
+    }
+}
@@ -49,6 +49,14 @@ public class ValueFilterChain extends ValueFilter {
     @Codec.Set(codable = true)
     private boolean nullStop = true;
 
+    public ValueFilter[] getFilter() {
+        return filter;
+    }
+
+    public boolean getNullStop() {
+        return nullStop;
+    }
+
     @Override
     public ValueObject filterValue(ValueObject value) {
         for (ValueFilter f : filter) {
@@ -19,14 +19,12 @@ import javax.tools.JavaFileObject;
 
 import java.io.IOException;
 
-import java.net.MalformedURLException;
-
 import java.util.HashSet;
 import java.util.Set;
-import java.util.UUID;
 
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.codec.Codec;
+import com.addthis.hydra.data.compiler.JavaClassCache;
 import com.addthis.hydra.data.compiler.JavaSimpleCompiler;
 import com.addthis.hydra.data.filter.eval.InputType;
 
@@ -174,10 +172,45 @@ public class ValueFilterEvalJava extends ValueFilter {
     }
 
     private ValueFilter createConstructedFilter() {
+        // the class name is a hash of the source, so the same filter is compiled once per host
+        String className = JavaClassCache.className("ValueFilter", createClassDecl("ValueFilter"), ValueFilter.class);
+        String classDeclString = createClassDecl(className);
+        JavaSimpleCompiler compiler = new JavaSimpleCompiler();
+
+        Class<?> clazz;
+        try {
+            clazz = JavaClassCache.load(compiler, className, classDeclString, ValueFilter.class);
+        } catch (IOException ex) {
+            String msg = "Exception occurred while attempting to compile 'eval-java' filter.";
+            msg += ex.toString();
+            log.warn("Attempting to compile the following class.");
+            log.warn("\n" + classDeclString);
+            throw new IllegalStateException(msg);
+        } catch (ClassNotFoundException ex) {
+            String msg = "Exception occurred while attempting to classload 'eval-java' generated class.";
+            msg += ex.toString();
+            log.warn("Attempting to compile the following class.");
+            log.warn("\n" + classDeclString);
+            throw new IllegalStateException(msg);
+        }
+
+        if (clazz == null) {
+            throw handleCompilationError(classDeclString, compiler);
+        }
+
+        try {
+            return (ValueFilter) clazz.newInstance();
+        } catch (InstantiationException | IllegalAccessException ex) {
+            String msg = "Exception occurred while attempting to classload 'eval-java' generated class.";
+            msg += ex.toString();
+            log.warn("Attempting to compile the following class.");
+            log.warn("\n" + classDeclString);
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    private String createClassDecl(String className) {
         StringBuffer classDecl = new StringBuffer();
-        String classDeclString;
-        UUID uuid = UUID.randomUUID();
-        String className = "ValueFilter" + uuid.toString().replaceAll("-", "");
         for (String oneImport : requiredImports) {
             classDecl.append(oneImport);
             classDecl.append("\n");
@@ -198,40 +231,7 @@ public class ValueFilterEvalJava extends ValueFilter {
         createFilterValueMethod(classDecl);
         createFilterValueInternalMethod(classDecl);
         classDecl.append("}\n");
-        classDeclString = classDecl.toString();
-        JavaSimpleCompiler compiler = new JavaSimpleCompiler();
-
-        boolean success;
-        try {
-            success = compiler.compile(className, classDeclString);
-        } catch (IOException ex) {
-            String msg = "Exception occurred while attempting to compile 'eval-java' filter.";
-            msg += ex.toString();
-            log.warn("Attempting to compile the following class.");
-            log.warn("\n" + classDeclString);
-            throw new IllegalStateException(msg);
-        }
-
-        try {
-            if (!success) {
-                throw handleCompilationError(classDeclString, compiler);
-            }
-
-            ValueFilter filter;
-            try {
-                filter = (ValueFilter) compiler.getDefaultInstance(className, ValueFilter.class);
-            } catch (ClassNotFoundException | MalformedURLException |
-                    InstantiationException | IllegalAccessException ex) {
-                String msg = "Exception occurred while attempting to classload 'eval-java' generated class.";
-                msg += ex.toString();
-                log.warn("Attempting to compile the following class.");
-                log.warn("\n" + classDeclString);
-                throw new IllegalStateException(msg);
-            }
-            return filter;
-        } finally {
-            compiler.cleanupFiles(className);
-        }
+        return classDecl.toString();
     }
 
     private IllegalStateException handleCompilationError(String classDeclString, JavaSimpleCompiler compiler) {
@@ -13,19 +13,13 @@
  */
 package com.addthis.hydra.data.filter.value;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-
-import com.addthis.basis.util.Bytes;
-
 import com.addthis.bundle.util.ValueUtil;
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueObject;
 import com.addthis.codec.Codec;
+import com.addthis.hydra.common.hash.Hashes;
 import com.addthis.hydra.common.hash.PluggableHashFunction;
 
-import org.apache.commons.codec.binary.Hex;
-
 /**
  * This {@link ValueFilter ValueFilter} <span class="hydra-summary">returns the hash of a value</span>.
  * <p/>
@@ -36,9 +30,13 @@ import org.apache.commons.codec.binary.Hex;
  * <li>"1" uses the PluggableHashFunction method.</li>
  * <li>"2" uses the CUID hash method.</li>
  * <li>"3" uses SHA hashing.</li>
- * <li>"4" uses SHA-1 hashing.</li>
+ * <li>"4" uses SHA-1 hashing and returns the hash as a hex string.</li>
+ * <li>"5" uses 64 bit murmur3 hashing.</li>
+ * <li>"6" uses 128 bit murmur3 hashing and returns the hash as a hex string.</li>
  * </ul>
  * </p>
+ * <p>Types 5 and 6 are much cheaper than the SHA types and are a better choice
+ * when the hash does not need to be cryptographic.</p>
  * <p/>
  * <p>Example:</p>
  * <pre>
@@ -80,26 +78,15 @@ public class ValueFilterHash extends ValueFilter {
                 hash = cuidHash(sv);
                 break;
             case 3:
-                try {
-                    MessageDigest md = MessageDigest.getInstance("SHA");
-                    md.update(Bytes.toBytes(sv));
-                    byte b[] = md.digest();
-                    for (int i = 0; i < b.length && i < 8; i++) {
-                        hash = (hash << 8) | (b[i] & 0xff);
-                    }
-                } catch (NoSuchAlgorithmException e) {
-                    // ignore
-                }
+                hash = Hashes.sha1Long(sv);
                 break;
             case 4:
-                try {
-                    MessageDigest md = MessageDigest.getInstance("SHA-1");
-                    md.reset();
-                    md.update(Bytes.toBytes(sv));
-                    return ValueFactory.create(new String(Hex.encodeHex(md.digest())));
-                } catch (NoSuchAlgorithmException e) {
-                    // ignore
-                }
+                return ValueFactory.create(Hashes.sha1Hex(sv));
+            case 5:
+                hash = Hashes.murmur64(sv);
+                break;
+            case 6:
+                return ValueFactory.create(Hashes.murmur128Hex(sv));
             default:
                 throw new RuntimeException("Unknown hash type: " + type);
         }
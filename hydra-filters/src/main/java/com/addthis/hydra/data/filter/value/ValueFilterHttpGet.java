@@ -16,38 +16,45 @@ package com.addthis.hydra.data.filter.value;
 import java.io.File;
 import java.io.IOException;
 
-import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
 
-import com.addthis.basis.collect.HotMap;
 import com.addthis.basis.net.HttpUtil;
 import com.addthis.basis.net.http.HttpResponse;
 import com.addthis.basis.util.Bytes;
-import com.addthis.basis.util.Files;
 import com.addthis.basis.util.Multidict;
 
 import com.addthis.codec.Codec;
-import com.addthis.codec.CodecJSON;
-import com.addthis.hydra.common.hash.MD5HashFunction;
+import com.addthis.hydra.data.filter.util.LookupCache;
 
-import org.apache.http.client.methods.HttpGet;
+import com.google.common.base.Function;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.apache.http.client.methods.HttpGet;
 
 
 public class ValueFilterHttpGet extends StringFilter {
 
-    private static final Logger log = LoggerFactory.getLogger(ValueFilterHttpGet.class);
-    private static final Codec codec = new CodecJSON();
-
     @Codec.Set(codable = true)
     private int cacheSize = 1000;
+    /**
+     * If positive, limit the cache to about this many bytes instead of
+     * {@link #cacheSize} entries.
+     */
+    @Codec.Set(codable = true)
+    private long cacheBytes;
     @Codec.Set(codable = true)
     private long cacheAge;
+    /**
+     * Milliseconds to remember that a value could not be fetched before
+     * fetching it again. Zero fetches it again on every use.
+     */
+    @Codec.Set(codable = true)
+    private long missAge;
+    /**
+     * Never wait for a fetch. Values that are not in the cache yet return
+     * null and expired values are returned while they are fetched again.
+     */
+    @Codec.Set(codable = true)
+    private boolean async;
     @Codec.Set(codable = true)
     private int timeout = 60000;
     @Codec.Set(codable = true)
@@ -67,109 +74,19 @@ public class ValueFilterHttpGet extends StringFilter {
     @Codec.Set(codable = true)
     private String persistDir = ".";
 
-    private HotMap<String, CacheObject> cache = new HotMap<String, CacheObject>(new ConcurrentHashMap());
-    private AtomicBoolean init = new AtomicBoolean(false);
-    private File persistTo;
-
-    public static class CacheObject implements Codec.Codable, Comparable<CacheObject> {
-
-        @Codec.Set(codable = true)
-        private long time;
-        @Codec.Set(codable = true)
-        private String key;
-        @Codec.Set(codable = true)
-        private String data;
-
-        private String hash;
+    private volatile LookupCache cache;
 
+    private final LookupCache.Loader loader = new LookupCache.Loader() {
         @Override
-        public int compareTo(CacheObject o) {
-            return (int) (time - o.time);
-        }
-    }
-
-    private void checkInit() {
-        if (init.compareAndSet(false, true)) {
-            if (persist) {
-                persistTo = Files.initDirectory(persistDir);
-                LinkedList<CacheObject> list = new LinkedList<CacheObject>();
-                for (File file : persistTo.listFiles()) {
-                    if (file.isFile()) {
-                        try {
-                            CacheObject cached = codec.decode(CacheObject.class, Files.read(file));
-                            cached.hash = file.getName();
-                            list.add(cached);
-                            if (log.isDebugEnabled()) {
-                                log.debug("restored " + cached.hash + " as " + cached.key);
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-                // sort so that hot map has the most recent inserted last
-                CacheObject sort[] = new CacheObject[list.size()];
-                list.toArray(sort);
-                Arrays.sort(sort);
-                for (CacheObject cached : sort) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("insert into hot " + cached.hash + " as " + cached.key);
-                    }
-                    cache.put(cached.key, cached);
-                }
-            }
-        }
-    }
-
-    private synchronized CacheObject cacheGet(String key) {
-        return cache.get(key);
-    }
-
-    private synchronized CacheObject cachePut(String key, String value) {
-        CacheObject cached = new CacheObject();
-        cached.time = System.currentTimeMillis();
-        cached.key = key;
-        cached.data = value;
-        cached.hash = MD5HashFunction.hash(key);
-        cache.put(cached.key, cached);
-        try {
-            Files.write(new File(persistTo, cached.hash), codec.encode(cached), false);
-            if (log.isDebugEnabled()) {
-                log.debug("creating " + cached.hash + " for " + cached.key);
-            }
-        } catch (Exception ex)  {
-            log.warn("", ex);
-        }
-        while (cache.size() > cacheSize) {
-            CacheObject old = cache.removeEldest();
-            new File(persistTo, old.hash).delete();
-            if (log.isDebugEnabled()) {
-                log.debug("deleted " + old.hash + " containing " + old.key);
-            }
-        }
-        return cached;
-    }
-
-    @Override
-    public String filter(String sv) {
-        if (sv == null) {
-            return sv;
-        }
-        checkInit();
-        CacheObject cached = cacheGet(sv);
-        if (cached == null || (cacheAge > 0 && System.currentTimeMillis() - cached.time > cacheAge)) {
-            if (log.isDebugEnabled() && cached != null && cacheAge > 0 && System.currentTimeMillis() - cached.time > cacheAge) {
-                log.debug("aging out, replacing " + cached.hash + " or " + cached.key);
-            }
+        public String load(String url) {
             int retries = retry;
             while (retries-- > 0) {
                 try {
-                    byte val[] = httpGet(template.replace("{{}}", sv), null, null, timeout, trace);
+                    byte val[] = httpGet(url, null, null, timeout, trace);
                     if (val != null && (emptyOk || val.length > 0)) {
-                        cached = cachePut(sv, Bytes.toString(val));
-                        break;
+                        return Bytes.toString(val);
                     } else if (trace) {
-                        System.err.println(template.replace("{{}}", sv) + " returned " + (val != null ? val.length : -1) + " retries left = " + retries);
+                        System.err.println(url + " returned " + (val != null ? val.length : -1) + " retries left = " + retries);
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -180,11 +97,54 @@ public class ValueFilterHttpGet extends StringFilter {
                     e.printStackTrace();
                 }
             }
-            if (cached == null && missValue != null) {
-                cachePut(sv, missValue);
+            return missValue;
+        }
+    };
+
+    /**
+     * Values are cached by url so that filters with different templates can
+     * share a persist directory. Values persisted by older versions of this
+     * filter are keyed by the input value and are moved to their url.
+     */
+    private final Function<String, String> urlOf = new Function<String, String>() {
+        @Override
+        public String apply(String sv) {
+            return template.replace("{{}}", sv);
+        }
+    };
+
+    private LookupCache cache() {
+        LookupCache current = cache;
+        if (current == null) {
+            synchronized (this) {
+                current = cache;
+                if (current == null) {
+                    try {
+                        current = new LookupCache.Builder()
+                                .maxSize(cacheSize)
+                                .maxBytes(cacheBytes)
+                                .age(cacheAge)
+                                .missAge(missAge)
+                                .async(async)
+                                .directory(persist ? new File(persistDir) : null)
+                                .legacyKeys(urlOf)
+                                .build();
+                    } catch (IOException ex) {
+                        throw new IllegalStateException(ex);
+                    }
+                    cache = current;
+                }
             }
         }
-        return cached != null ? cached.data : null;
+        return current;
+    }
+
+    @Override
+    public String filter(String sv) {
+        if (sv == null) {
+            return sv;
+        }
+        return cache().get(urlOf.apply(sv), loader);
     }
 
     public static byte[] httpGet(String url, Map<String, String> requestHeaders,
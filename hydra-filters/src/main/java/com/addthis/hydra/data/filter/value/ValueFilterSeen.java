@@ -58,7 +58,8 @@ public class ValueFilterSeen extends ValueFilter {
     private ValueFilter filter;
 
     /**
-     * The bloom filter.
+     * The bloom filter. Filters with the blocked hash type (5) are
+     * much faster to test when they are several megabytes or more.
      */
     @Codec.Set(codable = true)
     protected SeenFilterBasic<Raw> bloom;
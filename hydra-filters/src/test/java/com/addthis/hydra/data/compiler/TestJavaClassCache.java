@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.compiler;
+
+import java.io.File;
+
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.util.concurrent.Callable;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestJavaClassCache {
+
+    private File directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("compiled").toFile();
+    }
+
+    @After
+    public void deleteDirectory() {
+        com.addthis.basis.util.Files.deleteDir(directory);
+    }
+
+    private static String source(String className, String value) {
+        return "public class " + className + " implements java.util.concurrent.Callable<String> {\n" +
+               "public String call() { return \"" + value + "\"; }\n" +
+               "}\n";
+    }
+
+    @Test
+    public void className() {
+        String first = JavaClassCache.className("Test", source("Test", "a"), TestJavaClassCache.class);
+        assertEquals(first, JavaClassCache.className("Test", source("Test", "a"), TestJavaClassCache.class));
+        assertNotEquals(first, JavaClassCache.className("Test", source("Test", "b"), TestJavaClassCache.class));
+    }
+
+    @Test
+    public void load() throws Exception {
+        String value = Long.toString(System.nanoTime());
+        String className = JavaClassCache.className("Test", source("Test", value), TestJavaClassCache.class);
+        String source = source(className, value);
+        File cache = new File(directory, "cache");
+        Class<?> clazz = JavaClassCache.load(cache, new JavaSimpleCompiler(), className, source,
+                TestJavaClassCache.class);
+        assertEquals(value, ((Callable<?>) clazz.newInstance()).call());
+        assertTrue(new File(cache, className + ".class").exists());
+        JavaSimpleCompiler compiler = new JavaSimpleCompiler();
+        assertSame(clazz, JavaClassCache.load(cache, compiler, className, source, TestJavaClassCache.class));
+        assertFalse(compiler.getDiagnostics().getDiagnostics().iterator().hasNext());
+        if (cache.toPath().getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(cache.toPath())));
+        }
+    }
+
+    @Test
+    public void sharedDirectoryNotUsed() throws Exception {
+        Assume.assumeTrue(directory.toPath().getFileSystem().supportedFileAttributeViews().contains("posix"));
+        Files.setPosixFilePermissions(directory.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        String value = Long.toString(System.nanoTime());
+        String className = JavaClassCache.className("Test", source("Test", value), TestJavaClassCache.class);
+        Class<?> clazz = JavaClassCache.load(directory, new JavaSimpleCompiler(), className,
+                source(className, value), TestJavaClassCache.class);
+        assertEquals(value, ((Callable<?>) clazz.newInstance()).call());
+        assertFalse(new File(directory, className + ".class").exists());
+    }
+
+    @Test
+    public void compileError() throws Exception {
+        String source = "public class Broken { int x = ; }";
+        String className = JavaClassCache.className("Test", source, TestJavaClassCache.class);
+        JavaSimpleCompiler compiler = new JavaSimpleCompiler();
+        assertNull(JavaClassCache.load(directory, compiler, className, source.replace("Broken", className),
+                TestJavaClassCache.class));
+        assertFalse(compiler.getDiagnostics().getDiagnostics().isEmpty());
+    }
+}
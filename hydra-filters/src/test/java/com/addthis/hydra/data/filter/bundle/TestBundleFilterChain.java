@@ -0,0 +1,95 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.filter.bundle;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.BundleField;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.codec.CodecJSON;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBundleFilterChain {
+
+    private static final String CHAIN = "{op:\"chain\", filter:[" +
+            "{op:\"field\", from:\"NAME\", to:\"UPPER\", nullFail:false, filter:{op:\"chain\", filter:[" +
+            "  {op:\"case\", upper:true}, {op:\"require\", value:[\"FOO\", \"BAR\"]}, {op:\"default\", value:\"X\"}]}}," +
+            "{op:\"field\", from:\"NAME\", to:\"TRIED\", nullFail:false, filter:{op:\"chain\", nullStop:false, filter:[" +
+            "  {op:\"require\", value:[\"foo\"]}, {op:\"default\", value:\"other\"}]}}," +
+            "{op:\"condition\", ifCondition:{op:\"field\", from:\"UPPER\"}," +
+            "  ifDo:{op:\"field\", from:\"NAME\", to:\"SEEN\"}," +
+            "  elseDo:{op:\"field\", from:\"OTHER\", to:\"SEEN\", filter:{op:\"default\", value:\"none\"}}}," +
+            "{op:\"chain\", failStop:false, filter:[{op:\"field\", from:\"MISSING\"}, {op:\"field\", from:\"TAGS\", filter:{op:\"case\", lower:true}}]}," +
+            "{op:\"field\", from:\"MISSING\", not:true}," +
+            "{op:\"field\", from:\"NAME\", to:\"NEVER\"}" +
+            "]}";
+
+    private static Bundle[] bundles(ListBundleFormat format) {
+        Bundle[] bundles = new Bundle[3];
+        for (int i = 0; i < bundles.length; i++) {
+            bundles[i] = new ListBundle(format);
+        }
+        bundles[0].setValue(format.getField("NAME"), ValueFactory.create("foo"));
+        bundles[1].setValue(format.getField("NAME"), ValueFactory.create("dog"));
+        bundles[1].setValue(format.getField("OTHER"), ValueFactory.create("cat"));
+        ValueArray tags = ValueFactory.createArray(2);
+        tags.add(ValueFactory.create("A"));
+        tags.add(ValueFactory.create("B"));
+        bundles[2].setValue(format.getField("TAGS"), tags);
+        return bundles;
+    }
+
+    private static String run(BundleFilter filter, ListBundleFormat format) {
+        StringBuilder sb = new StringBuilder();
+        for (Bundle bundle : bundles(format)) {
+            sb.append(filter.filterExec(bundle)).append(':');
+            for (BundleField field : bundle.getFormat()) {
+                sb.append(field.getName()).append('=').append(bundle.getValue(field)).append(',');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void compiledMatchesChain() throws Exception {
+        BundleFilterChain chain = CodecJSON.decodeString(new BundleFilterChain(), CHAIN);
+        chain.initOnceOnly();
+        String expected = run(chain, new ListBundleFormat());
+        BundleFilter compiled = BundleFilterCompiler.compile(chain);
+        assertEquals(expected, run(compiled, new ListBundleFormat()));
+        assertEquals("true:NAME=foo,OTHER=null,TAGS=null,UPPER=FOO,TRIED=foo,SEEN=foo,MISSING=null,NEVER=foo,\n" +
+                     "true:NAME=dog,OTHER=cat,TAGS=null,UPPER=null,TRIED=other,SEEN=cat,MISSING=null,NEVER=dog,\n" +
+                     "false:NAME=null,OTHER=null,TAGS=a,b,UPPER=null,TRIED=other,SEEN=none,MISSING=null,NEVER=null,\n",
+                     expected);
+    }
+
+    @Test
+    public void compileOption() throws Exception {
+        BundleFilterChain chain = CodecJSON.decodeString(new BundleFilterChain(), CHAIN);
+        BundleFilterChain compiled = CodecJSON.decodeString(new BundleFilterChain(), CHAIN).setCompile(true);
+        chain.initOnceOnly();
+        compiled.initOnceOnly();
+        assertFalse(chain.isCompiled());
+        assertTrue(compiled.isCompiled());
+        assertEquals(run(chain, new ListBundleFormat()), run(compiled, new ListBundleFormat()));
+    }
+}
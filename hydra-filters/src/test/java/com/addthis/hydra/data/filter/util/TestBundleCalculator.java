@@ -0,0 +1,213 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.filter.util;
+
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.value.ValueArray;
+import com.addthis.bundle.value.ValueBytes;
+import com.addthis.bundle.value.ValueCustom;
+import com.addthis.bundle.value.ValueDouble;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.bundle.value.ValueLong;
+import com.addthis.bundle.value.ValueMap;
+import com.addthis.bundle.value.ValueNumber;
+import com.addthis.bundle.value.ValueObject;
+import com.addthis.bundle.value.ValueString;
+import com.addthis.bundle.value.ValueTranslationException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TestBundleCalculator {
+
+    private static Bundle bundle(ValueObject... values) {
+        Bundle bundle = new ListBundle();
+        for (int i = 0; i < values.length; i++) {
+            bundle.setValue(bundle.getFormat().getField("c" + i), values[i]);
+        }
+        return bundle;
+    }
+
+    private static ValueObject calculate(String args, Bundle bundle, int column) {
+        Bundle result = new BundleCalculator(args).calculate(bundle);
+        assertNotNull(result);
+        return result.getValue(result.getFormat().getField("c" + column));
+    }
+
+    @Test
+    public void types() {
+        // results have the type ValueNumber.sum and ValueNumber.diff would give them
+        Bundle bundle = bundle(ValueFactory.create(1), ValueFactory.create(2.5), ValueFactory.create(0));
+        assertEquals("3", calculate("c1,c0,+,v2,set", bundle, 2).toString());
+        assertEquals("3.5", calculate("c0,c1,+,v2,set", bundle, 2).toString());
+        assertEquals("-1", calculate("c0,c1,-,v2,set", bundle, 2).toString());
+        assertEquals("1.5", calculate("c1,c0,-,v2,set", bundle, 2).toString());
+        assertEquals("2", calculate("c1,n1,*,v2,set", bundle, 2).toString());
+        assertEquals("2.5", calculate("c1,n1,dmult,v2,set", bundle, 2).toString());
+        assertEquals("2", calculate("c1,toi,v2,set", bundle, 2).toString());
+        assertEquals("1", calculate("c0,tof,v2,set", bundle, 2).toString());
+    }
+
+    @Test
+    public void strings() {
+        Bundle bundle = bundle(ValueFactory.create("7"), ValueFactory.create("0.5"), ValueFactory.create(0));
+        assertEquals("20", calculate("c0,c1,dmult,c0,+,c1,-,n2,/,n4,*,v2,set", bundle, 2).toString());
+    }
+
+    @Test
+    public void constants() {
+        Bundle bundle = bundle(ValueFactory.create(10), ValueFactory.create(0));
+        assertEquals("110", calculate("n3,n4,*,n2,-,n10,*,c0,+,v1,set", bundle, 1).toString());
+        assertEquals("2.0", calculate("n2,n2,*,sqrt,v1,set", bundle, 1).toString());
+        assertEquals("0", calculate("n1,n0,/,v1,set", bundle, 1).toString());
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void divideByZero() {
+        calculate("n1,n0,/,v1,set,diverr", bundle(ValueFactory.create(1), ValueFactory.create(0)), 1);
+    }
+
+    @Test
+    public void compare() {
+        BundleCalculator calculator = new BundleCalculator("c0,n5,gt,c0,n2,*,v1,set");
+        Bundle bundle = bundle(ValueFactory.create(4), ValueFactory.create(0));
+        assertNull(calculator.calculate(bundle));
+        bundle = bundle(ValueFactory.create(6), ValueFactory.create(0));
+        assertNotNull(calculator.calculate(bundle));
+        assertEquals("12", bundle.getValue(bundle.getFormat().getField("c1")).toString());
+    }
+
+    @Test
+    public void columnNames() {
+        BundleCalculator calculator = new BundleCalculator("Cc1,Cc0,max,n5,swap,-,v0,set");
+        Bundle bundle = bundle(ValueFactory.create(3), ValueFactory.create(8));
+        calculator.calculate(bundle);
+        assertEquals("-3", bundle.getValue(bundle.getFormat().getField("c0")).toString());
+        calculator.calculate(bundle);
+        assertEquals("-3", bundle.getValue(bundle.getFormat().getField("c0")).toString());
+    }
+
+    /**
+     * A number of a custom type, like the sketches in tree attachments,
+     * whose sum merges its values.
+     */
+    private static final class Sketch implements ValueNumber {
+
+        final double value;
+
+        Sketch(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public ValueNumber sum(ValueNumber val) {
+            return new Sketch(value + val.asDouble().getDouble());
+        }
+
+        @Override
+        public ValueNumber diff(ValueNumber val) {
+            return new Sketch(value - val.asDouble().getDouble());
+        }
+
+        @Override
+        public ValueNumber avg(int count) {
+            return new Sketch(value / count);
+        }
+
+        @Override
+        public ValueNumber min(ValueNumber val) {
+            return val.asDouble().getDouble() < value ? val : this;
+        }
+
+        @Override
+        public ValueNumber max(ValueNumber val) {
+            return val.asDouble().getDouble() > value ? val : this;
+        }
+
+        @Override
+        public ValueLong asLong() {
+            return ValueFactory.create((long) value);
+        }
+
+        @Override
+        public ValueDouble asDouble() {
+            return ValueFactory.create(value);
+        }
+
+        @Override
+        public ValueString asString() {
+            return ValueFactory.create("sketch:" + value);
+        }
+
+        @Override
+        public TYPE getObjectType() {
+            return TYPE.CUSTOM;
+        }
+
+        @Override
+        public ValueNumber asNumber() {
+            return this;
+        }
+
+        @Override
+        public ValueBytes asBytes() {
+            throw new ValueTranslationException();
+        }
+
+        @Override
+        public ValueArray asArray() {
+            throw new ValueTranslationException();
+        }
+
+        @Override
+        public ValueMap asMap() {
+            throw new ValueTranslationException();
+        }
+
+        @Override
+        public ValueCustom asCustom() {
+            throw new ValueTranslationException();
+        }
+
+        @Override
+        public String toString() {
+            return asString().toString();
+        }
+    }
+
+    @Test
+    public void customNumbers() {
+        Sketch sketch = new Sketch(12.7);
+        Bundle bundle = bundle(sketch, new Sketch(2.5), ValueFactory.create(0));
+        // conversions keep the fraction of the sketch
+        assertEquals("25.4", calculate("c0,n2,dmult,v2,set", bundle, 2).toString());
+        assertEquals("5.08", calculate("c0,c1,ddiv,v2,set", bundle, 2).toString());
+        assertNotNull(new BundleCalculator("c0,n12.5,>>").calculate(bundle));
+        // arithmetic of the values themselves is used
+        assertEquals("sketch:15.2", calculate("c1,c0,+,v2,set", bundle, 2).toString());
+        assertEquals("sketch:10.2", calculate("c0,c1,-,v2,set", bundle, 2).toString());
+        assertEquals("sketch:2.5", calculate("c0,c1,min,v2,set", bundle, 2).toString());
+        assertSame(sketch, calculate("c0,c1,max,v2,set", bundle, 2));
+        // values written back are the original objects
+        assertSame(sketch, calculate("c0,d,swap,v2,set", bundle, 2));
+        assertNotNull(new BundleCalculator("c0,out").calculate(bundle));
+        assertSame(sketch, bundle.getValue(bundle.getFormat().getField(bundle.getFormat().getFieldCount() - 1)));
+        assertEquals("12", calculate("c0,toi,v2,set", bundle, 2).toString());
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.data.filter.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.net.InetSocketAddress;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.codec.CodecJSON;
+import com.addthis.hydra.common.hash.MD5HashFunction;
+import com.addthis.hydra.data.filter.value.ValueFilterHttpGet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestLookupCache {
+
+    private static class CountingLoader implements LookupCache.Loader {
+
+        final AtomicInteger loads = new AtomicInteger();
+
+        @Override
+        public String load(String key) {
+            loads.incrementAndGet();
+            return key.startsWith("miss") ? null : key.toUpperCase();
+        }
+    }
+
+    @Test
+    public void loadOnce() throws Exception {
+        LookupCache cache = new LookupCache.Builder().build();
+        CountingLoader loader = new CountingLoader();
+        assertEquals("FOO", cache.get("foo", loader));
+        assertEquals("FOO", cache.get("foo", loader));
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        final LookupCache cache = new LookupCache.Builder().build();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final LookupCache.Loader loader = new LookupCache.Loader() {
+            @Override
+            public String load(String key) {
+                loads.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "value";
+            }
+        };
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[index] = cache.get("key", loader);
+                }
+            };
+            threads[i].start();
+            if (i == 0) {
+                started.await();
+            }
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, loads.get());
+        for (String result : results) {
+            assertEquals("value", result);
+        }
+    }
+
+    @Test
+    public void missAge() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        LookupCache retry = new LookupCache.Builder().build();
+        assertNull(retry.get("miss", loader));
+        assertNull(retry.get("miss", loader));
+        assertEquals(2, loader.loads.get());
+        LookupCache remember = new LookupCache.Builder().missAge(60000).build();
+        assertNull(remember.get("miss", loader));
+        assertNull(remember.get("miss", loader));
+        assertEquals(3, loader.loads.get());
+    }
+
+    @Test
+    public void expiredValueOnMiss() throws Exception {
+        LookupCache cache = new LookupCache.Builder().age(1).build();
+        cache.put("miss", "old");
+        Thread.sleep(5);
+        assertEquals("old", cache.get("miss", new CountingLoader()));
+    }
+
+    @Test
+    public void async() throws Exception {
+        LookupCache cache = new LookupCache.Builder().async(true).build();
+        CountingLoader loader = new CountingLoader();
+        assertNull(cache.get("foo", loader));
+        for (int i = 0; i < 100 && loader.loads.get() == 0; i++) {
+            Thread.sleep(10);
+        }
+        String value = null;
+        for (int i = 0; i < 100 && value == null; i++) {
+            value = cache.get("foo", loader);
+            Thread.sleep(10);
+        }
+        assertEquals("FOO", value);
+        assertEquals(1, loader.loads.get());
+    }
+
+    @Test
+    public void persist() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("lookup").toFile();
+        try {
+            String oldName = MD5HashFunction.hash("old");
+            String nullName = MD5HashFunction.hash("null");
+            Files.write(new File(dir, oldName),
+                    "{time:1,key:\"old\",data:\"OLD\"}".getBytes(StandardCharsets.UTF_8), false);
+            Files.write(new File(dir, nullName),
+                    "{time:1,data:\"NULL\"}".getBytes(StandardCharsets.UTF_8), false);
+            Files.write(new File(dir, "job.json"),
+                    "{time:1,key:\"job\",data:\"JOB\"}".getBytes(StandardCharsets.UTF_8), false);
+            LookupCache cache = new LookupCache.Builder().directory(dir).build();
+            CountingLoader loader = new CountingLoader();
+            assertEquals("OLD", cache.get("old", loader));
+            assertEquals("FOO", cache.get("foo", loader));
+            assertEquals(1, loader.loads.get());
+            assertEquals("JOB", cache.get("job", loader));
+            assertEquals(2, loader.loads.get());
+            assertFalse(new File(dir, oldName).exists());
+            assertTrue(new File(dir, nullName).exists());
+            assertTrue(new File(dir, "job.json").exists());
+            assertEquals("FOO", new LookupCache.Builder().directory(dir).build().get("foo", loader));
+            assertEquals(2, loader.loads.get());
+
+            List<Map.Entry<String, LookupCache.Entry>> stored = new LookupStore(dir).load(null);
+            assertEquals(3, stored.size());
+            assertEquals("old", stored.get(0).getKey());
+            assertEquals("FOO", stored.get(1).getValue().data);
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void sharedDirectoryLimits() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("lookup").toFile();
+        try {
+            LookupCache small = new LookupCache.Builder().directory(dir).maxSize(1).build();
+            LookupCache large = new LookupCache.Builder().directory(dir).maxSize(2000).build();
+            CountingLoader loader = new CountingLoader();
+            for (int i = 0; i < 1500; i++) {
+                large.get("large" + i, loader);
+            }
+            for (int i = 0; i < 5000; i++) {
+                small.get("small" + i, loader);
+            }
+            assertEquals(1, small.size());
+            assertEquals(1500, large.size());
+            // compacting for the small cache keeps the values of the large one
+            List<Map.Entry<String, LookupCache.Entry>> stored = new LookupStore(dir).load(null);
+            assertTrue(stored.size() < 6500);
+            int largeStored = 0;
+            for (Map.Entry<String, LookupCache.Entry> entry : stored) {
+                if (entry.getKey().startsWith("large")) {
+                    largeStored++;
+                }
+            }
+            assertEquals(1500, largeStored);
+            assertEquals("small4999", stored.get(stored.size() - 1).getKey());
+        } finally {
+            Files.deleteDir(dir);
+        }
+    }
+
+    @Test
+    public void httpGet() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String query = exchange.getRequestURI().getQuery();
+                byte[] body = ("hello " + query).getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(query.startsWith("missing") ? 404 : 200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        File dir = java.nio.file.Files.createTempDirectory("lookup").toFile();
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort() + "/?";
+            ValueFilterHttpGet filter = CodecJSON.decodeString(new ValueFilterHttpGet(),
+                    "{template:'" + base + "{{}}',retryTimeout:0,missValue:'none',missAge:60000}");
+            assertEquals("hello world", filter.filter("world"));
+            assertEquals("hello world", filter.filter("world"));
+            assertEquals(1, requests.get());
+            assertEquals("none", filter.filter("missing"));
+            assertEquals("none", filter.filter("missing"));
+            assertEquals(2, requests.get());
+
+            // filters persisting to one directory keep their values apart
+            Files.write(new File(dir, MD5HashFunction.hash("old")),
+                    "{time:1,key:\"old\",data:\"OLD\"}".getBytes(StandardCharsets.UTF_8), false);
+            String persist = "retryTimeout:0,persist:true,persistDir:'" + dir.getPath() + "'}";
+            ValueFilterHttpGet first = CodecJSON.decodeString(new ValueFilterHttpGet(),
+                    "{template:'" + base + "a={{}}'," + persist);
+            ValueFilterHttpGet second = CodecJSON.decodeString(new ValueFilterHttpGet(),
+                    "{template:'" + base + "b={{}}'," + persist);
+            assertEquals("OLD", first.filter("old"));
+            assertEquals("hello a=world", first.filter("world"));
+            assertEquals("hello b=world", second.filter("world"));
+            assertEquals(4, requests.get());
+        } finally {
+            server.stop(0);
+            Files.deleteDir(dir);
+        }
+    }
+}
@@ -13,9 +13,18 @@
  */
 package com.addthis.hydra.data.filter.value;
 
+import java.security.MessageDigest;
+
+import java.util.Random;
+
+import com.addthis.basis.util.Bytes;
+
 import com.addthis.bundle.value.ValueFactory;
 import com.addthis.bundle.value.ValueObject;
 
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.codec.binary.Hex;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
@@ -29,4 +38,63 @@ public class ValueFilterHashTest {
         ValueObject vo = valueFilterHash.filter(ValueFactory.create("128.0.0.1"));
         assertEquals("9c678c09e0163cb9f0bdaf0363047ac5b549704e", vo.toString());
     }
+
+    @Test
+    public void testFilterValue_murmur() throws Exception {
+        ValueFilterHash valueFilterHash = new ValueFilterHash();
+        valueFilterHash.setType(5);
+        assertEquals(Hashing.murmur3_128().hashBytes(Bytes.toBytes("128.0.0.1")).asLong(),
+                valueFilterHash.filter(ValueFactory.create("128.0.0.1")).asLong().getLong());
+        valueFilterHash.setType(6);
+        assertEquals(Hashing.murmur3_128().hashBytes(Bytes.toBytes("128.0.0.1")).toString(),
+                valueFilterHash.filter(ValueFactory.create("128.0.0.1")).toString());
+    }
+
+    /**
+     * The reused digests and buffers must give the same hashes as the
+     * allocating implementations, for every length and for strings that
+     * are not valid UTF-16.
+     */
+    @Test
+    public void testSameHashes() throws Exception {
+        ValueFilterHash sha = new ValueFilterHash();
+        sha.setType(3);
+        ValueFilterHash shaHex = new ValueFilterHash();
+        shaHex.setType(4);
+        ValueFilterHash murmur = new ValueFilterHash();
+        murmur.setType(5);
+        ValueFilterHash murmurHex = new ValueFilterHash();
+        murmurHex.setType(6);
+        ValueFilterMD5 md5 = new ValueFilterMD5();
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            char[] chars = new char[random.nextInt(i % 2 == 0 ? 40 : 600)];
+            for (int j = 0; j < chars.length; j++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        chars[j] = (char) (0xd800 + random.nextInt(0x800));
+                        break;
+                    case 1:
+                        chars[j] = (char) random.nextInt(0x10000);
+                        break;
+                    default:
+                        chars[j] = (char) random.nextInt(0x80);
+                }
+            }
+            String value = new String(chars);
+            ValueObject vo = ValueFactory.create(value);
+            byte[] bytes = Bytes.toBytes(value);
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+            long expected = 0;
+            for (int j = 0; j < 8; j++) {
+                expected = (expected << 8) | (digest[j] & 0xff);
+            }
+            assertEquals(expected, sha.filter(vo).asLong().getLong());
+            assertEquals(new String(Hex.encodeHex(digest)), shaHex.filter(vo).toString());
+            assertEquals(Hashing.murmur3_128().hashBytes(bytes).asLong(),
+                    murmur.filter(vo).asLong().getLong());
+            assertEquals(Hashing.murmur3_128().hashBytes(bytes).toString(), murmurHex.filter(vo).toString());
+            assertEquals(Hashing.md5().hashUnencodedChars(value).toString(), md5.filter(vo).toString());
+        }
+    }
 }
@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.maljson.JSONArray;
+import com.addthis.maljson.JSONException;
+import com.addthis.maljson.JSONObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The events waiting to be sent to one UI client.
+ * <p/>
+ * Events about the same job or host replace each other, so a client that
+ * polls slowly receives the latest state of each job once instead of every
+ * intermediate state. A replaced event keeps its place in the queue. Clients
+ * that ask for diffs receive a job.diff event with only the fields that
+ * changed since the last payload they were sent for that job. A queue that
+ * grows past its limit is discarded and reports the overflow to the caller,
+ * which drops the client.
+ */
+public class ClientEventQueue {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientEventQueue.class);
+
+    static final int DEFAULT_MAX_EVENTS = Parameter.intValue("spawn.listen.max.events", 20000);
+
+    private final LinkedHashMap<Object, Spawn.ClientEvent> pending = new LinkedHashMap<>();
+    /* the last job payload sent to the client by job id, or null if the client does not want diffs */
+    private final Map<String, JSONObject> sentJobs;
+    private final int maxEvents;
+    private boolean overflowed;
+
+    public ClientEventQueue(boolean diffs) {
+        this(diffs, DEFAULT_MAX_EVENTS);
+    }
+
+    ClientEventQueue(boolean diffs, int maxEvents) {
+        this.sentJobs = diffs ? new HashMap<String, JSONObject>() : null;
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * @return false if the queue has overflowed and the client should be dropped
+     */
+    public synchronized boolean add(Spawn.ClientEvent event) {
+        if (overflowed) {
+            return false;
+        }
+        Object key = coalesceKey(event);
+        pending.put(key != null ? key : new Object(), event);
+        if (pending.size() > maxEvents) {
+            overflowed = true;
+            pending.clear();
+            if (sentJobs != null) {
+                sentJobs.clear();
+            }
+            return false;
+        }
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Wait for the next event.
+     *
+     * @return the event or null if none arrived before the timeout
+     */
+    public synchronized Spawn.ClientEvent poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return next();
+    }
+
+    /**
+     * @return up to max events that are waiting without blocking
+     */
+    public synchronized List<Spawn.ClientEvent> drain(int max) {
+        List<Spawn.ClientEvent> events = new ArrayList<>(Math.min(max, pending.size()));
+        while (events.size() < max && !pending.isEmpty()) {
+            events.add(next());
+        }
+        return events;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized boolean isOverflowed() {
+        return overflowed;
+    }
+
+    private Spawn.ClientEvent next() {
+        Iterator<Spawn.ClientEvent> iter = pending.values().iterator();
+        Spawn.ClientEvent event = iter.next();
+        iter.remove();
+        return encode(event);
+    }
+
+    /**
+     * Events about the same job or host, and queue size updates, supersede each other.
+     */
+    static Object coalesceKey(Spawn.ClientEvent event) {
+        String topic = event.topic();
+        JSONObject message = event.message();
+        if (topic == null || message == null) {
+            return null;
+        }
+        switch (topic) {
+            case "job.update":
+            case "job.delete":
+                String id = message.optString("id", null);
+                return id != null ? "job:" + id : null;
+            case "host.update":
+            case "host.delete":
+                String uuid = message.optString("uuid", null);
+                return uuid != null ? "host:" + uuid : null;
+            case "task.queue.size":
+                return topic;
+            default:
+                return null;
+        }
+    }
+
+    private Spawn.ClientEvent encode(Spawn.ClientEvent event) {
+        if (sentJobs == null || event.message() == null) {
+            return event;
+        }
+        String id = event.message().optString("id", null);
+        if (id == null) {
+            return event;
+        }
+        if ("job.delete".equals(event.topic())) {
+            sentJobs.remove(id);
+        } else if ("job.update".equals(event.topic())) {
+            JSONObject last = sentJobs.put(id, event.message());
+            if (last != null) {
+                try {
+                    return new Spawn.ClientEvent("job.diff", diff(last, event.message()));
+                } catch (JSONException ex) {
+                    log.warn("Unable to diff update for job " + id, ex);
+                }
+            }
+        }
+        return event;
+    }
+
+    /**
+     * @return the id and the fields of next that differ from last, with removed fields set to null
+     */
+    static JSONObject diff(JSONObject last, JSONObject next) throws JSONException {
+        JSONObject diff = new JSONObject();
+        diff.put("id", next.opt("id"));
+        for (Iterator<?> keys = next.keys(); keys.hasNext(); ) {
+            String key = (String) keys.next();
+            Object value = next.opt(key);
+            if (!same(last.opt(key), value)) {
+                diff.put(key, value);
+            }
+        }
+        for (Iterator<?> keys = last.keys(); keys.hasNext(); ) {
+            String key = (String) keys.next();
+            if (!next.has(key)) {
+                diff.put(key, JSONObject.NULL);
+            }
+        }
+        return diff;
+    }
+
+    private static boolean same(Object a, Object b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null) {
+            return false;
+        }
+        if (a instanceof JSONObject || a instanceof JSONArray) {
+            return a.getClass() == b.getClass() && a.toString().equals(b.toString());
+        }
+        return a.equals(b);
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures the number of files and bytes under task directories without walking
+ * every file on each request.
+ * <p/>
+ * The listing and file sizes of each directory are remembered. A remembered
+ * directory is only listed again when its modification time changes or when
+ * a watch service reports that something in it changed. Directories that
+ * cannot be watched, for example because the system is out of watches, are
+ * listed on every measurement. Without a watch service a directory is trusted
+ * as long as its modification time is unchanged, which misses files that grow
+ * in place.
+ * <p/>
+ * Files with more than one link are counted once per measurement, like du,
+ * so the backups of a task, which are hard links of its live files, only add
+ * the files that differ. Sizes are the apparent file lengths rather than the
+ * allocated blocks.
+ */
+public class DiskUsageTracker implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskUsageTracker.class);
+
+    private static final boolean WATCH = Parameter.boolValue("minion.disk.usage.watch", true);
+    // files and subdirectories remembered before the least recently used directories are forgotten
+    private static final long MAX_ENTRIES = Parameter.longValue("minion.disk.usage.cache.entries", 4000000);
+
+    private static final Counter dirsListed = Metrics.newCounter(DiskUsageTracker.class, "dirsListed");
+    private static final Counter dirsCached = Metrics.newCounter(DiskUsageTracker.class, "dirsCached");
+
+    private static final long[] EMPTY = new long[0];
+
+    /**
+     * The files and bytes under a directory
+     */
+    public static class Usage {
+
+        public final long count;
+        public final long bytes;
+
+        Usage(long count, long bytes) {
+            this.count = count;
+            this.bytes = bytes;
+        }
+    }
+
+    private final Cache<Path, DirEntry> dirs;
+    private final WatchService watcher;
+    private final boolean unixAttributes;
+    private final AtomicLong scans = new AtomicLong();
+
+    public DiskUsageTracker() {
+        this(WATCH, MAX_ENTRIES);
+    }
+
+    DiskUsageTracker(boolean watch, long maxEntries) {
+        this.dirs = CacheBuilder.newBuilder()
+                .maximumWeight(maxEntries)
+                .weigher(new Weigher<Path, DirEntry>() {
+                    @Override
+                    public int weigh(Path path, DirEntry entry) {
+                        return entry.weight;
+                    }
+                })
+                .removalListener(new RemovalListener<Path, DirEntry>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Path, DirEntry> notification) {
+                        // entries are put again after every listing, which must keep the watch
+                        if (notification.getCause() != RemovalCause.REPLACED) {
+                            notification.getValue().cancel();
+                        }
+                    }
+                })
+                .build();
+        this.unixAttributes = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+        WatchService watchService = null;
+        if (watch) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(new WatchRunner(watchService), "DiskUsageWatcher");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException | UnsupportedOperationException ex) {
+                log.warn("Unable to watch task directories, falling back to listing them: " + ex);
+            }
+        }
+        this.watcher = watchService;
+    }
+
+    /**
+     * @return the files and bytes under dir, or nothing if it does not exist
+     */
+    public Usage measure(File dir) throws IOException {
+        Totals totals = new Totals();
+        add(dir.toPath().toAbsolutePath().normalize(), totals);
+        return new Usage(totals.count, totals.bytes);
+    }
+
+    /**
+     * Forget everything remembered under a directory, for example after it has been deleted.
+     */
+    public void forget(File dir) {
+        forget(dir.toPath().toAbsolutePath().normalize());
+    }
+
+    @Override
+    public void close() throws IOException {
+        dirs.invalidateAll();
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private void add(Path dir, Totals totals) throws IOException {
+        DirEntry entry = current(dir);
+        if (entry == null) {
+            return;
+        }
+        List<Path> subdirs;
+        synchronized (entry) {
+            totals.count += entry.count;
+            totals.bytes += entry.bytes;
+            for (int i = 0; i < entry.linkedInodes.length; i++) {
+                totals.addLinked(entry.linkedInodes[i], entry.linkedSizes[i], entry.scan);
+            }
+            subdirs = entry.subdirs;
+        }
+        for (Path subdir : subdirs) {
+            add(subdir, totals);
+        }
+    }
+
+    /**
+     * @return the entry for dir, listing it again if it may have changed, or null if it is not a directory
+     */
+    private DirEntry current(Path dir) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(dir, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException ex) {
+            forget(dir);
+            return null;
+        }
+        if (!attributes.isDirectory()) {
+            forget(dir);
+            return null;
+        }
+        DirEntry entry = dirs.getIfPresent(dir);
+        if (entry == null) {
+            entry = new DirEntry(dir);
+        }
+        synchronized (entry) {
+            if (entry.isCurrent(attributes.lastModifiedTime())) {
+                dirsCached.inc();
+                return entry;
+            }
+            List<Path> previous = entry.subdirs;
+            try {
+                scan(entry, attributes.lastModifiedTime());
+            } catch (NoSuchFileException | NotDirectoryException ex) {
+                forget(dir);
+                return null;
+            }
+            for (Path subdir : previous) {
+                if (!entry.subdirs.contains(subdir)) {
+                    forget(subdir);
+                }
+            }
+        }
+        dirs.put(dir, entry);
+        return entry;
+    }
+
+    private void scan(DirEntry entry, FileTime modified) throws IOException {
+        dirsListed.inc();
+        // watch before listing so that changes made while listing mark the entry dirty again
+        entry.dirty = false;
+        entry.watch();
+        long count = 0;
+        long bytes = 0;
+        long[] linkedInodes = EMPTY;
+        long[] linkedSizes = EMPTY;
+        int linked = 0;
+        List<Path> subdirs = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(entry.path)) {
+            for (Path path : stream) {
+                long size;
+                long inode = 0;
+                try {
+                    if (unixAttributes) {
+                        Map<String, Object> attributes = Files.readAttributes(path, "unix:size,ino,nlink,isDirectory,isRegularFile", LinkOption.NOFOLLOW_LINKS);
+                        if ((Boolean) attributes.get("isDirectory")) {
+                            subdirs.add(path);
+                            continue;
+                        }
+                        if (!(Boolean) attributes.get("isRegularFile")) {
+                            continue;
+                        }
+                        size = (Long) attributes.get("size");
+                        if ((Integer) attributes.get("nlink") > 1) {
+                            inode = (Long) attributes.get("ino");
+                        }
+                    } else {
+                        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        if (attributes.isDirectory()) {
+                            subdirs.add(path);
+                            continue;
+                        }
+                        if (!attributes.isRegularFile()) {
+                            continue;
+                        }
+                        size = attributes.size();
+                    }
+                } catch (NoSuchFileException ex) {
+                    // deleted while listing
+                    continue;
+                }
+                if (inode != 0) {
+                    if (linked == linkedInodes.length) {
+                        linkedInodes = Arrays.copyOf(linkedInodes, Math.max(16, linked * 2));
+                        linkedSizes = Arrays.copyOf(linkedSizes, linkedInodes.length);
+                    }
+                    linkedInodes[linked] = inode;
+                    linkedSizes[linked] = size;
+                    linked++;
+                } else {
+                    count++;
+                    bytes += size;
+                }
+            }
+        }
+        Collections.sort(subdirs);
+        entry.count = count;
+        entry.bytes = bytes;
+        entry.linkedInodes = linked == linkedInodes.length ? linkedInodes : Arrays.copyOf(linkedInodes, linked);
+        entry.linkedSizes = linked == linkedSizes.length ? linkedSizes : Arrays.copyOf(linkedSizes, linked);
+        entry.subdirs = subdirs;
+        entry.modified = modified;
+        entry.weight = (int) Math.min(Integer.MAX_VALUE, 1 + linked + subdirs.size());
+        entry.scan = scans.incrementAndGet();
+    }
+
+    private void forget(Path dir) {
+        DirEntry entry = dirs.getIfPresent(dir);
+        if (entry != null) {
+            dirs.invalidate(dir);
+            List<Path> subdirs;
+            synchronized (entry) {
+                subdirs = entry.subdirs;
+            }
+            for (Path subdir : subdirs) {
+                forget(subdir);
+            }
+        }
+    }
+
+    /**
+     * What was found in one directory, not including its subdirectories
+     */
+    private class DirEntry {
+
+        final Path path;
+        volatile boolean dirty = true;
+        WatchKey key;
+        FileTime modified;
+        long scan;
+        int weight = 1;
+        // files with a single link
+        long count;
+        long bytes;
+        // files with more than one link, which may also be found in other directories
+        long[] linkedInodes = EMPTY;
+        long[] linkedSizes = EMPTY;
+        List<Path> subdirs = Collections.emptyList();
+
+        DirEntry(Path path) {
+            this.path = path;
+        }
+
+        boolean isCurrent(FileTime modified) {
+            return !dirty && modified.equals(this.modified) && (watcher == null || key != null);
+        }
+
+        void watch() {
+            if (watcher != null && (key == null || !key.isValid())) {
+                try {
+                    key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (IOException | ClosedWatchServiceException ex) {
+                    // out of watches, the directory will be listed on every measurement
+                    key = null;
+                    if (log.isDebugEnabled()) {
+                        log.debug("Unable to watch " + path + ": " + ex);
+                    }
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            if (key != null) {
+                key.cancel();
+                key = null;
+            }
+        }
+    }
+
+    /**
+     * Marks directories dirty when the watch service reports a change in them
+     */
+    private class WatchRunner implements Runnable {
+
+        private final WatchService watchService;
+
+        WatchRunner(WatchService watchService) {
+            this.watchService = watchService;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    key.pollEvents();
+                    DirEntry entry = dirs.getIfPresent((Path) key.watchable());
+                    if (entry != null) {
+                        entry.dirty = true;
+                    }
+                    if (!key.reset() && entry != null) {
+                        synchronized (entry) {
+                            if (entry.key == key) {
+                                entry.key = null;
+                            }
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                log.debug("Stopped watching task directories");
+            }
+        }
+    }
+
+    /**
+     * Sums one measurement, counting each linked file once with its most recently seen size
+     */
+    private static class Totals {
+
+        long count;
+        long bytes;
+        final Map<Long, long[]> linked = new HashMap<>();
+
+        void addLinked(long inode, long size, long scan) {
+            long[] seen = linked.get(inode);
+            if (seen == null) {
+                linked.put(inode, new long[]{size, scan});
+                count++;
+                bytes += size;
+            } else if (scan > seen[1]) {
+                bytes += size - seen[0];
+                seen[0] = size;
+                seen[1] = scan;
+            }
+        }
+    }
+}
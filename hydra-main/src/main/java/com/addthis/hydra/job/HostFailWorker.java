@@ -46,6 +46,9 @@ import com.yammer.metrics.core.Counter;
 import org.slf4j.Logger;
 
 import org.slf4j.LoggerFactory;
+
+import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_HOST_FAIL_WORKER_PATH;
+
 public class HostFailWorker {
 
     private static final Logger log = LoggerFactory.getLogger(HostFailWorker.class);
@@ -64,7 +67,6 @@ public class HostFailWorker {
 
     private final Timer failTimer = new Timer(true);
 
-    private static final String dataStoragePath = "/spawn/hostfailworker";
     private static final Counter failHostCount = Metrics.newCounter(Spawn.class, "failHostCount");
 
     // Various keys used to make JSON objects to send to the UI
@@ -420,13 +422,13 @@ public class HostFailWorker {
             if (spawnDataStore == null) {
                 return false;
             }
-            String raw = spawnDataStore.get(dataStoragePath);
+            String raw = spawnDataStore.get(SPAWN_HOST_FAIL_WORKER_PATH);
             if (raw == null) {
                 return false;
             }
             synchronized (hostsToFailByType) {
                 try {
-                    JSONObject decoded = new JSONObject(spawn.getSpawnDataStore().get(dataStoragePath));
+                    JSONObject decoded = new JSONObject(spawn.getSpawnDataStore().get(SPAWN_HOST_FAIL_WORKER_PATH));
                     loadHostsFromJSONArray(false, decoded.getJSONArray(filesystemOkayKey));
                     loadHostsFromJSONArray(true, decoded.getJSONArray(filesystemDeadKey));
                 } catch (Exception e) {
@@ -458,7 +460,7 @@ public class HostFailWorker {
                     JSONObject jsonObject = new JSONObject();
                     jsonObject.put(filesystemOkayKey, new JSONArray(failFsDead));
                     jsonObject.put(filesystemDeadKey, new JSONArray(failFsOkay));
-                    spawn.getSpawnDataStore().put(dataStoragePath, jsonObject.toString());
+                    spawn.getSpawnDataStore().put(SPAWN_HOST_FAIL_WORKER_PATH, jsonObject.toString());
                 }
             } catch (Exception e) {
                 log.warn("Failed to save HostFailState: " + e, e);
@@ -19,8 +19,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -36,10 +39,14 @@ import com.addthis.maljson.JSONArray;
 import com.addthis.maljson.JSONObject;
 
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.MoreExecutors;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.TimerContext;
@@ -50,6 +57,12 @@ import org.slf4j.LoggerFactory;
 /**
  * Stuff about jobs that *others* care about, not in the giant Spawnstate ball of mud.
  * We assume that only Spawn updates the job znodes, and only through this class.
+ * <p/>
+ * Each task is stored as its own record under the tasks node of the job and the
+ * value of the tasks node is the version of that layout. Jobs written before task
+ * records existed keep their tasks in the root node until they are next updated.
+ * Updates only write the records whose content changed since this manager last
+ * wrote them.
  */
 // {queryconfig,config,jobtask/[n]} under job uuid
 
@@ -67,9 +80,18 @@ public class JobConfigManager {
     private final Histogram jobTaskSizePersistHisto = Metrics.newHistogram(JobConfigManager.class, "jobTaskSizePersistHisto");
     private final Timer addJobTimer = Metrics.newTimer(JobConfigManager.class, "addJobTimer");
     private final Timer updateJobTimer = Metrics.newTimer(JobConfigManager.class, "updateJobTimer");
+    private final Counter recordsWritten = Metrics.newCounter(JobConfigManager.class, "recordsWritten");
+    private final Counter recordsUnchanged = Metrics.newCounter(JobConfigManager.class, "recordsUnchanged");
 
     private static final int loadThreads = Parameter.intValue("job.config.load.threads", 8);
     private static final int jobChunkSize = Parameter.intValue("job.config.chunk.size", 30);
+    /* store each task as its own record instead of inside the root node */
+    private static final boolean taskRecords = Parameter.boolValue("job.config.task.records", true);
+
+    /* value of the tasks node when tasks are stored as records beneath it */
+    static final String TASK_RECORDS_VERSION = "2";
+
+    private static final HashFunction recordHash = Hashing.murmur3_128();
 
     private static final String configChildName = "/config";
     private static final String queryConfigChildName = "/queryconfig";
@@ -78,10 +100,29 @@ public class JobConfigManager {
     private static final String brokerInfoChildName = "/brokerinfo";
     private static final String taskChildName = "/task";
 
+    /* hashes of the records last written for each job */
+    private final ConcurrentHashMap<String, WrittenRecords> writtenRecords = new ConcurrentHashMap<>();
+
     public JobConfigManager(SpawnDataStore spawnDataStore) {
         this.spawnDataStore = spawnDataStore;
     }
 
+    /**
+     * What this manager last wrote for a job, so that unchanged records are not written again.
+     */
+    private static class WrittenRecords {
+
+        long root;
+        long alerts;
+        long queryConfig;
+        /* null until the tasks have been written as records */
+        Map<Integer, Long> tasks;
+    }
+
+    private static long hash(String record) {
+        return recordHash.hashString(record, Charsets.UTF_8).asLong();
+    }
+
     public void writeUpdateIfDataNotNull(String path, String data) throws Exception {
         if (data == null) {
             logger.warn("Was going to update znode {} but data was null", new Object[] { path });
@@ -96,15 +137,19 @@ public class JobConfigManager {
         ZnodeJob job = new ZnodeJob(ijob);
         String jobPath = getJobPath(ijob.getId());
         try {
-            final String jobCodec = new String(codec.encode(job.getRootData()));
-            jobSizePersistHisto.update(jobCodec.length());
-            spawnDataStore.putAsChild(SPAWN_JOB_CONFIG_PATH, job.getId(), jobCodec);
-            writeUpdateIfDataNotNull(jobPath + configChildName,
-                    job.getConfig() == null ? "" : job.getConfig());
-            writeUpdateIfDataNotNull(jobPath + queryConfigChildName,
-                    job.getQueryConfig() == null ? "" : new String(codec.encode(job.getQueryConfig())));
-            // this is just a marker so that we know to use the 'new' configuration
-            spawnDataStore.put(jobPath + tasksChildName, "");
+            WrittenRecords written = new WrittenRecords();
+            writtenRecords.put(job.getId(), written);
+            synchronized (written) {
+                writeTasks(job, jobPath, written);
+                final String jobCodec = new String(codec.encode(job.getRootData()));
+                jobSizePersistHisto.update(jobCodec.length());
+                spawnDataStore.putAsChild(SPAWN_JOB_CONFIG_PATH, job.getId(), jobCodec);
+                written.root = hash(jobCodec);
+                writeUpdateIfDataNotNull(jobPath + configChildName,
+                        job.getConfig() == null ? "" : job.getConfig());
+                writeUpdateIfDataNotNull(jobPath + queryConfigChildName,
+                        job.getQueryConfig() == null ? "" : new String(codec.encode(job.getQueryConfig())));
+            }
         } finally {
             addJobTimerContext.stop();
         }
@@ -114,6 +159,12 @@ public class JobConfigManager {
         this.updateJob(ijob, null);
     }
 
+    /**
+     * Write the parts of a job that changed since this manager last wrote it.
+     *
+     * @param changedTask a task known to have changed, or null. Every task is
+     *                    compared against what was last written either way.
+     */
     public void updateJob(IJob ijob, JobTask changedTask) {
         TimerContext updateJobTimerContext = updateJobTimer.time();
         ZnodeJob job = new ZnodeJob(ijob);
@@ -122,13 +173,25 @@ public class JobConfigManager {
         // not have a znode, (There should probably be a zkutils for
         // writedata and make sure it exists.
         try {
-            final String jobCodec = new String(codec.encode(job.getRootData()));
-            jobSizePersistHisto.update(jobCodec.length());
-            writeUpdateIfDataNotNull(jobPath, new String(codec.encode(job.getRootData())));
-            writeUpdateIfDataNotNull(jobPath + alertChildName, new String(codec.encode(job.getAlerts())));
-            writeUpdateIfDataNotNull(jobPath + queryConfigChildName, new String(codec.encode(job.getQueryConfig())));
-            // this is just a marker so that we know to use the 'new' configuration
-            spawnDataStore.put(jobPath + tasksChildName, "");
+            WrittenRecords written = writtenRecords.get(job.getId());
+            if (written == null) {
+                WrittenRecords newRecords = new WrittenRecords();
+                written = writtenRecords.putIfAbsent(job.getId(), newRecords);
+                if (written == null) {
+                    written = newRecords;
+                }
+            }
+            synchronized (written) {
+                // tasks first so that readers never see the new layout without its records
+                writeTasks(job, jobPath, written);
+                final String jobCodec = new String(codec.encode(job.getRootData()));
+                jobSizePersistHisto.update(jobCodec.length());
+                written.root = writeIfChanged(jobPath, jobCodec, written.root);
+                written.alerts = writeIfChanged(jobPath + alertChildName,
+                        new String(codec.encode(job.getAlerts())), written.alerts);
+                written.queryConfig = writeIfChanged(jobPath + queryConfigChildName,
+                        new String(codec.encode(job.getQueryConfig())), written.queryConfig);
+            }
         } catch (Exception e) {
             logger.warn("Failing to update job, bailing", e);
             throw new RuntimeException(e);
@@ -137,6 +200,122 @@ public class JobConfigManager {
         }
     }
 
+    /**
+     * @return the hash of the data, which is written only if its hash differs from the previous one
+     */
+    private long writeIfChanged(String path, String data, long previous) throws Exception {
+        long current = hash(data);
+        if (current != previous) {
+            spawnDataStore.put(path, data);
+            recordsWritten.inc();
+        } else {
+            recordsUnchanged.inc();
+        }
+        return current;
+    }
+
+    /**
+     * Write the task records that changed and remove the root copy of the tasks from the job.
+     * When task records are disabled the tasks stay in the root data.
+     */
+    private void writeTasks(ZnodeJob job, String jobPath, WrittenRecords written) throws Exception {
+        String tasksPath = jobPath + tasksChildName;
+        if (!taskRecords) {
+            // this is just a marker so that we know to use the 'new' configuration
+            spawnDataStore.put(tasksPath, "");
+            written.tasks = null;
+            return;
+        }
+        List<JobTask> tasks = job.getCopyOfTasks();
+        job.setTasks((ArrayList<JobTask>) null);
+        Map<Integer, Long> previous = written.tasks;
+        if (previous == null) {
+            // first write from this manager, remove records of tasks that no longer exist
+            previous = new HashMap<>();
+            List<String> existing = spawnDataStore.getChildrenNames(tasksPath);
+            if (existing != null) {
+                for (String child : existing) {
+                    previous.put(Integer.valueOf(child), 0L);
+                }
+            }
+        }
+        Map<Integer, Long> current = new HashMap<>();
+        if (tasks != null) {
+            for (JobTask task : tasks) {
+                String taskCodec = new String(codec.encode(task));
+                long taskHash = hash(taskCodec);
+                Long previousHash = previous.get(task.getTaskID());
+                if (previousHash == null || previousHash != taskHash) {
+                    jobTaskSizePersistHisto.update(taskCodec.length());
+                    spawnDataStore.putAsChild(tasksPath, Integer.toString(task.getTaskID()), taskCodec);
+                    recordsWritten.inc();
+                } else {
+                    recordsUnchanged.inc();
+                }
+                current.put(task.getTaskID(), taskHash);
+            }
+        }
+        Set<Integer> removed = new HashSet<>(previous.keySet());
+        removed.removeAll(current.keySet());
+        for (Integer taskId : removed) {
+            spawnDataStore.deleteChild(tasksPath, Integer.toString(taskId));
+        }
+        if (written.tasks == null) {
+            spawnDataStore.put(tasksPath, TASK_RECORDS_VERSION);
+        }
+        written.tasks = current;
+    }
+
+    /**
+     * Add the task records of the jobs that keep them to data fetched by {@link #fetchJobData},
+     * fetching the records of all the jobs with a single SpawnDataStore operation.
+     *
+     * @return A map of the form {jobId : task record ids} for the jobs that keep task records
+     */
+    private Map<String, List<String>> fetchTaskRecords(List<String> jobIds, Map<String, String> queryData) {
+        Map<String, List<String>> taskIds = new HashMap<>();
+        List<String> queryPaths = new ArrayList<>();
+        for (String jobId : jobIds) {
+            String tasksPath = getJobPath(jobId) + tasksChildName;
+            if (TASK_RECORDS_VERSION.equals(queryData.get(tasksPath))) {
+                List<String> children = spawnDataStore.getChildrenNames(tasksPath);
+                if (children == null) {
+                    children = Collections.emptyList();
+                }
+                taskIds.put(jobId, children);
+                for (String child : children) {
+                    queryPaths.add(tasksPath + "/" + child);
+                }
+            }
+        }
+        if (!queryPaths.isEmpty()) {
+            queryData.putAll(spawnDataStore.get(queryPaths.toArray(new String[queryPaths.size()])));
+        }
+        return taskIds;
+    }
+
+    /**
+     * Load the task records of a job from the fetched data, ordered by task id.
+     *
+     * @throws IllegalStateException if a record could not be read, so that a job is never
+     *                               loaded, and then persisted, with some of its tasks missing
+     */
+    private List<JobTask> loadTaskRecords(String jobPath, List<String> taskIds, Map<String, String> queryData) throws Exception {
+        if (taskIds == null) {
+            throw new IllegalStateException("task records of " + jobPath + " were not fetched");
+        }
+        List<JobTask> tasks = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            String taskString = queryData.get(jobPath + tasksChildName + "/" + taskId);
+            if (taskString == null) {
+                throw new IllegalStateException("unable to read task record " + taskId + " of " + jobPath);
+            }
+            tasks.add(codec.decode(JobTask.class, taskString.getBytes()));
+        }
+        Collections.sort(tasks);
+        return tasks;
+    }
+
     /**
      * Internal function to load job alerts if any are set
      *
@@ -165,10 +344,12 @@ public class JobConfigManager {
      *
      * @param jobId     The jobId in question
      * @param queryData Query data describing the job configuration. Data for other jobs will be ignored.
+     * @param taskIds   The task record ids found by {@link #fetchTaskRecords}
      * @return The reconsituted job object
      * @throws Exception
      */
-    private IJob createJobFromQueryData(String jobId, Map<String, String> queryData) throws Exception {
+    private IJob createJobFromQueryData(String jobId, Map<String, String> queryData,
+            Map<String, List<String>> taskIds) throws Exception {
         String jobPath = getJobPath(jobId);
         String rstring = queryData.get(jobPath);
         if (rstring == null) {
@@ -183,7 +364,9 @@ public class JobConfigManager {
         // Make sure job config path exists
         spawnDataStore.put(SPAWN_JOB_CONFIG_PATH, "");
         String tasksData = queryData.get(jobPath + tasksChildName);
-        if (tasksData != null) {
+        if (TASK_RECORDS_VERSION.equals(tasksData)) {
+            return new ZnodeJob(rznd, config, jqc, alerts, loadTaskRecords(jobPath, taskIds.get(jobId), queryData));
+        } else if (tasksData != null) {
             // load from new config where task data is stored on root node
             return new ZnodeJob(rznd, config, jqc, alerts);
         } else {
@@ -199,7 +382,9 @@ public class JobConfigManager {
 
     public IJob getJob(String jobId) {
         try {
-            return createJobFromQueryData(jobId, fetchJobData(Arrays.asList(jobId)));
+            List<String> jobIds = Arrays.asList(jobId);
+            Map<String, String> queryData = fetchJobData(jobIds);
+            return createJobFromQueryData(jobId, queryData, fetchTaskRecords(jobIds, queryData));
         } catch (Exception e) {
             logger.error("Failure creating job: " + jobId, e);
             throw new RuntimeException(e);
@@ -243,10 +428,11 @@ public class JobConfigManager {
      */
     private Map<String, IJob> loadJobChunk(List<String> jobIdChunk) throws Exception {
         Map<String, String> queryData = fetchJobData(jobIdChunk);
+        Map<String, List<String>> taskIds = fetchTaskRecords(jobIdChunk, queryData);
         Map<String, IJob> rv = new HashMap<>();
         for (String jobId : jobIdChunk) {
             try {
-                rv.put(jobId, createJobFromQueryData(jobId, queryData));
+                rv.put(jobId, createJobFromQueryData(jobId, queryData, taskIds));
             } catch (Exception ex) {
                 logger.error("Failed while reconstituting job " + jobId);
                 logger.trace("Failed while reconstituting job ", ex);
@@ -317,6 +503,7 @@ public class JobConfigManager {
     }
 
     public void deleteJob(String jobUUID) {
+        writtenRecords.remove(jobUUID);
         try {
             String jobPath = getJobPath(jobUUID);
             for (String subnode : Arrays.asList(alertChildName, queryConfigChildName, taskChildName, tasksChildName, configChildName, brokerInfoChildName)) {
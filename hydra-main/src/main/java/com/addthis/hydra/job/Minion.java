@@ -155,6 +155,12 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
     private static final long hostMetricUpdaterInterval = Parameter.longValue("minion.host.metric.interval", 30 * 1000);
     private static final String remoteConnectMethod = Parameter.value("minion.remote.connect.method", "ssh -o StrictHostKeyChecking=no -o TCPKeepAlive=yes -o ServerAliveInterval=30");
     private static final String rsyncCommand = Parameter.value("minion.rsync.command", "rsync");
+    /* replicate with the block level replicator instead of rsync; replica hosts must run the same build */
+    private static final boolean javaReplicate = Parameter.boolValue("minion.replicate.java", false);
+    private static final String replicateCommand = Parameter.value("minion.replicate.command",
+            "java -cp " + System.getProperty("java.class.path") + " com.addthis.hydra.Main replicate");
+    private static final int replicateStreams = Parameter.intValue("minion.replicate.streams", 2);
+    private static final int replicateBwLimit = Parameter.intValue("minion.replicate.bwlimit", 0);
     private static final int maxActiveTasks = Parameter.intValue("minion.max.active.tasks", 3);
     private static final int copyRetryLimit = Parameter.intValue("minion.copy.retry.limit", 3);
     private static final int copyRetryDelaySeconds = Parameter.intValue("minion.copy.retry.delay", 10);
@@ -166,6 +172,7 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
     private static String rmcmd = "rm";
     private static String mvcmd = "mv";
     private static String ducmd = "du";
+    private static final boolean taskSizeUsingDu = Parameter.boolValue("minion.task.size.du", false);
     private static String echoWithDate_cmd = "echo `date '+%y/%m/%d %H:%M:%S'` ";
 
     public static final String MINION_ZK_PATH = "/minion/";
@@ -181,6 +188,7 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
     private MinionTaskDeleter minionTaskDeleter;
     // Historical metrics
     private Timer fileStatsTimer;
+    private DiskUsageTracker diskUsage;
     private Counter sendStatusFailCount;
     private Counter sendStatusFailAfterRetriesCount;
 
@@ -301,6 +309,7 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
         sendStatusFailCount = Metrics.newCounter(Minion.class, "sendStatusFail-" + getJettyPort() + "-JMXONLY");
         sendStatusFailAfterRetriesCount = Metrics.newCounter(Minion.class, "sendStatusFailAfterRetries-" + getJettyPort() + "-JMXONLY");
         fileStatsTimer = Metrics.newTimer(Minion.class, "JobTask-byte-size-timer");
+        diskUsage = new DiskUsageTracker();
         this.metricsHandler = MetricsServletMaker.makeHandler();
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
@@ -1191,7 +1200,15 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
         public void updateFileStats() {
             final TimerContext updateTimer = fileStatsTimer.time();
             FileStats stats = new FileStats();
-            stats.update(jobDir);
+            if (jobDir != null) {
+                try {
+                    DiskUsageTracker.Usage usage = diskUsage.measure(jobDir);
+                    stats.count = usage.count;
+                    stats.bytes = usage.bytes;
+                } catch (IOException e) {
+                    log.warn("", e);
+                }
+            }
             try {
                 Files.write(new File(getConfigDir(), "job.stats"), Bytes.toBytes(CodecJSON.encodeString(stats)), false);
             } catch (Exception e)  {
@@ -1365,7 +1382,8 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
                 return null;
             }
             try {
-                String target = getTaskBaseDir(replica.getBaseDir(), id, node);
+                String baseDir = getTaskBaseDir(replica.getBaseDir(), id, node);
+                String target = baseDir;
                 if (!replicateAllBackups) {
                     target += "/live";
                 }
@@ -1380,7 +1398,7 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
                 rv.add(mkTarget);
                 if (replicateAllBackups) {
                     StringBuilder sb = new StringBuilder();
-                    sb.append(createRsyncCommand(userAT, jobDir.getParentFile().getAbsolutePath() + "/", target));
+                    sb.append(createRsyncCommand(userAT, jobDir.getParentFile().getAbsolutePath() + "/", target, baseDir, true));
                     for (String backup : findLocalBackups(true)) {
                         if (backup.startsWith(ScheduledBackupType.getBackupPrefix())) {
                             // only include "b-" dirs/exclude gold - it won't exist on the remote host after the rsync.
@@ -1392,7 +1410,7 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
                     rv.add(sb.toString());
                 } else {
                     rv.add(createDeleteCommand(false, userAT, target + "/replicate.complete") +
-                           "\n" + createRsyncCommand(userAT, jobDir.getAbsolutePath() + "/", target) +
+                           "\n" + createRsyncCommand(userAT, jobDir.getAbsolutePath() + "/", target, baseDir, false) +
                            "\n" + createTouchCommand(false, userAT, target + "/replicate.complete", false)
                     );
                 }
@@ -1432,7 +1450,16 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
             return copyCommands;
         }
 
-        private String createRsyncCommand(String userAT, String source, String target) throws Exception {
+        private String createRsyncCommand(String userAT, String source, String target, String baseDir,
+                boolean replicateAllBackups) throws Exception {
+            if (javaReplicate) {
+                // block signatures are kept in the unreplicated config directories of both copies
+                String sums = replicateAllBackups ? "replicate-all.sums" : "replicate-live.sums";
+                return "retry " + replicateCommand + " send --exclude config --exclude gold --exclude replicate.complete --exclude backup.complete" +
+                       " --streams " + replicateStreams + " --bwlimit " + replicateBwLimit +
+                       " --cache " + new File(getConfigDir(), sums).getAbsolutePath() + " --remote-cache " + baseDir + "/config/" + sums +
+                       " --connect \\'" + remoteConnectMethod + "\\' --receiver \\'" + replicateCommand + "\\' " + source + " " + userAT + ":" + target;
+            }
             return "retry " + rsyncCommand + " -Hqav --exclude config --exclude gold --exclude replicate.complete --exclude backup.complete --delete-after -e \\'" + remoteConnectMethod + "\\' " + source + " " + userAT + ":" + target;
         }
 
@@ -2345,22 +2372,6 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
 
         public long count;
         public long bytes;
-
-        private void update(File dir) {
-            if (dir != null) {
-                for (File file : dir.listFiles()) {
-                    if (file.isDirectory()) {
-                        update(file);
-                    } else if (file.isFile()) {
-                        count++;
-                        bytes += file.length();
-                    }
-                }
-            } else {
-                count = 0;
-                bytes = 0;
-            }
-        }
     }
 
     @Override
@@ -2485,10 +2496,15 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
             String jobId = kv.getValue("id");
             int taskId = kv.getIntValue("node", -1);
             if (jobId != null && taskId >= 0) {
-                String duOutput = new SimpleExec(ducmd + " -s --block-size=1 " + getTaskBaseDir(rootDir.getAbsolutePath(), jobId, taskId)).join().stdoutString();
-                response.getWriter().write(
-                        duOutput.split("\t")[0]
-                );
+                String taskDir = getTaskBaseDir(rootDir.getAbsolutePath(), jobId, taskId);
+                if (taskSizeUsingDu) {
+                    String duOutput = new SimpleExec(ducmd + " -s --block-size=1 " + taskDir).join().stdoutString();
+                    response.getWriter().write(
+                            duOutput.split("\t")[0]
+                    );
+                } else {
+                    response.getWriter().write(Long.toString(diskUsage.measure(new File(taskDir)).bytes));
+                }
             }
         } else {
             response.sendError(404);
@@ -2521,6 +2537,7 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
                 File taskDirFile = new File(rootDir + "/" + delete.getJobUuid() + (delete.getNodeID() != null ? "/" + delete.getNodeID() : ""));
                 if (taskDirFile.exists() && taskDirFile.isDirectory()) {
                     minionTaskDeleter.submitPathToDelete(taskDirFile.getAbsolutePath());
+                    diskUsage.forget(taskDirFile);
                 }
             } finally {
                 minionStateLock.unlock();
@@ -2796,7 +2813,8 @@ public class Minion extends AbstractHandler implements MessageListener, ZkSessio
     }
 
     private static Integer findActiveRsync(String id, int node) {
-        return findActiveProcessWithTokens(new String[]{id + "/" + node + "/", rsyncCommand}, new String[]{});
+        String command = javaReplicate ? "remote-cache" : rsyncCommand;
+        return findActiveProcessWithTokens(new String[]{id + "/" + node + "/", command}, new String[]{});
     }
 
     private static Integer findActiveProcessWithTokens(String[] requireTokens, String[] omitTokens) {
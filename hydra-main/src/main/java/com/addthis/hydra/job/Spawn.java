@@ -47,6 +47,7 @@ import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -112,6 +113,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Striped;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.yammer.metrics.Metrics;
@@ -253,8 +255,25 @@ public class Spawn implements Codec.Codable {
     private SpawnBalancer balancer;
     private SpawnQueuesByPriority taskQueuesByPriority = new SpawnQueuesByPriority();
     private volatile int lastQueueSize = 0;
-    private final Lock jobLock = new ReentrantLock();
+    /**
+     * Held by changes that span jobs or that must not interleave with the queue iteration.
+     * Lookups of spawnState.jobs do not need it because the map is concurrent and the task
+     * list of a job is guarded by the job itself. Always acquired before taskQueuesByPriority,
+     * so code holding the queue lock must not acquire it.
+     */
+    private final ReentrantLock jobLock = new ReentrantLock();
+    /**
+     * Orders the snapshots of a job that are persisted by concurrent updates of the same job.
+     * Never acquired while holding jobLock: a stripe is shared by unrelated jobs, and persisting
+     * takes jobLock only to copy the job, before its stripe.
+     */
+    private final Striped<Lock> jobPersistLocks = Striped.lock(Parameter.intValue("spawn.job.persist.stripes", 64));
+    /* snapshot versions are taken under jobLock, so a later version is never older job state */
+    private final AtomicLong jobSnapshotVersion = new AtomicLong();
+    /* last snapshot version written for each job, guarded by the persist stripe of the job */
+    private final ConcurrentMap<String, Long> persistedJobVersions = new ConcurrentHashMap<>();
     private final AtomicBoolean shuttingDown = new AtomicBoolean(false);
+    private final AtomicBoolean queueKickPending = new AtomicBoolean(false);
     private final LinkedBlockingQueue<String> jobUpdateQueue = new LinkedBlockingQueue<>();
     private final SpawnJobFixer spawnJobFixer = new SpawnJobFixer(this);
     private JobAlertRunner jobAlertRunner;
@@ -586,10 +605,20 @@ public class Spawn implements Codec.Codable {
     }
 
     public ClientEventListener getClientEventListener(String id) {
+        return getClientEventListener(id, false);
+    }
+
+    /**
+     * @param diffs whether a new listener should receive job.diff events instead of full job updates
+     */
+    public ClientEventListener getClientEventListener(String id, boolean diffs) {
         ClientEventListener listener = listeners.get(id);
         if (listener == null) {
-            listener = new ClientEventListener();
-            listeners.put(id, listener);
+            listener = new ClientEventListener(diffs);
+            ClientEventListener existing = listeners.putIfAbsent(id, listener);
+            if (existing != null) {
+                listener = existing;
+            }
         }
         listener.lastSeen = System.currentTimeMillis();
         return listener;
@@ -682,19 +711,14 @@ public class Spawn implements Codec.Codable {
         if (job == null || job.getParameters() == null) {
             return dataSources;
         }
-        jobLock.lock();
-        try {
-            for (JobParameter param : job.getParameters()) {
-                String value = param.getValue();
-                if (Strings.isEmpty(value)) {
-                    value = param.getDefaultValue();
-                }
-                if (value != null && spawnState.jobs.containsKey(value)) {
-                    dataSources.add(value);
-                }
+        for (JobParameter param : job.getParameters()) {
+            String value = param.getValue();
+            if (Strings.isEmpty(value)) {
+                value = param.getDefaultValue();
+            }
+            if (value != null && spawnState.jobs.containsKey(value)) {
+                dataSources.add(value);
             }
-        } finally {
-            jobLock.unlock();
         }
         return dataSources;
     }
@@ -706,20 +730,15 @@ public class Spawn implements Codec.Codable {
     //* returns the jobs that depend on a given job. dependency is established if the job's ID is used as a job parameter
     public Collection<Job> listDependentJobs(String jobId) {
         ArrayList<Job> dependents = new ArrayList<>();
-        jobLock.lock();
-        try {
-            for (Job job : spawnState.jobs.values()) {
-                for (JobParameter param : job.getParameters()) {
-                    if (param.getValue() != null && param.getValue().equals(jobId)) {
-                        dependents.add(job);
-                        break;
-                    }
+        for (Job job : spawnState.jobs.values()) {
+            for (JobParameter param : job.getParameters()) {
+                if (param.getValue() != null && param.getValue().equals(jobId)) {
+                    dependents.add(job);
+                    break;
                 }
             }
-            return dependents;
-        } finally {
-            jobLock.unlock();
         }
+        return dependents;
     }
 
     public void buildDependencyFlowGraph(FlowGraph graph, String jobId) {
@@ -772,16 +791,7 @@ public class Spawn implements Codec.Codable {
     }
 
     public Collection<Job> listJobs() {
-        ArrayList<Job> clones = new ArrayList<>(spawnState.jobs.size());
-        jobLock.lock();
-        try {
-            for (Job job : spawnState.jobs.values()) {
-                clones.add(job);
-            }
-            return clones;
-        } finally {
-            jobLock.unlock();
-        }
+        return new ArrayList<>(spawnState.jobs.values());
     }
 
     public Collection<Job> listJobsConcurrentImmutable() {
@@ -829,12 +839,7 @@ public class Spawn implements Codec.Codable {
         if (jobUUID == null) {
             return null;
         }
-        jobLock.lock();
-        try {
-            return spawnState.jobs.get(jobUUID);
-        } finally {
-            jobLock.unlock();
-        }
+        return spawnState.jobs.get(jobUUID);
     }
 
     public void setJobConfig(String jobUUID, String config) throws Exception {
@@ -845,12 +850,7 @@ public class Spawn implements Codec.Codable {
         if (jobUUID == null) {
             return null;
         }
-        jobLock.lock();
-        try {
-            return jobConfigManager.getConfig(jobUUID);
-        } finally {
-            jobLock.unlock();
-        }
+        return jobConfigManager.getConfig(jobUUID);
     }
 
     public Job putJobInSpawnState(Job job) {
@@ -1869,10 +1869,10 @@ public class Spawn implements Codec.Codable {
                     require(newReplicaCount < monitored.size(), "replication factor must be < # live hosts");
                     rebalanceReplicas(job);
                 }
-                sendJobUpdateEvent(job);
             } finally {
                 jobLock.unlock();
             }
+            sendJobUpdateEvent(job);
         }
     }
 
@@ -1915,16 +1915,24 @@ public class Spawn implements Codec.Codable {
             log.warn("[job.delete] " + job.getId() + " >> " + job.getCopyOfTasks());
             spawnMQ.sendControlMessage(new CommandTaskDelete(HostMessage.ALL_HOSTS, job.getId(), null, job.getRunCount()));
             sendJobUpdateEvent("job.delete", job);
-            if (jobConfigManager != null) {
-                jobConfigManager.deleteJob(job.getId());
-            }
             if (jobStore != null) {
                 jobStore.delete(jobUUID);
             }
-            return DeleteStatus.SUCCESS;
         } finally {
             jobLock.unlock();
         }
+        if (jobConfigManager != null) {
+            // after the job left spawnState, so a snapshot persisted later does not recreate it
+            Lock persistLock = jobPersistLocks.get(jobUUID);
+            persistLock.lock();
+            try {
+                jobConfigManager.deleteJob(jobUUID);
+                persistedJobVersions.remove(jobUUID);
+            } finally {
+                persistLock.unlock();
+            }
+        }
+        return DeleteStatus.SUCCESS;
     }
 
     public void sendControlMessage(HostMessage hostMessage) {
@@ -2040,28 +2048,24 @@ public class Spawn implements Codec.Codable {
     }
 
     public void killJob(String jobUUID) throws Exception {
-        boolean success = false;
-        while (!success & !shuttingDown.get()) {
+        jobLock.lock();
+        try {
+            taskQueuesByPriority.lock();
             try {
-                jobLock.lock();
-                if (taskQueuesByPriority.tryLock()) {
-                    success = true;
-                    Job job = getJob(jobUUID);
-                    require(job != null, "job not found");
-                    for (JobTask task : job.getCopyOfTasks()) {
-                        if (task.getState() == JobTaskState.QUEUED) {
-                            removeFromQueue(task);
-                        }
-                        killTask(jobUUID, task.getTaskID());
+                Job job = getJob(jobUUID);
+                require(job != null, "job not found");
+                for (JobTask task : job.getCopyOfTasks()) {
+                    if (task.getState() == JobTaskState.QUEUED) {
+                        removeFromQueue(task);
                     }
-                    job.setHadMoreData(false);
+                    killTask(jobUUID, task.getTaskID());
                 }
+                job.setHadMoreData(false);
             } finally {
-                jobLock.unlock();
-                if (success) {
-                    taskQueuesByPriority.unlock();
-                }
+                taskQueuesByPriority.unlock();
             }
+        } finally {
+            jobLock.unlock();
         }
     }
 
@@ -2469,6 +2473,7 @@ public class Spawn implements Codec.Codable {
                 log.info("[task.end] :: " + update.getJobUuid() + "/" + update.getNodeID() + " exit=" + update.getExitCode());
                 tasksCompletedPerHour.mark();
                 taskQueuesByPriority.markHostAvailable(update.getHostUuid());
+                requestQueueKick();
                 try {
                     job = getJob(update.getJobUuid());
                     if (job == null) {
@@ -2668,31 +2673,26 @@ public class Spawn implements Codec.Codable {
     JobMacro createJobHostMacro(String job, int port) {
         String sPort = Integer.valueOf(port).toString();
         Set<String> jobHosts = new TreeSet<>();// best set?
-        jobLock.lock();
-        try {
-            Collection<HostState> hosts = listHostStatus(null);
-            Map<String, String> uuid2Host = new HashMap<>();
-            for (HostState host : hosts) {
-                if (host.isUp()) {
-                    uuid2Host.put(host.getHostUuid(), host.getHost());
-                }
-            }
-            if (uuid2Host.size() == 0) {
-                log.warn("[createJobHostMacro] warning job was found on no available hosts: " + job);
-            }
-            IJob ijob = getJob(job);
-            if (ijob == null) {
-                log.warn("[createJobHostMacro] Unable to get job config for job: " + job);
-                throw new RuntimeException("[createJobHostMacro] Unable to get job config for job: " + job);
+        Collection<HostState> hosts = listHostStatus(null);
+        Map<String, String> uuid2Host = new HashMap<>();
+        for (HostState host : hosts) {
+            if (host.isUp()) {
+                uuid2Host.put(host.getHostUuid(), host.getHost());
             }
-            for (JobTask task : ijob.getCopyOfTasks()) {
-                String host = uuid2Host.get(task.getHostUUID());
-                if (host != null) {
-                    jobHosts.add(host);
-                }
+        }
+        if (uuid2Host.size() == 0) {
+            log.warn("[createJobHostMacro] warning job was found on no available hosts: " + job);
+        }
+        IJob ijob = getJob(job);
+        if (ijob == null) {
+            log.warn("[createJobHostMacro] Unable to get job config for job: " + job);
+            throw new RuntimeException("[createJobHostMacro] Unable to get job config for job: " + job);
+        }
+        for (JobTask task : ijob.getCopyOfTasks()) {
+            String host = uuid2Host.get(task.getHostUUID());
+            if (host != null) {
+                jobHosts.add(host);
             }
-        } finally {
-            jobLock.unlock();
         }
 
         List<String> hostStrings = new ArrayList<>();
@@ -2707,28 +2707,55 @@ public class Spawn implements Codec.Codable {
 
     /**
      * send job update event to registered listeners (usually http clients)
+     * <p/>
+     * The job is copied under the job lock and persisted outside of it, so that writes to the
+     * data store do not block the queue iteration or other jobs. A caller still holding the
+     * job lock has the job queued for the update queue drainer instead.
      */
     private void sendJobUpdateEvent(Job job) {
-        jobLock.lock();
-        try {
-            if (jobConfigManager != null) {
-                jobConfigManager.updateJob(job);
+        if (jobConfigManager != null) {
+            if (jobLock.isHeldByCurrentThread()) {
+                queueJobTaskUpdateEvent(job);
+                return;
             }
-        } finally {
-            jobLock.unlock();
+            IJob snapshot;
+            long version;
+            jobLock.lock();
+            try {
+                snapshot = new ZnodeJob(job);
+                version = jobSnapshotVersion.incrementAndGet();
+            } finally {
+                jobLock.unlock();
+            }
+            persistJob(snapshot, version);
         }
         sendJobUpdateEvent("job.update", job);
     }
 
-    public void queueJobTaskUpdateEvent(Job job) {
-        jobLock.lock();
+    /**
+     * Writes a snapshot unless a newer snapshot of the job was already written
+     * or the job was deleted after the snapshot was taken.
+     */
+    private void persistJob(IJob snapshot, long version) {
+        String jobId = snapshot.getId();
+        Lock persistLock = jobPersistLocks.get(jobId);
+        persistLock.lock();
         try {
-            jobUpdateQueue.add(job.getId());
+            Long persisted = persistedJobVersions.get(jobId);
+            if ((persisted != null && persisted > version) || getJob(jobId) == null) {
+                return;
+            }
+            jobConfigManager.updateJob(snapshot);
+            persistedJobVersions.put(jobId, version);
         } finally {
-            jobLock.unlock();
+            persistLock.unlock();
         }
     }
 
+    public void queueJobTaskUpdateEvent(Job job) {
+        jobUpdateQueue.add(job.getId());
+    }
+
     public void drainJobTaskUpdateQueue() {
         long start = System.currentTimeMillis();
         Set<String> jobIds = new HashSet<String>();
@@ -2747,20 +2774,18 @@ public class Spawn implements Codec.Codable {
         }
     }
 
+    /**
+     * Task changes are coalesced with other updates to the job through the update queue,
+     * which only persists the task records that changed.
+     */
     public void sendJobTaskUpdateEvent(Job job, JobTask jobTask) {
-        jobLock.lock();
-        try {
-            if (jobConfigManager != null) {
-                jobConfigManager.updateJob(job, jobTask);
-            }
-        } finally {
-            jobLock.unlock();
-        }
-        sendJobUpdateEvent("job.update", job);
-
+        queueJobTaskUpdateEvent(job);
     }
 
     public void sendJobUpdateEvent(String label, Job job) {
+        if (listeners.isEmpty() && !webSocketManager.hasWebSockets()) {
+            return;
+        }
         try {
             sendEventToClientListeners(label, getJobUpdateEvent(job));
         } catch (Exception e) {
@@ -2908,10 +2933,12 @@ public class Spawn implements Codec.Codable {
     }
 
     /**
-     * send codable message to registered listeners as json
+     * send codable message to registered listeners as json. The event is shared by every listener
+     * and replaces any pending event about the same job or host.
      */
     private void sendEventToClientListeners(final String topic, final JSONObject message) {
         long time = System.currentTimeMillis();
+        ClientEvent event = new ClientEvent(topic, message);
         for (Entry<String, ClientEventListener> ev : listeners.entrySet()) {
             ClientEventListener client = ev.getValue();
             // drop listeners we haven't heard from in a while
@@ -2922,13 +2949,12 @@ public class Spawn implements Codec.Codable {
                 }
                 continue;
             }
-            try {
-                client.events.put(new ClientEvent(topic, message));
-            } catch (Exception ex) {
-                log.warn("", ex);
+            if (!client.events.add(event)) {
+                listeners.remove(ev.getKey(), client);
+                log.warn("[listen] dropping listener " + ev.getKey() + " that is not keeping up with events");
             }
         }
-        webSocketManager.addEvent(new ClientEvent(topic, message));
+        webSocketManager.addEvent(event);
     }
 
     private class UpdateEventRunnable implements Runnable {
@@ -2955,49 +2981,45 @@ public class Spawn implements Codec.Codable {
             int taskqueued = 0;
             long files = 0;
             long bytes = 0;
-            jobLock.lock();
-            try {
-                for (Job job : spawnState.jobs.values()) {
-                    for (JobTask jn : job.getCopyOfTasks()) {
-                        switch (jn.getState()) {
-                            case ALLOCATED:
-                                taskallocated++;
-                                break;
-                            case BUSY:
-                                taskbusy++;
-                                break;
-                            case ERROR:
-                                taskerrored++;
-                                break;
-                            case IDLE:
-                                break;
-                            case QUEUED:
-                                taskqueued++;
-                                break;
-                        }
-                        files += jn.getFileCount();
-                        bytes += jn.getByteCount();
-                    }
-                    switch (job.getState()) {
-                        case IDLE:
+            // the map is concurrent, so the scan reads each job as it is without blocking updates
+            for (Job job : spawnState.jobs.values()) {
+                for (JobTask jn : job.getCopyOfTasks()) {
+                    switch (jn.getState()) {
+                        case ALLOCATED:
+                            taskallocated++;
                             break;
-                        case RUNNING:
-                            jobrunning++;
-                            if (job.getStartTime() != null && job.getMaxRunTime() != null &&
-                                (JitterClock.globalTime() - job.getStartTime() > job.getMaxRunTime() * 2)) {
-                                jobshung++;
-                            }
+                        case BUSY:
+                            taskbusy++;
                             break;
-                        case SCHEDULED:
-                            jobscheduled++;
+                        case ERROR:
+                            taskerrored++;
+                            break;
+                        case IDLE:
+                            break;
+                        case QUEUED:
+                            taskqueued++;
                             break;
                     }
-                    if (job.getState() == JobState.ERROR) {
-                        joberrored++;
-                    }
+                    files += jn.getFileCount();
+                    bytes += jn.getByteCount();
+                }
+                switch (job.getState()) {
+                    case IDLE:
+                        break;
+                    case RUNNING:
+                        jobrunning++;
+                        if (job.getStartTime() != null && job.getMaxRunTime() != null &&
+                            (JitterClock.globalTime() - job.getStartTime() > job.getMaxRunTime() * 2)) {
+                            jobshung++;
+                        }
+                        break;
+                    case SCHEDULED:
+                        jobscheduled++;
+                        break;
+                }
+                if (job.getState() == JobState.ERROR) {
+                    joberrored++;
                 }
-            } finally {
-                jobLock.unlock();
             }
             events.clear();
             events.put("time", System.currentTimeMillis());
@@ -3081,14 +3103,7 @@ public class Spawn implements Codec.Codable {
                  */
                 try {
                     if (!quiesce) {
-                        String jobids[] = null;
-                        jobLock.lock();
-                        try {
-                            jobids = new String[spawnState.jobs.size()];
-                            jobids = spawnState.jobs.keySet().toArray(jobids);
-                        } finally {
-                            jobLock.unlock();
-                        }
+                        String jobids[] = spawnState.jobs.keySet().toArray(new String[0]);
                         long clock = System.currentTimeMillis();
                         for (String jobid : jobids) {
                             Job job = getJob(jobid);
@@ -3168,23 +3183,19 @@ public class Spawn implements Codec.Codable {
      * @throws Exception If there is a problem scheduling the task
      */
     private void kickIncludingQueue(Job job, JobTask task, String config, boolean inQueue, boolean ignoreQuiesce) throws Exception {
-        boolean success = false;
-        while (!success && !shuttingDown.get()) {
-            jobLock.lock();
+        jobLock.lock();
+        try {
+            taskQueuesByPriority.lock();
             try {
-                if (taskQueuesByPriority.tryLock()) {
-                    success = true;
-                    boolean kicked = kickOnExistingHosts(job, task, config, 0L, true, ignoreQuiesce);
-                    if (!kicked && !inQueue) {
-                        addToTaskQueue(task.getJobKey(), ignoreQuiesce, false);
-                    }
+                boolean kicked = kickOnExistingHosts(job, task, config, 0L, true, ignoreQuiesce);
+                if (!kicked && !inQueue) {
+                    addToTaskQueue(task.getJobKey(), ignoreQuiesce, false);
                 }
             } finally {
-                jobLock.unlock();
-                if (success) {
-                    taskQueuesByPriority.unlock();
-                }
+                taskQueuesByPriority.unlock();
             }
+        } finally {
+            jobLock.unlock();
         }
     }
 
@@ -3535,7 +3546,7 @@ public class Spawn implements Codec.Codable {
                 queueJobTaskUpdateEvent(job);
             } else if (task.getState() == JobTaskState.QUEUED || job.setTaskState(task, JobTaskState.QUEUED)) {
                 log.info("[taskQueuesByPriority] adding " + jobKey + " to queue with ignoreQuiesce=" + ignoreQuiesce);
-                taskQueuesByPriority.addTaskToQueue(job.getPriority(), jobKey, ignoreQuiesce, toHead);
+                taskQueuesByPriority.addTaskToQueue(job.getPriority(), jobKey, ignoreQuiesce, toHead, getQueueHosts(job, task));
                 queueJobTaskUpdateEvent(job);
                 sendTaskQueueUpdateEvent();
             } else {
@@ -3546,82 +3557,116 @@ public class Spawn implements Codec.Codable {
 
     /**
      * Iterate over each queue looking for jobs that can run. By design, the queues are processed in descending order
-     * of priority, so we try priority 2 tasks before priority 1, etc.
+     * of priority, so we try priority 2 tasks before priority 1, etc. Most passes only visit the tasks that could run
+     * on a host with a free slot; every task is visited by a periodic full iteration.
      */
     public void kickJobsOnQueue() {
-        LinkedList[] queues = null;
-        boolean success = false;
-        while (!success && !shuttingDown.get()) {
-            // need the job lock first
-            jobLock.lock();
+        if (shuttingDown.get()) {
+            return;
+        }
+        // need the job lock first
+        jobLock.lock();
+        try {
+            taskQueuesByPriority.lock();
             try {
-                if (taskQueuesByPriority.tryLock()) {
-                    success = true;
-                    taskQueuesByPriority.setStoppedJob(false);
-                    taskQueuesByPriority.updateAllHostAvailSlots(listHostStatus(null));
-                    queues = taskQueuesByPriority.values().toArray(new LinkedList[taskQueuesByPriority.size()]);
-                    for (LinkedList<SpawnQueueItem> queue : queues) {
-                        iterateThroughTaskQueue(queue);
+                taskQueuesByPriority.setStoppedJob(false);
+                taskQueuesByPriority.updateAllHostAvailSlots(listHostStatus(null));
+                if (taskQueuesByPriority.startFullIteration()) {
+                    Integer[] priorities = taskQueuesByPriority.keySet().toArray(new Integer[taskQueuesByPriority.size()]);
+                    for (Integer priority : priorities) {
+                        iterateThroughTaskQueue(priority, taskQueuesByPriority.get(priority));
                     }
-                    sendTaskQueueUpdateEvent();
+                } else {
+                    kickIndexedTasks();
                 }
             } finally {
-                jobLock.unlock();
-                if (success) {
-                    taskQueuesByPriority.unlock();
-                }
+                taskQueuesByPriority.unlock();
             }
-            if (!success) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
+        } finally {
+            jobLock.unlock();
+        }
+        sendTaskQueueUpdateEvent();
+    }
+
+    /**
+     * Run a queue pass soon, for example because a host freed a slot. Requests made while one is pending are merged.
+     */
+    private void requestQueueKick() {
+        if (queueKickPending.compareAndSet(false, true)) {
+            scheduledExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    queueKickPending.set(false);
+                    kickJobsOnQueue();
                 }
-            }
+            });
         }
     }
 
     /**
-     * Iterate over a particular queue of same-priority tasks, kicking any that can run.
-     * Must be inside of a block synchronized on the queue.
+     * Iterate over a particular queue of same-priority tasks, kicking any that can run and indexing the rest
+     * by the hosts they can run on. Must be inside of a block synchronized on the queue.
      *
-     * @param queue The queue to look over
+     * @param priority The priority of the queue
+     * @param queue    The queue to look over
      */
-    private void iterateThroughTaskQueue(LinkedList<SpawnQueueItem> queue) {
+    private void iterateThroughTaskQueue(int priority, LinkedList<SpawnQueueItem> queue) {
         ListIterator<SpawnQueueItem> iter = queue.listIterator(0);
         int skippedQuiesceCount = 0;
+        int position = 0;
         long now = System.currentTimeMillis();
         while (iter.hasNext() && !taskQueuesByPriority.getStoppedJob()) // Terminate if out of tasks or we stopped a job, requiring a queue modification
         {
             SpawnQueueItem key = iter.next();
             Job job = getJob(key.getJobUuid());
             JobTask task = getTask(key.getJobUuid(), key.getNodeNumber());
-            try {
-                boolean kicked;
-                if (job == null || task == null || task.getState() != JobTaskState.QUEUED) {
-                    log.warn("[task.queue] removing invalid task " + key);
-                    iter.remove();
-                    continue;
-                }
-                if (quiesce && !key.getIgnoreQuiesce()) {
-                    skippedQuiesceCount++;
-                    if (log.isDebugEnabled()) {
-                        log.debug("[task.queue] skipping " + key + " because spawn is quiesced and the kick wasn't manual");
-                    }
-                    continue;
-                } else {
-                    kicked = kickOnExistingHosts(job, task, null, now - key.getCreationTime(), true, key.getIgnoreQuiesce());
-                }
-                if (kicked) {
-                    log.info("[task.queue] removing kicked task " + task.getJobKey());
-                    iter.remove();
-                }
-            } catch (Exception ex) {
-                log.warn("[task.queue] received exception during task kick: ", ex);
-                if (task != null && job != null) {
-                    job.errorTask(task, JobTaskErrorCode.KICK_ERROR);
-                    iter.remove();
-                    queueJobTaskUpdateEvent(job);
+            if (job == null || task == null || task.getState() != JobTaskState.QUEUED) {
+                log.warn("[task.queue] removing invalid task " + key);
+                iter.remove();
+                taskQueuesByPriority.unindex(key);
+                continue;
+            }
+            if (quiesce && !key.getIgnoreQuiesce()) {
+                skippedQuiesceCount++;
+                if (log.isDebugEnabled()) {
+                    log.debug("[task.queue] skipping " + key + " because spawn is quiesced and the kick wasn't manual");
                 }
+            } else if (kickQueuedTask(key, job, task, now)) {
+                iter.remove();
+                taskQueuesByPriority.unindex(key);
+                continue;
+            }
+            taskQueuesByPriority.reindex(key, priority, position++, getQueueHosts(job, task));
+        }
+        if (skippedQuiesceCount > 0) {
+            log.warn("[task.queue] skipped " + skippedQuiesceCount + " queued tasks because spawn is quiesced and the kick wasn't manual");
+        }
+    }
+
+    /**
+     * Visit the queued tasks that could run on a host with a free slot, in queue order, until no slots are left.
+     * Must be inside of a block synchronized on the queue.
+     */
+    private void kickIndexedTasks() {
+        int skippedQuiesceCount = 0;
+        long now = System.currentTimeMillis();
+        for (SpawnQueueItem key : taskQueuesByPriority.getIndexedCandidates()) {
+            if (taskQueuesByPriority.getStoppedJob() || !taskQueuesByPriority.hasAvailableSlots()) {
+                break;
+            }
+            Job job = getJob(key.getJobUuid());
+            JobTask task = getTask(key.getJobUuid(), key.getNodeNumber());
+            if (job == null || task == null || task.getState() != JobTaskState.QUEUED) {
+                log.warn("[task.queue] removing invalid task " + key);
+                taskQueuesByPriority.removeItem(key);
+                continue;
+            }
+            if (quiesce && !key.getIgnoreQuiesce()) {
+                skippedQuiesceCount++;
+                continue;
+            }
+            if (kickQueuedTask(key, job, task, now)) {
+                taskQueuesByPriority.removeItem(key);
             }
         }
         if (skippedQuiesceCount > 0) {
@@ -3629,13 +3674,61 @@ public class Spawn implements Codec.Codable {
         }
     }
 
+    /**
+     * Attempt to kick a queued task
+     *
+     * @return True if the task should leave the queue, because it was kicked or failed to kick
+     */
+    private boolean kickQueuedTask(SpawnQueueItem key, Job job, JobTask task, long now) {
+        try {
+            if (kickOnExistingHosts(job, task, null, now - key.getCreationTime(), true, key.getIgnoreQuiesce())) {
+                log.info("[task.queue] removing kicked task " + task.getJobKey());
+                return true;
+            }
+            return false;
+        } catch (Exception ex) {
+            log.warn("[task.queue] received exception during task kick: ", ex);
+            job.errorTask(task, JobTaskErrorCode.KICK_ERROR);
+            queueJobTaskUpdateEvent(job);
+            return true;
+        }
+    }
+
+    /**
+     * The hosts that a queued task could be kicked on: the live host and the replicas it could swap to.
+     *
+     * @return The host UUIDs, or null if the task could run on any host because it is new or may migrate
+     */
+    private Collection<String> getQueueHosts(Job job, JobTask task) {
+        if (isNewTask(task) || (taskQueuesByPriority.isMigrationEnabled() && !job.getDontAutoBalanceMe() &&
+                                (job.getQueryConfig() == null || !job.getQueryConfig().getCanQuery()))) {
+            return null;
+        }
+        List<String> hosts = new ArrayList<>();
+        hosts.add(task.getHostUUID());
+        if (task.getReplicas() != null) {
+            for (JobTaskReplica replica : task.getReplicas()) {
+                hosts.add(replica.getHostUUID());
+            }
+        }
+        return hosts;
+    }
+
     /**
      * browser polling event listener
      */
     public static class ClientEventListener {
 
         public long lastSeen;
-        public LinkedBlockingQueue<ClientEvent> events = new LinkedBlockingQueue<ClientEvent>();
+        public final ClientEventQueue events;
+
+        public ClientEventListener() {
+            this(false);
+        }
+
+        public ClientEventListener(boolean diffs) {
+            this.events = new ClientEventQueue(diffs);
+        }
     }
 
     /**
@@ -90,7 +90,8 @@ public class SpawnManager {
                 KVPairs kv = link.getRequestValues();
                 long timeout = kv.getLongValue("timeout", pollTimeout);
                 long batchTime = kv.getLongValue("batchtime", batchInterval);
-                ClientEventListener listener = spawn.getClientEventListener(kv.getValue("clientID", "noid"));
+                boolean diffs = kv.getValue("diff", "0").equals("1");
+                ClientEventListener listener = spawn.getClientEventListener(kv.getValue("clientID", "noid"), diffs);
                 try {
                     ClientEvent nextEvent = listener.events.poll(timeout, TimeUnit.MILLISECONDS);
                     if (nextEvent != null) {
@@ -13,13 +13,18 @@
  */
 package com.addthis.hydra.job;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
@@ -37,6 +42,15 @@ import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 
 import org.slf4j.LoggerFactory;
+/**
+ * Spawn's queues of tasks waiting to run, one per priority in descending order.
+ * <p/>
+ * Besides the queues the tasks are indexed by the hosts they can run on, so that a pass over the
+ * queue only needs to consider the tasks of hosts that have a free slot. Tasks that can run on any
+ * host (new tasks and tasks that may migrate) or whose hosts are unknown are considered whenever
+ * any host has a free slot. The index is rebuilt by a periodic full iteration over the queues
+ * because the hosts of a task can change while it is queued.
+ */
 public class SpawnQueuesByPriority extends TreeMap<Integer, LinkedList<SpawnQueueItem>> {
 
     private static Logger log = LoggerFactory.getLogger(SpawnQueuesByPriority.class);
@@ -55,6 +69,47 @@ public class SpawnQueuesByPriority extends TreeMap<Integer, LinkedList<SpawnQueu
     private static final long TASK_MIGRATION_INTERVAL_PER_HOST = Parameter.longValue("task.migration.interval", 240_000); // Only migrate a task to a particular host once per interval
     private final Cache<String, Boolean> migrateHosts; // Use cache ttl to mark hosts that have recently performed or received a migration
     private final AtomicBoolean stoppedJob = new AtomicBoolean(false); // When tasks are stopped, track this behavior so that the queue can be modified as soon as possible
+    private static final long SPAWN_QUEUE_FULL_ITERATION_INTERVAL = Parameter.longValue("spawn.queue.full.iteration.interval", 60_000); // Visit every queued task at least this often
+
+    /* Index of the queued items, all guarded by queueLock */
+    private final IdentityHashMap<SpawnQueueItem, IndexedItem> indexedItems = new IdentityHashMap<>();
+    private final HashMap<String, TreeSet<IndexedItem>> itemsByHost = new HashMap<>();
+    private final TreeSet<IndexedItem> itemsOnAnyHost = new TreeSet<>();
+    private long headSequence;
+    private long tailSequence;
+    private long lastFullIteration;
+    private long indexSerial;
+
+    /**
+     * A queued item with its position in the queues and the hosts it can run on (null for any host)
+     */
+    private static class IndexedItem implements Comparable<IndexedItem> {
+
+        final SpawnQueueItem item;
+        final int priority;
+        final long sequence;
+        final Collection<String> hosts;
+        final long serial; // Distinguishes items that were given the same sequence
+
+        IndexedItem(SpawnQueueItem item, int priority, long sequence, Collection<String> hosts, long serial) {
+            this.item = item;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.hosts = hosts;
+            this.serial = serial;
+        }
+
+        @Override
+        public int compareTo(IndexedItem o) {
+            if (priority != o.priority) {
+                return priority > o.priority ? -1 : 1;
+            }
+            if (sequence != o.sequence) {
+                return sequence < o.sequence ? -1 : 1;
+            }
+            return Long.compare(serial, o.serial);
+        }
+    }
 
     public SpawnQueuesByPriority() {
         super(new Comparator<Integer>() {
@@ -78,6 +133,13 @@ public class SpawnQueuesByPriority extends TreeMap<Integer, LinkedList<SpawnQueu
     }
 
     public boolean addTaskToQueue(int priority, JobKey task, boolean canIgnoreQuiesce, boolean toHead) {
+        return addTaskToQueue(priority, task, canIgnoreQuiesce, toHead, null);
+    }
+
+    /**
+     * @param hosts The hosts the task can run on, or null if it can run on any host
+     */
+    public boolean addTaskToQueue(int priority, JobKey task, boolean canIgnoreQuiesce, boolean toHead, Collection<String> hosts) {
         queueLock.lock();
         try {
             LinkedList<SpawnQueueItem> queue = this.get(priority);
@@ -85,11 +147,13 @@ public class SpawnQueuesByPriority extends TreeMap<Integer, LinkedList<SpawnQueu
                 queue = new LinkedList<>();
                 this.put(priority, queue);
             }
+            SpawnQueueItem item = new SpawnQueueItem(task, canIgnoreQuiesce);
+            index(item, priority, toHead ? --headSequence : ++tailSequence, hosts);
             if (toHead) {
-                queue.add(0, new SpawnQueueItem(task, canIgnoreQuiesce));
+                queue.add(0, item);
                 return true;
             }
-            return queue.add(new SpawnQueueItem(task, canIgnoreQuiesce));
+            return queue.add(item);
         } finally {
             queueLock.unlock();
         }
@@ -103,9 +167,10 @@ public class SpawnQueuesByPriority extends TreeMap<Integer, LinkedList<SpawnQueu
             if (queue != null) {
                 ListIterator<SpawnQueueItem> iter = queue.listIterator();
                 while (iter.hasNext()) {
-                    JobKey nextKey = iter.next();
+                    SpawnQueueItem nextKey = iter.next();
                     if (nextKey != null && nextKey.matches(task)) {
                         iter.remove();
+                        unindex(nextKey);
                         return true;
                     }
                 }
@@ -116,6 +181,144 @@ public class SpawnQueuesByPriority extends TreeMap<Integer, LinkedList<SpawnQueu
         }
     }
 
+    /**
+     * Remove an item returned by {@link #getIndexedCandidates()}. Must hold the queue lock.
+     */
+    public void removeItem(SpawnQueueItem item) {
+        IndexedItem indexed = removeFromIndex(item);
+        LinkedList<SpawnQueueItem> queue = indexed != null ? get(indexed.priority) : null;
+        if (queue != null) {
+            Iterator<SpawnQueueItem> iter = queue.iterator();
+            while (iter.hasNext()) {
+                if (iter.next() == item) {
+                    iter.remove();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the hosts an item visited by a full iteration can run on. Must hold the queue lock.
+     *
+     * @param position The position of the item in its queue
+     * @param hosts    The hosts the task can run on, or null if it can run on any host
+     */
+    public void reindex(SpawnQueueItem item, int priority, int position, Collection<String> hosts) {
+        unindex(item);
+        index(item, priority, position, hosts);
+    }
+
+    /**
+     * Forget an item that a full iteration removed from its queue. Must hold the queue lock.
+     */
+    public void unindex(SpawnQueueItem item) {
+        removeFromIndex(item);
+    }
+
+    private IndexedItem removeFromIndex(SpawnQueueItem item) {
+        IndexedItem indexed = indexedItems.remove(item);
+        if (indexed != null) {
+            if (indexed.hosts == null) {
+                itemsOnAnyHost.remove(indexed);
+            } else {
+                for (String host : indexed.hosts) {
+                    TreeSet<IndexedItem> items = itemsByHost.get(host);
+                    if (items != null) {
+                        items.remove(indexed);
+                        if (items.isEmpty()) {
+                            itemsByHost.remove(host);
+                        }
+                    }
+                }
+            }
+        }
+        return indexed;
+    }
+
+    private void index(SpawnQueueItem item, int priority, long sequence, Collection<String> hosts) {
+        IndexedItem indexed = new IndexedItem(item, priority, sequence, hosts, ++indexSerial);
+        indexedItems.put(item, indexed);
+        if (hosts == null) {
+            itemsOnAnyHost.add(indexed);
+        } else {
+            for (String host : hosts) {
+                TreeSet<IndexedItem> items = itemsByHost.get(host);
+                if (items == null) {
+                    items = new TreeSet<>();
+                    itemsByHost.put(host, items);
+                }
+                items.add(indexed);
+            }
+        }
+    }
+
+    /**
+     * Decide whether the next pass should visit every queued task, which also rebuilds the index.
+     * This is the case periodically and whenever some queued items have not been indexed, for
+     * example after the queues were loaded. Must hold the queue lock.
+     *
+     * @return True if the caller should do a full iteration
+     */
+    public boolean startFullIteration() {
+        long now = JitterClock.globalTime();
+        int queued = 0;
+        for (LinkedList<SpawnQueueItem> queue : values()) {
+            queued += queue.size();
+        }
+        if (queued != indexedItems.size() || now - lastFullIteration >= SPAWN_QUEUE_FULL_ITERATION_INTERVAL) {
+            lastFullIteration = now;
+            // positions within a queue are reassigned by the full iteration
+            headSequence = 0;
+            tailSequence = Integer.MAX_VALUE;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The queued items that could run on a host with a free slot, in queue order. Must hold the queue lock.
+     *
+     * @return Items whose hosts have a free slot and items that can run on any host, or nothing if no host has a free slot
+     */
+    public List<SpawnQueueItem> getIndexedCandidates() {
+        TreeSet<IndexedItem> candidates = new TreeSet<>();
+        boolean anySlots = false;
+        synchronized (hostAvailSlots) {
+            for (Map.Entry<String, Integer> entry : hostAvailSlots.entrySet()) {
+                if (entry.getValue() > 0) {
+                    anySlots = true;
+                    TreeSet<IndexedItem> items = itemsByHost.get(entry.getKey());
+                    if (items != null) {
+                        candidates.addAll(items);
+                    }
+                }
+            }
+        }
+        List<SpawnQueueItem> rv = new ArrayList<>();
+        if (anySlots) {
+            candidates.addAll(itemsOnAnyHost);
+            for (IndexedItem indexed : candidates) {
+                rv.add(indexed.item);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * @return True if any host has a free slot
+     */
+    public boolean hasAvailableSlots() {
+        synchronized (hostAvailSlots) {
+            for (Integer slots : hostAvailSlots.values()) {
+                if (slots > 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     public int getTaskQueuedCount(int priority) {
         queueLock.lock();
         try {
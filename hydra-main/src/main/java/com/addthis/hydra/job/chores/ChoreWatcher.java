@@ -29,6 +29,9 @@ import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 
 import org.slf4j.LoggerFactory;
+
+import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_CHOREWATCHER_PATH;
+
 /**
  * Watches a set of chores, carrying out actions when they finish
  */
@@ -37,7 +40,6 @@ public class ChoreWatcher {
     protected static Logger log = LoggerFactory.getLogger(ChoreWatcher.class);
     protected SpawnDataStore spawnDataStore;
     protected final int choreCleanupInterval;
-    protected static final String CHOREWATCHER_BASE_PATH = "/chorewatcher";
     public final String CHOREWATCHER_PATH;
     protected final ExecutorService choreExecutor;
     protected ChoreMap choreMap = new ChoreMap();
@@ -56,7 +58,7 @@ public class ChoreWatcher {
         this.spawnDataStore = spawnDataStore;
         this.choreExecutor = choreExecutor;
         this.id = id;
-        this.CHOREWATCHER_PATH = CHOREWATCHER_BASE_PATH + "/" + id;
+        this.CHOREWATCHER_PATH = SPAWN_CHOREWATCHER_PATH + "/" + id;
         loadState();
     }
 
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * The block checksums of a file, along with the length and modification
+ * time they were computed for. Each block is summarized by a 128 bit
+ * murmur3 hash, and the whole file by a hash of its block hashes.
+ */
+final class FileSignature {
+
+    private static final HashFunction hashFunction = Hashing.murmur3_128();
+
+    final long length;
+    final long modified;
+    final int blockSize;
+    /* two longs per block */
+    final long[] blocks;
+    final long hash;
+
+    FileSignature(long length, long modified, int blockSize, long[] blocks) {
+        this.length = length;
+        this.modified = modified;
+        this.blockSize = blockSize;
+        this.blocks = blocks;
+        Hasher hasher = hashFunction.newHasher();
+        hasher.putLong(length);
+        for (long block : blocks) {
+            hasher.putLong(block);
+        }
+        this.hash = hasher.hash().asLong();
+    }
+
+    static int blockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    int blockCount() {
+        return blocks.length / 2;
+    }
+
+    /**
+     * Hash one block into position index of blocks.
+     */
+    static void hashBlock(long[] blocks, int index, ByteBuffer buffer) {
+        HashCode code = hashFunction.hashBytes(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        ByteBuffer bytes = ByteBuffer.wrap(code.asBytes());
+        blocks[index * 2] = bytes.getLong(0);
+        blocks[index * 2 + 1] = bytes.getLong(8);
+    }
+
+    static FileSignature compute(File file, long length, long modified, int blockSize) throws IOException {
+        long[] blocks = new long[blockCount(length, blockSize) * 2];
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            for (int i = 0; i < blocks.length / 2; i++) {
+                readBlock(channel, i, blockSize, length, buffer);
+                hashBlock(blocks, i, buffer);
+            }
+        }
+        return new FileSignature(length, modified, blockSize, blocks);
+    }
+
+    /**
+     * Read a block into the buffer, which is flipped and ready to be read from.
+     */
+    static void readBlock(FileChannel channel, int index, int blockSize, long length, ByteBuffer buffer) throws IOException {
+        long position = (long) index * blockSize;
+        buffer.clear();
+        buffer.limit((int) Math.min(blockSize, length - position));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("file shrank while reading block " + index);
+            }
+        }
+        buffer.flip();
+    }
+
+    boolean sameContent(FileSignature other) {
+        return other != null && length == other.length && blockSize == other.blockSize && hash == other.hash;
+    }
+
+    /**
+     * @return true if block index of this file is also block index of other
+     */
+    boolean sameBlock(int index, FileSignature other) {
+        if (other == null || other.blockSize != blockSize || index >= other.blockCount() ||
+            blockLength(index) != other.blockLength(index)) {
+            return false;
+        }
+        return blocks[index * 2] == other.blocks[index * 2] && blocks[index * 2 + 1] == other.blocks[index * 2 + 1];
+    }
+
+    int blockLength(int index) {
+        return (int) Math.min(blockSize, length - (long) index * blockSize);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(length);
+        out.writeLong(modified);
+        out.writeInt(blockSize);
+        out.writeInt(blocks.length);
+        for (long block : blocks) {
+            out.writeLong(block);
+        }
+    }
+
+    static FileSignature read(DataInput in) throws IOException {
+        long length = in.readLong();
+        long modified = in.readLong();
+        int blockSize = in.readInt();
+        long[] blocks = new long[in.readInt()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = in.readLong();
+        }
+        return new FileSignature(length, modified, blockSize, blocks);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The messages exchanged by a {@link ReplicationSender} and a {@link ReplicationReceiver}.
+ * <p/>
+ * The sender opens with its block size, excluded names and the path, type,
+ * length and modification time of everything it has. The receiver answers
+ * with everything it has, including block signatures of the files that the
+ * sender will have to update. The sender then streams operations and ends
+ * with DONE, after which the receiver reports OK or ERROR with a message.
+ * A receiver that fails also reports ERROR as soon as it can.
+ */
+final class ReplicationProtocol {
+
+    static final int MAGIC = 0x48525031;
+    static final int VERSION = 1;
+
+    static final int OK = 0;
+    static final int ERROR = 1;
+
+    /* path: create a directory */
+    static final byte MKDIR = 1;
+    /* id, path, length: start writing a file */
+    static final byte BEGIN = 2;
+    /* id, first block, count: copy blocks from the existing file at the same offsets */
+    static final byte COPY = 3;
+    /* id, block, length, bytes: write a block */
+    static final byte DATA = 4;
+    /* id, modified, mode: finish a file and move it into place */
+    static final byte END = 5;
+    /* path, existing path: make a hard link */
+    static final byte LINK = 6;
+    /* path, target: make a symbolic link */
+    static final byte SYMLINK = 7;
+    /* path, modified, mode: update attributes */
+    static final byte ATTRS = 8;
+    /* path: delete a file or directory tree */
+    static final byte DELETE = 9;
+    static final byte DONE = 10;
+
+    private ReplicationProtocol() {
+    }
+
+    static void writeEntry(DataOutput out, String path, TreeEntry entry) throws IOException {
+        out.writeUTF(path);
+        out.writeByte(entry.type);
+        out.writeLong(entry.length);
+        out.writeLong(entry.modified);
+        out.writeLong(entry.inode);
+        out.writeInt(entry.mode);
+        out.writeUTF(entry.target != null ? entry.target : "");
+    }
+
+    static TreeEntry readEntry(DataInput in) throws IOException {
+        byte type = in.readByte();
+        long length = in.readLong();
+        long modified = in.readLong();
+        long inode = in.readLong();
+        int mode = in.readInt();
+        String target = in.readUTF();
+        return new TreeEntry(type, length, modified, inode, mode, type == TreeEntry.SYMLINK ? target : null);
+    }
+
+    /**
+     * Read the first int of a reply, throwing the error of a failed receiver.
+     */
+    static int readHeader(DataInput in) throws IOException {
+        int header = in.readInt();
+        if (header == ERROR) {
+            throw new IOException("receiver failed: " + in.readUTF());
+        }
+        return header;
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.addthis.hydra.job.replicate.ReplicationProtocol.*;
+
+/**
+ * Applies the operations of a {@link ReplicationSender} to a target directory.
+ * Files are written to a temporary file next to their destination and moved
+ * into place once complete, so a failed replication never leaves a partial
+ * file behind under its real name. Unchanged blocks are copied from the
+ * existing file instead of being sent.
+ */
+public class ReplicationReceiver {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationReceiver.class);
+
+    static final Meter bytesWritten = Metrics.newMeter(ReplicationReceiver.class, "bytesWritten", "bytes", TimeUnit.SECONDS);
+    static final Meter bytesCopied = Metrics.newMeter(ReplicationReceiver.class, "bytesCopied", "bytes", TimeUnit.SECONDS);
+    static final Counter filesReceived = Metrics.newCounter(ReplicationReceiver.class, "filesReceived");
+
+    private final Path target;
+    private final SignatureCache cache;
+    private final Map<Integer, Incoming> incoming = new HashMap<>();
+    private final Map<String, FileSignature> existing = new HashMap<>();
+
+    private int blockSize;
+    private ByteBuffer buffer;
+
+    /**
+     * @param target    directory to replicate into
+     * @param cacheFile where to keep block signatures of the target, or null
+     */
+    public ReplicationReceiver(File target, File cacheFile) {
+        this.target = target.getAbsoluteFile().toPath().normalize();
+        this.cache = new SignatureCache(cacheFile);
+    }
+
+    /**
+     * A file being written.
+     */
+    private static final class Incoming {
+
+        final String path;
+        final Path temp;
+        final long length;
+        final long[] blocks;
+        final FileChannel channel;
+        final FileChannel previous;
+        final FileSignature previousSignature;
+
+        Incoming(String path, Path temp, long length, int blockSize, FileChannel channel, FileChannel previous,
+                FileSignature previousSignature) {
+            this.path = path;
+            this.temp = temp;
+            this.length = length;
+            this.blocks = new long[FileSignature.blockCount(length, blockSize) * 2];
+            this.channel = channel;
+            this.previous = previous;
+            this.previousSignature = previousSignature;
+        }
+
+        void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if (previous != null) {
+                    previous.close();
+                }
+            }
+        }
+    }
+
+    public void receive(InputStream input, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        try {
+            handshake(in, out);
+            while (true) {
+                byte op = in.readByte();
+                if (op == DONE) {
+                    break;
+                }
+                apply(op, in);
+            }
+            if (!incoming.isEmpty()) {
+                throw new IOException("sender finished with " + incoming.size() + " files incomplete");
+            }
+            cache.save();
+            out.writeInt(OK);
+            out.flush();
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Replication into " + target + " failed: " + ex, ex);
+            try {
+                out.writeInt(ERROR);
+                out.writeUTF(String.valueOf(ex));
+                out.flush();
+            } catch (IOException ignored) {
+                // the sender is already gone
+            }
+            throw ex;
+        } finally {
+            for (Incoming file : incoming.values()) {
+                file.close();
+                Files.deleteIfExists(file.temp);
+            }
+            incoming.clear();
+        }
+    }
+
+    private void handshake(DataInputStream in, DataOutputStream out) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a replication sender");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported replication version " + version);
+        }
+        blockSize = in.readInt();
+        buffer = ByteBuffer.allocate(blockSize);
+        Set<String> excludes = new HashSet<>();
+        for (int count = in.readInt(); count > 0; count--) {
+            excludes.add(in.readUTF());
+        }
+        // the length and modification time of each file the sender has
+        Map<String, long[]> sent = new HashMap<>();
+        for (int count = in.readInt(); count > 0; count--) {
+            String path = in.readUTF();
+            sent.put(path, new long[]{in.readLong(), in.readLong()});
+        }
+
+        Files.createDirectories(target);
+        List<Path> temporary = new ArrayList<>();
+        SortedMap<String, TreeEntry> entries = TreeEntry.walk(target, excludes, temporary);
+        for (Path path : temporary) {
+            delete(path);
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(entries.size());
+        for (Map.Entry<String, TreeEntry> entry : entries.entrySet()) {
+            String path = entry.getKey();
+            TreeEntry tree = entry.getValue();
+            writeEntry(out, path, tree);
+            long[] theirs = sent.get(path);
+            // only files the sender is about to update need block signatures
+            if (tree.type == TreeEntry.FILE && theirs != null && (theirs[0] != tree.length || theirs[1] != tree.modified)) {
+                FileSignature signature = cache.get(path, resolve(path).toFile(), tree.length, tree.modified, blockSize);
+                existing.put(path, signature);
+                out.writeBoolean(true);
+                signature.write(out);
+            } else {
+                if (tree.type == TreeEntry.FILE) {
+                    cache.retain(path, tree.length, tree.modified);
+                }
+                out.writeBoolean(false);
+            }
+        }
+        out.flush();
+    }
+
+    private void apply(byte op, DataInputStream in) throws IOException {
+        switch (op) {
+            case MKDIR: {
+                Path path = resolve(in.readUTF());
+                if (Files.exists(path, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    delete(path);
+                }
+                Files.createDirectories(path);
+                break;
+            }
+            case BEGIN: {
+                int id = in.readInt();
+                String path = in.readUTF();
+                long length = in.readLong();
+                begin(id, path, length);
+                break;
+            }
+            case COPY: {
+                Incoming file = incoming(in.readInt());
+                int first = in.readInt();
+                int count = in.readInt();
+                copy(file, first, count);
+                break;
+            }
+            case DATA: {
+                Incoming file = incoming(in.readInt());
+                int index = in.readInt();
+                int length = in.readInt();
+                if (length > blockSize) {
+                    throw new IOException("block of " + length + " bytes is larger than " + blockSize);
+                }
+                buffer.clear();
+                in.readFully(buffer.array(), 0, length);
+                buffer.limit(length);
+                FileSignature.hashBlock(file.blocks, index, buffer);
+                file.channel.position((long) index * blockSize);
+                while (buffer.hasRemaining()) {
+                    file.channel.write(buffer);
+                }
+                bytesWritten.mark(length);
+                break;
+            }
+            case END: {
+                Incoming file = incoming.remove(in.readInt());
+                long modified = in.readLong();
+                int mode = in.readInt();
+                finish(file, modified, mode);
+                break;
+            }
+            case LINK: {
+                String path = in.readUTF();
+                String linked = in.readUTF();
+                Path link = resolve(path);
+                delete(link);
+                Files.createLink(link, resolve(linked));
+                cache.link(path, linked);
+                break;
+            }
+            case SYMLINK: {
+                Path link = resolve(in.readUTF());
+                String linkTarget = in.readUTF();
+                delete(link);
+                Files.createSymbolicLink(link, Paths.get(linkTarget));
+                break;
+            }
+            case ATTRS: {
+                Path path = resolve(in.readUTF());
+                long modified = in.readLong();
+                int mode = in.readInt();
+                TreeEntry entry = TreeEntry.read(path);
+                if (entry != null) {
+                    new TreeEntry(entry.type, entry.length, modified, 0, mode, null).apply(path);
+                }
+                break;
+            }
+            case DELETE: {
+                delete(resolve(in.readUTF()));
+                break;
+            }
+            default:
+                throw new IOException("unknown replication operation " + op);
+        }
+    }
+
+    private void begin(int id, String path, long length) throws IOException {
+        Path destination = resolve(path);
+        Path temp = destination.resolveSibling(TreeEntry.TEMP_PREFIX + destination.getFileName());
+        FileChannel previous = null;
+        FileSignature previousSignature = existing.remove(path);
+        if (previousSignature != null && Files.isRegularFile(destination, LinkOption.NOFOLLOW_LINKS)) {
+            previous = new FileInputStream(destination.toFile()).getChannel();
+        }
+        FileChannel channel = new FileOutputStream(temp.toFile()).getChannel();
+        incoming.put(id, new Incoming(path, temp, length, blockSize, channel, previous, previousSignature));
+    }
+
+    private void copy(Incoming file, int first, int count) throws IOException {
+        if (file.previous == null) {
+            throw new IOException("no existing copy of " + file.path + " to copy blocks from");
+        }
+        long position = (long) first * blockSize;
+        long end = Math.min(file.length, (long) (first + count) * blockSize);
+        file.channel.position(position);
+        while (position < end) {
+            long copied = file.previous.transferTo(position, end - position, file.channel);
+            if (copied <= 0) {
+                throw new IOException("existing copy of " + file.path + " is shorter than expected");
+            }
+            position += copied;
+        }
+        System.arraycopy(file.previousSignature.blocks, first * 2, file.blocks, first * 2, count * 2);
+        bytesCopied.mark(end - (long) first * blockSize);
+    }
+
+    private void finish(Incoming file, long modified, int mode) throws IOException {
+        if (file == null) {
+            throw new IOException("end of a file that was never started");
+        }
+        file.channel.truncate(file.length);
+        long size = file.channel.size();
+        file.close();
+        if (size != file.length) {
+            throw new IOException("received " + size + " of " + file.length + " bytes of " + file.path);
+        }
+        new TreeEntry(TreeEntry.FILE, file.length, modified, 0, mode, null).apply(file.temp);
+        Path destination = resolve(file.path);
+        if (Files.isDirectory(destination, LinkOption.NOFOLLOW_LINKS)) {
+            delete(destination);
+        }
+        Files.move(file.temp, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        cache.put(file.path, new FileSignature(file.length, modified, blockSize, file.blocks));
+        filesReceived.inc();
+    }
+
+    private Incoming incoming(int id) throws IOException {
+        Incoming file = incoming.get(id);
+        if (file == null) {
+            throw new IOException("data for file " + id + " which was never started");
+        }
+        return file;
+    }
+
+    /**
+     * @return the path under the target, refusing paths that would leave it
+     */
+    private Path resolve(String path) throws IOException {
+        Path resolved = target.resolve(path).normalize();
+        if (path.isEmpty() || !resolved.startsWith(target) || resolved.equals(target)) {
+            throw new IOException("refusing to replicate to " + path);
+        }
+        return resolved;
+    }
+
+    /**
+     * Delete a file, link or directory tree without following links.
+     */
+    static void delete(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            Files.delete(path);
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+                if (ex != null) {
+                    throw ex;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Meter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.addthis.hydra.job.replicate.ReplicationProtocol.*;
+
+/**
+ * Brings a {@link ReplicationReceiver} up to date with a source directory.
+ * <p/>
+ * Files whose length and modification time match the receiver's copy are
+ * skipped without being read. Other files are compared block by block with
+ * the receiver's signatures and only blocks that differ are sent. Hard linked
+ * files are sent once and linked on the receiver, and paths the source no
+ * longer has are deleted once everything else has been sent. Several files
+ * can be read and hashed in parallel over the one connection.
+ */
+public class ReplicationSender {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationSender.class);
+
+    static final Meter bytesSent = Metrics.newMeter(ReplicationSender.class, "bytesSent", "bytes", TimeUnit.SECONDS);
+    static final Counter filesSent = Metrics.newCounter(ReplicationSender.class, "filesSent");
+    static final Counter filesUnchanged = Metrics.newCounter(ReplicationSender.class, "filesUnchanged");
+    static final Counter filesLinked = Metrics.newCounter(ReplicationSender.class, "filesLinked");
+    static final Counter blocksSent = Metrics.newCounter(ReplicationSender.class, "blocksSent");
+    static final Counter blocksReused = Metrics.newCounter(ReplicationSender.class, "blocksReused");
+
+    private static final long progressInterval = TimeUnit.SECONDS.toMillis(30);
+
+    private final Path source;
+    private final Set<String> excludes;
+    private final SignatureCache cache;
+    private final int blockSize;
+    private final int streams;
+    private final RateLimiter limiter;
+
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicLong runFiles = new AtomicLong();
+    private final AtomicLong runBytes = new AtomicLong();
+    private final AtomicLong lastProgress = new AtomicLong();
+
+    private SortedMap<String, TreeEntry> local;
+    private Map<String, TreeEntry> remote;
+    private Map<String, FileSignature> remoteSignatures;
+    private DataOutputStream out;
+
+    /**
+     * @param source         directory to replicate
+     * @param excludes       names of files and directories to leave alone on both sides
+     * @param cacheFile      where to keep block signatures of the source, or null
+     * @param blockSize      bytes per block
+     * @param streams        number of files to read and hash at once
+     * @param bytesPerSecond limit on file data sent, or zero for no limit
+     */
+    public ReplicationSender(File source, Set<String> excludes, File cacheFile, int blockSize, int streams,
+            long bytesPerSecond) {
+        this.source = source.getAbsoluteFile().toPath().normalize();
+        this.excludes = excludes;
+        this.cache = new SignatureCache(cacheFile);
+        this.blockSize = blockSize;
+        this.streams = Math.max(1, streams);
+        this.limiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    }
+
+    public void send(InputStream input, OutputStream output) throws IOException {
+        long start = System.currentTimeMillis();
+        lastProgress.set(start);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        out = new DataOutputStream(new BufferedOutputStream(output, 1 << 16));
+        local = TreeEntry.walk(source, excludes);
+        hello();
+        readManifest(in);
+
+        List<String> directories = new ArrayList<>();
+        List<String> symlinks = new ArrayList<>();
+        Map<Object, List<String>> groups = new LinkedHashMap<>();
+        for (Map.Entry<String, TreeEntry> entry : local.entrySet()) {
+            String path = entry.getKey();
+            TreeEntry tree = entry.getValue();
+            if (tree.type == TreeEntry.DIRECTORY) {
+                directories.add(path);
+            } else if (tree.type == TreeEntry.SYMLINK) {
+                symlinks.add(path);
+            } else {
+                // hard linked files are sent once, in a group keyed by their inode
+                Object key = tree.inode != 0 ? (Object) tree.inode : path;
+                List<String> group = groups.get(key);
+                if (group == null) {
+                    group = new ArrayList<>(1);
+                    groups.put(key, group);
+                }
+                group.add(path);
+            }
+        }
+
+        for (String path : directories) {
+            TreeEntry theirs = remote.get(path);
+            if (theirs == null || theirs.type != TreeEntry.DIRECTORY) {
+                synchronized (out) {
+                    out.writeByte(MKDIR);
+                    out.writeUTF(path);
+                }
+            }
+        }
+        sendGroups(groups.values());
+        for (String path : symlinks) {
+            TreeEntry ours = local.get(path);
+            TreeEntry theirs = remote.get(path);
+            if (theirs == null || theirs.type != TreeEntry.SYMLINK || !ours.target.equals(theirs.target)) {
+                out.writeByte(SYMLINK);
+                out.writeUTF(path);
+                out.writeUTF(ours.target);
+            }
+        }
+        String deleted = null;
+        for (String path : remote.keySet()) {
+            if (deleted != null && path.startsWith(deleted + "/")) {
+                continue;
+            }
+            if (!local.containsKey(path)) {
+                out.writeByte(DELETE);
+                out.writeUTF(path);
+                deleted = path;
+            }
+        }
+        // directory times change as their contents do, so they are set last
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            String path = directories.get(i);
+            TreeEntry ours = local.get(path);
+            out.writeByte(ATTRS);
+            out.writeUTF(path);
+            out.writeLong(ours.modified);
+            out.writeInt(ours.mode);
+        }
+        out.writeByte(DONE);
+        out.flush();
+        if (readHeader(in) != OK) {
+            throw new IOException("unexpected reply from receiver");
+        }
+        cache.save();
+        log.info("Replicated " + source + ": " + runFiles.get() + " files and " + runBytes.get() + " bytes sent in " +
+                 (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private void hello() throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(blockSize);
+        out.writeInt(excludes.size());
+        for (String exclude : excludes) {
+            out.writeUTF(exclude);
+        }
+        int files = 0;
+        for (TreeEntry entry : local.values()) {
+            if (entry.type == TreeEntry.FILE) {
+                files++;
+            }
+        }
+        out.writeInt(files);
+        for (Map.Entry<String, TreeEntry> entry : local.entrySet()) {
+            if (entry.getValue().type == TreeEntry.FILE) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().length);
+                out.writeLong(entry.getValue().modified);
+            }
+        }
+        out.flush();
+    }
+
+    private void readManifest(DataInputStream in) throws IOException {
+        if (readHeader(in) != MAGIC) {
+            throw new IOException("not a replication receiver");
+        }
+        remote = new TreeMap<>();
+        remoteSignatures = new HashMap<>();
+        for (int count = in.readInt(); count > 0; count--) {
+            String path = in.readUTF();
+            remote.put(path, readEntry(in));
+            if (in.readBoolean()) {
+                remoteSignatures.put(path, FileSignature.read(in));
+            }
+        }
+    }
+
+    private void sendGroups(Iterable<List<String>> groups) throws IOException {
+        if (streams == 1) {
+            ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+            for (List<String> group : groups) {
+                sendGroup(group, buffer);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(streams,
+                new ThreadFactoryBuilder().setNameFormat("replicate-%d").setDaemon(true).build());
+        final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+            @Override
+            protected ByteBuffer initialValue() {
+                return ByteBuffer.allocate(blockSize);
+            }
+        };
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (final List<String> group : groups) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        sendGroup(group, buffers.get());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while replicating " + source, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Send the first path of a group of hard links and link the rest to it.
+     */
+    private void sendGroup(List<String> group, ByteBuffer buffer) throws IOException {
+        String first = group.get(0);
+        boolean sent = sendFile(first, buffer);
+        TreeEntry firstRemote = remote.get(first);
+        for (int i = 1; i < group.size(); i++) {
+            String path = group.get(i);
+            TreeEntry theirs = remote.get(path);
+            if (!sent && theirs != null && theirs.inode != 0 && theirs.inode == firstRemote.inode) {
+                filesUnchanged.inc();
+                continue;
+            }
+            synchronized (out) {
+                out.writeByte(LINK);
+                out.writeUTF(path);
+                out.writeUTF(first);
+            }
+            filesLinked.inc();
+        }
+    }
+
+    /**
+     * @return true if the file was sent, false if the receiver already has it
+     */
+    private boolean sendFile(String path, ByteBuffer buffer) throws IOException {
+        TreeEntry ours = local.get(path);
+        TreeEntry theirs = remote.get(path);
+        if (theirs != null && theirs.type == TreeEntry.FILE && theirs.length == ours.length &&
+            theirs.modified == ours.modified) {
+            if (theirs.mode != ours.mode) {
+                synchronized (out) {
+                    out.writeByte(ATTRS);
+                    out.writeUTF(path);
+                    out.writeLong(ours.modified);
+                    out.writeInt(ours.mode);
+                }
+            }
+            cache.retain(path, ours.length, ours.modified);
+            filesUnchanged.inc();
+            return false;
+        }
+        File file = source.resolve(path).toFile();
+        FileSignature previous = remoteSignatures.get(path);
+        // without a previous copy there is nothing to compare with, so blocks are hashed as they are sent
+        FileSignature signature = previous != null ? cache.get(path, file, ours.length, ours.modified, blockSize) : null;
+        long[] blocks = signature == null ? new long[FileSignature.blockCount(ours.length, blockSize) * 2] : null;
+        int id = nextId.incrementAndGet();
+        synchronized (out) {
+            out.writeByte(BEGIN);
+            out.writeInt(id);
+            out.writeUTF(path);
+            out.writeLong(ours.length);
+        }
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            int count = FileSignature.blockCount(ours.length, blockSize);
+            int reused = -1;
+            for (int i = 0; i < count; i++) {
+                if (signature != null && signature.sameBlock(i, previous)) {
+                    if (reused < 0) {
+                        reused = i;
+                    }
+                    continue;
+                }
+                if (reused >= 0) {
+                    sendCopy(id, reused, i - reused);
+                    reused = -1;
+                }
+                FileSignature.readBlock(channel, i, blockSize, ours.length, buffer);
+                if (blocks != null) {
+                    FileSignature.hashBlock(blocks, i, buffer);
+                }
+                if (limiter != null) {
+                    limiter.acquire(buffer.remaining());
+                }
+                synchronized (out) {
+                    out.writeByte(DATA);
+                    out.writeInt(id);
+                    out.writeInt(i);
+                    out.writeInt(buffer.remaining());
+                    out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                }
+                bytesSent.mark(buffer.remaining());
+                runBytes.addAndGet(buffer.remaining());
+                blocksSent.inc();
+            }
+            if (reused >= 0) {
+                sendCopy(id, reused, count - reused);
+            }
+        }
+        synchronized (out) {
+            out.writeByte(END);
+            out.writeInt(id);
+            out.writeLong(ours.modified);
+            out.writeInt(ours.mode);
+        }
+        if (blocks != null) {
+            cache.put(path, new FileSignature(ours.length, ours.modified, blockSize, blocks));
+        }
+        filesSent.inc();
+        runFiles.incrementAndGet();
+        logProgress();
+        return true;
+    }
+
+    private void sendCopy(int id, int first, int count) throws IOException {
+        synchronized (out) {
+            out.writeByte(COPY);
+            out.writeInt(id);
+            out.writeInt(first);
+            out.writeInt(count);
+        }
+        blocksReused.inc(count);
+    }
+
+    private void logProgress() {
+        long now = System.currentTimeMillis();
+        long last = lastProgress.get();
+        if (now - last > progressInterval && lastProgress.compareAndSet(last, now)) {
+            log.info("Replicating " + source + ": " + runFiles.get() + " files and " + runBytes.get() + " bytes sent");
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental replication of a task directory, in place of rsync.
+ * <p/>
+ * usage: replicate send [options] source [user@host:]target
+ * <br/>
+ * usage: replicate receive [--cache file] [--output file] target
+ * <p/>
+ * Send options are --exclude name (repeatable), --cache file, --remote-cache file,
+ * --block-size bytes, --streams count, --bwlimit KB/s, --connect command and
+ * --receiver command. A remote target is reached by running the connect command
+ * (ssh by default) with the receiver command (replicate by default) and
+ * "receive". The remote receiver writes its replies to file descriptor 3,
+ * which is mapped onto the connection so that anything it logs cannot
+ * corrupt the stream. A local target is replicated within this process.
+ */
+public class Replicator {
+
+    private static final Logger log = LoggerFactory.getLogger(Replicator.class);
+
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("send") || args[0].equals("receive"))) {
+            usage();
+            return;
+        }
+        Set<String> excludes = new LinkedHashSet<>();
+        File cache = null;
+        String remoteCache = null;
+        String output = null;
+        int blockSize = DEFAULT_BLOCK_SIZE;
+        int streams = 1;
+        long bwlimit = 0;
+        String connect = "ssh";
+        String receiver = "replicate";
+        List<String> paths = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) {
+                paths.add(arg);
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage();
+                return;
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--exclude":
+                    excludes.add(value);
+                    break;
+                case "--cache":
+                    cache = new File(value);
+                    break;
+                case "--remote-cache":
+                    remoteCache = value;
+                    break;
+                case "--output":
+                    output = value;
+                    break;
+                case "--block-size":
+                    blockSize = Integer.parseInt(value);
+                    break;
+                case "--streams":
+                    streams = Integer.parseInt(value);
+                    break;
+                case "--bwlimit":
+                    bwlimit = Long.parseLong(value) * 1024;
+                    break;
+                case "--connect":
+                    connect = value;
+                    break;
+                case "--receiver":
+                    receiver = value;
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+        if (args[0].equals("receive")) {
+            if (paths.size() != 1) {
+                usage();
+                return;
+            }
+            OutputStream out = output != null ? new FileOutputStream(output) : System.out;
+            new ReplicationReceiver(new File(paths.get(0)), cache).receive(System.in, out);
+            out.close();
+            return;
+        }
+        if (paths.size() != 2) {
+            usage();
+            return;
+        }
+        ReplicationSender sender = new ReplicationSender(new File(paths.get(0)), excludes, cache, blockSize, streams, bwlimit);
+        String target = paths.get(1);
+        int colon = target.indexOf(':');
+        if (colon < 0) {
+            replicateLocal(sender, new ReplicationReceiver(new File(target), remoteCache != null ? new File(remoteCache) : null));
+        } else {
+            List<String> command = new ArrayList<>(Arrays.asList(connect.trim().split("\\s+")));
+            command.add(target.substring(0, colon));
+            command.add(receiver + " receive" + (remoteCache != null ? " --cache " + remoteCache : "") +
+                        " --output /dev/fd/3 " + target.substring(colon + 1) + " 3>&1 1>&2");
+            replicateRemote(sender, command);
+        }
+    }
+
+    private static void usage() {
+        System.out.println("usage: replicate send [--exclude name]* [--cache file] [--remote-cache file] " +
+                           "[--block-size bytes] [--streams count] [--bwlimit KB/s] [--connect command] " +
+                           "[--receiver command] source [user@host:]target");
+        System.out.println("       replicate receive [--cache file] [--output file] target");
+    }
+
+    /**
+     * Replicate to a receiver in this process.
+     */
+    static void replicateLocal(ReplicationSender sender, final ReplicationReceiver receiver) throws IOException {
+        final PipedInputStream toReceiver = new PipedInputStream(1 << 16);
+        final PipedOutputStream toSender = new PipedOutputStream();
+        PipedOutputStream senderOut = new PipedOutputStream(toReceiver);
+        PipedInputStream senderIn = new PipedInputStream(toSender, 1 << 16);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread thread = new Thread("replicate-receiver") {
+            @Override
+            public void run() {
+                try {
+                    receiver.receive(toReceiver, toSender);
+                } catch (Exception ex) {
+                    failure.set(ex);
+                } finally {
+                    try {
+                        toSender.close();
+                    } catch (IOException ignored) {
+                        // nothing left to tell the sender
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        try {
+            sender.send(senderIn, senderOut);
+        } catch (IOException ex) {
+            if (failure.get() != null) {
+                ex.addSuppressed(failure.get());
+            }
+            throw ex;
+        } finally {
+            senderOut.close();
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure.get() != null) {
+            throw new IOException("receiver failed", failure.get());
+        }
+    }
+
+    /**
+     * Replicate to a receiver started by a command, whose standard input and output carry the protocol.
+     */
+    static void replicateRemote(ReplicationSender sender, List<String> command) throws IOException, InterruptedException {
+        log.debug("starting receiver: " + command);
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        try (InputStream in = process.getInputStream(); OutputStream out = process.getOutputStream()) {
+            sender.send(in, out);
+        } catch (IOException ex) {
+            process.destroy();
+            throw ex;
+        }
+        int exit = process.waitFor();
+        if (exit != 0) {
+            throw new IOException("receiver exited with " + exit);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Block signatures of the files under a directory, kept between replications
+ * in a file so that unchanged files are not read again. A signature is reused
+ * while the length and modification time of its file are unchanged. Only the
+ * signatures used during a run are saved, which drops deleted files.
+ */
+final class SignatureCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SignatureCache.class);
+
+    private static final int VERSION = 1;
+
+    static final Counter signaturesComputed = Metrics.newCounter(SignatureCache.class, "signaturesComputed");
+    static final Counter signaturesCached = Metrics.newCounter(SignatureCache.class, "signaturesCached");
+
+    private final File file;
+    private final Map<String, FileSignature> loaded = new ConcurrentHashMap<>();
+    private final Map<String, FileSignature> used = new ConcurrentHashMap<>();
+
+    /**
+     * @param file where the signatures are kept, or null to not keep them
+     */
+    SignatureCache(File file) {
+        this.file = file;
+        if (file != null && file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == VERSION) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        String path = in.readUTF();
+                        loaded.put(path, FileSignature.read(in));
+                    }
+                }
+            } catch (IOException ex) {
+                log.warn("Ignoring unreadable signature cache " + file + ": " + ex);
+                loaded.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the signature of a file, computed again only if it changed since it was cached
+     */
+    FileSignature get(String path, File source, long length, long modified, int blockSize) throws IOException {
+        FileSignature signature = loaded.get(path);
+        if (signature != null && signature.length == length && signature.modified == modified &&
+            signature.blockSize == blockSize) {
+            signaturesCached.inc();
+        } else {
+            signature = FileSignature.compute(source, length, modified, blockSize);
+            signaturesComputed.inc();
+        }
+        used.put(path, signature);
+        return signature;
+    }
+
+    /**
+     * Keep the cached signature of an unchanged file that was not needed this run.
+     */
+    void retain(String path, long length, long modified) {
+        FileSignature signature = loaded.get(path);
+        if (signature != null && signature.length == length && signature.modified == modified) {
+            used.put(path, signature);
+        }
+    }
+
+    /**
+     * Remember the signature of a file that was just written.
+     */
+    void put(String path, FileSignature signature) {
+        used.put(path, signature);
+    }
+
+    /**
+     * Give a new hard link the signature of the file it links to, if known.
+     */
+    void link(String path, String existing) {
+        FileSignature signature = used.get(existing);
+        if (signature != null) {
+            used.put(path, signature);
+        }
+    }
+
+    void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("unable to create " + parent);
+        }
+        File tmp = new File(parent, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(VERSION);
+            out.writeInt(used.size());
+            for (Map.Entry<String, FileSignature> entry : used.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
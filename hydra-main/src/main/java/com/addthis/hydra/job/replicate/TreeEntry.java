@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.IOException;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A file, directory or symbolic link found under a replicated directory.
+ */
+final class TreeEntry {
+
+    static final byte FILE = 'F';
+    static final byte DIRECTORY = 'D';
+    static final byte SYMLINK = 'L';
+
+    /* prefix of the temporary files a receiver writes, which are never replicated */
+    static final String TEMP_PREFIX = ".replicate-";
+
+    private static final boolean unixAttributes = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+    private static final PosixFilePermission[] permissionBits = {
+            PosixFilePermission.OTHERS_EXECUTE, PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_READ,
+            PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_READ,
+            PosixFilePermission.OWNER_EXECUTE, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_READ};
+
+    final byte type;
+    final long length;
+    final long modified;
+    /* the inode of a file with more than one link, otherwise zero */
+    final long inode;
+    /* permission bits, or -1 if unknown */
+    final int mode;
+    final String target;
+
+    TreeEntry(byte type, long length, long modified, long inode, int mode, String target) {
+        this.type = type;
+        this.length = length;
+        this.modified = modified;
+        this.inode = inode;
+        this.mode = mode;
+        this.target = target;
+    }
+
+    /**
+     * @return the entries under root by path relative to root, in an order that lists parents before children
+     */
+    static SortedMap<String, TreeEntry> walk(Path root, Set<String> excludes) throws IOException {
+        return walk(root, excludes, null);
+    }
+
+    /**
+     * @param temporary if not null, collects the temporary files left behind by an earlier receiver
+     */
+    static SortedMap<String, TreeEntry> walk(Path root, Set<String> excludes, List<Path> temporary) throws IOException {
+        SortedMap<String, TreeEntry> entries = new TreeMap<>();
+        walk(root, "", excludes, entries, temporary);
+        return entries;
+    }
+
+    private static void walk(Path dir, String prefix, Set<String> excludes, SortedMap<String, TreeEntry> entries,
+            List<Path> temporary) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(TEMP_PREFIX)) {
+                    if (temporary != null) {
+                        temporary.add(path);
+                    }
+                    continue;
+                }
+                if (excludes.contains(name)) {
+                    continue;
+                }
+                TreeEntry entry;
+                try {
+                    entry = read(path);
+                } catch (NoSuchFileException ex) {
+                    continue;
+                }
+                if (entry == null) {
+                    continue;
+                }
+                String relative = prefix + name;
+                entries.put(relative, entry);
+                if (entry.type == DIRECTORY) {
+                    walk(path, relative + "/", excludes, entries, temporary);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the entry for a path, or null if it is not a regular file, directory or symbolic link
+     */
+    static TreeEntry read(Path path) throws IOException {
+        long inode = 0;
+        int mode = -1;
+        BasicFileAttributes basic = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (unixAttributes) {
+            Map<String, Object> unix = Files.readAttributes(path, "unix:ino,nlink,mode", LinkOption.NOFOLLOW_LINKS);
+            if ((Integer) unix.get("nlink") > 1 && basic.isRegularFile()) {
+                inode = (Long) unix.get("ino");
+            }
+            mode = (Integer) unix.get("mode") & 0777;
+        }
+        long modified = basic.lastModifiedTime().toMillis();
+        if (basic.isSymbolicLink()) {
+            return new TreeEntry(SYMLINK, 0, modified, 0, -1, Files.readSymbolicLink(path).toString());
+        } else if (basic.isDirectory()) {
+            return new TreeEntry(DIRECTORY, 0, modified, 0, mode, null);
+        } else if (basic.isRegularFile()) {
+            return new TreeEntry(FILE, basic.size(), modified, inode, mode, null);
+        }
+        return null;
+    }
+
+    /**
+     * Apply the modification time and permissions of this entry to a path.
+     */
+    void apply(Path path) throws IOException {
+        if (type == SYMLINK) {
+            return;
+        }
+        if (mode >= 0 && unixAttributes) {
+            Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+            for (int i = 0; i < permissionBits.length; i++) {
+                if ((mode & (1 << i)) != 0) {
+                    permissions.add(permissionBits[i]);
+                }
+            }
+            Files.setPosixFilePermissions(path, permissions);
+        }
+        Files.setLastModifiedTime(path, FileTime.fromMillis(modified));
+    }
+}
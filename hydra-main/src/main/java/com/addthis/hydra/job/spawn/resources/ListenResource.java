@@ -88,12 +88,13 @@ public class ListenResource {
     @Produces(MediaType.APPLICATION_JSON)
     public Response getListenBatch(@QueryParam("timeout") Optional<Integer> timeoutParameter,
             @QueryParam("batchtime") Optional<Integer> batchtimeParameter,
-            @QueryParam("clientId") Optional<String> clientIdParameter) {
+            @QueryParam("clientId") Optional<String> clientIdParameter,
+            @QueryParam("diff") Optional<Boolean> diffParameter) {
         Response response;
         String clientId = (clientIdParameter.isPresent() ? clientIdParameter.get() : "noid");
         int timeout = timeoutParameter.or(pollTimeout);
         int batchTime = batchtimeParameter.or(batchInterval);
-        Spawn.ClientEventListener listener = spawn.getClientEventListener(clientId);
+        Spawn.ClientEventListener listener = spawn.getClientEventListener(clientId, diffParameter.or(false));
         List<TopicEvent> events = new ArrayList<TopicEvent>();
         try {
             Spawn.ClientEvent nextEvent = listener.events.poll(timeout, TimeUnit.MILLISECONDS);
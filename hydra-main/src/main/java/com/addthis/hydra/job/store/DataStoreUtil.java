@@ -13,9 +13,13 @@
  */
 package com.addthis.hydra.job.store;
 
+import java.io.File;
+
 import java.util.Arrays;
 import java.util.List;
 
+import com.addthis.basis.util.Parameter;
+
 import com.addthis.hydra.query.AliasBiMap;
 
 import org.I0Itec.zkclient.ZkClient;
@@ -23,9 +27,11 @@ import org.slf4j.Logger;
 
 import org.slf4j.LoggerFactory;
 import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_BALANCE_PARAM_PATH;
+import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_CHOREWATCHER_PATH;
 import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_COMMON_ALERT_PATH;
 import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_COMMON_COMMAND_PATH;
 import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_COMMON_MACRO_PATH;
+import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_HOST_FAIL_WORKER_PATH;
 import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH;
 import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_QUEUE_PATH;
 
@@ -34,12 +40,20 @@ import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_QUEUE_PATH;
  */
 public class DataStoreUtil {
 
-    /* A list of datastore paths with values that should be cutover */
-    private static final List<String> pathsToImport = Arrays.asList(SPAWN_QUEUE_PATH, SPAWN_COMMON_ALERT_PATH, SPAWN_BALANCE_PARAM_PATH);
-    /* A list of datastore parent nodes with children that should be cutover */
-    private static final List<String> parentsToImport = Arrays.asList(SPAWN_COMMON_COMMAND_PATH, SPAWN_COMMON_MACRO_PATH, SPAWN_JOB_CONFIG_PATH, AliasBiMap.ALIAS_PATH);
-    /* A list of nodes beneath each job node */
-    private static final List<String> jobParametersToImport = Arrays.asList("config", "queryconfig", "tasks", "alerts");
+    /* The datastore used by spawn, either "zookeeper" or "local" */
+    private static final String dataStoreType = Parameter.value("spawn.datastore.type", "zookeeper");
+    /* Directory of the local datastore */
+    private static final String localDataStoreDir = Parameter.value("spawn.datastore.local.dir", "spawn.datastore");
+    /* Copy every write to the local datastore into zookeeper for processes that read spawn data from there */
+    private static final boolean localDataStoreMirror = Parameter.boolValue("spawn.datastore.local.mirror", true);
+
+    /* A list of datastore paths that are cutover along with everything beneath them */
+    private static final List<String> pathsToImport = Arrays.asList(SPAWN_QUEUE_PATH, SPAWN_BALANCE_PARAM_PATH,
+            SPAWN_HOST_FAIL_WORKER_PATH, SPAWN_CHOREWATCHER_PATH, SPAWN_COMMON_ALERT_PATH, SPAWN_COMMON_COMMAND_PATH,
+            SPAWN_COMMON_MACRO_PATH, SPAWN_JOB_CONFIG_PATH, AliasBiMap.ALIAS_PATH);
+
+    /* Written to a local datastore as the last step of importing zookeeper into it */
+    static final String LOCAL_IMPORT_COMPLETE_PATH = "/datastore/imported";
 
     private static final Logger log = LoggerFactory.getLogger(DataStoreUtil.class);
 
@@ -54,78 +68,120 @@ public class DataStoreUtil {
     }
 
     /**
-     * Create the canonical SpawnDataStore using the provided zkClient, if appropriate
+     * Create the canonical SpawnDataStore using the provided zkClient, if appropriate.
+     * <p/>
+     * A local datastore that has not finished importing zookeeper is first refilled with its contents.
      *
      * @param zkClient If non-null, use this ZkClient in the ZookeeperDataStore, if that is the standard
      * @return A SpawnDataStore of the appropriate implementation
      */
     public static SpawnDataStore makeSpawnDataStore(ZkClient zkClient) {
-        return new ZookeeperDataStore(zkClient);
+        if (!"local".equals(dataStoreType)) {
+            return new ZookeeperDataStore(zkClient);
+        }
+        File dir = new File(localDataStoreDir);
+        ZookeeperDataStore zookeeperDataStore = new ZookeeperDataStore(zkClient);
+        try {
+            LocalDataStore localDataStore = new LocalDataStore(dir, null);
+            if (localDataStore.get(LOCAL_IMPORT_COMPLETE_PATH) == null) {
+                importIntoLocalDataStore(zookeeperDataStore, localDataStore);
+            }
+            if (!localDataStoreMirror) {
+                if (zkClient == null) {
+                    zookeeperDataStore.close();
+                }
+                return localDataStore;
+            }
+            localDataStore.close();
+            return new LocalDataStore(dir, zookeeperDataStore);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to open local datastore in " + dir, e);
+        }
     }
 
     /**
-     * A method to cut over all necessary data from on DataStore to another. Placeholder for now until more data stores are implemented.
-     *
-     * @param sourceDataStore The old datastore to read from
-     * @param targetDataStore The new datastore to push data to
-     * @throws Exception If any part of the cutover fails
+     * Copy spawn data between zookeeper and a local datastore.
+     * <p/>
+     * usage: datastore [import|export] [directory]
+     * <p/>
+     * import copies zookeeper into the local datastore, export copies the local datastore into zookeeper.
+     * Spawn must not be running against the local datastore.
      */
-    private static void cutoverBetweenDataStore(SpawnDataStore sourceDataStore, SpawnDataStore targetDataStore) throws Exception {
-        log.warn("Beginning cutover from " + sourceDataStore.getDescription() + " to " + targetDataStore.getDescription());
-        for (String value : pathsToImport) {
-            importValue(value, sourceDataStore, targetDataStore);
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.out.println("usage: datastore [import|export] [directory]");
+            return;
         }
-        for (String parent : parentsToImport) {
-            importParentAndChildren(parent, sourceDataStore, targetDataStore);
+        File dir = new File(args.length > 1 ? args[1] : localDataStoreDir);
+        SpawnDataStore zookeeperDataStore = new ZookeeperDataStore(null);
+        LocalDataStore localDataStore = new LocalDataStore(dir, null);
+        try {
+            if (args[0].equals("import")) {
+                importIntoLocalDataStore(zookeeperDataStore, localDataStore);
+            } else {
+                cutoverBetweenDataStore(localDataStore, zookeeperDataStore);
+            }
+        } finally {
+            localDataStore.close();
+            zookeeperDataStore.close();
         }
-        List<String> jobIds = sourceDataStore.getChildrenNames(SPAWN_JOB_CONFIG_PATH);
-        if (jobIds != null) {
-            for (String jobId : jobIds) {
-                if (jobId == null) {
-                    continue;
-                }
-                log.warn("Cutting over job data for " + jobId);
-                String basePath = SPAWN_JOB_CONFIG_PATH + "/" + jobId;
-                importValue(basePath, sourceDataStore, targetDataStore);
-                for (String parameter : jobParametersToImport) {
-                    importValue(basePath + "/" + parameter, sourceDataStore, targetDataStore);
-                }
+    }
+
+    /**
+     * Replace the contents of a local datastore with those of another datastore. The import
+     * is marked complete only once every path has been copied, so an import that was
+     * interrupted is thrown away and run again the next time the local datastore is opened.
+     *
+     * @param sourceDataStore The datastore to read from
+     * @param localDataStore  The local datastore to fill
+     * @throws Exception If any part of the import fails
+     */
+    static void importIntoLocalDataStore(SpawnDataStore sourceDataStore, LocalDataStore localDataStore) throws Exception {
+        if (!localDataStore.isEmpty()) {
+            log.warn("Discarding the incomplete contents of " + localDataStore.getDescription() + " before importing");
+            localDataStore.delete(LOCAL_IMPORT_COMPLETE_PATH);
+            for (String path : pathsToImport) {
+                localDataStore.delete(path);
             }
         }
-        log.warn("Finished cutover from " + sourceDataStore.getDescription() + " to " + targetDataStore.getDescription());
+        cutoverBetweenDataStore(sourceDataStore, localDataStore);
+        localDataStore.put(LOCAL_IMPORT_COMPLETE_PATH, Long.toString(System.currentTimeMillis()));
     }
 
     /**
-     * Internal function to import the value of a row from one datastore to another
+     * A method to cut over all necessary data from one DataStore to another.
      *
-     * @param path            The path to import
-     * @param sourceDataStore The source to read from
-     * @param targetDataStore The target to write to
-     * @throws Exception If there is a problem during the transfer
+     * @param sourceDataStore The old datastore to read from
+     * @param targetDataStore The new datastore to push data to
+     * @throws Exception If any part of the cutover fails
      */
-    private static void importValue(String path, SpawnDataStore sourceDataStore, SpawnDataStore targetDataStore) throws Exception {
-        log.warn("Cutting over value of path " + path);
-        String sourceValue = sourceDataStore.get(path);
-        if (sourceValue != null) {
-            targetDataStore.put(path, sourceValue);
+    static void cutoverBetweenDataStore(SpawnDataStore sourceDataStore, SpawnDataStore targetDataStore) throws Exception {
+        log.warn("Beginning cutover from " + sourceDataStore.getDescription() + " to " + targetDataStore.getDescription());
+        for (String path : pathsToImport) {
+            log.warn("Cutting over path " + path);
+            importTree(path, sourceDataStore, targetDataStore);
         }
+        log.warn("Finished cutover from " + sourceDataStore.getDescription() + " to " + targetDataStore.getDescription());
     }
 
     /**
-     * Internal function to important all children beneath a certain parent path from one datastore to another
+     * Internal function to import the value of a path and of everything beneath it from one datastore to another
      *
-     * @param parent          The parent id to grab the children from
+     * @param path            The path to import
      * @param sourceDataStore The source to read from
      * @param targetDataStore The target to write to
      * @throws Exception If there is a problem during the transfer
      */
-    private static void importParentAndChildren(String parent, SpawnDataStore sourceDataStore, SpawnDataStore targetDataStore) throws Exception {
-        log.warn("Cutting over children of path " + parent);
-        importValue(parent, sourceDataStore, targetDataStore);
-        List<String> children = sourceDataStore.getChildrenNames(parent);
+    private static void importTree(String path, SpawnDataStore sourceDataStore, SpawnDataStore targetDataStore) throws Exception {
+        String sourceValue = sourceDataStore.get(path);
+        if (sourceValue == null) {
+            return;
+        }
+        targetDataStore.put(path, sourceValue);
+        List<String> children = sourceDataStore.getChildrenNames(path);
         if (children != null) {
             for (String child : children) {
-                targetDataStore.putAsChild(parent, child, sourceDataStore.getChild(parent, child));
+                importTree(path + "/" + child, sourceDataStore, targetDataStore);
             }
         }
     }
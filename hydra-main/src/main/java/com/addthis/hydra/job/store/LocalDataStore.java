@@ -0,0 +1,594 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.codec.Codec;
+import com.addthis.codec.CodecJSON;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A SpawnDataStore that keeps every path in memory and persists changes to an
+ * append-only log on local disk.
+ * <p/>
+ * Each write is applied to memory and appended to the current log before it returns.
+ * When syncing is enabled the log is forced to disk before the write returns and
+ * concurrent writers share a single force. Once the log grows past a threshold the
+ * contents are written to a snapshot in the background and a new log is started, so
+ * startup reads the latest snapshot and the logs that follow it. Paths behave as they
+ * do in zookeeper: writing a path creates its ancestors with empty values and deleting
+ * a path deletes its descendants.
+ * <p/>
+ * An optional mirror receives every write after it has been applied locally. Spawn uses
+ * zookeeper as the mirror so that other processes reading spawn data keep working while
+ * Spawn itself only reads from memory.
+ */
+public class LocalDataStore implements SpawnDataStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalDataStore.class);
+    private static final String description = "local";
+
+    /* start a new snapshot once the log has grown past this many bytes */
+    private static final long defaultSnapshotBytes = Parameter.longValue("spawn.datastore.local.snapshot.bytes", 64 * 1024 * 1024);
+    /* force the log to disk before a write returns */
+    private static final boolean defaultSync = Parameter.boolValue("spawn.datastore.local.sync", true);
+
+    private static final String logPrefix = "log-";
+    private static final String snapshotPrefix = "snapshot-";
+    private static final String tempSuffix = ".tmp";
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private final Codec codec = new CodecJSON();
+
+    private final File dir;
+    private final SpawnDataStore mirror;
+    private final long snapshotBytes;
+    private final boolean sync;
+
+    /* every path with its value, nodes created implicitly have an empty value */
+    private final HashMap<String, String> values = new HashMap<>();
+    /* the names of the children of every path that has any */
+    private final HashMap<String, TreeSet<String>> children = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /* held while forcing or replacing the log, acquired before the write lock */
+    private final Object syncLock = new Object();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final ExecutorService snapshotExecutor;
+    private final RandomAccessFile lockFile;
+    private final FileLock dirLock;
+
+    /* guarded by the write lock */
+    private long generation;
+    private FileOutputStream logFile;
+    private DataOutputStream logStream;
+    private long logBytes;
+    private volatile long appended;
+    /* guarded by syncLock */
+    private long synced;
+
+    public LocalDataStore(File dir, SpawnDataStore mirror) throws IOException {
+        this(dir, mirror, defaultSnapshotBytes, defaultSync);
+    }
+
+    LocalDataStore(File dir, SpawnDataStore mirror, long snapshotBytes, boolean sync) throws IOException {
+        this.dir = dir;
+        this.mirror = mirror;
+        this.snapshotBytes = snapshotBytes;
+        this.sync = sync;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create data store directory " + dir);
+        }
+        lockFile = new RandomAccessFile(new File(dir, "lock"), "rw");
+        dirLock = lockFile.getChannel().tryLock();
+        if (dirLock == null) {
+            lockFile.close();
+            throw new IOException("Data store directory " + dir + " is in use by another process");
+        }
+        long start = System.currentTimeMillis();
+        recover();
+        openLog(generation + 1);
+        log.info("Loaded " + values.size() + " paths from " + dir + " in " + (System.currentTimeMillis() - start) + "ms");
+        snapshotExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("localDataStoreSnapshot-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return true if nothing has been stored
+     */
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return values.isEmpty();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public String get(String path) {
+        lock.readLock().lock();
+        try {
+            return values.get(path);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> get(String[] paths) {
+        Map<String, String> rv = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            for (String path : paths) {
+                String val = values.get(path);
+                if (val != null) {
+                    rv.put(path, val);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return rv;
+    }
+
+    @Override
+    public void put(String path, String value) throws Exception {
+        write(OP_PUT, path, value != null ? value : "");
+        if (mirror != null) {
+            mirror.put(path, value);
+        }
+    }
+
+    @Override
+    public void putAsChild(String parent, String childId, String value) throws Exception {
+        write(OP_PUT, parent + "/" + childId, value != null ? value : "");
+        if (mirror != null) {
+            mirror.putAsChild(parent, childId, value);
+        }
+    }
+
+    @Override
+    public <T extends Codec.Codable> boolean loadCodable(String path, T shell) {
+        String raw = get(path);
+        if (raw == null || raw.isEmpty()) {
+            return false;
+        }
+        try {
+            codec.decode(shell, raw.getBytes());
+            return true;
+        } catch (Exception e) {
+            log.warn("Failed to decode path " + path + ": " + e, e);
+            return false;
+        }
+    }
+
+    @Override
+    public String getChild(String parent, String childId) throws Exception {
+        return get(parent + "/" + childId);
+    }
+
+    @Override
+    public void deleteChild(String parent, String childId) {
+        delete(parent + "/" + childId);
+    }
+
+    @Override
+    public void delete(String path) {
+        try {
+            write(OP_DELETE, path, null);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to delete " + path, e);
+        }
+        if (mirror != null) {
+            mirror.delete(path);
+        }
+    }
+
+    @Override
+    public List<String> getChildrenNames(String path) {
+        lock.readLock().lock();
+        try {
+            if (!values.containsKey(path)) {
+                return null;
+            }
+            TreeSet<String> names = children.get(path);
+            return names != null ? new ArrayList<>(names) : new ArrayList<String>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, String> getAllChildren(String path) {
+        Map<String, String> rv = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            TreeSet<String> names = children.get(path);
+            if (names != null) {
+                for (String name : names) {
+                    rv.put(name, values.get(path + "/" + name));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return rv;
+    }
+
+    @Override
+    public void close() {
+        snapshotExecutor.shutdown();
+        try {
+            snapshotExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (syncLock) {
+            lock.writeLock().lock();
+            try {
+                closeLog();
+                dirLock.release();
+                lockFile.close();
+            } catch (IOException e) {
+                log.warn("Failed to close data store in " + dir + ": " + e, e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        if (mirror != null) {
+            mirror.close();
+        }
+    }
+
+    /**
+     * Apply a change to memory and append it to the log, then wait for the log to reach disk.
+     */
+    private void write(byte op, String path, String value) throws IOException {
+        byte[] record = encode(op, path, value);
+        long sequence;
+        boolean startSnapshot;
+        lock.writeLock().lock();
+        try {
+            apply(op, path, value);
+            logStream.writeInt(record.length);
+            logStream.writeInt(checksum(record));
+            logStream.write(record);
+            logStream.flush();
+            logBytes += record.length + 8;
+            sequence = ++appended;
+            startSnapshot = logBytes > snapshotBytes;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (sync) {
+            sync(sequence);
+        }
+        if (startSnapshot && snapshotting.compareAndSet(false, true)) {
+            snapshotExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        snapshot();
+                    } catch (IOException e) {
+                        log.warn("Failed to snapshot data store in " + dir + ": " + e, e);
+                    } finally {
+                        snapshotting.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Force the log to disk unless a force that started after the given write already did.
+     * Writers that arrive while a force is running share the next one.
+     */
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            if (synced >= sequence) {
+                return;
+            }
+            // every write counted in appended has already been flushed to the file
+            long target = appended;
+            logFile.getChannel().force(false);
+            synced = target;
+        }
+    }
+
+    /**
+     * Write everything in memory to a new snapshot and start a new log. The logs and
+     * snapshots that the new snapshot replaces are deleted once it is complete.
+     */
+    void snapshot() throws IOException {
+        Map<String, String> copy;
+        long snapshotGeneration;
+        synchronized (syncLock) {
+            lock.writeLock().lock();
+            try {
+                copy = new HashMap<>(values);
+                snapshotGeneration = generation + 1;
+                closeLog();
+                openLog(snapshotGeneration);
+                synced = appended;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        File temp = new File(dir, snapshotPrefix + snapshotGeneration + tempSuffix);
+        try (FileOutputStream file = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+            // sorted so that parents are written before their children
+            for (Map.Entry<String, String> entry : new TreeMap<>(copy).entrySet()) {
+                byte[] record = encode(OP_PUT, entry.getKey(), entry.getValue());
+                out.writeInt(record.length);
+                out.writeInt(checksum(record));
+                out.write(record);
+            }
+            out.flush();
+            file.getChannel().force(false);
+        }
+        Files.move(temp.toPath(), new File(dir, snapshotPrefix + snapshotGeneration).toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        for (File file : listFiles()) {
+            long fileGeneration = generationOf(file);
+            if (fileGeneration >= 0 && fileGeneration < snapshotGeneration) {
+                Files.delete(file.toPath());
+            }
+        }
+        log.info("Wrote snapshot " + snapshotGeneration + " of " + copy.size() + " paths to " + dir);
+    }
+
+    /**
+     * Load the newest snapshot and replay the logs written after it.
+     */
+    private void recover() throws IOException {
+        long snapshot = -1;
+        TreeSet<Long> logs = new TreeSet<>();
+        for (File file : listFiles()) {
+            String name = file.getName();
+            if (name.endsWith(tempSuffix)) {
+                Files.delete(file.toPath());
+                continue;
+            }
+            long fileGeneration = generationOf(file);
+            if (fileGeneration < 0) {
+                continue;
+            }
+            generation = Math.max(generation, fileGeneration);
+            if (name.startsWith(snapshotPrefix)) {
+                snapshot = Math.max(snapshot, fileGeneration);
+            } else {
+                logs.add(fileGeneration);
+            }
+        }
+        if (snapshot >= 0) {
+            File file = new File(dir, snapshotPrefix + snapshot);
+            if (!replay(file)) {
+                throw new IOException("Snapshot " + file + " is corrupt");
+            }
+        }
+        for (long logGeneration : logs.tailSet(snapshot)) {
+            File file = new File(dir, logPrefix + logGeneration);
+            if (!replay(file)) {
+                log.warn("Ignoring incomplete record at the end of " + file);
+            }
+        }
+    }
+
+    /**
+     * @return false if the file ends with an incomplete or damaged record
+     */
+    private boolean replay(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return true;
+                }
+                byte[] record;
+                int checksum;
+                try {
+                    checksum = in.readInt();
+                    if (length < 0 || length > file.length()) {
+                        return false;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    return false;
+                }
+                if (checksum(record) != checksum) {
+                    return false;
+                }
+                decodeAndApply(record);
+            }
+        }
+    }
+
+    private void openLog(long logGeneration) throws IOException {
+        generation = logGeneration;
+        logFile = new FileOutputStream(new File(dir, logPrefix + logGeneration), true);
+        logStream = new DataOutputStream(new BufferedOutputStream(logFile));
+        logBytes = 0;
+    }
+
+    private void closeLog() throws IOException {
+        if (logStream != null) {
+            logStream.flush();
+            logFile.getChannel().force(false);
+            logStream.close();
+            logStream = null;
+            logFile = null;
+        }
+    }
+
+    private File[] listFiles() {
+        File[] files = dir.listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * @return the generation of a log or snapshot file or -1 for any other file
+     */
+    private static long generationOf(File file) {
+        String name = file.getName();
+        String number;
+        if (name.startsWith(logPrefix)) {
+            number = name.substring(logPrefix.length());
+        } else if (name.startsWith(snapshotPrefix)) {
+            number = name.substring(snapshotPrefix.length());
+        } else {
+            return -1;
+        }
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encode(byte op, String path, String value) {
+        byte[] pathBytes = path.getBytes(Charsets.UTF_8);
+        byte[] valueBytes = value != null ? value.getBytes(Charsets.UTF_8) : new byte[0];
+        byte[] record = new byte[1 + 4 + pathBytes.length + valueBytes.length];
+        record[0] = op;
+        record[1] = (byte) (pathBytes.length >>> 24);
+        record[2] = (byte) (pathBytes.length >>> 16);
+        record[3] = (byte) (pathBytes.length >>> 8);
+        record[4] = (byte) pathBytes.length;
+        System.arraycopy(pathBytes, 0, record, 5, pathBytes.length);
+        System.arraycopy(valueBytes, 0, record, 5 + pathBytes.length, valueBytes.length);
+        return record;
+    }
+
+    private void decodeAndApply(byte[] record) throws IOException {
+        int pathLength = ((record[1] & 0xff) << 24) | ((record[2] & 0xff) << 16) |
+                         ((record[3] & 0xff) << 8) | (record[4] & 0xff);
+        String path = new String(record, 5, pathLength, Charsets.UTF_8);
+        int valueOffset = 5 + pathLength;
+        String value = new String(record, valueOffset, record.length - valueOffset, Charsets.UTF_8);
+        if (record[0] != OP_PUT && record[0] != OP_DELETE) {
+            throw new IOException("Unknown operation " + record[0] + " for " + path);
+        }
+        apply(record[0], path, value);
+    }
+
+    private void apply(byte op, String path, String value) {
+        if (op == OP_PUT) {
+            create(path);
+            values.put(path, value);
+        } else {
+            remove(path);
+            String parent = parentOf(path);
+            if (parent != null) {
+                TreeSet<String> siblings = children.get(parent);
+                if (siblings != null) {
+                    siblings.remove(nameOf(path));
+                    if (siblings.isEmpty()) {
+                        children.remove(parent);
+                    }
+                }
+            }
+        }
+    }
+
+    private void create(String path) {
+        if (values.containsKey(path)) {
+            return;
+        }
+        values.put(path, "");
+        String parent = parentOf(path);
+        if (parent != null) {
+            create(parent);
+            TreeSet<String> siblings = children.get(parent);
+            if (siblings == null) {
+                siblings = new TreeSet<>();
+                children.put(parent, siblings);
+            }
+            siblings.add(nameOf(path));
+        }
+    }
+
+    private void remove(String path) {
+        values.remove(path);
+        TreeSet<String> names = children.remove(path);
+        if (names != null) {
+            for (String name : names) {
+                remove(path + "/" + name);
+            }
+        }
+    }
+
+    /**
+     * @return the parent of a path or null for top level paths
+     */
+    private static String parentOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : null;
+    }
+
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+}
@@ -33,6 +33,8 @@ import java.util.concurrent.TimeUnit;
 import com.addthis.basis.util.Files;
 import com.addthis.basis.util.Parameter;
 
+import com.addthis.bark.ZkClientFactory;
+
 import com.addthis.bundle.channel.DataChannelOutput;
 import com.addthis.codec.CodecJSON;
 import com.addthis.hydra.data.query.Query;
@@ -41,9 +43,12 @@ import com.addthis.hydra.data.query.QueryOpProcessor;
 import com.addthis.hydra.data.query.QueryStatusObserver;
 import com.addthis.hydra.data.query.source.ErrorHandlingQuerySource;
 import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QuerySource;
 import com.addthis.hydra.job.IJob;
 import com.addthis.hydra.job.Job;
 import com.addthis.hydra.job.JobConfigManager;
+import com.addthis.hydra.job.JobState;
+import com.addthis.hydra.job.store.AvailableCache;
 import com.addthis.hydra.job.store.DataStoreUtil;
 import com.addthis.hydra.job.store.SpawnDataStore;
 import com.addthis.hydra.query.util.MeshSourceAggregator;
@@ -59,8 +64,13 @@ import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 
+import org.I0Itec.zkclient.IZkDataListener;
+import org.I0Itec.zkclient.ZkClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+
+import static com.addthis.hydra.job.store.SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH;
+
 public class MeshQueryMaster implements ErrorHandlingQuerySource {
 
     private static final Logger log = LoggerFactory.getLogger(MeshQueryMaster.class);
@@ -71,6 +81,7 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
     private static final String meshPeers = Parameter.value("qmaster.mesh.peers", "localhost");
     private static final int meshPeerPort = Parameter.intValue("qmaster.mesh.peer.port", 5101);
     private static final boolean enableZooKeeper = Parameter.boolValue("qmaster.enableZooKeeper", true);
+    private static final long generationRefreshMillis = Parameter.longValue("qmaster.cache.generation.refresh.millis", 15000);
 
     /**
      * A ZooKeeper/Priam backed data structure that keeps track of
@@ -142,6 +153,23 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
                         }
                     });
 
+    /**
+     * results of earlier queries, only used when job generations can be read from ZK
+     */
+    private final QueryResultCache resultCache;
+
+    /**
+     * the generation of the data of each job, null while the job is changing
+     */
+    private final AvailableCache<String> jobGenerations;
+
+    /**
+     * watches the jobs with cached results so that they are dropped as soon as a job starts
+     */
+    private final ZkClient jobWatchClient;
+
+    private final ConcurrentHashMap<String, Boolean> watchedJobs = new ConcurrentHashMap<>();
+
     private final ConcurrentHashMap<String, Boolean> hostMap = new ConcurrentHashMap<>();
 
     public MeshQueryMaster(QueryTracker tracker) throws Exception {
@@ -176,6 +204,21 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
             this.aliasBiMap = null;
         }
 
+        if (enableZooKeeper && QueryResultCache.enabled) {
+            this.jobWatchClient = ZkClientFactory.makeStandardClient();
+            this.resultCache = new QueryResultCache();
+            this.jobGenerations = new AvailableCache<String>(generationRefreshMillis, -1, 2000, 2) {
+                @Override
+                public String fetchValue(String id) {
+                    return jobGeneration(jobConfigManager.getJob(id));
+                }
+            };
+        } else {
+            this.jobWatchClient = null;
+            this.resultCache = null;
+            this.jobGenerations = null;
+        }
+
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
                 shutdown();
@@ -192,6 +235,9 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
             if (spawnDataStore != null) {
                 spawnDataStore.close();
             }
+            if (jobWatchClient != null) {
+                jobWatchClient.close();
+            }
             meshy.close();
         } catch (Exception e) {
             e.printStackTrace();
@@ -226,6 +272,7 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
     public QueryHandle query(Query query, DataChannelOutput consumer) throws QueryException {
         try {
             String[] opsLog = query.getOps();   // being able to log and monitor rops is kind of important
+            String cacheHash = resultCache != null ? resultCache.hash(query) : null;
 
             /* creates query for worker and updates local query ops */
             Query remoteQuery = query.createPipelinedQuery();
@@ -288,6 +335,10 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
                     }
                     throw new QueryException(errorMessage + label + sb.toString());
                 }
+                if (fileReferenceCount < taskCount) {
+                    // results missing some tasks must not answer later queries
+                    cacheHash = null;
+                }
             }
 
             final Map<Integer, Set<QueryData>> sourceMap = new HashMap<>();
@@ -303,8 +354,12 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
                 }
                 sourceMap.put(entry.getKey(), queryDataSet);
             }
-            MeshSourceAggregator aggregator = new MeshSourceAggregator(sourceMap, new ConcurrentHashMap<>(hostMap), this);
-            QueryHandle handle = tracker.runAndTrackQuery(aggregator, potentialQueryDataList,
+            QuerySource source = new MeshSourceAggregator(sourceMap, new ConcurrentHashMap<>(hostMap), this);
+            if (cacheHash != null) {
+                watchJob(job);
+                source = resultCache.wrap(cacheHash, job, getJobGeneration(job), source);
+            }
+            QueryHandle handle = tracker.runAndTrackQuery(source, potentialQueryDataList,
                     query, wrappedConsumer, opsLog);
             if (enableZooKeeper) {
                 jobFailureDetector.indicateSuccess(query.getParameter("job", query.getJob()));
@@ -316,6 +371,51 @@ public class MeshQueryMaster implements ErrorHandlingQuerySource {
         }
     }
 
+    /**
+     * The data of a job only changes while it runs, so the run count and end
+     * time of an idle job identify the data a query will read.
+     *
+     * @return the generation or null if the job is missing or not idle
+     */
+    static String jobGeneration(IJob job) {
+        if (job == null || job.getState() != JobState.IDLE) {
+            return null;
+        }
+        return job.getRunCount() + "-" + job.getEndTime();
+    }
+
+    /**
+     * Spawn rewrites the job node when a job starts, so drop its cached
+     * results then rather than when its generation is next refreshed.
+     */
+    private void watchJob(final String job) {
+        if (watchedJobs.putIfAbsent(job, true) != null) {
+            return;
+        }
+        jobWatchClient.subscribeDataChanges(SPAWN_JOB_CONFIG_PATH + "/" + job, new IZkDataListener() {
+            @Override
+            public void handleDataChange(String dataPath, Object data) {
+                jobGenerations.remove(job);
+                resultCache.invalidate(job);
+            }
+
+            @Override
+            public void handleDataDeleted(String dataPath) {
+                jobGenerations.remove(job);
+                resultCache.invalidate(job);
+            }
+        });
+    }
+
+    private String getJobGeneration(String job) {
+        try {
+            return jobGenerations.get(job);
+        } catch (ExecutionException e) {
+            log.warn("unable to retrieve generation for job: " + job, e);
+            return null;
+        }
+    }
+
     private String validateJobForQuery(Query query, String job) {
         if (!enableZooKeeper) {
             return job;
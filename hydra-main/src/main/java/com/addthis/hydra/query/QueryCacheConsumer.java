@@ -13,8 +13,12 @@
  */
 package com.addthis.hydra.query;
 
+import java.io.ByteArrayInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -33,22 +37,52 @@ import com.addthis.hydra.data.query.source.QuerySource;
 import com.addthis.muxy.MuxFile;
 
 import org.slf4j.Logger;
-
 import org.slf4j.LoggerFactory;
+
+/**
+ * Replays bundles previously written with a {@link com.addthis.bundle.io.DataChannelWriter}
+ * from a mux file, a byte array or a plain file.
+ */
 public class QueryCacheConsumer implements QuerySource, BundleFactory {
 
     private static Logger log = LoggerFactory.getLogger(QueryCacheConsumer.class);
 
     private final MuxFile cacheData;
+    private final byte[] cacheBytes;
+    private final File cacheFile;
     private final KVBundleFormat format;
     private AtomicBoolean canceled = new AtomicBoolean(false);
     private final AtomicInteger cacheConsumerThreads = new AtomicInteger();
 
     public QueryCacheConsumer(MuxFile cacheData) {
+        this(cacheData, null, null);
+    }
+
+    public QueryCacheConsumer(byte[] cacheBytes) {
+        this(null, cacheBytes, null);
+    }
+
+    public QueryCacheConsumer(File cacheFile) {
+        this(null, null, cacheFile);
+    }
+
+    private QueryCacheConsumer(MuxFile cacheData, byte[] cacheBytes, File cacheFile) {
         this.cacheData = cacheData;
+        this.cacheBytes = cacheBytes;
+        this.cacheFile = cacheFile;
         this.format = new KVBundleFormat();
     }
 
+    private InputStream openStream() throws IOException {
+        if (cacheBytes != null) {
+            return new ByteArrayInputStream(cacheBytes);
+        } else if (cacheFile != null) {
+            return new FileInputStream(cacheFile);
+        } else {
+            return cacheData.read(0);
+        }
+    }
+
     @Override
     public QueryHandle query(final Query query, DataChannelOutput consumer) throws QueryException {
         new CacheConsumerThread(query, consumer);
@@ -95,26 +129,41 @@ public class QueryCacheConsumer implements QuerySource, BundleFactory {
                 Query.emitTrace("Starting to consume query: " + query.uuid() + " from cache");
             }
             // we can ignore the query because the data is already cached...
+            InputStream in = null;
             try {
-                DataChannelReader dataChannelReader = new DataChannelReader(QueryCacheConsumer.this, cacheData.read(0));
+                in = openStream();
+                DataChannelReader dataChannelReader = new DataChannelReader(QueryCacheConsumer.this, in);
                 Bundle bundle;
                 while (!canceled.get() && (bundle = dataChannelReader.read()) != null) {
                     consumer.send(bundle);
                 }
+                complete();
             } catch (EOFException eof) {
                 // thrown by DataChannelReader when end of stream is reached
-                if (!canceled.get()) {
-                    consumer.sendComplete();
-                    if (log.isDebugEnabled() || query.isTraced()) {
-                        Query.emitTrace("Completed consuming query: " + query.uuid() + " from cache");
-                    }
-                }
+                complete();
             } catch (IOException e)  {
                 log.warn("", "IO Exception reading bundle from cache");
                 consumer.sourceError(new DataChannelError(e));
             } catch (Exception e)  {
                 log.warn("", "Generic or Wrapped Exception reading bundle from cache");
                 consumer.sourceError(new DataChannelError(e));
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        log.warn("", e);
+                    }
+                }
+            }
+        }
+
+        private void complete() {
+            if (!canceled.get()) {
+                consumer.sendComplete();
+                if (log.isDebugEnabled() || query.isTraced()) {
+                    Query.emitTrace("Completed consuming query: " + query.uuid() + " from cache");
+                }
             }
         }
     }
@@ -0,0 +1,547 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.addthis.basis.util.Files;
+import com.addthis.basis.util.Parameter;
+import com.addthis.basis.util.Strings;
+
+import com.addthis.bundle.channel.DataChannelError;
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.io.DataChannelWriter;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QuerySource;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the bundles streamed from the workers for a query so that repeated
+ * queries against a job that has not run since are answered by the master.
+ * <p/>
+ * Entries are keyed by the job, the job generation and the query with
+ * parameters that do not affect results removed. A new generation for a job
+ * drops the entries of every older generation, and {@link #invalidate(String)}
+ * drops every entry of a job as soon as it is known to start. Entries live
+ * in memory and are moved to a disk directory when evicted for space.
+ * <p/>
+ * Identical queries that arrive while one is running wait for it and replay
+ * its result instead of querying the workers again. If the running query
+ * fails, is canceled or stops early the waiting queries run on their own.
+ * <p/>
+ * The cached stream is the input to the master ops, so each query still runs
+ * its own master ops over the replayed bundles. Set the query parameter
+ * {@code cache=false} to bypass the cache.
+ */
+public class QueryResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryResultCache.class);
+
+    static final boolean enabled = Parameter.boolValue("qmaster.cache.enabled", true);
+    private static final long memoryBytes = Parameter.longValue("qmaster.cache.memory.bytes", 128L * 1024 * 1024);
+    private static final long diskBytes = Parameter.longValue("qmaster.cache.disk.bytes", 1024L * 1024 * 1024);
+    private static final String diskDir = Parameter.value("qmaster.cache.dir", "query.cache");
+    private static final long maxEntryBytes = Parameter.longValue("qmaster.cache.entry.max.bytes", 16L * 1024 * 1024);
+    private static final long maxAgeMinutes = Parameter.longValue("qmaster.cache.maxAge.minutes", 60);
+    private static final List<String> ignoreParams = Arrays.asList(Strings.splitArray(
+            Parameter.value("qmaster.cache.ignoreParams",
+                    "remoteip,sender,timeout,originalrequest,track.alias,gate,parallel,cache"), ","));
+
+    private static final List<String> ignoreProps = Arrays.asList("trace");
+
+    private static final Counter memoryHits = Metrics.newCounter(QueryResultCache.class, "memoryHits");
+    private static final Counter diskHits = Metrics.newCounter(QueryResultCache.class, "diskHits");
+    private static final Counter misses = Metrics.newCounter(QueryResultCache.class, "misses");
+    private static final Counter coalesced = Metrics.newCounter(QueryResultCache.class, "coalesced");
+
+    private final Cache<String, byte[]> memory;
+    private final Cache<String, File> disk;
+    private final File dir;
+    private final long entryLimit;
+    private final AtomicLong fileSequence = new AtomicLong();
+
+    /* latest generation seen for each job */
+    private final ConcurrentHashMap<String, String> generations = new ConcurrentHashMap<>();
+
+    /* queries currently fetching results from the workers */
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    public QueryResultCache() {
+        this(memoryBytes, diskBytes, new File(diskDir), maxEntryBytes, TimeUnit.MINUTES.toMillis(maxAgeMinutes));
+    }
+
+    /**
+     * @param memoryBytes   bytes of encoded results to keep in memory
+     * @param diskBytes     bytes of encoded results to keep on disk (if <= 0, no disk tier)
+     * @param dir           directory for the disk tier. It is cleared on startup.
+     * @param entryLimit    results larger than this many bytes are not cached
+     * @param maxAgeMillis  how long a result may be served after it was stored
+     */
+    public QueryResultCache(long memoryBytes, long diskBytes, File dir, long entryLimit, long maxAgeMillis) {
+        this.dir = dir;
+        this.entryLimit = entryLimit;
+        if (diskBytes > 0) {
+            Files.deleteDir(dir);
+            Files.initDirectory(dir);
+            disk = CacheBuilder.newBuilder()
+                    .maximumWeight(diskBytes)
+                    .weigher(new Weigher<String, File>() {
+                        @Override
+                        public int weigh(String key, File file) {
+                            return (int) Math.min(Integer.MAX_VALUE, file.length());
+                        }
+                    })
+                    .expireAfterWrite(maxAgeMillis, TimeUnit.MILLISECONDS)
+                    .removalListener(new RemovalListener<String, File>() {
+                        @Override
+                        public void onRemoval(RemovalNotification<String, File> notification) {
+                            if (!notification.getValue().delete()) {
+                                log.warn("unable to delete cached result " + notification.getValue());
+                            }
+                        }
+                    })
+                    .build();
+        } else {
+            disk = null;
+        }
+        memory = CacheBuilder.newBuilder()
+                .maximumWeight(memoryBytes)
+                .weigher(new Weigher<String, byte[]>() {
+                    @Override
+                    public int weigh(String key, byte[] data) {
+                        return data.length;
+                    }
+                })
+                .expireAfterWrite(maxAgeMillis, TimeUnit.MILLISECONDS)
+                .removalListener(new RemovalListener<String, byte[]>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, byte[]> notification) {
+                        if (notification.getCause() == RemovalCause.SIZE) {
+                            demote(notification.getKey(), notification.getValue());
+                        }
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Must be called before the query ops are split between the master and
+     * the workers.
+     *
+     * @return a hash of the query that ignores parameters which do not
+     *         change its results or null if the query must not be cached
+     */
+    public String hash(Query query) {
+        if (!Boolean.valueOf(query.getParameter("cache", "true"))) {
+            return null;
+        }
+        return query.hashKey(ignoreProps, ignoreParams);
+    }
+
+    /**
+     * @param hash       from {@link #hash(Query)} or null to bypass the cache
+     * @param job        the resolved job id
+     * @param generation identifies the job data the query will read or null
+     *                   if it is changing
+     * @param delegate   source that queries the workers
+     * @return a source that answers from the cache when it can
+     */
+    public QuerySource wrap(String hash, String job, String generation, QuerySource delegate) {
+        if (hash == null || generation == null) {
+            return delegate;
+        }
+        String previous = generations.put(job, generation);
+        if (previous != null && !previous.equals(generation)) {
+            purge(job, generation);
+        }
+        return new CachingSource(job, generation, job + "/" + generation + "/" + hash, delegate);
+    }
+
+    /**
+     * Drop every entry of a job, and any result still being recorded for
+     * it, because its data may be about to change.
+     */
+    public void invalidate(String job) {
+        generations.remove(job);
+        purge(job, null);
+    }
+
+    long getMemoryEntries() {
+        return memory.size();
+    }
+
+    long getDiskEntries() {
+        return disk != null ? disk.size() : 0;
+    }
+
+    private boolean isCurrent(String key) {
+        int slash = key.indexOf('/');
+        String generation = generations.get(key.substring(0, slash));
+        return generation != null && key.startsWith(generation + "/", slash + 1);
+    }
+
+    /**
+     * drop the entries of older generations of a job
+     *
+     * @param generation the generation to keep or null to drop every entry
+     */
+    private void purge(String job, String generation) {
+        String jobPrefix = job + "/";
+        String currentPrefix = generation != null ? jobPrefix + generation + "/" : null;
+        for (String key : memory.asMap().keySet()) {
+            if (key.startsWith(jobPrefix) && (currentPrefix == null || !key.startsWith(currentPrefix))) {
+                memory.invalidate(key);
+            }
+        }
+        if (disk != null) {
+            for (String key : disk.asMap().keySet()) {
+                if (key.startsWith(jobPrefix) && (currentPrefix == null || !key.startsWith(currentPrefix))) {
+                    disk.invalidate(key);
+                }
+            }
+        }
+    }
+
+    private void store(String key, byte[] data) {
+        if (isCurrent(key)) {
+            memory.put(key, data);
+        }
+    }
+
+    private void demote(String key, byte[] data) {
+        if (disk == null || !isCurrent(key)) {
+            return;
+        }
+        File file = new File(dir, Long.toString(fileSequence.incrementAndGet()));
+        try {
+            Files.write(file, data, false);
+            disk.put(key, file);
+        } catch (IOException e) {
+            log.warn("unable to move cached result to " + file, e);
+            file.delete();
+        }
+    }
+
+    private byte[] lookup(String key) {
+        byte[] data = memory.getIfPresent(key);
+        if (data != null) {
+            memoryHits.inc();
+            return data;
+        }
+        if (disk == null) {
+            return null;
+        }
+        File file = disk.getIfPresent(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            data = Files.read(file);
+        } catch (IOException e) {
+            // evicted while we were reading it
+            return null;
+        }
+        diskHits.inc();
+        disk.invalidate(key);
+        store(key, data);
+        return data;
+    }
+
+    private class CachingSource implements QuerySource {
+
+        private final String job;
+        private final String generation;
+        private final String key;
+        private final QuerySource delegate;
+
+        CachingSource(String job, String generation, String key, QuerySource delegate) {
+            this.job = job;
+            this.generation = generation;
+            this.key = key;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public QueryHandle query(Query query, DataChannelOutput consumer) throws QueryException {
+            while (true) {
+                byte[] data = lookup(key);
+                if (data != null) {
+                    if (query.isTraced()) {
+                        Query.emitTrace("query " + query.uuid() + " answered from cache for job " + job +
+                                        " generation " + generation);
+                    }
+                    return new QueryCacheConsumer(data).query(query, consumer);
+                }
+                Flight flight = new Flight(key);
+                Flight running = flights.putIfAbsent(key, flight);
+                if (running == null) {
+                    misses.inc();
+                    return flight.lead(query, consumer, delegate);
+                }
+                QueryHandle handle = running.follow(query, consumer, delegate);
+                if (handle != null) {
+                    coalesced.inc();
+                    return handle;
+                }
+                // the running query finished after we found it, look again
+            }
+        }
+
+        @Override
+        public void noop() {
+            delegate.noop();
+        }
+
+        @Override
+        public boolean isClosed() {
+            return delegate.isClosed();
+        }
+    }
+
+    /**
+     * A query fetching results from the workers and the identical
+     * queries waiting for it.
+     */
+    private class Flight {
+
+        private final String key;
+        private final List<Follower> followers = new ArrayList<>();
+        private boolean done;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        QueryHandle lead(Query query, DataChannelOutput consumer, QuerySource delegate) throws QueryException {
+            final Recorder recorder = new Recorder(this, query, consumer);
+            final QueryHandle handle;
+            try {
+                handle = delegate.query(query, recorder);
+            } catch (QueryException e) {
+                finish(null);
+                throw e;
+            } catch (RuntimeException e) {
+                finish(null);
+                throw e;
+            }
+            return new QueryHandle() {
+                @Override
+                public void cancel(String message) {
+                    recorder.abandon();
+                    finish(null);
+                    handle.cancel(message);
+                }
+            };
+        }
+
+        /**
+         * @return null if the flight is already done
+         */
+        synchronized QueryHandle follow(Query query, DataChannelOutput consumer, QuerySource delegate) {
+            if (done) {
+                return null;
+            }
+            Follower follower = new Follower(this, query, consumer, delegate);
+            followers.add(follower);
+            return follower;
+        }
+
+        synchronized void detach(Follower follower) {
+            followers.remove(follower);
+        }
+
+        /**
+         * @param data recorded results or null if the followers must run their own queries
+         */
+        void finish(byte[] data) {
+            flights.remove(key, this);
+            List<Follower> waiting;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                waiting = new ArrayList<>(followers);
+                followers.clear();
+            }
+            for (Follower follower : waiting) {
+                follower.release(data);
+            }
+        }
+    }
+
+    private static class Follower implements QueryHandle {
+
+        private final Flight flight;
+        private final Query query;
+        private final DataChannelOutput consumer;
+        private final QuerySource delegate;
+        private QueryHandle handle;
+        private boolean canceled;
+
+        Follower(Flight flight, Query query, DataChannelOutput consumer, QuerySource delegate) {
+            this.flight = flight;
+            this.query = query;
+            this.consumer = consumer;
+            this.delegate = delegate;
+        }
+
+        synchronized void release(byte[] data) {
+            if (canceled) {
+                return;
+            }
+            try {
+                if (data != null) {
+                    handle = new QueryCacheConsumer(data).query(query, consumer);
+                } else {
+                    handle = delegate.query(query, consumer);
+                }
+            } catch (QueryException e) {
+                consumer.sourceError(e);
+            } catch (RuntimeException e) {
+                consumer.sourceError(new DataChannelError(e));
+            }
+        }
+
+        @Override
+        public synchronized void cancel(String message) {
+            canceled = true;
+            flight.detach(this);
+            if (handle != null) {
+                handle.cancel(message);
+            }
+        }
+    }
+
+    /**
+     * Passes results to the leading query's consumer and records them.
+     */
+    private class Recorder implements DataChannelOutput {
+
+        private final Flight flight;
+        private final Query query;
+        private final DataChannelOutput consumer;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private DataChannelWriter writer = new DataChannelWriter(buffer);
+
+        Recorder(Flight flight, Query query, DataChannelOutput consumer) {
+            this.flight = flight;
+            this.query = query;
+            this.consumer = consumer;
+        }
+
+        private synchronized void record(Bundle row) {
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write(row);
+                if (buffer.size() > entryLimit) {
+                    abandon();
+                }
+            } catch (IOException e) {
+                log.warn("unable to record query result", e);
+                abandon();
+            }
+        }
+
+        synchronized void abandon() {
+            writer = null;
+            buffer = null;
+        }
+
+        private synchronized byte[] recorded() {
+            if (writer == null) {
+                return null;
+            }
+            try {
+                writer.close();
+            } catch (IOException e) {
+                log.warn("unable to record query result", e);
+                abandon();
+                return null;
+            }
+            byte[] data = buffer.toByteArray();
+            abandon();
+            return data;
+        }
+
+        @Override
+        public void send(Bundle row) throws DataChannelError {
+            // record first, master ops may modify the row
+            record(row);
+            consumer.send(row);
+        }
+
+        @Override
+        public void send(List<Bundle> bundles) {
+            for (Bundle row : bundles) {
+                record(row);
+            }
+            consumer.send(bundles);
+        }
+
+        @Override
+        public void sendComplete() {
+            byte[] data = recorded();
+            QueryStatusObserver observer = query.queryStatusObserver;
+            if (observer != null && (observer.queryCompleted || observer.queryCancelled)) {
+                // stopped early so the results are incomplete
+                data = null;
+            }
+            if (data != null) {
+                store(flight.key, data);
+            }
+            flight.finish(data);
+            consumer.sendComplete();
+        }
+
+        @Override
+        public void sourceError(DataChannelError er) {
+            abandon();
+            flight.finish(null);
+            consumer.sourceError(er);
+        }
+
+        @Override
+        public Bundle createBundle() {
+            return consumer.createBundle();
+        }
+    }
+}
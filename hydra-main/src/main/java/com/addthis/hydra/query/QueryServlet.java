@@ -156,6 +156,7 @@ public class QueryServlet {
         query.setParameterIfNotYetSet("parallel", kv.getValue("parallel"));
         query.setParameterIfNotYetSet("allowPartial", kv.getValue("allowPartial"));
         query.setParameterIfNotYetSet("dsortcompression", kv.getValue("dsortcompression"));
+        query.setParameterIfNotYetSet("cache", kv.getValue("cache"));
 
         String filename = kv.getValue("filename", "query");
         String format = kv.getValue("format", "json");
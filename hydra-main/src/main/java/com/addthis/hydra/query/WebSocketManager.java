@@ -18,11 +18,11 @@ import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
 import java.io.StringWriter;
 
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
+import com.addthis.hydra.job.ClientEventQueue;
 import com.addthis.hydra.job.Spawn;
 import com.addthis.maljson.JSONArray;
 import com.addthis.maljson.JSONObject;
@@ -101,7 +101,8 @@ public class WebSocketManager extends WebSocketHandler {
      * interfaces.
      */
     public WebSocket doWebSocketConnect(HttpServletRequest request, String protocol) {
-        MQWebSocket webSocket = new MQWebSocket(request.getParameter("user"), request.getRemoteAddr());
+        MQWebSocket webSocket = new MQWebSocket(request.getParameter("user"), request.getRemoteAddr(),
+                "1".equals(request.getParameter("diff")));
         synchronized (monitor) {
             int numberOfSockets = webSockets.size();
             webSockets.add(webSocket);
@@ -170,13 +171,24 @@ public class WebSocketManager extends WebSocketHandler {
     }
 
     /**
-     * Queue up an event for websockets
+     * @return true if any websocket is open
+     */
+    public boolean hasWebSockets() {
+        return !webSockets.isEmpty();
+    }
+
+    /**
+     * Queue up an event for websockets. Websockets that are not keeping up with events are closed.
      *
      * @param event
      */
     public void addEvent(Spawn.ClientEvent event) {
         for (MQWebSocket webSocket : webSockets) {
-            webSocket.addEvent(event);
+            if (!webSocket.addEvent(event)) {
+                log.warn("[WebSocketManager] closing web socket for " + webSocket.getUsername() + " that is not keeping up with events");
+                webSockets.remove(webSocket);
+                webSocket.close();
+            }
         }
     }
 
@@ -219,15 +231,16 @@ public class WebSocketManager extends WebSocketHandler {
         /**
          * A queue of events to queue up and push to websockets at intervals
          */
-        private final LinkedBlockingQueue<Spawn.ClientEvent> eventQueue = new LinkedBlockingQueue<Spawn.ClientEvent>();
+        private final ClientEventQueue eventQueue;
 
-        public MQWebSocket(String username, String remoteAddress) {
+        public MQWebSocket(String username, String remoteAddress, boolean diffs) {
             this.username = username;
             this.remoteAddress = remoteAddress;
+            this.eventQueue = new ClientEventQueue(diffs);
         }
 
         public MQWebSocket() {
-            this("anonymous", "unkown");
+            this("anonymous", "unkown", false);
         }
 
         /**
@@ -345,16 +358,25 @@ public class WebSocketManager extends WebSocketHandler {
             this.remoteAddress = remoteAddress;
         }
 
-        public void addEvent(Spawn.ClientEvent event) {
-            eventQueue.add(event);
+        /**
+         * @return false if the web socket is not keeping up with events and should be closed
+         */
+        public boolean addEvent(Spawn.ClientEvent event) {
+            return eventQueue.add(event);
+        }
+
+        public void close() {
+            if (connection != null) {
+                connection.close();
+            }
         }
 
         public int drainEvents(int maxNumber) {
             int events = 0;
             try {
                 JSONArray eventArray = new JSONArray();
-                for (int i = 0; i < eventQueue.size() && i < maxNumber; i++) {
-                    Spawn.ClientEvent event = eventQueue.poll(1000, TimeUnit.MILLISECONDS);
+                List<Spawn.ClientEvent> drained = eventQueue.drain(maxNumber);
+                for (Spawn.ClientEvent event : drained) {
                     eventArray.put(event.toJSON());
                     events++;
                 }
@@ -31,6 +31,8 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -86,6 +88,11 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     // Queue for sources -- one source per task per query
     private static final BlockingQueue<QuerySource> readerQueue = new LinkedBlockingDeque<>();
 
+    // Sends backup requests for tasks that have not responded by the hedge percentile of their host's response time
+    private static final ScheduledExecutorService hedgePool = MoreExecutors
+            .getExitingScheduledExecutorService(new ScheduledThreadPoolExecutor(1,
+                    new ThreadFactoryBuilder().setNameFormat("queryHedge-%d").build()));
+
     private static final boolean enableStragglerCheck = Parameter.boolValue("meshSourceAggregator.enableStragglerCheck", false);
     // Enables straggler check logic.
     private static final int stragglerCheckPeriod = Parameter.intValue("meshSourceAggregator.stragglerCheckPeriodMillis", 1000);
@@ -99,6 +106,24 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     private static final boolean prioritiseReadOnlyWorkers = Parameter.boolValue("meshSourceAggregator.prioritiseReadOnlyWorkers", false);
     private static final int pollWaitTime = Parameter.intValue("meshSourceAggregator.pollWaitTime", 50);
 
+    // In non-parallel mode, send a second request for a task that has not responded after the given percentile
+    // of the response times of its host for the job. The first replica to respond wins and the other is closed.
+    private static final boolean enableHedging = Parameter.boolValue("meshSourceAggregator.hedge", true);
+    private static final double hedgePercentile = Double.parseDouble(Parameter.value("meshSourceAggregator.hedge.percentile", ".95"));
+    // Responses needed from a host for a job before its percentile is trusted
+    private static final int hedgeMinSamples = Parameter.intValue("meshSourceAggregator.hedge.minSamples", 20);
+    private static final int hedgeMinDelay = Parameter.intValue("meshSourceAggregator.hedge.minDelayMillis", 50);
+    // At most this fraction of the tasks of a query (and at least one) get a backup request
+    private static final double hedgeMaxFraction = Double.parseDouble(Parameter.value("meshSourceAggregator.hedge.maxFraction", ".1"));
+
+    // Time to first response for each (host, job)
+    private static final ResponseLatencyTracker responseLatencies = new ResponseLatencyTracker(
+            Parameter.intValue("meshSourceAggregator.latency.maxEntries", 50000),
+            Parameter.intValue("meshSourceAggregator.latency.decaySamples", 1000));
+
+    // Requests sent to each host that have not finished, across all queries
+    private static final ConcurrentHashMap<String, AtomicInteger> outstandingByHost = new ConcurrentHashMap<>();
+
     /**
      * Identifies the number of standard deviations required to run stragglers when hosts are slow
      */
@@ -111,6 +136,8 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     private static Counter totalQueries = Metrics.newCounter(MeshSourceAggregator.class, "totalQueries");
     private static Counter totalStragglerCheckerRequests = Metrics.newCounter(MeshSourceAggregator.class, "totalStragglerCheckerRequests");
     private static Counter totalRetryRequests = Metrics.newCounter(MeshSourceAggregator.class, "totalRetryRequests");
+    private static Counter totalHedgeRequests = Metrics.newCounter(MeshSourceAggregator.class, "totalHedgeRequests");
+    private static Counter totalHedgeWins = Metrics.newCounter(MeshSourceAggregator.class, "totalHedgeWins");
 
     private final Map<Integer, Set<QueryData>> sourcesByTaskID;
     private final Map<String, Boolean> hostMap;
@@ -166,6 +193,9 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
                         QueryData chosenQueryData = allocateQueryTaskLegacy(taskPerHostCount, entry.getValue(), hostMap);
                         entry.getValue().remove(chosenQueryData);
                         requestQueryData(chosenQueryData, query);
+                        if (enableHedging && !entry.getValue().isEmpty()) {
+                            scheduleHedge(chosenQueryData);
+                        }
                     }
                 }
             }
@@ -179,7 +209,11 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
     }
 
     private String requestQueryData(QueryData queryData, Query query) {
-        QuerySource reader = new QuerySource(queryData, handle, query);
+        return requestQueryData(queryData, query, false);
+    }
+
+    private String requestQueryData(QueryData queryData, Query query, boolean hedge) {
+        QuerySource reader = new QuerySource(queryData, handle, query, hedge);
         readerQueue.add(reader);
         if (log.isTraceEnabled()) {
             log.trace("Setting start time. QueryID:" + query.uuid() + " host:" + queryData.hostEntryInfo.getHostName());
@@ -187,6 +221,43 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         return reader.id;
     }
 
+    private void scheduleHedge(QueryData primary) {
+        long delay = responseLatencies.percentile(primary.hostEntryInfo.getHostName(), primary.jobId,
+                hedgePercentile, hedgeMinSamples);
+        if (delay < 0) {
+            return;
+        }
+        final AggregateHandle queryHandle = handle;
+        final int taskId = primary.taskId;
+        hedgePool.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queryHandle.hedge(taskId);
+                } catch (Exception e) {
+                    log.warn("Error sending backup request for task " + taskId, e);
+                }
+            }
+        }, Math.max(delay, hedgeMinDelay), TimeUnit.MILLISECONDS);
+    }
+
+    private static int outstanding(String host) {
+        AtomicInteger count = outstandingByHost.get(host);
+        return count != null ? count.get() : 0;
+    }
+
+    private static AtomicInteger outstandingCounter(String host) {
+        AtomicInteger count = outstandingByHost.get(host);
+        if (count == null) {
+            AtomicInteger newCount = new AtomicInteger();
+            count = outstandingByHost.putIfAbsent(host, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        return count;
+    }
+
     @Override
     public void noop() {
     }
@@ -208,6 +279,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         private volatile DataChannelError error;
         private final AtomicBoolean errored = new AtomicBoolean(false);
         private final AtomicBoolean canceled = new AtomicBoolean(false);
+        private final AtomicInteger hedges = new AtomicInteger();
         private final Set<Integer> completed;
         private final Set<Integer> started;
         private final List<Long> runtimes;
@@ -346,6 +418,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
 
         private void done() {
             if (done.compareAndSet(false, true)) {
+                closeSources(null);
 
                 if (log.isTraceEnabled()) {
                     log.trace("Committing metrics for query: " + query.uuid() + " and deleting its metrics");
@@ -373,6 +446,50 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
             return completed.contains(node);
         }
 
+        /**
+         * Close the unfinished requests other than the winner for the winner's task,
+         * or all unfinished requests if the winner is null.
+         */
+        private void closeSources(QuerySource winner) {
+            synchronized (handles) {
+                for (QuerySource source : handles) {
+                    if (source != winner && !source.done && !source.obsolete &&
+                        (winner == null || source.queryData.taskId == winner.queryData.taskId)) {
+                        source.obsolete = true;
+                        source.queryData.hostEntryInfo.setIgnored();
+                        source.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Send a backup request for a task to another replica if the task has not responded yet.
+         */
+        void hedge(int node) {
+            if (done.get() || canceled.get() || isStarted(node) || isComplete(node)) {
+                return;
+            }
+            if (hedges.incrementAndGet() > Math.max(1, (int) Math.ceil(hedgeMaxFraction * _totalTasks))) {
+                return;
+            }
+            QueryData backup;
+            synchronized (sourcesByTaskID) {
+                Set<QueryData> queryDataSet = sourcesByTaskID.get(node);
+                if (queryDataSet == null || queryDataSet.isEmpty()) {
+                    return;
+                }
+                backup = allocateQueryTaskLegacy(new HashMap<String, Integer>(), queryDataSet, hostMap);
+                queryDataSet.remove(backup);
+            }
+            totalHedgeRequests.inc();
+            String id = requestQueryData(backup, query, true);
+            if (log.isDebugEnabled() || query.isTraced()) {
+                Query.emitTrace("Task " + node + " of " + query.uuid() + " has not responded, sending backup request to host: " +
+                                backup.hostEntryInfo.getHostName() + " sourceId: " + id);
+            }
+        }
+
         public boolean isStarted(int node) {
             return started.contains(node);
         }
@@ -490,6 +607,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         private QuerySource replaceQuerySource(QuerySource querySource) throws IOException {
             // Invoked when a cached FileReference throws an IO Exception
             // Get a fresh FileReference and make a new QuerySource with that FileReference and the same parameters otherwise
+            querySource.close();
             FileReference fileReference = meshQueryMaster.getReplacementFileReferenceForSingleTask(querySource.getJobId(), querySource.getTaskId(), querySource.getFileReference());
             return querySource.createCloneWithReplacementFileReference(fileReference);
         }
@@ -504,7 +622,10 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
                     try {
                         processedNext = processNextBundle(querySource);
                     } catch (IOException io) {
-                        if (querySource.lines == 0) {
+                        if (querySource.obsolete) {
+                            // closed because another replica answered first
+                            break;
+                        } else if (querySource.lines == 0) {
                             // This QuerySource does not have this file anymore. Signal to the caller that a retry may resolve the issue.
                             throw new FileReferenceIOException();
                         }
@@ -524,6 +645,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
                             QueryData queryData = querySource.queryData;
                             queryData.hostEntryInfo.setLines(querySource.lines);
                             queryData.hostEntryInfo.setFinished();
+                            querySource.recordResponse();
 
                             // Mark this task as complete (and query if all done)
                             querySource.consumer.markTaskCompleted(queryData.taskId, querySource);
@@ -608,6 +730,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         final QueryData queryData;
         final AggregateHandle consumer;
         final Query query;
+        final boolean hedge;
         volatile boolean canceled = false;
         volatile boolean obsolete = false;
         volatile boolean done = false;
@@ -619,14 +742,27 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         private boolean foundBundle = false;
         private AtomicBoolean started = new AtomicBoolean(false);
         private String id = UUID.randomUUID().toString();
+        private final long requestTime = JitterClock.globalTime();
+        private final AtomicInteger outstanding;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private final AtomicBoolean responded = new AtomicBoolean(false);
 
-        private QuerySource(QueryData queryData, AggregateHandle consumer, Query query) {
+        private QuerySource(QueryData queryData, AggregateHandle consumer, Query query, boolean hedge) {
             this.queryData = queryData;
             this.consumer = consumer;
             this.query = query;
-            this.sourceInputStream = getInputStream();
-            dataChannelReader = new FramedDataChannelReader(this.sourceInputStream, queryData.fileReference.name, classMap, fieldMap, pollWaitTime);
-            consumer.addHandle(this);
+            this.hedge = hedge;
+            this.outstanding = outstandingCounter(queryData.hostEntryInfo.getHostName());
+            outstanding.incrementAndGet();
+            try {
+                this.sourceInputStream = getInputStream();
+                dataChannelReader = new FramedDataChannelReader(this.sourceInputStream, queryData.fileReference.name, classMap, fieldMap, pollWaitTime);
+                consumer.addHandle(this);
+            } catch (RuntimeException e) {
+                // a source that never started must not keep counting against its host
+                release();
+                throw e;
+            }
         }
 
         public SourceInputStream getInputStream() {
@@ -658,6 +794,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
                     close();
                     return null;
                 }
+                recordResponse();
                 consumer.markTaskStarted(queryData.taskId);
                 if (canceled) {
                     consumer.sourceError(new DataChannelError("Query Canceled"));
@@ -683,6 +820,13 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
 
         private boolean markResponse() {
             final String existingResponse = queryResponders.putIfAbsent(queryData.taskId, id);
+            if (existingResponse == null) {
+                // first response for the task, the other replicas asked for it can stop
+                consumer.closeSources(this);
+                if (hedge) {
+                    totalHedgeWins.inc();
+                }
+            }
             if (existingResponse != null && !existingResponse.equals(id)) {
                 if (log.isTraceEnabled() || query.isTraced()) {
                     Query.emitTrace("FileReference: " + queryData.fileReference + " is not the first to respond for task ID: " + queryData.taskId + " ignoring results");
@@ -695,6 +839,22 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
             }
         }
 
+        /**
+         * Record the time this request took to respond, once.
+         */
+        void recordResponse() {
+            if (responded.compareAndSet(false, true)) {
+                responseLatencies.record(queryData.hostEntryInfo.getHostName(), queryData.jobId,
+                        JitterClock.globalTime() - requestTime);
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                outstanding.decrementAndGet();
+            }
+        }
+
         public String getJobId() {
             return queryData.jobId;
         }
@@ -702,6 +862,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         @Override
         public void cancel(String message) {
             canceled = true;
+            release();
             //Calls done which closes connection to consumer / entity what asked us a query
             consumer.sourceError(new DataChannelError(message));
             try {
@@ -715,6 +876,7 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         }
 
         public void close() {
+            release();
             try {
                 if (dataChannelReader != null) {
                     dataChannelReader.close();
@@ -738,13 +900,14 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
 
         public QuerySource createCloneWithReplacementFileReference(FileReference fileReference) {
             QueryData cloneQueryData = new QueryData(this.queryData.channelMaster, fileReference, this.queryData.queryOptions, this.getJobId(), this.getTaskId());
-            return new QuerySource(cloneQueryData, consumer, query);
+            return new QuerySource(cloneQueryData, consumer, query, hedge);
         }
     }
 
     /**
-     * Allocate the query task to the best available host.  Currently we only try
-     * to evenly distribute the queries amongst available hosts.  For example if hosts
+     * Allocate the query task to the best available host.  We pick the host with
+     * the fewest outstanding requests, counting both the tasks of this query assigned
+     * to it and the requests of all queries it has not finished.  For example if hosts
      * 1 and 2 both have data for task a but host 1 already has a query task assigned
      * to it for a different task then we will pick host 2.
      *
@@ -778,7 +941,8 @@ public class MeshSourceAggregator implements com.addthis.hydra.data.query.source
         boolean readOnlyHostSelected = false;
         for (QueryData queryData : hostList) {
             String host = queryData.hostEntryInfo.getHostName();
-            int numberAssigned = queryPerHostCountMap.get(host);
+            // sub queries assigned to the host by this query plus requests still running on it
+            int numberAssigned = queryPerHostCountMap.get(host) + outstanding(host);
             if (log.isTraceEnabled()) {
                 log.trace("host: " + host + " currently has: " + numberAssigned + " assigned");
             }
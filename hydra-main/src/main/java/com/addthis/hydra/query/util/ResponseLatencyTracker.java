@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Keeps a latency histogram for each (host, job) pair. The histograms have
+ * logarithmic buckets and halve their counts every {@code decaySamples}
+ * samples so that recent behavior of a host dominates.
+ */
+public class ResponseLatencyTracker {
+
+    /* each bucket covers 10% more time than the one before it, the last is about an hour */
+    private static final double BUCKET_GROWTH = 1.1;
+    private static final int BUCKETS = 160;
+    private static final double LOG_GROWTH = Math.log(BUCKET_GROWTH);
+
+    private final int decaySamples;
+    private final LoadingCache<String, Histogram> histograms;
+
+    /**
+     * @param maxEntries   (host, job) pairs to remember
+     * @param decaySamples samples after which the counts of a histogram are halved
+     */
+    public ResponseLatencyTracker(int maxEntries, int decaySamples) {
+        this.decaySamples = decaySamples;
+        this.histograms = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterAccess(1, TimeUnit.DAYS)
+                .build(new CacheLoader<String, Histogram>() {
+                    @Override
+                    public Histogram load(String key) {
+                        return new Histogram();
+                    }
+                });
+    }
+
+    private static String key(String host, String job) {
+        return host + "/" + job;
+    }
+
+    public void record(String host, String job, long millis) {
+        try {
+            histograms.get(key(host, job)).add(millis);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param fraction   the percentile as a fraction, e.g. 0.95
+     * @param minSamples fewer samples than this is not enough to estimate from
+     * @return an upper bound for the percentile in milliseconds or -1 if unknown
+     */
+    public long percentile(String host, String job, double fraction, int minSamples) {
+        Histogram histogram = histograms.getIfPresent(key(host, job));
+        return histogram != null ? histogram.percentile(fraction, minSamples) : -1;
+    }
+
+    static int bucket(long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, (int) Math.ceil(Math.log(millis) / LOG_GROWTH));
+    }
+
+    static long bucketLimit(int bucket) {
+        return (long) Math.ceil(Math.pow(BUCKET_GROWTH, bucket));
+    }
+
+    private class Histogram {
+
+        private final double[] counts = new double[BUCKETS];
+        private double total;
+        private int samples;
+        private int recorded;
+
+        synchronized void add(long millis) {
+            counts[bucket(millis)]++;
+            total++;
+            recorded++;
+            if (++samples >= decaySamples) {
+                samples = 0;
+                total = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] /= 2;
+                    total += counts[i];
+                }
+            }
+        }
+
+        synchronized long percentile(double fraction, int minSamples) {
+            if (recorded < minSamples || total <= 0) {
+                return -1;
+            }
+            double target = total * fraction;
+            double seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return bucketLimit(i);
+                }
+            }
+            return bucketLimit(BUCKETS - 1);
+        }
+    }
+}
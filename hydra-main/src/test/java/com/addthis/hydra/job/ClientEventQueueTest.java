@@ -0,0 +1,81 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.maljson.JSONObject;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ClientEventQueueTest {
+
+    private static Spawn.ClientEvent job(String id, int running) throws Exception {
+        return new Spawn.ClientEvent("job.update", new JSONObject().put("id", id).put("running", running).put("nodes", 4));
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        ClientEventQueue queue = new ClientEventQueue(false, 100);
+        queue.add(job("a", 1));
+        queue.add(new Spawn.ClientEvent("cluster.quiesce", new JSONObject().put("quiesced", true)));
+        queue.add(job("b", 1));
+        queue.add(job("a", 2));
+        queue.add(new Spawn.ClientEvent("job.delete", new JSONObject().put("id", "b")));
+        assertEquals(3, queue.size());
+
+        List<Spawn.ClientEvent> events = queue.drain(10);
+        assertEquals("job.update", events.get(0).topic());
+        assertEquals(2, events.get(0).message().getInt("running"));
+        assertEquals("cluster.quiesce", events.get(1).topic());
+        assertEquals("job.delete", events.get(2).topic());
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void diffs() throws Exception {
+        ClientEventQueue queue = new ClientEventQueue(true, 100);
+        queue.add(job("a", 1));
+        assertEquals("job.update", queue.poll(0, TimeUnit.MILLISECONDS).topic());
+        queue.add(job("a", 3));
+        Spawn.ClientEvent diff = queue.poll(0, TimeUnit.MILLISECONDS);
+        assertEquals("job.diff", diff.topic());
+        assertEquals("a", diff.message().getString("id"));
+        assertEquals(3, diff.message().getInt("running"));
+        assertFalse(diff.message().has("nodes"));
+
+        queue.add(new Spawn.ClientEvent("job.delete", new JSONObject().put("id", "a")));
+        queue.poll(0, TimeUnit.MILLISECONDS);
+        queue.add(job("a", 4));
+        assertEquals("a recreated job should be sent in full", "job.update", queue.poll(0, TimeUnit.MILLISECONDS).topic());
+    }
+
+    @Test
+    public void overflow() throws Exception {
+        ClientEventQueue queue = new ClientEventQueue(false, 2);
+        assertTrue(queue.add(job("a", 1)));
+        assertTrue(queue.add(job("b", 1)));
+        assertTrue(queue.add(job("a", 2)));
+        assertFalse(queue.add(job("c", 1)));
+        assertTrue(queue.isOverflowed());
+        assertEquals(0, queue.size());
+        assertFalse(queue.add(job("a", 3)));
+    }
+}
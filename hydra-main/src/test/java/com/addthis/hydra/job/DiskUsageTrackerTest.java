@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import com.addthis.basis.util.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiskUsageTrackerTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void cleanup() {
+        Files.deleteDir(dir);
+    }
+
+    private static void write(File file, int length) throws IOException {
+        Files.write(file, new byte[length], false);
+    }
+
+    /**
+     * Move the modification time of a directory forward, in case the file system only records whole seconds
+     */
+    private static void touch(File dir) throws IOException {
+        Path path = dir.toPath();
+        FileTime modified = java.nio.file.Files.getLastModifiedTime(path);
+        java.nio.file.Files.setLastModifiedTime(path, FileTime.fromMillis(modified.toMillis() + 2000));
+    }
+
+    @Test
+    public void measure() throws Exception {
+        DiskUsageTracker tracker = new DiskUsageTracker(false, 1000);
+        try {
+            File live = Files.initDirectory(new File(dir, "live"));
+            File data = Files.initDirectory(new File(live, "data"));
+            write(new File(live, "job.conf"), 10);
+            write(new File(data, "a"), 100);
+            write(new File(data, "b"), 1000);
+            DiskUsageTracker.Usage usage = tracker.measure(live);
+            assertEquals(3, usage.count);
+            assertEquals(1110, usage.bytes);
+
+            write(new File(data, "c"), 5);
+            touch(data);
+            usage = tracker.measure(live);
+            assertEquals(4, usage.count);
+            assertEquals(1115, usage.bytes);
+
+            Files.deleteDir(data);
+            touch(live);
+            usage = tracker.measure(live);
+            assertEquals(1, usage.count);
+            assertEquals(10, usage.bytes);
+            assertEquals(0, tracker.measure(new File(dir, "missing")).count);
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void hardLinks() throws Exception {
+        DiskUsageTracker tracker = new DiskUsageTracker(false, 1000);
+        try {
+            File live = Files.initDirectory(new File(dir, "live"));
+            File backup = Files.initDirectory(new File(dir, "b-001"));
+            write(new File(live, "a"), 100);
+            write(new File(live, "b"), 1000);
+            java.nio.file.Files.createLink(new File(backup, "a").toPath(), new File(live, "a").toPath());
+            write(new File(backup, "c"), 10);
+            assertEquals(2, tracker.measure(live).count);
+            assertEquals(1100, tracker.measure(live).bytes);
+            DiskUsageTracker.Usage usage = tracker.measure(dir);
+            assertEquals(3, usage.count);
+            assertEquals(1110, usage.bytes);
+        } finally {
+            tracker.close();
+        }
+    }
+
+    @Test
+    public void watch() throws Exception {
+        DiskUsageTracker tracker = new DiskUsageTracker(true, 1000);
+        try {
+            File file = new File(dir, "a");
+            write(file, 100);
+            assertEquals(100, tracker.measure(dir).bytes);
+            write(file, 200);
+            // the watch service reports changes asynchronously
+            long bytes = 0;
+            for (int i = 0; i < 100 && bytes != 200; i++) {
+                Thread.sleep(100);
+                bytes = tracker.measure(dir).bytes;
+            }
+            assertEquals(200, bytes);
+        } finally {
+            tracker.close();
+        }
+    }
+}
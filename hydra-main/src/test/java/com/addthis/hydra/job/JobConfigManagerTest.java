@@ -15,6 +15,7 @@ package com.addthis.hydra.job;
 
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
 
 import com.addthis.basis.test.SlowTest;
 
@@ -23,6 +24,7 @@ import com.addthis.codec.Codec;
 import com.addthis.codec.CodecJSON;
 import com.addthis.hydra.job.store.DataStoreUtil;
 import com.addthis.hydra.job.store.SpawnDataStore;
+import com.addthis.hydra.job.store.ZookeeperDataStore;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Collections2;
@@ -36,6 +38,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 @Category(SlowTest.class)
 public class JobConfigManagerTest extends ZkStartUtil {
@@ -165,6 +168,56 @@ public class JobConfigManagerTest extends ZkStartUtil {
         }
     }
 
+    @Test
+    public void testTaskRecords() throws Exception {
+        JobConfigManager jcm = getJobConfigManager();
+        IJob job = new ZnodeJob("bar");
+        job.setTasks(ImmutableList.of(new JobTask("s1.local", 0, 5), new JobTask("s1.local", 1, 5), new JobTask("s2.local", 2, 6)));
+        jcm.addJob(job);
+        String tasksPath = SPAWN_JOB_CONFIG_PATH + "/bar/tasks";
+        assertEquals(JobConfigManager.TASK_RECORDS_VERSION, spawnDataStore.get(tasksPath));
+        assertEquals(3, spawnDataStore.getChildrenNames(tasksPath).size());
+
+        String unchanged = spawnDataStore.getChild(tasksPath, "0");
+        job.setTasks(ImmutableList.of(new JobTask("s1.local", 0, 5), new JobTask("s3.local", 1, 7)));
+        jcm.updateJob(job);
+        assertEquals(unchanged, spawnDataStore.getChild(tasksPath, "0"));
+        assertEquals(ImmutableList.of("0", "1"), ImmutableList.copyOf(new TreeSet<>(spawnDataStore.getChildrenNames(tasksPath))));
+
+        IJob jobBack = new JobConfigManager(spawnDataStore).getJob("bar");
+        assertEquals(ImmutableList.of(0, 1),
+                ImmutableList.copyOf(Collections2.transform(jobBack.getCopyOfTasks(), new nodeGetter())));
+        assertEquals("s3.local", jobBack.getCopyOfTasks().get(1).getHostUUID());
+    }
+
+    @Test
+    public void testUnreadableTaskRecord() throws Exception {
+        JobConfigManager jcm = getJobConfigManager();
+        IJob job = new ZnodeJob("bar");
+        job.setTasks(ImmutableList.of(new JobTask("s1.local", 0, 5), new JobTask("s1.local", 1, 5)));
+        jcm.addJob(job);
+        jcm.addJob(new ZnodeJob("foo"));
+        final String lostTask = SPAWN_JOB_CONFIG_PATH + "/bar/tasks/1";
+        SpawnDataStore failingStore = new ZookeeperDataStore(myZkClient) {
+            @Override
+            public Map<String, String> get(String[] paths) {
+                Map<String, String> values = super.get(paths);
+                values.remove(lostTask);
+                return values;
+            }
+        };
+        JobConfigManager reader = new JobConfigManager(failingStore);
+        try {
+            reader.getJob("bar");
+            fail("a job with an unreadable task record should not load");
+        } catch (RuntimeException ex) {
+            // expected
+        }
+        Map<String, IJob> jobs = reader.getJobs();
+        assertNotNull(jobs.get("foo"));
+        assertFalse(jobs.containsKey("bar"));
+    }
+
     @Test
     public void testGetJobs() throws Exception {
         JobConfigManager jcm = getJobConfigManager();
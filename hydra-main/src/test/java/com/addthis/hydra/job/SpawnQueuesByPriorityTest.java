@@ -0,0 +1,78 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.addthis.hydra.job.mq.JobKey;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpawnQueuesByPriorityTest {
+
+    private static List<String> keys(List<SpawnQueueItem> items) {
+        List<String> rv = new ArrayList<>();
+        for (SpawnQueueItem item : items) {
+            rv.add(item.getJobKey());
+        }
+        return rv;
+    }
+
+    @Test
+    public void indexedCandidates() {
+        SpawnQueuesByPriority q = new SpawnQueuesByPriority();
+        q.addTaskToQueue(0, new JobKey("job", 0), false, false, Arrays.asList("a"));
+        q.addTaskToQueue(0, new JobKey("job", 1), false, false, Arrays.asList("b"));
+        q.addTaskToQueue(1, new JobKey("job2", 0), false, false, null);
+        q.addTaskToQueue(0, new JobKey("job", 2), false, true, Arrays.asList("b", "c"));
+        assertTrue("should not return candidates without free slots", q.getIndexedCandidates().isEmpty());
+
+        q.markHostAvailable("b");
+        List<SpawnQueueItem> candidates = q.getIndexedCandidates();
+        assertEquals("should return tasks for hosts with slots in queue order",
+                Arrays.asList("job2/0", "job/2", "job/1"), keys(candidates));
+
+        q.removeItem(candidates.get(1));
+        assertEquals(2, q.getTaskQueuedCount(0));
+        assertEquals(Arrays.asList("job2/0", "job/1"), keys(q.getIndexedCandidates()));
+
+        q.markHostAvailable("a");
+        assertEquals(Arrays.asList("job2/0", "job/0", "job/1"), keys(q.getIndexedCandidates()));
+    }
+
+    @Test
+    public void fullIteration() {
+        SpawnQueuesByPriority q = new SpawnQueuesByPriority();
+        assertTrue("should start with a full iteration", q.startFullIteration());
+        assertFalse(q.startFullIteration());
+
+        q.addTaskToQueue(0, new JobKey("job", 0), false, false, Arrays.asList("a"));
+        assertFalse("indexed additions should not need a full iteration", q.startFullIteration());
+        SpawnQueueItem item = q.get(0).getFirst();
+        q.reindex(item, 0, 0, Arrays.asList("b"));
+        q.markHostAvailable("a");
+        assertTrue(q.getIndexedCandidates().isEmpty());
+        q.markHostAvailable("b");
+        assertEquals(Arrays.asList("job/0"), keys(q.getIndexedCandidates()));
+
+        q.unindex(item);
+        assertTrue("unindexed items should need a full iteration", q.startFullIteration());
+    }
+}
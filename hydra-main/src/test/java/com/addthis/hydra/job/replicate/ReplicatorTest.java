@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.replicate;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import com.addthis.basis.util.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReplicatorTest {
+
+    private static final int blockSize = 1024;
+
+    private File dir;
+    private File source;
+    private File target;
+    private File sourceCache;
+    private File targetCache;
+    private final Set<String> excludes = new HashSet<>(Arrays.asList("config"));
+    private final Random random = new Random(1);
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+        source = Files.initDirectory(new File(dir, "source"));
+        target = new File(dir, "target");
+        sourceCache = new File(dir, "source.sums");
+        targetCache = new File(target, "config/replicate.sums");
+    }
+
+    @After
+    public void cleanup() {
+        Files.deleteDir(dir);
+    }
+
+    private byte[] write(File file, int length) throws IOException {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        Files.write(file, data, false);
+        return data;
+    }
+
+    private void replicate(int streams) throws IOException {
+        Replicator.replicateLocal(new ReplicationSender(source, excludes, sourceCache, blockSize, streams, 0),
+                new ReplicationReceiver(target, targetCache));
+    }
+
+    private static long inode(File file) throws IOException {
+        return (Long) java.nio.file.Files.getAttribute(file.toPath(), "unix:ino");
+    }
+
+    @Test
+    public void replicate() throws Exception {
+        File data = Files.initDirectory(new File(source, "data"));
+        byte[] a = write(new File(data, "a"), 5000);
+        byte[] b = write(new File(source, "b"), 0);
+        write(new File(Files.initDirectory(new File(source, "config")), "job.state"), 10);
+        java.nio.file.Files.createLink(new File(source, "a-link").toPath(), new File(data, "a").toPath());
+        java.nio.file.Files.createSymbolicLink(new File(source, "c").toPath(), new File("data/a").toPath());
+        Path modified = new File(data, "a").toPath();
+        java.nio.file.Files.setLastModifiedTime(modified, FileTime.fromMillis(1000000000000L));
+
+        Files.initDirectory(new File(target, "stale/dir"));
+        write(new File(target, "stale/dir/x"), 10);
+        replicate(2);
+
+        assertArrayEquals(a, Files.read(new File(target, "data/a")));
+        assertArrayEquals(a, Files.read(new File(target, "a-link")));
+        assertArrayEquals(b, Files.read(new File(target, "b")));
+        assertEquals(inode(new File(target, "data/a")), inode(new File(target, "a-link")));
+        assertEquals("data/a", java.nio.file.Files.readSymbolicLink(new File(target, "c").toPath()).toString());
+        assertEquals(1000000000000L, new File(target, "data/a").lastModified());
+        assertFalse(new File(target, "stale").exists());
+        assertFalse(new File(target, "config/job.state").exists());
+        assertTrue(targetCache.exists());
+        assertTrue(sourceCache.exists());
+    }
+
+    @Test
+    public void incremental() throws Exception {
+        File file = new File(source, "a");
+        byte[] a = write(file, blockSize * 4 - 10);
+        write(new File(source, "b"), 100);
+        replicate(1);
+
+        // change the third block only
+        a[blockSize * 2 + 5]++;
+        Files.write(file, a, false);
+        file.setLastModified(file.lastModified() + 2000);
+        new File(source, "b").delete();
+        long sent = ReplicationSender.blocksSent.count();
+        long reused = ReplicationSender.blocksReused.count();
+        replicate(1);
+        assertEquals(1, ReplicationSender.blocksSent.count() - sent);
+        assertEquals(3, ReplicationSender.blocksReused.count() - reused);
+        assertArrayEquals(a, Files.read(new File(target, "a")));
+        assertFalse(new File(target, "b").exists());
+
+        // nothing changed, nothing sent
+        sent = ReplicationSender.blocksSent.count();
+        long computed = SignatureCache.signaturesComputed.count();
+        replicate(1);
+        assertEquals(0, ReplicationSender.blocksSent.count() - sent);
+        assertEquals(0, SignatureCache.signaturesComputed.count() - computed);
+        assertEquals(Collections.singletonList("a"), Arrays.asList(target.list(new java.io.FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return !name.equals("config");
+            }
+        })));
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.job.store;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.addthis.basis.util.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LocalDataStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void cleanup() {
+        Files.deleteDir(dir);
+    }
+
+    @Test
+    public void paths() throws Exception {
+        LocalDataStore store = new LocalDataStore(dir, null, 1 << 20, false);
+        try {
+            store.putAsChild("/a/b", "c1", "one");
+            store.putAsChild("/a/b", "c2", "two");
+            assertEquals("", store.get("/a"));
+            assertEquals("one", store.getChild("/a/b", "c1"));
+            assertEquals(Arrays.asList("c1", "c2"), store.getChildrenNames("/a/b"));
+            assertEquals(Arrays.asList("b"), store.getChildrenNames("/a"));
+            assertEquals(0, store.getChildrenNames("/a/b/c1").size());
+            assertNull(store.getChildrenNames("/x"));
+
+            Map<String, String> expected = new HashMap<>();
+            expected.put("c1", "one");
+            expected.put("c2", "two");
+            assertEquals(expected, store.getAllChildren("/a/b"));
+            assertEquals(1, store.get(new String[]{"/a/b/c2", "/a/b/c3"}).size());
+
+            store.deleteChild("/a/b", "c1");
+            assertEquals(Arrays.asList("c2"), store.getChildrenNames("/a/b"));
+            store.delete("/a");
+            assertNull(store.get("/a/b/c2"));
+            assertTrue(store.isEmpty());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        LocalDataStore store = new LocalDataStore(dir, null, 1 << 20, true);
+        for (int i = 0; i < 100; i++) {
+            store.putAsChild("/jobs", "job" + i, "value" + i);
+        }
+        store.delete("/jobs/job7");
+        store.put("/jobs/job8", "changed");
+        store.close();
+
+        store = new LocalDataStore(dir, null, 1 << 20, true);
+        try {
+            assertEquals(99, store.getAllChildren("/jobs").size());
+            assertNull(store.get("/jobs/job7"));
+            assertEquals("changed", store.get("/jobs/job8"));
+            assertEquals("value99", store.get("/jobs/job99"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void snapshot() throws Exception {
+        LocalDataStore store = new LocalDataStore(dir, null, 1 << 20, false);
+        for (int i = 0; i < 50; i++) {
+            store.putAsChild("/jobs", "job" + i, "value" + i);
+        }
+        store.snapshot();
+        store.put("/jobs/job0", "after");
+        store.delete("/jobs/job1");
+        store.close();
+        assertEquals(1, dir.list(new PrefixFilter("snapshot-")).length);
+
+        store = new LocalDataStore(dir, null, 1 << 20, false);
+        try {
+            assertEquals(49, store.getChildrenNames("/jobs").size());
+            assertEquals("after", store.get("/jobs/job0"));
+            assertEquals("value49", store.get("/jobs/job49"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void automaticSnapshot() throws Exception {
+        LocalDataStore store = new LocalDataStore(dir, null, 1000, false);
+        for (int i = 0; i < 500; i++) {
+            store.put("/counter", Integer.toString(i));
+        }
+        store.close();
+        assertTrue(dir.list(new PrefixFilter("snapshot-")).length > 0);
+        store = new LocalDataStore(dir, null, 1000, false);
+        try {
+            assertEquals("499", store.get("/counter"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void incompleteRecord() throws Exception {
+        LocalDataStore store = new LocalDataStore(dir, null, 1 << 20, false);
+        store.put("/a", "one");
+        store.put("/b", "two");
+        store.close();
+        File log = new File(dir, dir.list(new PrefixFilter("log-"))[0]);
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.setLength(file.length() - 2);
+        }
+        store = new LocalDataStore(dir, null, 1 << 20, false);
+        try {
+            assertEquals("one", store.get("/a"));
+            assertNull(store.get("/b"));
+            store.put("/c", "three");
+        } finally {
+            store.close();
+        }
+        store = new LocalDataStore(dir, null, 1 << 20, false);
+        try {
+            assertEquals("three", store.get("/c"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void cutover() throws Exception {
+        File sourceDir = new File(dir, "source");
+        File targetDir = new File(dir, "target");
+        LocalDataStore source = new LocalDataStore(sourceDir, null, 1 << 20, false);
+        LocalDataStore target = new LocalDataStore(targetDir, null, 1 << 20, false);
+        try {
+            source.putAsChild(SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH + "/job/tasks", "0", "task");
+            source.putAsChild(SpawnDataStoreKeys.SPAWN_COMMON_MACRO_PATH, "macro", "value");
+            source.put("/unrelated", "value");
+            DataStoreUtil.cutoverBetweenDataStore(source, target);
+            assertEquals("task", target.get(SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH + "/job/tasks/0"));
+            assertEquals("value", target.getChild(SpawnDataStoreKeys.SPAWN_COMMON_MACRO_PATH, "macro"));
+            assertNull(target.get("/unrelated"));
+        } finally {
+            source.close();
+            target.close();
+        }
+    }
+
+    @Test
+    public void interruptedImport() throws Exception {
+        File sourceDir = new File(dir, "source");
+        File targetDir = new File(dir, "target");
+        LocalDataStore source = new LocalDataStore(sourceDir, null, 1 << 20, false);
+        LocalDataStore target = new LocalDataStore(targetDir, null, 1 << 20, false);
+        try {
+            source.putAsChild(SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH, "job", "config");
+            source.putAsChild(SpawnDataStoreKeys.SPAWN_COMMON_MACRO_PATH, "macro", "value");
+            // an import that stopped partway, with a path since removed from the source
+            target.putAsChild(SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH, "job", "old");
+            target.putAsChild(SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH, "deleted", "old");
+            assertNull(target.get(DataStoreUtil.LOCAL_IMPORT_COMPLETE_PATH));
+            DataStoreUtil.importIntoLocalDataStore(source, target);
+            assertEquals("config", target.getChild(SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH, "job"));
+            assertNull(target.getChild(SpawnDataStoreKeys.SPAWN_JOB_CONFIG_PATH, "deleted"));
+            assertEquals("value", target.getChild(SpawnDataStoreKeys.SPAWN_COMMON_MACRO_PATH, "macro"));
+            assertNotNull(target.get(DataStoreUtil.LOCAL_IMPORT_COMPLETE_PATH));
+        } finally {
+            source.close();
+            target.close();
+        }
+    }
+
+    private static class PrefixFilter implements FilenameFilter {
+
+        private final String prefix;
+
+        PrefixFilter(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.startsWith(prefix);
+        }
+    }
+}
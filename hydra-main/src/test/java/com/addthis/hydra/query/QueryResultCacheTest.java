@@ -0,0 +1,246 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.basis.util.Files;
+
+import com.addthis.bundle.channel.DataChannelOutput;
+import com.addthis.bundle.core.Bundle;
+import com.addthis.bundle.core.list.ListBundle;
+import com.addthis.bundle.core.list.ListBundleFormat;
+import com.addthis.bundle.table.DataTable;
+import com.addthis.bundle.value.ValueFactory;
+import com.addthis.hydra.data.channel.BlockingBufferedConsumer;
+import com.addthis.hydra.data.query.Query;
+import com.addthis.hydra.data.query.QueryException;
+import com.addthis.hydra.data.query.QueryStatusObserver;
+import com.addthis.hydra.data.query.source.QueryHandle;
+import com.addthis.hydra.data.query.source.QuerySource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryResultCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = Files.createTempDir();
+    }
+
+    @After
+    public void cleanup() {
+        Files.deleteDir(dir);
+    }
+
+    /**
+     * Emits rows 0..count-1 once released and counts the queries it answers.
+     */
+    private static class CountingSource implements QuerySource {
+
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release;
+        final int count;
+
+        CountingSource(int count, boolean blocked) {
+            this.count = count;
+            this.release = new CountDownLatch(blocked ? 1 : 0);
+        }
+
+        @Override
+        public QueryHandle query(Query query, final DataChannelOutput consumer) throws QueryException {
+            queries.incrementAndGet();
+            Thread thread = new Thread() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    ListBundleFormat format = new ListBundleFormat();
+                    for (int i = 0; i < count; i++) {
+                        Bundle row = new ListBundle(format);
+                        row.setValue(format.getField("a"), ValueFactory.create(i));
+                        consumer.send(row);
+                    }
+                    consumer.sendComplete();
+                }
+            };
+            thread.start();
+            return new QueryHandle() {
+                @Override
+                public void cancel(String message) {
+                }
+            };
+        }
+
+        @Override
+        public void noop() {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+
+    private static Query query(String path) {
+        Query query = new Query("job", new String[]{path}, null);
+        query.queryStatusObserver = new QueryStatusObserver();
+        return query;
+    }
+
+    private static List<String> run(QuerySource source, Query query) throws Exception {
+        BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+        source.query(query, consumer);
+        return values(consumer);
+    }
+
+    private static List<String> values(BlockingBufferedConsumer consumer) throws Exception {
+        DataTable table = consumer.getTable();
+        List<String> values = new ArrayList<>();
+        for (Bundle row : table) {
+            values.add(row.getValue(row.getFormat().getField("a")).toString());
+        }
+        return values;
+    }
+
+    private static List<String> expected(int count) {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            values.add(Integer.toString(i));
+        }
+        return values;
+    }
+
+    @Test
+    public void hitAfterMiss() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, dir, 1024 * 1024, 60000);
+        CountingSource workers = new CountingSource(100, false);
+        Query first = query("+");
+        first.setParameter("sender", "one");
+        assertEquals(expected(100), run(cache.wrap(cache.hash(first), "job", "1-1", workers), first));
+        Query second = query("+");
+        second.setParameter("sender", "two");
+        assertEquals(expected(100), run(cache.wrap(cache.hash(second), "job", "1-1", workers), second));
+        assertEquals(1, workers.queries.get());
+
+        Query other = query("+:+hits");
+        run(cache.wrap(cache.hash(other), "job", "1-1", workers), other);
+        assertEquals(2, workers.queries.get());
+
+        Query bypass = query("+");
+        bypass.setParameter("cache", "false");
+        assertEquals(null, cache.hash(bypass));
+    }
+
+    @Test
+    public void newGeneration() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, dir, 1024 * 1024, 60000);
+        CountingSource workers = new CountingSource(10, false);
+        Query query = query("+");
+        run(cache.wrap(cache.hash(query), "job", "1-1", workers), query);
+        assertEquals(1, cache.getMemoryEntries());
+        run(cache.wrap(cache.hash(query), "job", "2-5", workers), query);
+        assertEquals(2, workers.queries.get());
+        assertEquals(1, cache.getMemoryEntries());
+        // a changing job is not cached
+        run(cache.wrap(cache.hash(query), "job", null, workers), query);
+        run(cache.wrap(cache.hash(query), "job", null, workers), query);
+        assertEquals(4, workers.queries.get());
+    }
+
+    @Test
+    public void invalidate() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, dir, 1024 * 1024, 60000);
+        CountingSource workers = new CountingSource(10, false);
+        Query query = query("+");
+        run(cache.wrap(cache.hash(query), "job", "1-1", workers), query);
+        assertEquals(1, cache.getMemoryEntries());
+        cache.invalidate("job");
+        assertEquals(0, cache.getMemoryEntries());
+        run(cache.wrap(cache.hash(query), "job", "1-1", workers), query);
+        assertEquals(2, workers.queries.get());
+        // a result still being recorded when the job starts is not stored
+        QuerySource source = cache.wrap(cache.hash(query), "other", "1-1", workers);
+        cache.invalidate("other");
+        run(source, query);
+        assertEquals(1, cache.getMemoryEntries());
+    }
+
+    @Test
+    public void coalesce() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, dir, 1024 * 1024, 60000);
+        CountingSource workers = new CountingSource(50, true);
+        List<BlockingBufferedConsumer> consumers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Query query = query("+");
+            BlockingBufferedConsumer consumer = new BlockingBufferedConsumer();
+            cache.wrap(cache.hash(query), "job", "1-1", workers).query(query, consumer);
+            consumers.add(consumer);
+        }
+        workers.release.countDown();
+        for (BlockingBufferedConsumer consumer : consumers) {
+            assertEquals(expected(50), values(consumer));
+        }
+        assertEquals(1, workers.queries.get());
+    }
+
+    @Test
+    public void earlyCompletionNotStored() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, dir, 1024 * 1024, 60000);
+        CountingSource workers = new CountingSource(10, false);
+        Query query = query("+");
+        query.queryStatusObserver.queryCompleted = true;
+        run(cache.wrap(cache.hash(query), "job", "1-1", workers), query);
+        assertEquals(0, cache.getMemoryEntries());
+    }
+
+    @Test
+    public void largeResultNotStored() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1024 * 1024, 0, dir, 100, 60000);
+        CountingSource workers = new CountingSource(1000, false);
+        Query query = query("+");
+        assertEquals(expected(1000), run(cache.wrap(cache.hash(query), "job", "1-1", workers), query));
+        assertEquals(0, cache.getMemoryEntries());
+    }
+
+    @Test
+    public void diskTier() throws Exception {
+        QueryResultCache cache = new QueryResultCache(2000, 1024 * 1024, dir, 1024 * 1024, 60000);
+        CountingSource workers = new CountingSource(200, false);
+        for (String path : new String[]{"+", "+:+a", "+:+b"}) {
+            Query query = query(path);
+            run(cache.wrap(cache.hash(query), "job", "1-1", workers), query);
+        }
+        assertEquals(3, workers.queries.get());
+        assertEquals(true, cache.getDiskEntries() > 0);
+        for (String path : new String[]{"+", "+:+a", "+:+b"}) {
+            Query query = query(path);
+            assertEquals(expected(200), run(cache.wrap(cache.hash(query), "job", "1-1", workers), query));
+        }
+        assertEquals(3, workers.queries.get());
+    }
+}
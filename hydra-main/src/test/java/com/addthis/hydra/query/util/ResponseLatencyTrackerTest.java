@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.hydra.query.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseLatencyTrackerTest {
+
+    @Test
+    public void buckets() {
+        for (long millis : new long[]{0, 1, 2, 7, 10, 99, 1000, 123456}) {
+            int bucket = ResponseLatencyTracker.bucket(millis);
+            assertTrue(ResponseLatencyTracker.bucketLimit(bucket) >= millis);
+            assertTrue(ResponseLatencyTracker.bucketLimit(bucket) <= Math.ceil(millis * 1.1) + 1);
+        }
+        assertEquals(ResponseLatencyTracker.bucket(Long.MAX_VALUE), ResponseLatencyTracker.bucket(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void percentile() {
+        ResponseLatencyTracker tracker = new ResponseLatencyTracker(100, 10000);
+        assertEquals(-1, tracker.percentile("h1", "job", 0.95, 1));
+        for (int i = 0; i < 96; i++) {
+            tracker.record("h1", "job", 10);
+        }
+        for (int i = 0; i < 4; i++) {
+            tracker.record("h1", "job", 1000);
+        }
+        assertEquals(-1, tracker.percentile("h1", "job", 0.95, 101));
+        long p95 = tracker.percentile("h1", "job", 0.95, 20);
+        assertTrue(p95 >= 10 && p95 <= 11);
+        long p99 = tracker.percentile("h1", "job", 0.99, 20);
+        assertTrue(p99 >= 1000 && p99 <= 1100);
+        // hosts and jobs are tracked separately
+        assertEquals(-1, tracker.percentile("h2", "job", 0.95, 1));
+        assertEquals(-1, tracker.percentile("h1", "other", 0.95, 1));
+    }
+
+    @Test
+    public void decay() {
+        ResponseLatencyTracker tracker = new ResponseLatencyTracker(100, 50);
+        for (int i = 0; i < 50; i++) {
+            tracker.record("h1", "job", 1000);
+        }
+        for (int i = 0; i < 500; i++) {
+            tracker.record("h1", "job", 10);
+        }
+        // the old slow responses have decayed away
+        assertTrue(tracker.percentile("h1", "job", 0.99, 20) <= 11);
+    }
+}
@@ -26,6 +26,7 @@ var initonce = false,
 	aliases = {},
 	revAliases = {},
 	jobs = {},
+	jobUpdates = {},
 	hosts = {},
 	groups = {},
 	macros = {},
@@ -674,7 +675,7 @@ function setPollerLive() {
 
 function eventPollSetup() {
 	if (enablePolling && eventPoller == null) {
-		eventPoller = callRPC('/listen.batch?call='+(eventID++)+'&clientID='+clientID+'&timeout=10000', eventPollCallback);
+		eventPoller = callRPC('/listen.batch?call='+(eventID++)+'&clientID='+clientID+'&timeout=10000&diff=1', eventPollCallback);
 	}
 }
 
@@ -751,7 +752,25 @@ function eventHandler(label,obj,merge) {
 				update.hosts = true;
 			}
 			break;
+		case 'job.diff':
+			// only the fields that changed since the last update for the job.
+			// merge into the last update seen, not into jobs, which job.list
+			// and the edit and nodes callbacks replace with a different shape
+			var job = {};
+			for (var key in jobUpdates[obj.id]) {
+				job[key] = jobUpdates[obj.id][key];
+			}
+			for (var key in obj) {
+				job[key] = obj[key];
+			}
+			update = eventHandler('job.update', job, update);
+			break;
 		case 'job.update':
+			var last = {};
+			for (var key in obj) {
+				last[key] = obj[key];
+			}
+			jobUpdates[obj.id] = last;
 			if (jobs[obj.id]) {
 				if (lastJob && lastJob.id == obj.id) {
 					// force nodes refresh for jobs currently selected
@@ -772,6 +791,7 @@ function eventHandler(label,obj,merge) {
 			update.jobs = true;
 			break;
 		case 'job.delete':
+			delete jobUpdates[obj.id];
 			if (jobs[obj.id]) {
 				delete jobs[obj.id];
 				for (var i=0; i<lastJoblist.length; i++) {
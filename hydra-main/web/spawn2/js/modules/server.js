@@ -14,12 +14,13 @@
 define(["underscore","backbone"],function(_,Backbone){
     var server= _.extend({
         connect:function(){
-            _.bindAll(this,'sendText','sendJSON','handleOpen','handleClose','handleMessage','stopHeartbeat','startHeartbeat');
-            this.ws=new WebSocket("ws://"+window.location.host+"/ws?user="+this.user);//this.user.get("username"));
+            _.bindAll(this,'sendText','sendJSON','handleOpen','handleClose','handleMessage','triggerEvent','stopHeartbeat','startHeartbeat');
+            this.ws=new WebSocket("ws://"+window.location.host+"/ws?diff=1&user="+this.user);//this.user.get("username"));
             this.ws.onopen=this.handleOpen;
             this.ws.onclose=this.handleClose;
             this.ws.onmessage=this.handleMessage;
             this.heartbeat=undefined;
+            this.jobs={};
             return this;
         },
         user:"anonymous",
@@ -47,14 +48,29 @@ define(["underscore","backbone"],function(_,Backbone){
                 if(_.isEqual(data.topic,"event.batch.update")){
                     var count = {},self=this;
                     _.each(message,function(ev){
-                        self.trigger(ev.topic,ev.message);
+                        self.triggerEvent(ev.topic,ev.message);
                     });
                 }
                 else{
-                    this.trigger(data.topic,message);
+                    this.triggerEvent(data.topic,message);
                 }
             }
         },
+        triggerEvent:function(topic,message){
+            // job.diff only carries the fields that changed since the last update for the job
+            if(_.isEqual(topic,"job.diff")){
+                topic="job.update";
+                message=_.extend(this.jobs[message.id] || {},message);
+            }
+            if(_.isEqual(topic,"job.update")){
+                this.jobs[message.id]=message;
+                message=_.clone(message);
+            }
+            else if(_.isEqual(topic,"job.delete")){
+                delete this.jobs[message.id];
+            }
+            this.trigger(topic,message);
+        },
         stopHeartbeat:function(){
             if(!_.isUndefined(this.heartbeat)){
                 clearInterval(this.heartbeat);
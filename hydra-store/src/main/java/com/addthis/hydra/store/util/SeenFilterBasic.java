@@ -14,13 +14,16 @@
 package com.addthis.hydra.store.util;
 
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import com.addthis.basis.util.Bytes;
 
 import com.addthis.codec.Codec;
+import com.addthis.hydra.common.hash.Hashes;
 import com.addthis.hydra.common.hash.PluggableHashFunction;
 
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
 /**
  * A simple, codable Bloom Filter adhering to the SeenFilter interface.
  * <p>A Bloom filter is a space-efficient probabilistic data structure that is used
@@ -29,6 +32,9 @@ import com.addthis.hydra.common.hash.PluggableHashFunction;
  * "inside set (may be wrong)" or "definitely not in set". Elements can be added to
  * the set, but not removed. The more elements that are added to the set,
  * the larger the probability of false positives.
+ * <p>With the blocked hash type all the bits for an element fall within one
+ * 64 byte block of the filter, so a lookup touches one cache line instead of
+ * one per bit. This costs a little accuracy for the same number of bits.
  *
  * @user-reference
  */
@@ -39,19 +45,14 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
     public static final int HASH_HASHCODE_LONG_REV = 2; /* mostly bad */
     public static final int HASH_MD5 = 3; /* marginally better accuracy, much slower */
     public static final int HASH_PLUGGABLE_SHIFT = 4; /* default, best blend if speed and accuracy */
+    public static final int HASH_BLOCKED = 5; /* all bits in one cache line from a single murmur3 hash */
 
     /**
-     * for one of the hash types
+     * bits in a block for HASH_BLOCKED, one 64 byte cache line
      */
-    private static MessageDigest md5;
+    private static final int BLOCK_BITS = 512;
 
-    static {
-        try {
-            md5 = java.security.MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-    }
+    private static final HashFunction blockHash = Hashing.murmur3_128();
 
     /**
      * Optionally specify the initial state of the bloom filter.
@@ -84,7 +85,9 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      * <p>2 - HASH_HASHCODE_LONG_REV : mostly bad
      * <p>3 - HASH_MD5 :  marginally better accuracy, much slower
      * <p>4 - HASH_PLUGGABLE_SHIFT : best blend of speed and accuracy
-     * <p>This field is required. It is strongly recommended that you use "4".
+     * <p>5 - HASH_BLOCKED : fastest for large filters, slightly less accurate.
+     * Cardinality is rounded to a multiple of 512.
+     * <p>This field is required. It is strongly recommended that you use "4" or "5".
      */
     @Codec.Set(codable = true, required = true)
     private int hash;
@@ -108,6 +111,9 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
             throw new RuntimeException("invalid bits @ " + bits);
         }
         this.hash = hash;
+        if (hash == HASH_BLOCKED) {
+            bits = Math.max(BLOCK_BITS, (bits / BLOCK_BITS) * BLOCK_BITS);
+        }
         this.bits = (bits / 32) * 32;
         this.bitsfree = bits;
         this.bitsper = bitsper;
@@ -161,7 +167,8 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
                 for (int i = 0; i < r1.length; i++) {
                     r2[r2.length - i - 1] = (byte) (r1[i] ^ index);
                 }
-                md5.reset();
+                // thread local, the filter is shared by the threads of a job
+                MessageDigest md5 = Hashes.md5();
                 r1 = md5.digest(r1);
                 r2 = md5.digest(r2);
                 return (((long) PluggableHashFunction.hash(r1)) << 32L) | ((long) PluggableHashFunction.hash(r2));
@@ -175,6 +182,25 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
         }
     }
 
+    /**
+     * The block for an element comes from the high half of the hash and the
+     * bits within the block from the low half by double hashing. The step
+     * is odd so the bits of an element are distinct.
+     *
+     * @return offset of the block, low 32 bits of the hash in the high 32 bits
+     */
+    private long blockHash(K o) {
+        long hash = blockHash.hashBytes(generatePreHash(o)).asLong();
+        long block = (((hash >>> 32) * (bits / BLOCK_BITS)) >>> 32) * BLOCK_BITS;
+        return (hash << 32) | block;
+    }
+
+    private static int blockBit(long blockHash, int index) {
+        int low = (int) (blockHash >>> 32);
+        int step = (low >>> 16) | 1;
+        return (int) blockHash + ((low + index * step) & (BLOCK_BITS - 1));
+    }
+
     /**
      * return number of bits backing this filter
      */
@@ -226,6 +252,13 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      */
     public long[] getHashSet(K o) {
         long bs[] = new long[bitsper];
+        if (hash == HASH_BLOCKED) {
+            long blockHash = blockHash(o);
+            for (int i = 0; i < bitsper; i++) {
+                bs[i] = blockBit(blockHash, i);
+            }
+            return bs;
+        }
         for (int i = 0; i < bitsper; i++) {
             bs[i] = Math.abs(generateHash(o, i));
         }
@@ -292,6 +325,16 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
      */
     public boolean updateSeen(K o) {
         boolean allset = true;
+        if (hash == HASH_BLOCKED) {
+            long blockHash = blockHash(o);
+            for (int i = 0; i < bitsper; i++) {
+                int offset = blockBit(blockHash, i);
+                int val = 1 << (offset % 32);
+                allset = allset & ((bitset[offset / 32] & val) == 0);
+                bitset[offset / 32] |= val;
+            }
+            return allset;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
             int offset = (int) (hash % bits);
@@ -345,6 +388,13 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
 
     @Override
     public void setSeen(K o) {
+        if (hash == HASH_BLOCKED) {
+            long blockHash = blockHash(o);
+            for (int i = 0; i < bitsper; i++) {
+                setBit(blockBit(blockHash, i));
+            }
+            return;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
             setBit((int) (hash % bits));
@@ -353,6 +403,15 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
 
     @Override
     public boolean getSeen(K o) {
+        if (hash == HASH_BLOCKED) {
+            long blockHash = blockHash(o);
+            for (int i = 0; i < bitsper; i++) {
+                if (!getBit(blockBit(blockHash, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
             if (!getBit((int) (hash % bits))) {
@@ -365,6 +424,17 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
     @Override
     public boolean getSetSeen(K o) {
         boolean seen = true;
+        if (hash == HASH_BLOCKED) {
+            long blockHash = blockHash(o);
+            for (int i = 0; i < bitsper; i++) {
+                int bit = blockBit(blockHash, i);
+                if (!getBit(bit)) {
+                    setBit(bit);
+                    seen = false;
+                }
+            }
+            return seen;
+        }
         for (int i = 0; i < bitsper; i++) {
             long hash = Math.abs(generateHash(o, i));
             int bit = (int) (hash % bits);
@@ -382,6 +452,9 @@ public class SeenFilterBasic<K> implements SeenFilter<K>, Codec.SuperCodable {
         if (bits <= 0) {
             throw new RuntimeException("invalid bits @ 0");
         }
+        if (hash == HASH_BLOCKED && bits < BLOCK_BITS) {
+            throw new RuntimeException("invalid bits for blocked hash @ " + bits);
+        }
         if (bitset == null) {
             this.bitset = new int[bits / 32];
             this.bitsfree = bits;
@@ -20,6 +20,8 @@ import com.addthis.codec.CodecJSON;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 @Category(SlowTest.class)
@@ -36,8 +38,30 @@ public class SeenFilterBasicTest {
         checkSeenFilter(CodecJSON.decodeString(new SeenFilterBasic<String>(), encoded));
     }
 
+    @Test
+    public void blockedTest() throws Exception {
+        SeenFilterBasic<String> filter = genFilter(SeenFilterBasic.HASH_BLOCKED);
+        assertEquals(19968, filter.getBitCount());
+        checkSeenFilter(filter);
+        String encoded = CodecJSON.encodeString(filter);
+        checkSeenFilter(CodecJSON.decodeString(new SeenFilterBasic<String>(), encoded));
+
+        // hash sets agree with the blocked layout
+        long[] set = filter.getHashSet("5=5");
+        assertTrue(filter.checkHashSet(set));
+        assertEquals(set[0] / 512, set[3] / 512);
+        set = filter.getHashSet("x");
+        assertFalse(filter.checkHashSet(set));
+        filter.setHashSet(set);
+        assertTrue(filter.getSeen("x"));
+    }
+
     private SeenFilterBasic<String> genFilter() {
-        SeenFilterBasic<String> filter = new SeenFilterBasic<String>(20000, 4, 4);
+        return genFilter(SeenFilterBasic.HASH_PLUGGABLE_SHIFT);
+    }
+
+    private SeenFilterBasic<String> genFilter(int hash) {
+        SeenFilterBasic<String> filter = new SeenFilterBasic<String>(20000, 4, hash);
         for (int i = 0; i < 1000; i++) {
             filter.setSeen(i + "=" + i);
         }